@@ -13,6 +13,8 @@
 // limitations under the License.
 package com.google.devtools.build.lib.actions;
 
+import com.google.devtools.build.lib.profiler.ResourceUsage;
+
 /**
  * An event that is fired after an action completes (either successfully or not).
  */
@@ -20,10 +22,17 @@ public final class ActionCompletionEvent {
 
   private final long relativeActionStartTime;
   private final Action action;
+  private final ResourceUsage resourceUsage;
 
   public ActionCompletionEvent(long relativeActionStartTime, Action action) {
+    this(relativeActionStartTime, action, ResourceUsage.NONE);
+  }
+
+  public ActionCompletionEvent(long relativeActionStartTime, Action action,
+      ResourceUsage resourceUsage) {
     this.relativeActionStartTime = relativeActionStartTime;
     this.action = action;
+    this.resourceUsage = resourceUsage;
   }
 
   /**
@@ -36,4 +45,12 @@ public final class ActionCompletionEvent {
   public long getRelativeActionStartTime() {
     return relativeActionStartTime;
   }
+
+  /**
+   * Returns the resources used by the local processes of the action, or {@link
+   * ResourceUsage#NONE} if it ran none or the spawn strategy does not measure them.
+   */
+  public ResourceUsage getResourceUsage() {
+    return resourceUsage;
+  }
 }
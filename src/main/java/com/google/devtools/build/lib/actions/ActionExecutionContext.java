@@ -16,11 +16,14 @@ package com.google.devtools.build.lib.actions;
 
 import com.google.devtools.build.lib.actions.Artifact.ArtifactExpander;
 import com.google.devtools.build.lib.actions.cache.MetadataHandler;
+import com.google.devtools.build.lib.profiler.ResourceUsage;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.util.io.FileOutErr;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunction.Environment;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 import javax.annotation.Nullable;
 
 /**
@@ -35,17 +38,28 @@ public class ActionExecutionContext {
   private final ArtifactExpander artifactExpander;
   @Nullable
   private final Environment env;
+  // Shared with the contexts derived from this one, see withFileOutErr.
+  private final AtomicReference<ResourceUsage> resourceUsage;
 
   private ActionExecutionContext(Executor executor, ActionInputFileCache actionInputFileCache,
       MetadataHandler metadataHandler, FileOutErr fileOutErr,
       @Nullable ArtifactExpander artifactExpander,
-      @Nullable SkyFunction.Environment env) {
+      @Nullable SkyFunction.Environment env, AtomicReference<ResourceUsage> resourceUsage) {
     this.actionInputFileCache = actionInputFileCache;
     this.metadataHandler = metadataHandler;
     this.fileOutErr = fileOutErr;
     this.executor = executor;
     this.artifactExpander = artifactExpander;
     this.env = env;
+    this.resourceUsage = resourceUsage;
+  }
+
+  private ActionExecutionContext(Executor executor, ActionInputFileCache actionInputFileCache,
+      MetadataHandler metadataHandler, FileOutErr fileOutErr,
+      @Nullable ArtifactExpander artifactExpander,
+      @Nullable SkyFunction.Environment env) {
+    this(executor, actionInputFileCache, metadataHandler, fileOutErr, artifactExpander, env,
+        new AtomicReference<>(ResourceUsage.NONE));
   }
 
   public ActionExecutionContext(Executor executor, ActionInputFileCache actionInputFileCache,
@@ -104,6 +118,25 @@ public class ActionExecutionContext {
    */
   public ActionExecutionContext withFileOutErr(FileOutErr fileOutErr) {
     return new ActionExecutionContext(executor, actionInputFileCache, metadataHandler, fileOutErr,
-        artifactExpander, env);
+        artifactExpander, env, resourceUsage);
+  }
+
+  /**
+   * Records the resources used by a local process of the action. Thread-safe, since an action
+   * may run processes in parallel.
+   */
+  public void addResourceUsage(ResourceUsage usage) {
+    ResourceUsage current;
+    do {
+      current = resourceUsage.get();
+    } while (!resourceUsage.compareAndSet(current, current.plus(usage)));
+  }
+
+  /**
+   * Returns the resources used by the local processes of the action so far, or {@link
+   * ResourceUsage#NONE} if they are unknown.
+   */
+  public ResourceUsage getResourceUsage() {
+    return resourceUsage.get();
   }
 }
@@ -14,6 +14,8 @@
 
 package com.google.devtools.build.lib.actions;
 
+import javax.annotation.Nullable;
+
 /**
  * A message used to update in-flight action status. An action's status may change low down in the
  * execution stack (for instance, from running remotely to running locally), so this message can be
@@ -22,11 +24,14 @@ package com.google.devtools.build.lib.actions;
 public class ActionStatusMessage {
   private final ActionExecutionMetadata action;
   private final String message;
+  @Nullable private final String strategy;
   public static final String PREPARING = "Preparing";
 
-  private ActionStatusMessage(ActionExecutionMetadata action, String message) {
+  private ActionStatusMessage(
+      ActionExecutionMetadata action, String message, @Nullable String strategy) {
     this.action = action;
     this.message = message;
+    this.strategy = strategy;
   }
 
   public ActionExecutionMetadata getActionMetadata() {
@@ -37,24 +42,30 @@ public class ActionStatusMessage {
     return message;
   }
 
+  /** Returns the strategy the action is running with, or null if it is not running yet. */
+  @Nullable
+  public String getRunningStrategy() {
+    return strategy;
+  }
+
   /** Creates "Analyzing" status message. */
   public static ActionStatusMessage analysisStrategy(ActionExecutionMetadata action) {
-    return new ActionStatusMessage(action, "Analyzing");
+    return new ActionStatusMessage(action, "Analyzing", null);
   }
 
   /** Creates "Preparing" status message. */
   public static ActionStatusMessage preparingStrategy(ActionExecutionMetadata action) {
-    return new ActionStatusMessage(action, PREPARING);
+    return new ActionStatusMessage(action, PREPARING, null);
   }
 
   /** Creates "Scheduling" status message. */
   public static ActionStatusMessage schedulingStrategy(ActionExecutionMetadata action) {
-    return new ActionStatusMessage(action, "Scheduling");
+    return new ActionStatusMessage(action, "Scheduling", null);
   }
 
   /** Creates "Running (strategy)" status message. */
   public static ActionStatusMessage runningStrategy(
       ActionExecutionMetadata action, String strategy) {
-    return new ActionStatusMessage(action, String.format("Running (%s)", strategy));
+    return new ActionStatusMessage(action, String.format("Running (%s)", strategy), strategy);
   }
 }
@@ -32,6 +32,8 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.Nullable;
 
@@ -52,26 +54,33 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
    * Map of package names to source root paths so that we can create source
    * artifact paths given execPaths in the symlink forest.
    */
-  private ImmutableMap<PackageIdentifier, Root> packageRoots;
+  private volatile ImmutableMap<PackageIdentifier, Root> packageRoots;
 
   /**
    * Reverse-ordered list of derived roots for use in looking up or (in rare cases) creating
    * derived artifacts from execPaths. The reverse order is only significant for overlapping roots
    * so that the longest is found first.
    */
-  private ImmutableCollection<Root> derivedRoots = ImmutableList.of();
+  private volatile ImmutableCollection<Root> derivedRoots = ImmutableList.of();
 
-  private ArtifactIdRegistry artifactIdRegistry = new ArtifactIdRegistry();
+  private volatile ArtifactIdRegistry artifactIdRegistry = new ArtifactIdRegistry();
 
+  /**
+   * A cache of source artifacts which may be read and updated concurrently without locking.
+   *
+   * <p>Each entry records the id of the build in which it was created or last validated. Build ids
+   * are never reused, not even after {@link #clear}, so that an entry which is put by a thread that
+   * races with {@link #clear} or {@link #newBuild} is never mistaken for a valid one.
+   */
   private static class SourceArtifactCache {
 
-    private class Entry {
+    private static final class Entry {
       private final Artifact artifact;
       private final int idOfBuild;
 
-      Entry(Artifact artifact) {
+      Entry(Artifact artifact, int idOfBuild) {
         this.artifact = artifact;
-        idOfBuild = buildId;
+        this.idOfBuild = idOfBuild;
       }
 
       Artifact getArtifact() {
@@ -87,10 +96,11 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
      * The main Path to source artifact cache. There will always be exactly one canonical
      * artifact for a given source path.
      */
-    private final Map<PathFragment, Entry> pathToSourceArtifact = new HashMap<>();
+    private final ConcurrentMap<PathFragment, Entry> pathToSourceArtifact =
+        new ConcurrentHashMap<>();
 
     /** Id of current build. Has to be increased every time before execution phase starts. */
-    private int buildId = 0;
+    private volatile int buildId = 0;
 
     /** Returns artifact if it present in the cache, otherwise null. */
     Artifact getArtifact(PathFragment execPath) {
@@ -110,9 +120,17 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
       return null;
     }
 
-    void markEntryAsValid(PathFragment execPath) {
-      Artifact oldValue = Preconditions.checkNotNull(getArtifact(execPath));
-      pathToSourceArtifact.put(execPath, new Entry(oldValue));
+    /**
+     * Marks {@code artifact} as created during this build, unless another thread replaced it in
+     * the cache in the meantime.
+     */
+    void markEntryAsValid(PathFragment execPath, Artifact artifact) {
+      Entry entry = pathToSourceArtifact.get(execPath);
+      int currentBuildId = buildId;
+      if (entry != null && entry.getArtifact() == artifact
+          && entry.getIdOfBuild() != currentBuildId) {
+        pathToSourceArtifact.replace(execPath, entry, new Entry(artifact, currentBuildId));
+      }
     }
 
     void newBuild() {
@@ -121,14 +139,47 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
 
     void clear() {
       pathToSourceArtifact.clear();
-      buildId = 0;
+      buildId++;
     }
 
-    void putArtifact(PathFragment execPath, Artifact artifact) {
-      pathToSourceArtifact.put(execPath, new Entry(artifact));
+    /**
+     * Returns the cached artifact for {@code execPath} if it has the given owner and root, or else
+     * caches and returns {@code newArtifact}. If several threads race to replace the same entry,
+     * they all return the artifact of the thread that won.
+     */
+    Artifact getOrPutArtifact(PathFragment execPath, Root root, ArtifactOwner owner,
+        ArtifactSupplier newArtifact) {
+      Entry entry = pathToSourceArtifact.get(execPath);
+      Entry newEntry = null;
+      while (true) {
+        if (entry != null && matches(entry.getArtifact(), root, owner)) {
+          return entry.getArtifact();
+        }
+        if (newEntry == null) {
+          newEntry = new Entry(newArtifact.create(), buildId);
+        }
+        if (entry == null
+            ? pathToSourceArtifact.putIfAbsent(execPath, newEntry) == null
+            : pathToSourceArtifact.replace(execPath, entry, newEntry)) {
+          return newEntry.getArtifact();
+        }
+        entry = pathToSourceArtifact.get(execPath);
+      }
     }
+
+    private static boolean matches(Artifact artifact, Root root, ArtifactOwner owner) {
+      // There really should be a safety net that makes it impossible to create two Artifacts
+      // with the same exec path but a different Owner, but we also need to reuse Artifacts from
+      // previous builds.
+      return Objects.equals(artifact.getArtifactOwner(), owner) && root.equals(artifact.getRoot());
+    }
+  }
+
+  /** Creates an artifact on demand, only if it is not already cached. */
+  private interface ArtifactSupplier {
+    Artifact create();
   }
-  
+
   /**
    * Constructs a new artifact factory that will use a given execution root when
    * creating artifacts.
@@ -264,8 +315,8 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
    * setting the <code>root</code> and <code>execPath</code> to the
    * specified values.
    */
-  private synchronized Artifact getArtifact(Path path, Root root, PathFragment execPath,
-      ArtifactOwner owner, @Nullable SpecialArtifactType type) {
+  private Artifact getArtifact(final Path path, final Root root, final PathFragment execPath,
+      final ArtifactOwner owner, @Nullable final SpecialArtifactType type) {
     Preconditions.checkNotNull(root);
     Preconditions.checkNotNull(execPath);
 
@@ -273,16 +324,12 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
       return createArtifact(path, root, execPath, owner, type);
     }
 
-    Artifact artifact = sourceArtifactCache.getArtifact(execPath);
-    if (artifact == null || !Objects.equals(artifact.getArtifactOwner(), owner)
-        || !root.equals(artifact.getRoot())) {
-      // There really should be a safety net that makes it impossible to create two Artifacts
-      // with the same exec path but a different Owner, but we also need to reuse Artifacts from
-      // previous builds.
-      artifact = createArtifact(path, root, execPath, owner, type);
-      sourceArtifactCache.putArtifact(execPath, artifact);
-    }
-    return artifact;
+    return sourceArtifactCache.getOrPutArtifact(execPath, root, owner, new ArtifactSupplier() {
+      @Override
+      public Artifact create() {
+        return createArtifact(path, root, execPath, owner, type);
+      }
+    });
   }
 
   private Artifact createArtifact(Path path, Root root, PathFragment execPath, ArtifactOwner owner,
@@ -301,7 +348,7 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
    * not null). That Artifact will have root determined by the package roots of this factory if it
    * lives in a subpackage distinct from that of baseExecPath, and {@code baseRoot} otherwise.
    */
-  public synchronized Artifact resolveSourceArtifactWithAncestor(
+  public Artifact resolveSourceArtifactWithAncestor(
       PathFragment relativePath, PathFragment baseExecPath, Root baseRoot) {
     Preconditions.checkState(
         (baseExecPath == null) == (baseRoot == null),
@@ -367,7 +414,7 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
   }
 
   @Override
-  public synchronized Map<PathFragment, Artifact> resolveSourceArtifacts(
+  public Map<PathFragment, Artifact> resolveSourceArtifacts(
       Iterable<PathFragment> execPaths, PackageRootResolver resolver)
           throws PackageRootResolutionException {
     Map<PathFragment, Artifact> result = new HashMap<>();
@@ -411,7 +458,7 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
     if (artifact != null && sourceRoot.equals(artifact.getRoot())) {
       // Source root of existing artifact hasn't changed so we should mark corresponding entry in
       // the cache as valid.
-      sourceArtifactCache.markEntryAsValid(execPath);
+      sourceArtifactCache.markEntryAsValid(execPath, artifact);
     } else {
       // Must be a new artifact or artifact in the cache is stale, so create a new one.
       artifact = getSourceArtifact(execPath, sourceRoot, ArtifactOwner.NULL_OWNER); 
@@ -427,7 +474,7 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
    * @return the root for the path or null if no root can be determined
    */
   @VisibleForTesting  // for our own unit tests only.
-  synchronized Root findDerivedRoot(Path path) {
+  Root findDerivedRoot(Path path) {
     for (Root prefix : derivedRoots) {
       if (path.startsWith(prefix.getPath())) {
         return prefix;
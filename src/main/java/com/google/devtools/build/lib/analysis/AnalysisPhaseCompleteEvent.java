@@ -15,8 +15,11 @@
 package com.google.devtools.build.lib.analysis;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.cmdline.Label;
 
 import java.util.Collection;
+import java.util.Map;
 
 /**
  * This event is fired after the analysis phase is complete.
@@ -26,6 +29,7 @@ public class AnalysisPhaseCompleteEvent {
   private final Collection<ConfiguredTarget> targets;
   private final long timeInMs;
   private int targetsVisited;
+  private final ImmutableMap<Label, Long> configuredTargetTimes;
 
   /**
    * Construct the event.
@@ -33,10 +37,22 @@ public class AnalysisPhaseCompleteEvent {
    */
   public AnalysisPhaseCompleteEvent(Collection<? extends ConfiguredTarget> targets,
       int targetsVisited, long timeInMs) {
+    this(targets, targetsVisited, timeInMs, ImmutableMap.<Label, Long>of());
+  }
+
+  /**
+   * Construct the event.
+   * @param targets The set of active targets that remain.
+   * @param configuredTargetTimes the time in nanoseconds spent creating each freshly visited
+   *     configured target
+   */
+  public AnalysisPhaseCompleteEvent(Collection<? extends ConfiguredTarget> targets,
+      int targetsVisited, long timeInMs, Map<Label, Long> configuredTargetTimes) {
     this.timeInMs = timeInMs;
     // Do not remove <ConfiguredTarget>: workaround for Java 7 type inference.
     this.targets = ImmutableList.<ConfiguredTarget>copyOf(targets);
     this.targetsVisited = targetsVisited;
+    this.configuredTargetTimes = ImmutableMap.copyOf(configuredTargetTimes);
   }
 
   /**
@@ -57,4 +73,12 @@ public class AnalysisPhaseCompleteEvent {
   public long getTimeInMs() {
     return timeInMs;
   }
+
+  /**
+   * @return The time in nanoseconds spent creating each freshly visited configured target,
+   *     excluding the time of its dependencies
+   */
+  public ImmutableMap<Label, Long> getConfiguredTargetTimes() {
+    return configuredTargetTimes;
+  }
 }
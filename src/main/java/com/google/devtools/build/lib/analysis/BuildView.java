@@ -190,6 +190,15 @@ public class BuildView {
                 + " the same time as an unrelated target is loaded.")
     public boolean interleaveLoadingAndAnalysis;
 
+    @Option(name = "experimental_trim_top_level_configurations",
+            defaultValue = "false",
+            category = "experimental",
+            help = "With --experimental_dynamic_configs, analyzes each top-level target in a"
+                + " configuration trimmed to the fragments needed by its transitive closure, like"
+                + " its dependencies. Changing options that a target does not read then does not"
+                + " invalidate its analysis.")
+    public boolean trimTopLevelConfigurations;
+
     @Option(name = "version_window_for_dirty_node_gc",
             defaultValue = "0",
             category = "undocumented",
@@ -223,6 +232,14 @@ public class BuildView {
     return skyframeBuildView.getEvaluatedTargetKeys().size();
   }
 
+  /**
+   * The time spent creating each configured target freshly evaluated in the last analysis run, in
+   * nanoseconds.
+   */
+  public ImmutableMap<Label, Long> getConfiguredTargetTimes() {
+    return skyframeBuildView.getConfiguredTargetTimes();
+  }
+
   public BuildView(BlazeDirectories directories,
       ConfiguredRuleClassProvider ruleClassProvider,
       SkyframeExecutor skyframeExecutor,
@@ -421,10 +438,20 @@ public class BuildView {
     Collection<Target> targets = loadingResult.getTargets();
     eventBus.post(new AnalysisPhaseStartedEvent(targets));
 
-    skyframeBuildView.setConfigurations(configurations);
+    // Configured targets are keyed on trimmed configurations, so they are worth keeping across
+    // configuration changes.
+    skyframeBuildView.setConfigurations(configurations,
+        /*keepOnConfigurationChange=*/viewOptions.trimTopLevelConfigurations
+            && configurations.getTargetConfigurations().get(0).useDynamicConfigurations());
 
     // Determine the configurations.
-    List<TargetAndConfiguration> nodes = nodesForTargets(configurations, targets);
+    List<TargetAndConfiguration> topLevelNodes = nodesForTargets(configurations, targets);
+    // The configurations that the top-level targets are analyzed in, in the same order.
+    List<TargetAndConfiguration> trimmedNodes = viewOptions.trimTopLevelConfigurations
+        ? skyframeExecutor.trimConfigurations(eventHandler, topLevelNodes)
+        : topLevelNodes;
+    // Targets in different top-level configurations may end up in the same trimmed one.
+    List<TargetAndConfiguration> nodes = ImmutableList.copyOf(new LinkedHashSet<>(trimmedNodes));
 
     List<ConfiguredTargetKey> targetSpecs =
         Lists.transform(nodes, new Function<TargetAndConfiguration, ConfiguredTargetKey>() {
@@ -445,14 +472,15 @@ public class BuildView {
         PathFragment bzlFile = new PathFragment("/" + aspect.substring(0, delimiterPosition));
 
         String skylarkFunctionName = aspect.substring(delimiterPosition + 1);
-        for (ConfiguredTargetKey targetSpec : targetSpecs) {
+        for (int i = 0; i < topLevelNodes.size(); i++) {
           aspectKeys.add(
               AspectValue.createSkylarkAspectKey(
-                  targetSpec.getLabel(),
-                  // For invoking top-level aspects, use the top-level configuration for both the
-                  // aspect and the base target while the top-level configuration is untrimmed.
-                  targetSpec.getConfiguration(),
-                  targetSpec.getConfiguration(),
+                  topLevelNodes.get(i).getLabel(),
+                  // For invoking top-level aspects, use the top-level configuration for the
+                  // aspect, since it may need fragments that the base target does not. The base
+                  // target is analyzed in its possibly trimmed configuration.
+                  topLevelNodes.get(i).getConfiguration(),
+                  trimmedNodes.get(i).getConfiguration(),
                   bzlFile,
                   skylarkFunctionName));
         }
@@ -460,14 +488,15 @@ public class BuildView {
         final NativeAspectClass aspectFactoryClass =
             ruleClassProvider.getNativeAspectClassMap().get(aspect);
         if (aspectFactoryClass != null) {
-          for (ConfiguredTargetKey targetSpec : targetSpecs) {
+          for (int i = 0; i < topLevelNodes.size(); i++) {
             aspectKeys.add(
                 AspectValue.createAspectKey(
-                    targetSpec.getLabel(),
-                    // For invoking top-level aspects, use the top-level configuration for both the
-                    // aspect and the base target while the top-level configuration is untrimmed.
-                    targetSpec.getConfiguration(),
-                    targetSpec.getConfiguration(),
+                    topLevelNodes.get(i).getLabel(),
+                    // For invoking top-level aspects, use the top-level configuration for the
+                    // aspect, since it may need fragments that the base target does not. The base
+                    // target is analyzed in its possibly trimmed configuration.
+                    topLevelNodes.get(i).getConfiguration(),
+                    trimmedNodes.get(i).getConfiguration(),
                     aspectFactoryClass));
           }
         } else {
@@ -18,6 +18,7 @@ import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.collect.CollectionUtils;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.util.Preconditions;
 
 /**
@@ -29,6 +30,28 @@ public abstract class CommandLine {
    */
   public abstract Iterable<String> arguments();
 
+  /**
+   * Returns the same arguments as {@link #arguments}, but computes them only while they are being
+   * iterated over, if possible. Consumers that make a single pass over a possibly huge command
+   * line, e.g. to write it to a parameter file, should use this to avoid materializing it.
+   *
+   * <p>By default, this method returns {@link #arguments}.
+   */
+  public Iterable<String> lazyArguments() {
+    return arguments();
+  }
+
+  /**
+   * Adds the arguments to {@code fingerprint}, for computing action keys.
+   *
+   * <p>By default, this is {@code fingerprint.addStrings(lazyArguments())}, which counts the
+   * arguments and then hashes them without copying them. Subclasses may override it to add the
+   * digests of nested sets instead of their contents.
+   */
+  public void addToFingerprint(Fingerprint fingerprint) {
+    fingerprint.addStrings(lazyArguments());
+  }
+
   /**
    * Returns whether the command line represents a shell command with the given shell executable.
    * This is used to give better error messages.
@@ -88,6 +111,17 @@ public abstract class CommandLine {
         return Iterables.concat(executableArgs, commandLine.arguments());
       }
 
+      @Override
+      public Iterable<String> lazyArguments() {
+        return Iterables.concat(executableArgs, commandLine.lazyArguments());
+      }
+
+      @Override
+      public void addToFingerprint(Fingerprint fingerprint) {
+        fingerprint.addStrings(executableArgs);
+        commandLine.addToFingerprint(fingerprint);
+      }
+
       @Override
       public boolean isShellCommand() {
         return isShellCommand;
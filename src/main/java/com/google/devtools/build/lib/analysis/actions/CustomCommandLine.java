@@ -14,18 +14,28 @@
 
 package com.google.devtools.build.lib.analysis.actions;
 
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
 import com.google.common.base.Joiner;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.collect.CollectionUtils;
 import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetFingerprintCache;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 /**
  * A customizable, serializable class for building memory efficient command lines.
  */
@@ -33,27 +43,70 @@ import java.util.List;
 public final class CustomCommandLine extends CommandLine {
 
   private abstract static class ArgvFragment {
-    abstract void eval(ImmutableList.Builder<String> builder);
+    /**
+     * Returns the arguments of this fragment. They may be computed lazily, while the result is
+     * being iterated over.
+     */
+    abstract Iterable<String> eval();
+
+    /**
+     * Adds this fragment to {@code fingerprint}. By default, these are its arguments; fragments
+     * that are backed by a {@link NestedSet} add its digest instead.
+     */
+    void addToFingerprint(Fingerprint fingerprint) {
+      fingerprint.addBoolean(false);
+      fingerprint.addStrings(ImmutableList.copyOf(eval()));
+    }
+  }
+
+  /** A fragment that is always a single argument. */
+  private abstract static class SingleArgvFragment extends ArgvFragment {
+    abstract String evalSingle();
+
+    @Override
+    final Iterable<String> eval() {
+      return ImmutableList.of(evalSingle());
+    }
   }
 
   // It's better to avoid anonymous classes if we want to serialize command lines
-  private static final class JoinExecPathsArg extends ArgvFragment {
+  private static final class JoinExecPathsArg extends SingleArgvFragment {
 
     private final String delimiter;
     private final Iterable<Artifact> artifacts;
+    @Nullable private final PathFragment lastPath;
 
-    private JoinExecPathsArg(String delimiter, Iterable<Artifact> artifacts) {
+    private JoinExecPathsArg(String delimiter, Iterable<Artifact> artifacts,
+        @Nullable PathFragment lastPath) {
       this.delimiter = delimiter;
       this.artifacts = CollectionUtils.makeImmutable(artifacts);
+      this.lastPath = lastPath;
+    }
+
+    @Override
+    String evalSingle() {
+      String joined = Artifact.joinExecPaths(delimiter, artifacts);
+      if (lastPath == null) {
+        return joined;
+      }
+      return joined.isEmpty() ? lastPath.getPathString() : joined + delimiter + lastPath;
     }
 
+    @SuppressWarnings("unchecked")
     @Override
-    void eval(ImmutableList.Builder<String> builder) {
-      builder.add(Artifact.joinExecPaths(delimiter, artifacts));
+    void addToFingerprint(Fingerprint fingerprint) {
+      if (!(artifacts instanceof NestedSet)) {
+        super.addToFingerprint(fingerprint);
+        return;
+      }
+      fingerprint.addBoolean(true);
+      fingerprint.addString(delimiter);
+      fingerprint.addNullableString(lastPath == null ? null : lastPath.getPathString());
+      fingerprint.addBytes(EXEC_PATH_DIGESTS.digest((NestedSet<Artifact>) artifacts));
     }
   }
 
-  private static final class PathWithTemplateArg extends ArgvFragment {
+  private static final class PathWithTemplateArg extends SingleArgvFragment {
 
     private final String template;
     private final PathFragment[] paths;
@@ -64,9 +117,9 @@ public final class CustomCommandLine extends CommandLine {
     }
 
     @Override
-    void eval(ImmutableList.Builder<String> builder) {
+    String evalSingle() {
       // PathFragment.toString() uses getPathString()
-      builder.add(String.format(template, (Object[]) paths));
+      return String.format(template, (Object[]) paths);
     }
   }
 
@@ -76,11 +129,11 @@ public final class CustomCommandLine extends CommandLine {
   /**
    * Custom Java code producing a String argument. Usage of this class is discouraged.
    */
-  public abstract static class CustomArgv extends ArgvFragment {
+  public abstract static class CustomArgv extends SingleArgvFragment {
 
     @Override
-    void eval(ImmutableList.Builder<String> builder) {
-      builder.add(argv());
+    String evalSingle() {
+      return argv();
     }
 
     public abstract String argv();
@@ -92,14 +145,14 @@ public final class CustomCommandLine extends CommandLine {
   public abstract static class CustomMultiArgv extends ArgvFragment {
 
     @Override
-    void eval(ImmutableList.Builder<String> builder) {
-      builder.addAll(argv());
+    Iterable<String> eval() {
+      return argv();
     }
 
     public abstract Iterable<String> argv();
   }
 
-  private static final class JoinPathsArg extends ArgvFragment {
+  private static final class JoinPathsArg extends SingleArgvFragment {
 
     private final String delimiter;
     private final Iterable<PathFragment> paths;
@@ -110,12 +163,12 @@ public final class CustomCommandLine extends CommandLine {
     }
 
     @Override
-    void eval(ImmutableList.Builder<String> builder) {
-      builder.add(Joiner.on(delimiter).join(paths));
+    String evalSingle() {
+      return Joiner.on(delimiter).join(paths);
     }
   }
 
-  private static final class JoinStringsArg extends ArgvFragment {
+  private static final class JoinStringsArg extends SingleArgvFragment {
 
     private final String delimiter;
     private final Iterable<String> strings;
@@ -126,8 +179,8 @@ public final class CustomCommandLine extends CommandLine {
     }
 
     @Override
-    void eval(ImmutableList.Builder<String> builder) {
-      builder.add(Joiner.on(delimiter).join(strings));
+    String evalSingle() {
+      return Joiner.on(delimiter).join(strings);
     }
   }
 
@@ -147,6 +200,8 @@ public final class CustomCommandLine extends CommandLine {
    */
   private static final class InterspersingArgs extends ArgvFragment {
     private final Iterable<?> sequence;
+    // Whether sequence contains artifacts, whose exec paths are the arguments.
+    private final boolean execPaths;
     private final String beforeEach;
     private final String formatEach;
 
@@ -154,8 +209,10 @@ public final class CustomCommandLine extends CommandLine {
      * Do not call from outside this class because this does not guarantee that {@code sequence} is
      * immutable.
      */
-    private InterspersingArgs(Iterable<?> sequence, String beforeEach, String formatEach) {
+    private InterspersingArgs(Iterable<?> sequence, boolean execPaths, String beforeEach,
+        String formatEach) {
       this.sequence = sequence;
+      this.execPaths = execPaths;
       this.beforeEach = beforeEach;
       this.formatEach = formatEach;
     }
@@ -163,31 +220,74 @@ public final class CustomCommandLine extends CommandLine {
     static InterspersingArgs fromStrings(
         Iterable<?> sequence, String beforeEach, String formatEach) {
       return new InterspersingArgs(
-          CollectionUtils.makeImmutable(sequence), beforeEach, formatEach);
+          CollectionUtils.makeImmutable(sequence), /*execPaths=*/false, beforeEach, formatEach);
     }
 
     static InterspersingArgs fromExecPaths(
         Iterable<Artifact> sequence, String beforeEach, String formatEach) {
       return new InterspersingArgs(
-          Artifact.toExecPaths(CollectionUtils.makeImmutable(sequence)), beforeEach, formatEach);
+          CollectionUtils.makeImmutable(sequence), /*execPaths=*/true, beforeEach, formatEach);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Iterable<?> items() {
+      return execPaths ? Artifact.toExecPaths((Iterable<Artifact>) sequence) : sequence;
     }
 
     @Override
-    void eval(ImmutableList.Builder<String> builder) {
-      for (Object item : sequence) {
-        if (item == null) {
-          continue;
+    Iterable<String> eval() {
+      return new Iterable<String>() {
+        @Override
+        public Iterator<String> iterator() {
+          final Iterator<?> items = items().iterator();
+          return new AbstractIterator<String>() {
+            // The formatted item to return after beforeEach.
+            private String pending;
+
+            @Override
+            protected String computeNext() {
+              if (pending != null) {
+                String arg = pending;
+                pending = null;
+                return arg;
+              }
+              while (items.hasNext()) {
+                Object item = items.next();
+                if (item == null) {
+                  continue;
+                }
+
+                String arg = item.toString();
+                if (formatEach != null) {
+                  arg = String.format(formatEach, arg);
+                }
+                if (beforeEach != null) {
+                  pending = arg;
+                  return beforeEach;
+                }
+                return arg;
+              }
+              return endOfData();
+            }
+          };
         }
+      };
+    }
 
-        if (beforeEach != null) {
-          builder.add(beforeEach);
-        }
-        String arg = item.toString();
-        if (formatEach != null) {
-          arg = String.format(formatEach, arg);
-        }
-        builder.add(arg);
+    @SuppressWarnings("unchecked")
+    @Override
+    void addToFingerprint(Fingerprint fingerprint) {
+      if (!(sequence instanceof NestedSet)) {
+        super.addToFingerprint(fingerprint);
+        return;
       }
+      fingerprint.addBoolean(true);
+      fingerprint.addNullableString(beforeEach);
+      fingerprint.addNullableString(formatEach);
+      fingerprint.addBoolean(execPaths);
+      fingerprint.addBytes(execPaths
+          ? EXEC_PATH_DIGESTS.digest((NestedSet<Artifact>) sequence)
+          : STRING_DIGESTS.digest((NestedSet<Object>) sequence));
     }
   }
 
@@ -276,7 +376,20 @@ public final class CustomCommandLine extends CommandLine {
     public Builder addJoinExecPaths(String arg, String delimiter, Iterable<Artifact> artifacts) {
       if (arg != null && artifacts != null) {
         arguments.add(arg);
-        arguments.add(new JoinExecPathsArg(delimiter, artifacts));
+        arguments.add(new JoinExecPathsArg(delimiter, artifacts, /*lastPath=*/null));
+      }
+      return this;
+    }
+
+    /**
+     * Like {@link #addJoinExecPaths(String, String, Iterable)}, but appends {@code lastPath} to the
+     * joined exec paths.
+     */
+    public Builder addJoinExecPaths(String arg, String delimiter, Iterable<Artifact> artifacts,
+        PathFragment lastPath) {
+      if (arg != null && artifacts != null && lastPath != null) {
+        arguments.add(arg);
+        arguments.add(new JoinExecPathsArg(delimiter, artifacts, lastPath));
       }
       return this;
     }
@@ -353,6 +466,22 @@ public final class CustomCommandLine extends CommandLine {
     return new Builder();
   }
 
+  // Digests of the nested sets in command lines, shared by all actions.
+  private static final NestedSetFingerprintCache<Object> STRING_DIGESTS =
+      new NestedSetFingerprintCache<>(Functions.toStringFunction());
+  private static final NestedSetFingerprintCache<Artifact> EXEC_PATH_DIGESTS =
+      new NestedSetFingerprintCache<>(ActionInputHelper.EXEC_PATH_STRING_FORMATTER);
+
+  private static final Function<Object, Iterable<String>> EVAL =
+      new Function<Object, Iterable<String>>() {
+        @Override
+        public Iterable<String> apply(Object arg) {
+          return arg instanceof ArgvFragment
+              ? ((ArgvFragment) arg).eval()
+              : ImmutableList.of(arg.toString());
+        }
+      };
+
   private final ImmutableList<Object> arguments;
 
   private CustomCommandLine(List<Object> arguments) {
@@ -361,14 +490,33 @@ public final class CustomCommandLine extends CommandLine {
 
   @Override
   public Iterable<String> arguments() {
-    ImmutableList.Builder<String> builder = ImmutableList.builder();
+    return ImmutableList.copyOf(lazyArguments());
+  }
+
+  /**
+   * Returns the arguments, formatting each of them only when it is reached. Nested sets and other
+   * sequences are not copied, so huge command lines can be fingerprinted or written to a
+   * parameter file without materializing them.
+   */
+  @Override
+  public Iterable<String> lazyArguments() {
+    return Iterables.concat(Iterables.transform(arguments, EVAL));
+  }
+
+  /**
+   * Adds the arguments to {@code fingerprint}, except that arguments taken from a
+   * {@link NestedSet} are added as its digest, which is computed only once per nested set. Actions
+   * that share a large nested set, e.g. a classpath, do not hash its contents over and over.
+   */
+  @Override
+  public void addToFingerprint(Fingerprint fingerprint) {
+    fingerprint.addInt(arguments.size());
     for (Object arg : arguments) {
       if (arg instanceof ArgvFragment) {
-        ((ArgvFragment) arg).eval(builder);
+        ((ArgvFragment) arg).addToFingerprint(fingerprint);
       } else {
-        builder.add(arg.toString());
+        fingerprint.addString(arg.toString());
       }
     }
-    return builder.build();
   }
 }
@@ -88,11 +88,12 @@ public final class ParameterFileWriteAction extends AbstractFileWriteAction {
   }
 
   /**
-   * Writes the arguments from the list into the parameter file.
+   * Writes the arguments from the list into the parameter file. The arguments are streamed into
+   * the file as they are computed, without materializing the whole command line.
    */
   private void writeContentUnquoted(OutputStream outputStream) throws IOException {
     OutputStreamWriter out = new OutputStreamWriter(outputStream, charset);
-    for (String line : commandLine.arguments()) {
+    for (String line : commandLine.lazyArguments()) {
       out.write(line);
       out.write('\n');
     }
@@ -105,7 +106,7 @@ public final class ParameterFileWriteAction extends AbstractFileWriteAction {
    */
   private void writeContentQuoted(OutputStream outputStream) throws IOException {
     OutputStreamWriter out = new OutputStreamWriter(outputStream, charset);
-    for (String line : ShellEscaper.escapeAll(commandLine.arguments())) {
+    for (String line : ShellEscaper.escapeAll(commandLine.lazyArguments())) {
       out.write(line);
       out.write('\n');
     }
@@ -117,7 +118,7 @@ public final class ParameterFileWriteAction extends AbstractFileWriteAction {
     Fingerprint f = new Fingerprint();
     f.addString(GUID);
     f.addString(String.valueOf(makeExecutable));
-    f.addStrings(commandLine.arguments());
+    commandLine.addToFingerprint(f);
     return f.hexDigestAndReset();
   }
 }
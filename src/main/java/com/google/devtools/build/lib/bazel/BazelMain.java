@@ -38,18 +38,20 @@ public final class BazelMain {
    * all the other modules that provider spawn strategies (e.g. WorkerModule and SandboxModule).
    */
   public static final List<Class<? extends BlazeModule>> BAZEL_MODULES =
-      ImmutableList.of(
-          com.google.devtools.build.lib.bazel.BazelShutdownLoggerModule.class,
-          com.google.devtools.build.lib.bazel.BazelWorkspaceStatusModule.class,
-          com.google.devtools.build.lib.bazel.BazelDiffAwarenessModule.class,
-          com.google.devtools.build.lib.bazel.BazelRepositoryModule.class,
-          com.google.devtools.build.lib.bazel.dash.DashModule.class,
-          com.google.devtools.build.lib.bazel.rules.BazelRulesModule.class,
-          com.google.devtools.build.lib.worker.WorkerModule.class,
-          com.google.devtools.build.lib.remote.RemoteModule.class,
-          com.google.devtools.build.lib.standalone.StandaloneModule.class,
-          com.google.devtools.build.lib.sandbox.SandboxModule.class,
-          com.google.devtools.build.lib.runtime.BuildSummaryStatsModule.class);
+      ImmutableList.<Class<? extends BlazeModule>>builder()
+          .add(com.google.devtools.build.lib.bazel.BazelShutdownLoggerModule.class)
+          .add(com.google.devtools.build.lib.bazel.BazelWorkspaceStatusModule.class)
+          .add(com.google.devtools.build.lib.bazel.BazelDiffAwarenessModule.class)
+          .add(com.google.devtools.build.lib.bazel.BazelRepositoryModule.class)
+          .add(com.google.devtools.build.lib.bazel.dash.DashModule.class)
+          .add(com.google.devtools.build.lib.bazel.eventlog.BuildEventLogModule.class)
+          .add(com.google.devtools.build.lib.bazel.rules.BazelRulesModule.class)
+          .add(com.google.devtools.build.lib.worker.WorkerModule.class)
+          .add(com.google.devtools.build.lib.remote.RemoteModule.class)
+          .add(com.google.devtools.build.lib.standalone.StandaloneModule.class)
+          .add(com.google.devtools.build.lib.sandbox.SandboxModule.class)
+          .add(com.google.devtools.build.lib.runtime.BuildSummaryStatsModule.class)
+          .build();
 
   public static void main(String[] args) {
     BlazeVersionInfo.setBuildInfo(tryGetBuildInfo());
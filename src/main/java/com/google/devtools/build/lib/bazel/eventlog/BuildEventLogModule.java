@@ -0,0 +1,175 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.bazel.eventlog;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.Subscribe;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.ActionExecutedEvent;
+import com.google.devtools.build.lib.analysis.TargetCompleteEvent;
+import com.google.devtools.build.lib.bazel.eventlog.BuildEventLogProtos.ActionExecuted;
+import com.google.devtools.build.lib.bazel.eventlog.BuildEventLogProtos.BuildCompleted;
+import com.google.devtools.build.lib.bazel.eventlog.BuildEventLogProtos.BuildEvent;
+import com.google.devtools.build.lib.bazel.eventlog.BuildEventLogProtos.CommandStarted;
+import com.google.devtools.build.lib.bazel.eventlog.BuildEventLogProtos.TargetCompleted;
+import com.google.devtools.build.lib.bazel.eventlog.BuildEventLogProtos.TestCompleted;
+import com.google.devtools.build.lib.buildtool.BuildResult;
+import com.google.devtools.build.lib.buildtool.buildevent.BuildCompleteEvent;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.rules.test.TestResult;
+import com.google.devtools.build.lib.runtime.BlazeModule;
+import com.google.devtools.build.lib.runtime.Command;
+import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.lib.runtime.CommandStartEvent;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.common.options.OptionsBase;
+import com.google.devtools.common.options.OptionsProvider;
+
+import java.io.IOException;
+
+/**
+ * Streams the main events of a build to a file, so that other processes can follow the build
+ * without scraping its terminal output. See build_event_log.proto for the format.
+ */
+public class BuildEventLogModule extends BlazeModule {
+
+  // How long the command waits for the consumer of the log to read the remaining events.
+  private static final long CLOSE_TIMEOUT_MILLIS = 10000;
+
+  private CommandEnvironment env;
+  private Path logPath;
+  // Null unless --build_event_log is set. Set before the event bus delivers any build events.
+  private volatile BuildEventLogWriter writer;
+
+  @Override
+  public void beforeCommand(Command command, CommandEnvironment env) {
+    this.env = env;
+    env.getEventBus().register(this);
+  }
+
+  @Override
+  public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
+    return command.builds()
+        ? ImmutableList.<Class<? extends OptionsBase>>of(BuildEventLogOptions.class)
+        : ImmutableList.<Class<? extends OptionsBase>>of();
+  }
+
+  @Override
+  public void handleOptions(OptionsProvider optionsProvider) {
+    BuildEventLogOptions options = optionsProvider.getOptions(BuildEventLogOptions.class);
+    if (options == null || options.buildEventLog.isEmpty()) {
+      return;
+    }
+    logPath = env.getWorkingDirectory().getRelative(options.buildEventLog);
+    try {
+      writer = new BuildEventLogWriter(
+          logPath.getOutputStream(), options.bufferSize, env.getRuntime().getClock());
+    } catch (IOException e) {
+      env.getReporter().handle(Event.error(
+          "Could not open build event log " + logPath + ": " + e.getMessage()));
+    }
+  }
+
+  @Override
+  public void afterCommand() {
+    BuildEventLogWriter writer = this.writer;
+    this.writer = null;
+    if (writer != null) {
+      try {
+        writer.close(CLOSE_TIMEOUT_MILLIS);
+      } catch (IOException e) {
+        env.getReporter().handle(Event.warn(
+            "Could not write build event log " + logPath + ": " + e.getMessage()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    this.env = null;
+    this.logPath = null;
+  }
+
+  private void post(BuildEvent.Builder event) {
+    BuildEventLogWriter writer = this.writer;
+    if (writer != null) {
+      writer.post(event);
+    }
+  }
+
+  @Subscribe
+  public void commandStarted(CommandStartEvent event) {
+    post(BuildEvent.newBuilder().setCommandStarted(CommandStarted.newBuilder()
+        .setBuildId(event.getCommandId().toString())
+        .setCommandName(event.getCommandName())
+        .setWorkingDir(event.getWorkingDirectory().getPathString())));
+  }
+
+  @Subscribe
+  public void actionExecuted(ActionExecutedEvent event) {
+    if (writer == null) {
+      return;
+    }
+    Action action = event.getAction();
+    ActionExecuted.Builder builder = ActionExecuted.newBuilder()
+        .setMnemonic(action.getMnemonic())
+        .setPrimaryOutput(action.getPrimaryOutput().getExecPathString())
+        .setSuccess(event.getException() == null);
+    Label label = action.getOwner().getLabel();
+    if (label != null) {
+      builder.setLabel(label.toString());
+    }
+    if (event.getException() != null) {
+      builder.setFailureMessage(event.getException().getMessage());
+    }
+    if (event.getStdout() != null) {
+      builder.setStdout(event.getStdout());
+    }
+    if (event.getStderr() != null) {
+      builder.setStderr(event.getStderr());
+    }
+    post(BuildEvent.newBuilder().setActionExecuted(builder));
+  }
+
+  @Subscribe
+  public void targetComplete(TargetCompleteEvent event) {
+    TargetCompleted.Builder builder = TargetCompleted.newBuilder()
+        .setLabel(event.getTarget().getLabel().toString())
+        .setSuccess(!event.failed());
+    for (Label rootCause : event.getRootCauses()) {
+      builder.addRootCauses(rootCause.toString());
+    }
+    post(BuildEvent.newBuilder().setTargetCompleted(builder));
+  }
+
+  @Subscribe
+  public void testFinished(TestResult result) {
+    post(BuildEvent.newBuilder().setTestCompleted(TestCompleted.newBuilder()
+        .setLabel(result.getLabel())
+        .setPassed(result.getData().getTestPassed())
+        .setCached(result.isCached())
+        .setShard(result.getShardNum())
+        .setTestLog(result.getTestLogPath().getPathString())));
+  }
+
+  @Subscribe
+  public void buildComplete(BuildCompleteEvent event) {
+    BuildResult result = event.getResult();
+    BuildCompleted.Builder builder = BuildCompleted.newBuilder().setSuccess(result.getSuccess());
+    if (result.getExitCondition() != null) {
+      builder.setExitCode(result.getExitCondition().getNumericExitCode());
+    }
+    post(BuildEvent.newBuilder().setBuildCompleted(builder));
+  }
+}
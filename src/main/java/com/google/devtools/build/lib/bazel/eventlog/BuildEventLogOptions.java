@@ -0,0 +1,43 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.bazel.eventlog;
+
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+
+/**
+ * Options for streaming build events to a file.
+ */
+public class BuildEventLogOptions extends OptionsBase {
+
+  @Option(
+      name = "build_event_log",
+      defaultValue = "",
+      help = "If set, writes a length-delimited stream of build_event_log.BuildEvent protocol "
+          + "buffers to this file as the build progresses. The file may be a named pipe read by "
+          + "another process."
+  )
+  public String buildEventLog;
+
+  @Option(
+      name = "build_event_log_buffer_size",
+      defaultValue = "10000",
+      help = "The number of build events that may be waiting to be written to the build event "
+          + "log. When the reader of the log falls further behind, events are dropped rather than "
+          + "slowing down the build, and the log records how many."
+  )
+  public int bufferSize;
+
+}
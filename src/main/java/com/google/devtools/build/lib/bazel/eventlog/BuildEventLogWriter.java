@@ -0,0 +1,191 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.bazel.eventlog;
+
+import com.google.devtools.build.lib.bazel.eventlog.BuildEventLogProtos.BuildEvent;
+import com.google.devtools.build.lib.bazel.eventlog.BuildEventLogProtos.EventsDropped;
+import com.google.devtools.build.lib.util.Clock;
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes {@link BuildEvent}s as a length-delimited stream from a thread of its own.
+ *
+ * <p>Events are buffered in a bounded queue, and {@link #post} never blocks: when the queue is
+ * full, the event is dropped, and the number of dropped events is written as an {@link
+ * EventsDropped} event before the next event that is written. This way a slow consumer of the log
+ * cannot slow down the threads posting the events, most of which execute actions.
+ */
+final class BuildEventLogWriter {
+
+  /** Tells the writer thread to stop. Compared by identity. */
+  private static final BuildEvent END_OF_LOG = BuildEvent.newBuilder().build();
+
+  // The stream given to the constructor, which is closed directly if the writer is abandoned.
+  private final OutputStream rawOut;
+  private final OutputStream out;
+  private final Clock clock;
+  private final BlockingQueue<BuildEvent> queue;
+  private final AtomicLong nextSequenceNumber = new AtomicLong();
+  private final AtomicLong droppedEvents = new AtomicLong();
+  private final Thread writerThread;
+  private volatile IOException writeError;
+  private volatile boolean abandoned = false;
+  private boolean closed = false;
+
+  /**
+   * Starts a writer for {@code out}, which buffers up to {@code bufferSize} events that were posted
+   * but not yet written.
+   */
+  BuildEventLogWriter(OutputStream out, int bufferSize, Clock clock) {
+    Preconditions.checkArgument(bufferSize > 0, bufferSize);
+    this.rawOut = out;
+    this.out = new BufferedOutputStream(out);
+    this.clock = clock;
+    this.queue = new ArrayBlockingQueue<>(bufferSize);
+    this.writerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeEvents();
+      }
+    }, "build-event-log-writer");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Stamps {@code event} with a sequence number and the current time, and queues it for writing,
+   * or drops it if the queue is full.
+   */
+  void post(BuildEvent.Builder event) {
+    BuildEvent stamped = event
+        .setSequenceNumber(nextSequenceNumber.getAndIncrement())
+        .setTimestampMillis(clock.currentTimeMillis())
+        .build();
+    if (!queue.offer(stamped)) {
+      droppedEvents.incrementAndGet();
+    }
+  }
+
+  /**
+   * Waits up to {@code timeoutMillis} for the queued events to be written and closes the stream.
+   * If the consumer of the stream does not keep up, the writer is abandoned: the events that were
+   * not written yet are dropped, the stream is closed, and an {@link IOException} is thrown.
+   *
+   * @throws IOException if writing any event, or closing the stream, failed, or timed out
+   */
+  synchronized void close(long timeoutMillis) throws IOException, InterruptedException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    if (queue.offer(END_OF_LOG, timeoutMillis, TimeUnit.MILLISECONDS)) {
+      writerThread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+    }
+    if (writerThread.isAlive()) {
+      abandon();
+      throw new IOException("Timed out after " + timeoutMillis + "ms writing the build event log");
+    }
+    try {
+      out.close();
+    } catch (IOException e) {
+      if (writeError == null) {
+        writeError = e;
+      }
+    }
+    if (writeError != null) {
+      throw writeError;
+    }
+  }
+
+  /**
+   * Makes the writer thread drop all events and exit, without waiting for it. The underlying
+   * stream is closed directly, because the buffered one is locked by a write that is blocked.
+   */
+  private void abandon() {
+    abandoned = true;
+    writerThread.interrupt();
+    queue.clear();
+    queue.offer(END_OF_LOG);
+    try {
+      rawOut.close();
+    } catch (IOException e) {
+      // The log is incomplete anyway, which close() reports.
+    }
+  }
+
+  private void writeEvents() {
+    List<BuildEvent> batch = new ArrayList<>();
+    try {
+      while (true) {
+        batch.add(queue.take());
+        queue.drainTo(batch);
+        for (BuildEvent event : batch) {
+          if (writeError == null && !abandoned) {
+            try {
+              writeDroppedEvents();
+              if (event != END_OF_LOG) {
+                event.writeDelimitedTo(out);
+              }
+            } catch (IOException e) {
+              // Keep taking events off the queue, so that close() does not block.
+              writeError = e;
+            }
+          }
+          if (event == END_OF_LOG || abandoned) {
+            flush();
+            return;
+          }
+        }
+        batch.clear();
+        // Make the events visible to the consumer as soon as nothing else is waiting.
+        flush();
+      }
+    } catch (InterruptedException e) {
+      // The server is shutting down.
+    }
+  }
+
+  private void writeDroppedEvents() throws IOException {
+    long dropped = droppedEvents.getAndSet(0);
+    if (dropped > 0) {
+      BuildEvent.newBuilder()
+          .setTimestampMillis(clock.currentTimeMillis())
+          .setEventsDropped(EventsDropped.newBuilder().setCount(dropped))
+          .build()
+          .writeDelimitedTo(out);
+    }
+  }
+
+  private void flush() {
+    if (writeError == null && !abandoned) {
+      try {
+        out.flush();
+      } catch (IOException e) {
+        writeError = e;
+      }
+    }
+  }
+}
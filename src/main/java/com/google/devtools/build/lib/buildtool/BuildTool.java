@@ -50,6 +50,7 @@ import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.cmdline.TargetParsingException;
 import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetExpansionCache;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.OutputFilter;
 import com.google.devtools.build.lib.events.Reporter;
@@ -154,6 +155,7 @@ public final class BuildTool {
     try {
       env.getEventBus().post(new BuildStartingEvent(env.determineOutputFileSystem(), request));
       LOG.info("Build identifier: " + request.getId());
+      NestedSetExpansionCache.resetStatistics();
       executionTool = new ExecutionTool(env, request);
       if (needsExecutionPhase(request.getBuildOptions())) {
         // Initialize the execution tool early if we need it. This hides the latency of setting up
@@ -234,6 +236,11 @@ public final class BuildTool {
         if (executionTool != null) {
           executionTool.shutdown();
         }
+        LOG.info(String.format(
+            "Nested set expansions: %d computed, %d avoided, %d transitive expansions reused",
+            NestedSetExpansionCache.getExpansions(),
+            NestedSetExpansionCache.getExpansionsAvoided(),
+            NestedSetExpansionCache.getTransitiveExpansionsReused()));
         // The workspace status actions will not run with certain flags, or if an error
         // occurs early in the build. Tell a lie so that the event is not missing.
         // If multiple build_info events are sent, only the first is kept, so this does not harm
@@ -478,7 +485,8 @@ public final class BuildTool {
 
     // TODO(bazel-team): Merge these into one event.
     env.getEventBus().post(new AnalysisPhaseCompleteEvent(analysisResult.getTargetsToBuild(),
-        view.getTargetsVisited(), timer.stop().elapsed(TimeUnit.MILLISECONDS)));
+        view.getTargetsVisited(), timer.stop().elapsed(TimeUnit.MILLISECONDS),
+        view.getConfiguredTargetTimes()));
     env.getEventBus().post(new TestFilteringCompleteEvent(analysisResult.getTargetsToBuild(),
         analysisResult.getTargetsToTest()));
 
@@ -15,6 +15,9 @@ package com.google.devtools.build.lib.collect.nestedset;
 
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetExpansionCache.TransitiveLookup;
+
+import javax.annotation.Nullable;
 
 /**
  * A nested set expander that implements a variation of left-to-right preordering.
@@ -75,9 +78,9 @@ import com.google.common.collect.ImmutableList;
 final class LinkOrderExpander<E> implements NestedSetExpander<E> {
   @Override
   public void expandInto(NestedSet<E> nestedSet, Uniqueifier uniqueifier,
-      ImmutableCollection.Builder<E> builder) {
+      @Nullable TransitiveLookup lookup, ImmutableCollection.Builder<E> builder) {
     ImmutableList.Builder<E> result = ImmutableList.builder();
-    internalEnumerate(nestedSet, uniqueifier, result);
+    internalEnumerate(nestedSet, uniqueifier, lookup, result);
     builder.addAll(result.build().reverse());
   }
 
@@ -85,12 +88,22 @@ final class LinkOrderExpander<E> implements NestedSetExpander<E> {
   // NestedSet.
   @SuppressWarnings("unchecked")
   private void internalEnumerate(NestedSet<E> set, Uniqueifier uniqueifier,
-      ImmutableCollection.Builder<E> builder) {
+      @Nullable TransitiveLookup lookup, ImmutableCollection.Builder<E> builder) {
     NestedSet[] transitiveSets = set.transitiveSets();
     for (int i = transitiveSets.length - 1; i >= 0; i--) {
       NestedSet<E> subset = transitiveSets[i];
       if (!subset.isEmpty() && uniqueifier.isUnique(subset)) {
-        internalEnumerate(subset, uniqueifier, builder);
+        ImmutableList<E> expansion = lookup == null ? null : lookup.get(subset);
+        if (expansion == null) {
+          internalEnumerate(subset, uniqueifier, lookup, builder);
+        } else {
+          // The cached expansion is the reverse of what this enumeration would produce.
+          for (E e : expansion.reverse()) {
+            if (uniqueifier.isUnique(e)) {
+              builder.add(e);
+            }
+          }
+        }
       }
     }
 
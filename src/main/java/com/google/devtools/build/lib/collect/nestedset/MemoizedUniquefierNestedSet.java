@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.collect.nestedset;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetExpansionCache.TransitiveLookup;
 
 import java.util.List;
 import java.util.Set;
@@ -23,6 +24,8 @@ import java.util.Set;
 /**
  * A NestedSet that keeps a memoized uniquifier so that it is faster to fill a set.
  *
+ * <p>Its expansion is also kept in the {@link NestedSetExpansionCache} if it is large enough.
+ *
  * <p>This class does not keep the memoized object itself so that we can take advantage of the
  * memory field alignment (Memory alignment does not put in the same structure the fields of a
  * class and its extensions).
@@ -31,16 +34,19 @@ public abstract class MemoizedUniquefierNestedSet<E> extends NestedSet<E> {
 
   @Override
   public List<E> toList() {
-    ImmutableList.Builder<E> builder = new ImmutableList.Builder<>();
-    memoizedFill(builder);
-    return builder.build();
+    ImmutableList<E> expansion = NestedSetExpansionCache.get(this);
+    if (expansion == null) {
+      ImmutableList.Builder<E> builder = new ImmutableList.Builder<>();
+      memoizedFill(builder);
+      expansion = builder.build();
+      NestedSetExpansionCache.put(this, expansion);
+    }
+    return expansion;
   }
 
   @Override
   public Set<E> toSet() {
-    ImmutableSet.Builder<E> builder = new ImmutableSet.Builder<>();
-    memoizedFill(builder);
-    return builder.build();
+    return ImmutableSet.copyOf(toList());
   }
 
   /**
@@ -55,6 +61,10 @@ public abstract class MemoizedUniquefierNestedSet<E> extends NestedSet<E> {
 
   /**
    * Fill a collection builder by using a memoized {@code Uniqueifier} for faster uniqueness check.
+   *
+   * <p>Until there is a memo, cached expansions of transitive sets are reused. A memo is only
+   * recorded for an expansion that did not reuse any, since it must not depend on the contents
+   * of the cache.
    */
   final void memoizedFill(ImmutableCollection.Builder<E> builder) {
     Uniqueifier memoed;
@@ -62,13 +72,16 @@ public abstract class MemoizedUniquefierNestedSet<E> extends NestedSet<E> {
       Object memo = getMemo();
       if (memo == null) {
         RecordingUniqueifier uniqueifier = new RecordingUniqueifier();
-        getOrder().<E>expander().expandInto(this, uniqueifier, builder);
-        setMemo(uniqueifier.getMemo());
+        TransitiveLookup lookup = new TransitiveLookup();
+        getOrder().<E>expander().expandInto(this, uniqueifier, lookup, builder);
+        if (!lookup.reusedAny()) {
+          setMemo(uniqueifier.getMemo());
+        }
         return;
       } else {
         memoed = RecordingUniqueifier.createReplayUniqueifier(memo);
       }
     }
-    getOrder().<E>expander().expandInto(this, memoed, builder);
+    getOrder().<E>expander().expandInto(this, memoed, null, builder);
   }
 }
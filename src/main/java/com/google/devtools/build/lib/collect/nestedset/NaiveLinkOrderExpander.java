@@ -14,6 +14,10 @@
 package com.google.devtools.build.lib.collect.nestedset;
 
 import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetExpansionCache.TransitiveLookup;
+
+import javax.annotation.Nullable;
 
 /**
  * A nested set expander that implements naive left-to-right preordering.
@@ -37,7 +41,7 @@ final class NaiveLinkOrderExpander<E> implements NestedSetExpander<E> {
   @SuppressWarnings("unchecked")
   @Override
   public void expandInto(NestedSet<E> set, Uniqueifier uniqueifier,
-      ImmutableCollection.Builder<E> builder) {
+      @Nullable TransitiveLookup lookup, ImmutableCollection.Builder<E> builder) {
 
     for (Object e : set.directMembers()) {
       if (uniqueifier.isUnique(e)) {
@@ -47,7 +51,16 @@ final class NaiveLinkOrderExpander<E> implements NestedSetExpander<E> {
 
     for (NestedSet<E> subset : set.transitiveSets()) {
       if (!subset.isEmpty() && uniqueifier.isUnique(subset)) {
-        expandInto(subset, uniqueifier, builder);
+        ImmutableList<E> expansion = lookup == null ? null : lookup.get(subset);
+        if (expansion == null) {
+          expandInto(subset, uniqueifier, lookup, builder);
+        } else {
+          for (E e : expansion) {
+            if (uniqueifier.isUnique(e)) {
+              builder.add(e);
+            }
+          }
+        }
       }
     }
   }
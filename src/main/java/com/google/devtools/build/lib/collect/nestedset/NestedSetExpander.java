@@ -14,6 +14,9 @@
 package com.google.devtools.build.lib.collect.nestedset;
 
 import com.google.common.collect.ImmutableCollection;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetExpansionCache.TransitiveLookup;
+
+import javax.annotation.Nullable;
 
 /**
  * An expander that converts a nested set into a flattened collection.
@@ -24,7 +27,10 @@ import com.google.common.collect.ImmutableCollection;
 interface NestedSetExpander<E> {
   /**
    * Flattens the NestedSet into the builder.
+   *
+   * <p>If {@code lookup} is not null, transitive sets whose expansion is cached are not walked
+   * again; instead, the elements of their cached expansion are checked for uniqueness.
    */
   void expandInto(NestedSet<E> nestedSet, Uniqueifier uniqueifier,
-      ImmutableCollection.Builder<E> builder);
+      @Nullable TransitiveLookup lookup, ImmutableCollection.Builder<E> builder);
 }
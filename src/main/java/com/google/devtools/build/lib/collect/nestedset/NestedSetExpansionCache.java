@@ -0,0 +1,160 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * A global cache of the flattened contents of nested sets, keyed by identity.
+ *
+ * <p>Large nested sets, e.g. the transitive linker inputs or the classpath of a binary, are
+ * flattened by many consumers during a build. The cache avoids walking them again for each
+ * consumer. When a set that is not in the cache is flattened, the cached expansions of its
+ * transitive sets are reused instead of walking those again.
+ *
+ * <p>The cache holds its keys weakly and its values softly, and is bounded by the total number of
+ * cached elements, so it never keeps nested sets alive and gives way under memory pressure.
+ * Expansions that are smaller than {@link #MIN_CACHED_SIZE} are not cached.
+ */
+public final class NestedSetExpansionCache {
+
+  @VisibleForTesting static final int MIN_CACHED_SIZE = 32;
+
+  // Allow about 2% of the heap for the element references, at 8 bytes each.
+  private static final long MAX_CACHED_ELEMENTS = Runtime.getRuntime().maxMemory() / 50 / 8;
+
+  private static final Cache<NestedSet<?>, ImmutableList<?>> cache =
+      CacheBuilder.newBuilder()
+          .weakKeys()
+          .softValues()
+          .maximumWeight(MAX_CACHED_ELEMENTS)
+          .weigher(new Weigher<NestedSet<?>, ImmutableList<?>>() {
+            @Override
+            public int weigh(NestedSet<?> set, ImmutableList<?> expansion) {
+              return expansion.size();
+            }
+          })
+          .build();
+
+  private static final AtomicLong expansions = new AtomicLong();
+  private static final AtomicLong expansionsAvoided = new AtomicLong();
+  private static final AtomicLong transitiveExpansionsReused = new AtomicLong();
+
+  private NestedSetExpansionCache() {}
+
+  /** Returns the cached expansion of {@code set}, or null if it is not cached. */
+  @SuppressWarnings("unchecked")
+  @Nullable
+  static <E> ImmutableList<E> get(NestedSet<E> set) {
+    if (!mayBeCached(set)) {
+      return null;
+    }
+    ImmutableList<E> expansion = (ImmutableList<E>) cache.getIfPresent(set);
+    if (expansion != null) {
+      expansionsAvoided.incrementAndGet();
+    }
+    return expansion;
+  }
+
+  /** Records the expansion of {@code set}, which was just computed. */
+  static <E> void put(NestedSet<E> set, ImmutableList<E> expansion) {
+    expansions.incrementAndGet();
+    if (expansion.size() >= MIN_CACHED_SIZE) {
+      cache.put(set, expansion);
+    }
+  }
+
+  /**
+   * Returns false if {@code set} certainly has no cached expansion, without looking it up. Only
+   * memoized sets are cached, and the memo of a set bounds the size of its expansion by the number
+   * of uniqueness checks done while flattening it.
+   */
+  @VisibleForTesting
+  static boolean mayBeCached(NestedSet<?> set) {
+    if (!(set instanceof MemoizedUniquefierNestedSet)) {
+      return false;
+    }
+    Object memo = ((MemoizedUniquefierNestedSet<?>) set).getMemo();
+    return memo == null || RecordingUniqueifier.getMaxChecks(memo) >= MIN_CACHED_SIZE;
+  }
+
+  /** Returns the number of times a nested set was flattened because it was not cached. */
+  public static long getExpansions() {
+    return expansions.get();
+  }
+
+  /** Returns the number of times a cached expansion was returned instead of flattening a set. */
+  public static long getExpansionsAvoided() {
+    return expansionsAvoided.get();
+  }
+
+  /**
+   * Returns the number of times the cached expansion of a transitive set was reused while
+   * flattening a set that was not cached.
+   */
+  public static long getTransitiveExpansionsReused() {
+    return transitiveExpansionsReused.get();
+  }
+
+  /** Resets the counters reported by the getters above, e.g. at the start of each build. */
+  public static void resetStatistics() {
+    expansions.set(0);
+    expansionsAvoided.set(0);
+    transitiveExpansionsReused.set(0);
+  }
+
+  @VisibleForTesting
+  static void clear() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Looks up the cached expansions of the transitive sets encountered while flattening a single
+   * nested set, and remembers whether any were found.
+   */
+  static final class TransitiveLookup {
+    private boolean reused;
+
+    /** Returns the cached expansion of the transitive set {@code set}, or null. */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    <E> ImmutableList<E> get(NestedSet<E> set) {
+      if (!mayBeCached(set)) {
+        return null;
+      }
+      ImmutableList<E> expansion = (ImmutableList<E>) cache.getIfPresent(set);
+      if (expansion != null) {
+        reused = true;
+        transitiveExpansionsReused.incrementAndGet();
+      }
+      return expansion;
+    }
+
+    /**
+     * Returns true iff a cached expansion was returned by {@link #get}, which means that the
+     * sequence of uniqueness checks of the flattening depended on the contents of the cache.
+     */
+    boolean reusedAny() {
+      return reused;
+    }
+  }
+}
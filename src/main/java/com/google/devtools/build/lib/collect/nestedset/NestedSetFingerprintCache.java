@@ -0,0 +1,111 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes digests of nested sets from their structure. The digest of a set covers its order, its
+ * direct members and the digests of its transitive sets, so it can be computed without flattening
+ * the set.
+ *
+ * <p>The digests of sets are cached by identity, unless they have fewer than
+ * {@link #MIN_CACHED_SIZE} direct members and transitive sets. A set that is shared by many
+ * consumers, e.g. the classpath of many Java compilations, is hashed only once, and then its
+ * digest can be added to an action key in constant time.
+ *
+ * <p>Sets with the same digest have the same elements in the same order. Sets with the same
+ * elements may have different digests if they are nested differently, so digests are suitable for
+ * cache keys, but not for checking whether two sets are equal.
+ */
+public final class NestedSetFingerprintCache<E> {
+
+  @VisibleForTesting static final int MIN_CACHED_SIZE = 16;
+  private static final int MAX_CACHED_DIGESTS = 500_000;
+
+  private final Function<? super E, String> elementToString;
+  private final Cache<NestedSet<?>, byte[]> digests =
+      CacheBuilder.newBuilder().weakKeys().maximumSize(MAX_CACHED_DIGESTS).build();
+
+  /**
+   * Creates a cache for sets whose elements are hashed as the strings returned by
+   * {@code elementToString}.
+   */
+  public NestedSetFingerprintCache(Function<? super E, String> elementToString) {
+    this.elementToString = elementToString;
+  }
+
+  /**
+   * Returns the MD5 digest of {@code set}. Callers must not modify the returned array.
+   */
+  public byte[] digest(NestedSet<? extends E> set) {
+    if (set.directMembers().length + set.transitiveSets().length < MIN_CACHED_SIZE) {
+      return computeDigest(set);
+    }
+    byte[] digest = digests.getIfPresent(set);
+    if (digest == null) {
+      digest = computeDigest(set);
+      digests.put(set, digest);
+    }
+    return digest;
+  }
+
+  // We suppress unchecked warning so that we can access the internal raw structure of the
+  // NestedSet.
+  @SuppressWarnings("unchecked")
+  private byte[] computeDigest(NestedSet<? extends E> set) {
+    MessageDigest md = newMd5();
+    addString(md, set.getOrder().name());
+    Object[] directMembers = set.directMembers();
+    addInt(md, directMembers.length);
+    for (Object member : directMembers) {
+      addString(md, elementToString.apply((E) member));
+    }
+    NestedSet<?>[] transitiveSets = set.transitiveSets();
+    addInt(md, transitiveSets.length);
+    for (NestedSet<?> subset : transitiveSets) {
+      md.update(digest((NestedSet<? extends E>) subset));
+    }
+    return md.digest();
+  }
+
+  private static MessageDigest newMd5() {
+    try {
+      return MessageDigest.getInstance("md5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 not available", e);
+    }
+  }
+
+  private static void addInt(MessageDigest md, int input) {
+    md.update((byte) input);
+    md.update((byte) (input >> 8));
+    md.update((byte) (input >> 16));
+    md.update((byte) (input >> 24));
+  }
+
+  private static void addString(MessageDigest md, String input) {
+    byte[] bytes = input.getBytes(UTF_8);
+    addInt(md, bytes.length);
+    md.update(bytes);
+  }
+}
@@ -134,6 +134,19 @@ class RecordingUniqueifier implements Uniqueifier {
     return ba; // normal memo
   }
 
+  /**
+   * Returns an upper bound of the number of isUnique calls recorded by {@code memo}, which was
+   * returned by {@link #getMemo}.
+   */
+  static int getMaxChecks(Object memo) {
+    if (memo == NO_MEMO) {
+      return Integer.MAX_VALUE;
+    } else if (memo instanceof Integer) {
+      return (Integer) memo;
+    }
+    return ((byte[]) memo).length * 8;
+  }
+
   private static final class ReplayUniqueifier implements Uniqueifier {
     private final BitSet memo;
     private int idx = 0;
@@ -23,6 +23,8 @@ import java.util.concurrent.ForkJoinTask;
 // maintaining AQV.remainingTasks.
 public class ForkJoinQuiescingExecutor extends AbstractQueueVisitor {
 
+  private final ForkJoinPool forkJoinPool;
+
   public ForkJoinQuiescingExecutor(ForkJoinPool forkJoinPool, ErrorClassifier errorClassifier) {
     super(
         /*concurrent=*/ true,
@@ -31,11 +33,13 @@ public class ForkJoinQuiescingExecutor extends AbstractQueueVisitor {
         /*failFastOnException=*/ true,
         /*failFastOnInterrupt=*/ true,
         errorClassifier);
+    this.forkJoinPool = forkJoinPool;
   }
 
   @Override
   protected void executeRunnable(Runnable runnable) {
-    if (ForkJoinTask.inForkJoinPool()) {
+    // Tasks scheduled from a worker of another pool must not be forked into that pool.
+    if (ForkJoinTask.getPool() == forkJoinPool) {
       ForkJoinTask.adapt(runnable).fork();
     } else {
       super.executeRunnable(runnable);
@@ -0,0 +1,358 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.events;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An immutable list of events that is kept in memory for a long time, e.g. for replay by Skyframe
+ * or with a package, stored so that it takes little memory.
+ *
+ * <p>Lists with little message text keep their events, which are interned, so that a warning
+ * reported the same way for many targets is only kept once. The message text of larger lists,
+ * e.g. thousands of compiler warnings, is compressed into one array. If a spill directory is set
+ * (see {@link #setSpillDirectory}), large compressed text is moved to a file named after its
+ * digest, so that identical output is only stored once, and read back each time the events are
+ * requested. If the file is gone by then, the events are returned with a placeholder message.
+ * The files are deleted when the events that refer to them are dropped wholesale (see {@link
+ * #deleteSpillFiles}).
+ */
+@Immutable
+public final class CompactEvents implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOG = Logger.getLogger(CompactEvents.class.getName());
+
+  /** Lists with less message text than this, in characters or bytes, keep their events. */
+  static final int COMPRESSION_THRESHOLD = 4 * 1024;
+
+  /** Compressed text longer than this is moved to a file, if there is a spill directory. */
+  static final int SPILL_THRESHOLD = 16 * 1024;
+
+  static final String UNAVAILABLE_MESSAGE = "(message no longer available)";
+
+  public static final CompactEvents EMPTY = new CompactEvents(ImmutableList.<Event>of());
+
+  private static final Interner<Event> EVENTS = Interners.newWeakInterner();
+  private static final EventKind[] KINDS = EventKind.values();
+
+  @Nullable
+  private static volatile Path spillDirectory;
+
+  // Set for lists with little message text, otherwise null.
+  @Nullable
+  private final ImmutableList<Event> events;
+
+  // Set for lists with a lot of message text: the kind, location, tag and message length of each
+  // event. The length is in bytes, and is stored as ~length for messages given as bytes.
+  @Nullable
+  private final byte[] kinds;
+  @Nullable
+  private final Location[] locations;
+  @Nullable
+  private final String[] tags; // null if no event has a tag
+  @Nullable
+  private final int[] lengths;
+  @Nullable
+  private final byte[] digest; // of the uncompressed message text
+  // Exactly one of these two is set for lists with a lot of message text.
+  @Nullable
+  private final byte[] compressedText;
+  @Nullable
+  private final transient Path spillFile;
+
+  // Event.hashCode() depends on identity hash codes, so this is not serialized.
+  private transient int hashCode;
+
+  private CompactEvents(ImmutableList<Event> events) {
+    this.events = events;
+    this.kinds = null;
+    this.locations = null;
+    this.tags = null;
+    this.lengths = null;
+    this.digest = null;
+    this.compressedText = null;
+    this.spillFile = null;
+  }
+
+  private CompactEvents(byte[] kinds, Location[] locations, @Nullable String[] tags, int[] lengths,
+      byte[] digest, @Nullable byte[] compressedText, @Nullable Path spillFile) {
+    this.events = null;
+    this.kinds = kinds;
+    this.locations = locations;
+    this.tags = tags;
+    this.lengths = lengths;
+    this.digest = digest;
+    this.compressedText = compressedText;
+    this.spillFile = spillFile;
+  }
+
+  /**
+   * Sets the directory that large message text is moved to, and deletes all files in it, which
+   * were written by an earlier server. If null, all message text is kept in memory.
+   *
+   * <p>The files are referred to by events kept in memory, so this must only be called when
+   * no such events are kept, i.e. when the server starts.
+   */
+  public static void setSpillDirectory(@Nullable Path directory) throws IOException {
+    if (directory != null) {
+      if (directory.exists()) {
+        FileSystemUtils.deleteTreesBelow(directory);
+      } else {
+        FileSystemUtils.createDirectoryAndParents(directory);
+      }
+    }
+    spillDirectory = directory;
+  }
+
+  /**
+   * Deletes all files that message text was moved to. Events that still refer to one of them
+   * return a placeholder message afterwards, so this should only be called when the events kept
+   * in memory are being dropped, e.g. together with the Skyframe graph.
+   */
+  public static void deleteSpillFiles() throws IOException {
+    Path directory = spillDirectory;
+    if (directory != null && directory.exists()) {
+      FileSystemUtils.deleteTreesBelow(directory);
+    }
+  }
+
+  /** Stores the given events. */
+  public static CompactEvents create(Iterable<Event> events) {
+    ImmutableList<Event> list = ImmutableList.copyOf(events);
+    if (list.isEmpty()) {
+      return EMPTY;
+    }
+    long textLength = 0;
+    for (Event event : list) {
+      textLength += event.hasMessageBytes()
+          ? event.getMessageBytes().length
+          : event.getMessage().length();
+    }
+    if (textLength < COMPRESSION_THRESHOLD) {
+      ImmutableList.Builder<Event> interned = ImmutableList.builder();
+      for (Event event : list) {
+        interned.add(EVENTS.intern(event));
+      }
+      return new CompactEvents(interned.build());
+    }
+
+    int size = list.size();
+    byte[] kinds = new byte[size];
+    Location[] locations = new Location[size];
+    String[] tags = null;
+    int[] lengths = new int[size];
+    Hasher hasher = Hashing.sha1().newHasher();
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (DeflaterOutputStream out = new DeflaterOutputStream(compressed)) {
+      for (int i = 0; i < size; i++) {
+        Event event = list.get(i);
+        kinds[i] = (byte) event.getKind().ordinal();
+        locations[i] = event.getLocation();
+        if (event.getTag() != null) {
+          if (tags == null) {
+            tags = new String[size];
+          }
+          tags[i] = event.getTag();
+        }
+        byte[] text = event.hasMessageBytes()
+            ? event.getMessageBytes()
+            : event.getMessage().getBytes(UTF_8);
+        lengths[i] = event.hasMessageBytes() ? ~text.length : text.length;
+        hasher.putBytes(text);
+        out.write(text);
+      }
+    } catch (IOException e) {
+      // Cannot happen, the data is written to memory.
+      throw new IllegalStateException(e);
+    }
+    byte[] digest = hasher.hash().asBytes();
+    byte[] compressedText = compressed.toByteArray();
+    Path directory = spillDirectory;
+    if (directory != null && compressedText.length > SPILL_THRESHOLD) {
+      Path spillFile = spill(directory, digest, compressedText);
+      if (spillFile != null) {
+        return new CompactEvents(kinds, locations, tags, lengths, digest, null, spillFile);
+      }
+    }
+    return new CompactEvents(kinds, locations, tags, lengths, digest, compressedText, null);
+  }
+
+  /**
+   * Writes the compressed text to a file in the given directory, unless there already is one
+   * with the same text. Returns the file, or null if it could not be written.
+   */
+  @Nullable
+  private static Path spill(Path directory, byte[] digest, byte[] compressedText) {
+    Path file = directory.getChild(BaseEncoding.base16().lowerCase().encode(digest));
+    try {
+      if (!file.exists()) {
+        // Written under another name first, so that a concurrent reader never sees a partial file.
+        Path tmp = directory.getChild(
+            file.getBaseName() + ".tmp" + Thread.currentThread().getId());
+        FileSystemUtils.writeContent(tmp, compressedText);
+        tmp.renameTo(file);
+      }
+      return file;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to write events to " + file, e);
+      return null;
+    }
+  }
+
+  /** Returns the number of events. */
+  public int size() {
+    return events != null ? events.size() : kinds.length;
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Returns the events. For large lists, this decompresses the message text, and may read it
+   * from a file, every time it is called.
+   */
+  public ImmutableList<Event> getEvents() {
+    if (events != null) {
+      return events;
+    }
+    byte[] text = loadText();
+    ImmutableList.Builder<Event> builder = ImmutableList.builder();
+    int offset = 0;
+    for (int i = 0; i < kinds.length; i++) {
+      EventKind kind = KINDS[kinds[i]];
+      Event event;
+      if (text == null) {
+        event = Event.of(kind, locations[i], UNAVAILABLE_MESSAGE);
+      } else if (lengths[i] < 0) {
+        int length = ~lengths[i];
+        event = Event.of(kind, locations[i], Arrays.copyOfRange(text, offset, offset + length));
+        offset += length;
+      } else {
+        event = Event.of(kind, locations[i], new String(text, offset, lengths[i], UTF_8));
+        offset += lengths[i];
+      }
+      if (tags != null && tags[i] != null) {
+        event = event.withTag(tags[i]);
+      }
+      builder.add(event);
+    }
+    return builder.build();
+  }
+
+  /** Returns the uncompressed message text, or null if its file cannot be read. */
+  @Nullable
+  private byte[] loadText() {
+    byte[] compressed = compressedText;
+    if (compressed == null) {
+      try {
+        compressed = FileSystemUtils.readContent(spillFile);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Failed to read events from " + spillFile, e);
+        return null;
+      }
+    }
+    int length = 0;
+    for (int messageLength : lengths) {
+      length += messageLength < 0 ? ~messageLength : messageLength;
+    }
+    byte[] text = new byte[length];
+    try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed))) {
+      ByteStreams.readFully(in, text);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Corrupt events in " + spillFile, e);
+      return null;
+    }
+    return text;
+  }
+
+  /** Serializes the message text itself rather than the name of its file. */
+  private Object writeReplace() throws ObjectStreamException {
+    if (spillFile == null) {
+      return this;
+    }
+    byte[] compressed;
+    try {
+      compressed = FileSystemUtils.readContent(spillFile);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to read events from " + spillFile, e);
+      return new CompactEvents(getEvents());
+    }
+    return new CompactEvents(kinds, locations, tags, lengths, digest, compressed, null);
+  }
+
+  @Override
+  public String toString() {
+    return getEvents().toString();
+  }
+
+  @Override
+  public int hashCode() {
+    int result = hashCode;
+    if (result == 0) {
+      result = events != null
+          ? events.hashCode()
+          : Arrays.hashCode(digest) * 31 + Arrays.hashCode(locations);
+      hashCode = result;
+    }
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+    if (!(other instanceof CompactEvents)) {
+      return false;
+    }
+    CompactEvents that = (CompactEvents) other;
+    if (events != null || that.events != null) {
+      return events != null && events.equals(that.events);
+    }
+    // The message text is compared by its digest, so that it need not be loaded.
+    return Arrays.equals(digest, that.digest)
+        && Arrays.equals(lengths, that.lengths)
+        && Arrays.equals(kinds, that.kinds)
+        && Arrays.equals(locations, that.locations)
+        && Arrays.equals(tags, that.tags);
+  }
+}
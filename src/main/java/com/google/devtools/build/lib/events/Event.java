@@ -80,6 +80,11 @@ public final class Event implements Serializable {
     return messageBytes != null ? messageBytes : message.getBytes(ISO_8859_1);
   }
 
+  /** Returns whether the event was created with a byte array rather than a string message. */
+  boolean hasMessageBytes() {
+    return messageBytes != null;
+  }
+
   public EventKind getKind() {
     return kind;
   }
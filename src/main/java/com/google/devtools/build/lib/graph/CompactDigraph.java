@@ -0,0 +1,707 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.graph;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Ints;
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable directed graph that numbers its nodes densely from 0 and keeps their adjacency in
+ * arrays, for graphs too large to keep as a {@link Digraph}.
+ *
+ * <p>The successors of node {@code i} are {@code succ[succStart[i]]} to
+ * {@code succ[succStart[i + 1] - 1]}, and likewise for predecessors ("compressed sparse row"
+ * form). A graph with {@code n} nodes and {@code e} edges thus takes two {@code int}s per edge and
+ * per node, where a {@link Digraph} takes a {@link Node} and a hash table entry per node and
+ * hash set entries per edge. Like {@link Digraph}, it permits self-edges but not multiple edges
+ * between the same pair of nodes.
+ *
+ * <p>The algorithms mirror those of {@link Digraph}, but work on node ids with {@link BitSet}s
+ * and {@code int} arrays, and are iterative, so that they neither allocate per node nor run out
+ * of stack on long paths. Node ids are assigned in the order nodes are added to the
+ * {@link Builder}.
+ */
+public final class CompactDigraph<T> {
+
+  private static final int[] NO_NODES = new int[0];
+
+  private final ImmutableList<T> labels;
+  private final int[] succStart;
+  private final int[] succ;
+  private final int[] predStart;
+  private final int[] pred;
+
+  // Built on the first call to getId(), since most users go from ids to labels only.
+  private Map<T, Integer> ids;
+
+  private CompactDigraph(ImmutableList<T> labels, int[] succStart, int[] succ) {
+    this.labels = labels;
+    this.succStart = succStart;
+    this.succ = succ;
+    int n = labels.size();
+    this.predStart = new int[n + 1];
+    for (int edge : succ) {
+      predStart[edge + 1]++;
+    }
+    for (int i = 0; i < n; i++) {
+      predStart[i + 1] += predStart[i];
+    }
+    this.pred = new int[succ.length];
+    int[] next = Arrays.copyOf(predStart, n);
+    for (int from = 0; from < n; from++) {
+      for (int i = succStart[from]; i < succStart[from + 1]; i++) {
+        pred[next[succ[i]]++] = from;
+      }
+    }
+  }
+
+  /**
+   * Builds a {@link CompactDigraph}. Adding a node or an edge that is already there has no
+   * effect.
+   */
+  public static final class Builder<T> {
+    private final List<T> labels = new ArrayList<>();
+    private final Map<T, Integer> ids = new HashMap<>();
+    private int[] edgeFrom = new int[16];
+    private int[] edgeTo = new int[16];
+    private int edgeCount;
+
+    /** Adds a node with the given label, if there is none yet, and returns its id. */
+    public int addNode(T label) {
+      Preconditions.checkNotNull(label);
+      Integer id = ids.get(label);
+      if (id == null) {
+        id = labels.size();
+        labels.add(label);
+        ids.put(label, id);
+      }
+      return id;
+    }
+
+    /** Adds an edge between the nodes with the given ids. */
+    public Builder<T> addEdge(int from, int to) {
+      Preconditions.checkArgument(from >= 0 && from < labels.size(), "no node %s", from);
+      Preconditions.checkArgument(to >= 0 && to < labels.size(), "no node %s", to);
+      if (edgeCount == edgeFrom.length) {
+        edgeFrom = Arrays.copyOf(edgeFrom, edgeCount * 2);
+        edgeTo = Arrays.copyOf(edgeTo, edgeCount * 2);
+      }
+      edgeFrom[edgeCount] = from;
+      edgeTo[edgeCount] = to;
+      edgeCount++;
+      return this;
+    }
+
+    /** Adds an edge between the nodes with the given labels, adding the nodes if necessary. */
+    public Builder<T> addEdge(T from, T to) {
+      return addEdge(addNode(from), addNode(to));
+    }
+
+    public CompactDigraph<T> build() {
+      int n = labels.size();
+      int[] start = new int[n + 1];
+      for (int i = 0; i < edgeCount; i++) {
+        start[edgeFrom[i] + 1]++;
+      }
+      for (int i = 0; i < n; i++) {
+        start[i + 1] += start[i];
+      }
+      int[] succ = new int[edgeCount];
+      int[] next = Arrays.copyOf(start, n);
+      for (int i = 0; i < edgeCount; i++) {
+        succ[next[edgeFrom[i]]++] = edgeTo[i];
+      }
+
+      // Drop duplicate edges in place, keeping the first of each, and the order of the others.
+      int[] lastSource = new int[n];
+      Arrays.fill(lastSource, -1);
+      int kept = 0;
+      int from = 0;
+      for (int node = 0; node < n; node++) {
+        int end = start[node + 1];
+        start[node] = kept;
+        for (int i = from; i < end; i++) {
+          if (lastSource[succ[i]] != node) {
+            lastSource[succ[i]] = node;
+            succ[kept++] = succ[i];
+          }
+        }
+        from = end;
+      }
+      start[n] = kept;
+      return new CompactDigraph<>(ImmutableList.copyOf(labels), start,
+          kept == succ.length ? succ : Arrays.copyOf(succ, kept));
+    }
+  }
+
+  /** Returns a copy of the given graph. */
+  public static <T> CompactDigraph<T> copyOf(Digraph<T> graph) {
+    return extractSubgraph(graph, graph.getLabels());
+  }
+
+  /**
+   * Returns the subgraph of {@code graph} with the nodes whose labels are in {@code keep}, like
+   * {@link Digraph#extractSubgraph}: there is an edge from one kept node to another iff there is a
+   * path between them in {@code graph} all of whose intermediate nodes were left out.
+   *
+   * <p>Unlike {@link Digraph#extractSubgraph}, this does not copy {@code graph}, and so takes
+   * space in proportion to the size of the result and the number of nodes left out only. The ids
+   * of the nodes follow the iteration order of {@code keep}; labels in {@code keep} that are not
+   * in {@code graph} are ignored.
+   */
+  public static <T> CompactDigraph<T> extractSubgraph(Digraph<T> graph, Set<T> keep) {
+    Builder<T> builder = new Builder<>();
+    Map<Node<T>, Integer> keptIds = new HashMap<>();
+    List<Node<T>> keptNodes = new ArrayList<>();
+    for (T label : keep) {
+      Node<T> node = graph.getNodeMaybe(label);
+      if (node != null) {
+        keptIds.put(node, builder.addNode(label));
+        keptNodes.add(node);
+      }
+    }
+    ExitFinder<T> exits = new ExitFinder<>(keptIds);
+    for (int from = 0; from < keptNodes.size(); from++) {
+      for (Node<T> successor : keptNodes.get(from).getSuccessors()) {
+        Integer to = keptIds.get(successor);
+        if (to != null) {
+          builder.addEdge(from, to);
+        } else {
+          for (int exit : exits.get(successor)) {
+            builder.addEdge(from, exit);
+          }
+        }
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Finds, for nodes that are left out of a subgraph, the kept nodes reachable from them through
+   * left-out nodes only. These are computed a strongly connected component of left-out nodes at a
+   * time (all nodes in a component have the same ones), with Tarjan's algorithm, and memoized.
+   */
+  private static final class ExitFinder<T> {
+    private final Map<Node<T>, Integer> keptIds;
+    private final Map<Node<T>, Integer> index = new HashMap<>();
+    private final List<Node<T>> nodes = new ArrayList<>();
+    private final List<int[]> exits = new ArrayList<>();
+    private int[] lowLink = new int[16];
+    private final BitSet onStack = new BitSet();
+    private int[] componentStack = new int[16];
+    private int componentStackSize;
+
+    // Scratch space for the union of the exits of a component.
+    private final int[] lastComponent;
+    private int[] union = new int[16];
+
+    ExitFinder(Map<Node<T>, Integer> keptIds) {
+      this.keptIds = keptIds;
+      this.lastComponent = new int[keptIds.size()];
+      Arrays.fill(lastComponent, -1);
+    }
+
+    int[] get(Node<T> start) {
+      Integer known = index.get(start);
+      if (known != null) {
+        // A previous search completed every node that it reached.
+        return exits.get(known);
+      }
+      // The nodes on the search path, and the successors left to visit of each.
+      List<Integer> path = new ArrayList<>();
+      List<Iterator<Node<T>>> successors = new ArrayList<>();
+      path.add(push(start));
+      successors.add(start.getSuccessors().iterator());
+      while (!path.isEmpty()) {
+        int top = path.size() - 1;
+        int node = path.get(top);
+        Iterator<Node<T>> nodeSuccessors = successors.get(top);
+        if (nodeSuccessors.hasNext()) {
+          Node<T> successor = nodeSuccessors.next();
+          if (keptIds.containsKey(successor)) {
+            continue;
+          }
+          Integer successorIndex = index.get(successor);
+          if (successorIndex == null) {
+            path.add(push(successor));
+            successors.add(successor.getSuccessors().iterator());
+          } else if (onStack.get(successorIndex)) {
+            lowLink[node] = Math.min(lowLink[node], successorIndex);
+          }
+          continue;
+        }
+        path.remove(top);
+        successors.remove(top);
+        if (top > 0) {
+          int parent = path.get(top - 1);
+          lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+        }
+        if (lowLink[node] == node) {
+          completeComponent(node);
+        }
+      }
+      return exits.get(index.get(start));
+    }
+
+    private int push(Node<T> node) {
+      int id = nodes.size();
+      index.put(node, id);
+      nodes.add(node);
+      exits.add(null);
+      if (id == lowLink.length) {
+        lowLink = Arrays.copyOf(lowLink, id * 2);
+      }
+      lowLink[id] = id;
+      if (componentStackSize == componentStack.length) {
+        componentStack = Arrays.copyOf(componentStack, componentStackSize * 2);
+      }
+      componentStack[componentStackSize++] = id;
+      onStack.set(id);
+      return id;
+    }
+
+    /** Pops the component rooted at {@code root} and sets the exits of its nodes. */
+    private void completeComponent(int root) {
+      int first = componentStackSize;
+      do {
+        first--;
+      } while (componentStack[first] != root);
+
+      int size = 0;
+      for (int i = first; i < componentStackSize; i++) {
+        for (Node<T> successor : nodes.get(componentStack[i]).getSuccessors()) {
+          Integer keptId = keptIds.get(successor);
+          if (keptId != null) {
+            size = addToUnion(keptId, root, size);
+          } else {
+            // Null for nodes in this component, which have no exits of their own.
+            int[] successorExits = exits.get(index.get(successor));
+            if (successorExits != null) {
+              for (int exit : successorExits) {
+                size = addToUnion(exit, root, size);
+              }
+            }
+          }
+        }
+      }
+      int[] componentExits = size == 0 ? NO_NODES : Arrays.copyOf(union, size);
+      for (int i = first; i < componentStackSize; i++) {
+        exits.set(componentStack[i], componentExits);
+        onStack.clear(componentStack[i]);
+      }
+      componentStackSize = first;
+    }
+
+    private int addToUnion(int keptId, int component, int size) {
+      if (lastComponent[keptId] == component) {
+        return size;
+      }
+      lastComponent[keptId] = component;
+      if (size == union.length) {
+        union = Arrays.copyOf(union, size * 2);
+      }
+      union[size] = keptId;
+      return size + 1;
+    }
+  }
+
+  /** Returns the number of nodes. */
+  public int size() {
+    return labels.size();
+  }
+
+  /** Returns the number of edges. */
+  public int getEdgeCount() {
+    return succ.length;
+  }
+
+  /** Returns the label of the node with the given id. */
+  public T getLabel(int node) {
+    return labels.get(node);
+  }
+
+  /** Returns the labels of all nodes, by id. */
+  public ImmutableList<T> getLabels() {
+    return labels;
+  }
+
+  /** Returns the labels of the nodes with the given ids, in the same order. */
+  public List<T> getLabels(int[] nodes) {
+    List<T> result = new ArrayList<>(nodes.length);
+    for (int node : nodes) {
+      result.add(labels.get(node));
+    }
+    return result;
+  }
+
+  /** Returns the id of the node with the given label, or -1 if there is none. */
+  public synchronized int getId(T label) {
+    if (ids == null) {
+      ids = new HashMap<>(labels.size() * 4 / 3 + 1);
+      for (int i = 0; i < labels.size(); i++) {
+        ids.put(labels.get(i), i);
+      }
+    }
+    Integer id = ids.get(label);
+    return id != null ? id : -1;
+  }
+
+  /** Returns the ids of the successors of the given node. */
+  public int[] getSuccessors(int node) {
+    return Arrays.copyOfRange(succ, succStart[node], succStart[node + 1]);
+  }
+
+  /** Returns the ids of the predecessors of the given node. */
+  public int[] getPredecessors(int node) {
+    return Arrays.copyOfRange(pred, predStart[node], predStart[node + 1]);
+  }
+
+  public int numSuccessors(int node) {
+    return succStart[node + 1] - succStart[node];
+  }
+
+  public int numPredecessors(int node) {
+    return predStart[node + 1] - predStart[node];
+  }
+
+  /** Returns whether there is an edge from {@code from} to {@code to}. Time: O(out-degree). */
+  public boolean containsEdge(int from, int to) {
+    for (int i = succStart[from]; i < succStart[from + 1]; i++) {
+      if (succ[i] == to) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the ids of the root nodes: those with no predecessors.
+   *
+   * <p>NOTE: in a cyclic graph, there may be nodes that are not reachable from any root.
+   */
+  public int[] getRoots() {
+    int[] roots = new int[size()];
+    int count = 0;
+    for (int node = 0; node < size(); node++) {
+      if (numPredecessors(node) == 0) {
+        roots[count++] = node;
+      }
+    }
+    return Arrays.copyOf(roots, count);
+  }
+
+  /** Returns the ids of the leaf nodes: those with no successors. */
+  public int[] getLeaves() {
+    int[] leaves = new int[size()];
+    int count = 0;
+    for (int node = 0; node < size(); node++) {
+      if (numSuccessors(node) == 0) {
+        leaves[count++] = node;
+      }
+    }
+    return Arrays.copyOf(leaves, count);
+  }
+
+  /** Returns whether the graph is cyclic. Self-edges are cycles. Time: O(n + e). */
+  public boolean isCyclic() {
+    // Kahn's algorithm: the graph is acyclic iff repeatedly removing nodes without predecessors
+    // removes all of them.
+    int n = size();
+    int[] inDegree = new int[n];
+    int[] queue = new int[n];
+    int tail = 0;
+    for (int node = 0; node < n; node++) {
+      inDegree[node] = numPredecessors(node);
+      if (inDegree[node] == 0) {
+        queue[tail++] = node;
+      }
+    }
+    for (int head = 0; head < tail; head++) {
+      int node = queue[head];
+      for (int i = succStart[node]; i < succStart[node + 1]; i++) {
+        if (--inDegree[succ[i]] == 0) {
+          queue[tail++] = succ[i];
+        }
+      }
+    }
+    return tail < n;
+  }
+
+  /** Returns the ids of the nodes reachable from the given ones, including them. */
+  public BitSet getFwdReachable(int... start) {
+    return getReachable(start, succStart, succ);
+  }
+
+  /** Returns the ids of the nodes from which the given ones are reachable, including them. */
+  public BitSet getBackReachable(int... start) {
+    return getReachable(start, predStart, pred);
+  }
+
+  private BitSet getReachable(int[] start, int[] edgeStart, int[] edges) {
+    BitSet visited = new BitSet(size());
+    int[] stack = new int[size()];
+    int top = 0;
+    for (int node : start) {
+      if (!visited.get(node)) {
+        visited.set(node);
+        stack[top++] = node;
+      }
+    }
+    while (top > 0) {
+      int node = stack[--top];
+      for (int i = edgeStart[node]; i < edgeStart[node + 1]; i++) {
+        if (!visited.get(edges[i])) {
+          visited.set(edges[i]);
+          stack[top++] = edges[i];
+        }
+      }
+    }
+    return visited;
+  }
+
+  /**
+   * Returns the ids of the nodes of an acyclic graph in topological order (the reverse of the
+   * postorder of a depth-first search from every node in id order): if there is a path from u to
+   * v, u comes before v.
+   */
+  public int[] getTopologicalOrder() {
+    int[] nodes = new int[size()];
+    for (int node = 0; node < nodes.length; node++) {
+      nodes[node] = node;
+    }
+    return reverse(getPostorder(nodes, null));
+  }
+
+  /**
+   * Returns the ids of the nodes of an acyclic graph in topological order, like
+   * {@link Digraph#getTopologicalOrder(Comparator)}: the depth-first search starts from the nodes
+   * in the order given by {@code edgeOrder} on their labels, and visits successors in that order
+   * too, which makes the result deterministic.
+   */
+  public int[] getTopologicalOrder(final Comparator<? super T> edgeOrder) {
+    Integer[] byLabel = new Integer[size()];
+    for (int node = 0; node < byLabel.length; node++) {
+      byLabel[node] = node;
+    }
+    // Stable, so nodes that compare equal stay in id order.
+    Arrays.sort(byLabel, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer o1, Integer o2) {
+        return edgeOrder.compare(labels.get(o1), labels.get(o2));
+      }
+    });
+    int[] sorted = Ints.toArray(Arrays.asList(byLabel));
+    int[] rank = new int[sorted.length];
+    for (int i = 0; i < sorted.length; i++) {
+      rank[sorted[i]] = i;
+    }
+    return reverse(getPostorder(sorted, rank));
+  }
+
+  /**
+   * Returns the postorder of a depth-first search from each of the given nodes in turn. If
+   * {@code rank} is not null, successors are visited in increasing rank, and otherwise in the
+   * order in which their edges were added.
+   */
+  private int[] getPostorder(int[] startNodes, int[] rank) {
+    int n = size();
+    int[] postorder = new int[n];
+    int count = 0;
+    BitSet visited = new BitSet(n);
+    int[] stack = new int[n];
+    int[] nextEdge = new int[n];
+    int[] sortedSucc = rank == null ? succ : sortByRank(rank);
+    for (int startNode : startNodes) {
+      if (visited.get(startNode)) {
+        continue;
+      }
+      visited.set(startNode);
+      int top = 0;
+      stack[0] = startNode;
+      nextEdge[startNode] = succStart[startNode];
+      while (top >= 0) {
+        int node = stack[top];
+        if (nextEdge[node] < succStart[node + 1]) {
+          int successor = sortedSucc[nextEdge[node]++];
+          if (!visited.get(successor)) {
+            visited.set(successor);
+            stack[++top] = successor;
+            nextEdge[successor] = succStart[successor];
+          }
+        } else {
+          postorder[count++] = node;
+          top--;
+        }
+      }
+    }
+    return postorder;
+  }
+
+  /** Returns a copy of {@link #succ} with the successors of each node sorted by rank. */
+  private int[] sortByRank(int[] rank) {
+    int[] byRank = new int[rank.length];
+    for (int node = 0; node < rank.length; node++) {
+      byRank[rank[node]] = node;
+    }
+    int[] sorted = new int[succ.length];
+    for (int i = 0; i < succ.length; i++) {
+      sorted[i] = rank[succ[i]];
+    }
+    for (int node = 0; node < size(); node++) {
+      Arrays.sort(sorted, succStart[node], succStart[node + 1]);
+    }
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = byRank[sorted[i]];
+    }
+    return sorted;
+  }
+
+  private static int[] reverse(int[] nodes) {
+    for (int i = 0, j = nodes.length - 1; i < j; i++, j--) {
+      int node = nodes[i];
+      nodes[i] = nodes[j];
+      nodes[j] = node;
+    }
+    return nodes;
+  }
+
+  /**
+   * Returns the strongly connected components of the graph, each as the ids of its nodes in
+   * increasing order. A component comes after all components reachable from it, i.e. in reverse
+   * topological order of the strong component graph.
+   */
+  public List<int[]> getStronglyConnectedComponents() {
+    int[] component = new int[size()];
+    int count = computeStronglyConnectedComponents(component);
+    int[] sizes = new int[count];
+    for (int c : component) {
+      sizes[c]++;
+    }
+    List<int[]> components = new ArrayList<>(count);
+    for (int c = 0; c < count; c++) {
+      components.add(new int[sizes[c]]);
+    }
+    int[] filled = new int[count];
+    for (int node = 0; node < component.length; node++) {
+      components.get(component[node])[filled[component[node]]++] = node;
+    }
+    return components;
+  }
+
+  /**
+   * Sets {@code component[i]} to the number of the strongly connected component of node
+   * {@code i}, numbering components in the order that Tarjan's algorithm completes them, and
+   * returns the number of components.
+   */
+  private int computeStronglyConnectedComponents(int[] component) {
+    int n = size();
+    int[] index = new int[n];
+    Arrays.fill(index, -1);
+    int[] lowLink = new int[n];
+    BitSet onStack = new BitSet(n);
+    int[] componentStack = new int[n];
+    int componentStackSize = 0;
+    int[] stack = new int[n];
+    int[] nextEdge = new int[n];
+    int nextIndex = 0;
+    int count = 0;
+    for (int startNode = 0; startNode < n; startNode++) {
+      if (index[startNode] != -1) {
+        continue;
+      }
+      int top = 0;
+      stack[0] = startNode;
+      index[startNode] = lowLink[startNode] = nextIndex++;
+      nextEdge[startNode] = succStart[startNode];
+      componentStack[componentStackSize++] = startNode;
+      onStack.set(startNode);
+      while (top >= 0) {
+        int node = stack[top];
+        if (nextEdge[node] < succStart[node + 1]) {
+          int successor = succ[nextEdge[node]++];
+          if (index[successor] == -1) {
+            index[successor] = lowLink[successor] = nextIndex++;
+            nextEdge[successor] = succStart[successor];
+            componentStack[componentStackSize++] = successor;
+            onStack.set(successor);
+            stack[++top] = successor;
+          } else if (onStack.get(successor)) {
+            lowLink[node] = Math.min(lowLink[node], index[successor]);
+          }
+          continue;
+        }
+        top--;
+        if (top >= 0) {
+          lowLink[stack[top]] = Math.min(lowLink[stack[top]], lowLink[node]);
+        }
+        if (lowLink[node] == index[node]) {
+          int member;
+          do {
+            member = componentStack[--componentStackSize];
+            onStack.clear(member);
+            component[member] = count;
+          } while (member != node);
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the strong component graph of this graph: an acyclic graph with a node for each
+   * strongly connected component, labelled with the labels of its nodes in id order, and an
+   * edge between two components iff there is one between their nodes. The components are
+   * numbered in topological order, so every edge goes from a lower id to a higher one.
+   */
+  public CompactDigraph<ImmutableList<T>> getStrongComponentGraph() {
+    int[] component = new int[size()];
+    int count = computeStronglyConnectedComponents(component);
+    // Tarjan's algorithm completes components in reverse topological order.
+    for (int node = 0; node < component.length; node++) {
+      component[node] = count - 1 - component[node];
+    }
+    List<List<T>> members = new ArrayList<>(count);
+    for (int c = 0; c < count; c++) {
+      members.add(new ArrayList<T>());
+    }
+    for (int node = 0; node < component.length; node++) {
+      members.get(component[node]).add(labels.get(node));
+    }
+    Builder<ImmutableList<T>> builder = new Builder<>();
+    for (List<T> componentLabels : members) {
+      // Components are distinct, so they get consecutive ids.
+      builder.addNode(ImmutableList.copyOf(componentLabels));
+    }
+    for (int from = 0; from < size(); from++) {
+      for (int i = succStart[from]; i < succStart[from + 1]; i++) {
+        if (component[from] != component[succ[i]]) {
+          builder.addEdge(component[from], component[succ[i]]);
+        }
+      }
+    }
+    return builder.build();
+  }
+}
@@ -1533,6 +1533,13 @@ public final class Attribute implements Comparable<Attribute> {
     return allowedValues;
   }
 
+  /**
+   * Returns whether dependencies through this attribute require any aspects.
+   */
+  public boolean hasAspects() {
+    return !aspects.isEmpty();
+  }
+
   /**
    * Returns the list of aspects required for dependencies through this attribute.
    */
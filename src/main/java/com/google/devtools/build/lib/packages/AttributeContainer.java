@@ -33,7 +33,7 @@ import java.util.BitSet;
  */
 public class AttributeContainer {
 
-  private final RuleClass ruleClass;
+  final RuleClass ruleClass;
 
   // Attribute values, keyed by attribute index:
   private final Object[] attributeValues;
@@ -52,10 +52,20 @@ public class AttributeContainer {
   }
   
   AttributeContainer(RuleClass ruleClass, Location[] locations) {
+    this(ruleClass, new Object[ruleClass.getAttributeCount()],
+        new BitSet(ruleClass.getAttributeCount()), locations);
+  }
+
+  /**
+   * Constructor for subclasses that provide their own attribute storage by overriding the
+   * index-based accessors, in which case all of the storage arguments may be null.
+   */
+  AttributeContainer(RuleClass ruleClass, Object[] attributeValues,
+      BitSet attributeValueExplicitlySpecified, Location[] attributeLocations) {
     this.ruleClass = ruleClass;
-    this.attributeValues = new Object[ruleClass.getAttributeCount()];
-    this.attributeValueExplicitlySpecified = new BitSet(ruleClass.getAttributeCount());
-    this.attributeLocations = locations;
+    this.attributeValues = attributeValues;
+    this.attributeValueExplicitlySpecified = attributeValueExplicitlySpecified;
+    this.attributeLocations = attributeLocations;
   }
 
   /**
@@ -70,7 +80,7 @@ public class AttributeContainer {
    */
   public Object getAttr(String attrName) {
     Integer idx = ruleClass.getAttributeIndex(attrName);
-    return idx != null ? attributeValues[idx] : null;
+    return idx != null ? getAttributeValue(idx) : null;
   }
 
   /**
@@ -83,7 +93,7 @@ public class AttributeContainer {
 
   public boolean isAttributeValueExplicitlySpecified(String attributeName) {
     Integer idx = ruleClass.getAttributeIndex(attributeName);
-    return idx != null && attributeValueExplicitlySpecified.get(idx);
+    return idx != null && isAttributeValueExplicitlySpecified(idx);
   }
 
   /**
@@ -91,23 +101,34 @@ public class AttributeContainer {
    */
   public Location getAttributeLocation(String attrName) {
     Integer idx = ruleClass.getAttributeIndex(attrName);
-    return idx != null ? attributeLocations[idx] : null;
+    return idx != null ? getAttributeLocation(idx) : null;
   }
 
   Object getAttributeValue(int index) {
     return attributeValues[index];
   }
 
-  void setAttributeValue(Attribute attribute, Object value, boolean explicit) {
-    Integer index = ruleClass.getAttributeIndex(attribute.getName());
+  boolean isAttributeValueExplicitlySpecified(int index) {
+    return attributeValueExplicitlySpecified.get(index);
+  }
+
+  Location getAttributeLocation(int index) {
+    return attributeLocations[index];
+  }
+
+  void setAttributeValue(int index, Object value, boolean explicit) {
     attributeValues[index] = value;
     attributeValueExplicitlySpecified.set(index, explicit);
   }
 
+  void setAttributeValue(Attribute attribute, Object value, boolean explicit) {
+    Integer index = ruleClass.getAttributeIndex(attribute.getName());
+    setAttributeValue(index, value, explicit);
+  }
+
   void setAttributeValueByName(String attrName, Object value) {
     Integer index = ruleClass.getAttributeIndex(attrName);
-    attributeValues[index] = value;
-    attributeValueExplicitlySpecified.set(index);
+    setAttributeValue(index, value, true);
   }
 
   void setAttributeLocation(int attrIndex, Location location) {
@@ -116,7 +137,7 @@ public class AttributeContainer {
 
   void setAttributeLocation(Attribute attribute, Location location) {
     Integer index = ruleClass.getAttributeIndex(attribute.getName());
-    attributeLocations[index] = location;
+    setAttributeLocation(index, location);
   }
 
   public static final Function<RuleClass, AttributeContainer> ATTRIBUTE_CONTAINER_FACTORY =
@@ -0,0 +1,219 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.syntax.Type;
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An {@link AttributeContainer} that trades a little access time for a much smaller footprint,
+ * for use when very many rules are kept in memory at once.
+ *
+ * <p>Where {@link AttributeContainer} keeps a value and a location slot for every attribute of
+ * the rule class, this container:
+ * <ul>
+ *   <li>keeps no value for an attribute that is set, non-explicitly, to its rule class default;
+ *       the default is looked up again from the {@link RuleClass} on access,
+ *   <li>keeps the values of boolean attributes as bits instead of references,
+ *   <li>keeps all other values and all locations in sorted sparse arrays, and
+ *   <li>interns list values, so that rules with identical lists (e.g. the same {@code deps})
+ *       share a single copy. The copy has the same class as the list it replaces, so callers see
+ *       the same value types as with {@link AttributeContainer}, but it may be shared with other
+ *       rules and so must not be modified.
+ * </ul>
+ *
+ * <p>It is used instead of {@link AttributeContainer} for packages loaded while
+ * {@code --experimental_compact_attribute_containers} is set.
+ */
+public final class CompactAttributeContainer extends AttributeContainer {
+
+  // Separate interners, since lists of different classes with the same elements are equal.
+  private static final Interner<ImmutableList<?>> IMMUTABLE_LIST_INTERNER =
+      Interners.newWeakInterner();
+  private static final Interner<ArrayList<?>> ARRAY_LIST_INTERNER = Interners.newWeakInterner();
+
+  private static final short[] NO_INDICES = new short[0];
+  private static final Object[] NO_VALUES = new Object[0];
+  private static final Location[] NO_LOCATIONS = new Location[0];
+
+  // Three bit planes of getAttributeCount() bits each: whether an attribute has been set, whether
+  // it has been set explicitly, and the value of boolean attributes.
+  private static final int SET = 0;
+  private static final int EXPLICIT = 1;
+  private static final int BOOLEAN_VALUE = 2;
+  private final long[] bits;
+  private final int wordsPerPlane;
+
+  // Values of attributes that are neither booleans nor elided defaults, sorted by index.
+  private short[] valueIndices = NO_INDICES;
+  private Object[] values = NO_VALUES;
+
+  // Attribute locations, sorted by index.
+  private short[] locationIndices = NO_INDICES;
+  private Location[] locations = NO_LOCATIONS;
+
+  public CompactAttributeContainer(RuleClass ruleClass) {
+    super(ruleClass, null, null, null);
+    int attributeCount = ruleClass.getAttributeCount();
+    Preconditions.checkArgument(attributeCount <= Short.MAX_VALUE, attributeCount);
+    this.wordsPerPlane = (attributeCount + 63) >>> 6;
+    this.bits = new long[3 * wordsPerPlane];
+  }
+
+  private boolean getBit(int plane, int index) {
+    return (bits[plane * wordsPerPlane + (index >>> 6)] & (1L << index)) != 0;
+  }
+
+  private void setBit(int plane, int index, boolean value) {
+    int word = plane * wordsPerPlane + (index >>> 6);
+    if (value) {
+      bits[word] |= 1L << index;
+    } else {
+      bits[word] &= ~(1L << index);
+    }
+  }
+
+  @Override
+  Object getAttributeValue(int index) {
+    if (!getBit(SET, index)) {
+      return null;
+    }
+    int pos = Arrays.binarySearch(valueIndices, (short) index);
+    if (pos >= 0) {
+      return values[pos];
+    }
+    Attribute attribute = ruleClass.getAttribute(index);
+    return attribute.getType() == Type.BOOLEAN
+        ? getBit(BOOLEAN_VALUE, index)
+        : attribute.getDefaultValue(null);
+  }
+
+  @Override
+  boolean isAttributeValueExplicitlySpecified(int index) {
+    return getBit(EXPLICIT, index);
+  }
+
+  @Override
+  Location getAttributeLocation(int index) {
+    int pos = Arrays.binarySearch(locationIndices, (short) index);
+    return pos >= 0 ? locations[pos] : null;
+  }
+
+  @Override
+  void setAttributeValue(int index, Object value, boolean explicit) {
+    Attribute attribute = ruleClass.getAttribute(index);
+    setBit(SET, index, true);
+    setBit(EXPLICIT, index, explicit);
+    int pos = Arrays.binarySearch(valueIndices, (short) index);
+    boolean packedBoolean = attribute.getType() == Type.BOOLEAN && value instanceof Boolean;
+    if (packedBoolean || (!explicit && value != null && isNonComputedDefault(attribute, value))) {
+      if (packedBoolean) {
+        setBit(BOOLEAN_VALUE, index, (Boolean) value);
+      }
+      if (pos >= 0) {
+        valueIndices = remove(valueIndices, pos);
+        values = remove(values, pos);
+      }
+      return;
+    }
+    value = maybeIntern(value);
+    if (pos >= 0) {
+      values[pos] = value;
+    } else {
+      valueIndices = insert(valueIndices, -pos - 1, (short) index);
+      values = insert(values, -pos - 1, value);
+    }
+  }
+
+  @Override
+  void setAttributeLocation(int attrIndex, Location location) {
+    int pos = Arrays.binarySearch(locationIndices, (short) attrIndex);
+    if (pos >= 0) {
+      locations[pos] = location;
+    } else {
+      locationIndices = insert(locationIndices, -pos - 1, (short) attrIndex);
+      locations = insert(locations, -pos - 1, location);
+    }
+  }
+
+  /**
+   * Returns whether {@code value} is the very object {@link #getAttributeValue} falls back to for
+   * an attribute without a stored value. Computed and conditional defaults depend on the rule, so
+   * they are always stored.
+   */
+  private static boolean isNonComputedDefault(Attribute attribute, Object value) {
+    return !attribute.hasComputedDefault() && attribute.getDefaultValue(null) == value;
+  }
+
+  /**
+   * Replaces plain lists with a shared equal list of the same class, trimmed to size. Subclasses
+   * of {@link List} other than {@link ArrayList}, such as
+   * {@link com.google.devtools.build.lib.syntax.GlobList}, carry additional state and are kept as
+   * they are.
+   */
+  private static Object maybeIntern(Object value) {
+    if (value instanceof ImmutableList) {
+      return IMMUTABLE_LIST_INTERNER.intern((ImmutableList<?>) value);
+    }
+    if (value != null && value.getClass() == ArrayList.class) {
+      return ARRAY_LIST_INTERNER.intern(new ArrayList<>((ArrayList<?>) value));
+    }
+    return value;
+  }
+
+  private static short[] insert(short[] array, int pos, short element) {
+    short[] result = new short[array.length + 1];
+    System.arraycopy(array, 0, result, 0, pos);
+    result[pos] = element;
+    System.arraycopy(array, pos, result, pos + 1, array.length - pos);
+    return result;
+  }
+
+  private static <T> T[] insert(T[] array, int pos, T element) {
+    T[] result = Arrays.copyOf(array, array.length + 1);
+    System.arraycopy(array, pos, result, pos + 1, array.length - pos);
+    result[pos] = element;
+    return result;
+  }
+
+  private static short[] remove(short[] array, int pos) {
+    short[] result = new short[array.length - 1];
+    System.arraycopy(array, 0, result, 0, pos);
+    System.arraycopy(array, pos + 1, result, pos, array.length - pos - 1);
+    return result;
+  }
+
+  private static <T> T[] remove(T[] array, int pos) {
+    T[] result = Arrays.copyOf(array, array.length - 1);
+    System.arraycopy(array, pos + 1, result, pos, array.length - pos - 1);
+    return result;
+  }
+
+  public static final Function<RuleClass, AttributeContainer> COMPACT_ATTRIBUTE_CONTAINER_FACTORY =
+      new Function<RuleClass, AttributeContainer>() {
+        @Override
+        public AttributeContainer apply(RuleClass ruleClass) {
+          return new CompactAttributeContainer(ruleClass);
+        }
+      };
+}
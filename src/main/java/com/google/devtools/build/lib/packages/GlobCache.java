@@ -23,6 +23,8 @@ import com.google.common.util.concurrent.SettableFuture;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.concurrent.ThreadSafety;
 import com.google.devtools.build.lib.packages.Globber.BadGlobException;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.vfs.Path;
@@ -40,6 +42,7 @@ import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -83,6 +86,17 @@ public class GlobCache {
    */
   private final ThreadPoolExecutor globExecutor;
 
+  /**
+   * Profiler time at which the first glob of this package was started, or -1 if none was started
+   * while profiling.
+   */
+  private final AtomicLong firstGlobStartTime = new AtomicLong(-1);
+
+  /**
+   * Total time, in nanoseconds, that package loading has spent blocked on the results of globs.
+   */
+  private final AtomicLong globWaitTime = new AtomicLong();
+
   /**
    * Create a glob expansion cache.
    * @param packageDirectory globs will be expanded relatively to this
@@ -130,6 +144,9 @@ public class GlobCache {
       throws BadGlobException {
     Future<List<Path>> cached = globCache.get(Pair.of(pattern, excludeDirs));
     if (cached == null) {
+      if (firstGlobStartTime.get() < 0) {
+        firstGlobStartTime.compareAndSet(-1, Profiler.nanoTimeMaybe());
+      }
       cached = safeGlob(pattern, excludeDirs);
       setGlobPaths(pattern, excludeDirs, cached);
     }
@@ -146,7 +163,15 @@ public class GlobCache {
   protected List<String> getGlob(String pattern, boolean excludeDirs)
       throws IOException, BadGlobException, InterruptedException {
     Future<List<Path>> futureResult = getGlobAsync(pattern, excludeDirs);
-    List<Path> globPaths = fromFuture(futureResult);
+    long startTime = Profiler.nanoTimeMaybe();
+    List<Path> globPaths;
+    try {
+      globPaths = fromFuture(futureResult);
+    } finally {
+      if (startTime > 0) {
+        globWaitTime.addAndGet(Profiler.nanoTimeMaybe() - startTime);
+      }
+    }
     // Replace the UnixGlob.GlobFuture with a completed future object, to allow
     // garbage collection of the GlobFuture and GlobVisitor objects.
     if (!(futureResult instanceof SettableFuture<?>)) {
@@ -288,10 +313,17 @@ public class GlobCache {
   }
 
   /**
-   * Block on the completion of all potentially-abandoned background tasks.
+   * Block on the completion of all potentially-abandoned background tasks, and record the time
+   * this package spent waiting for its globs in the profile.
    */
   public void finishBackgroundTasks() {
     finishBackgroundTasks(globCache.values());
+    long startTime = firstGlobStartTime.getAndSet(-1);
+    long waitTime = globWaitTime.getAndSet(0);
+    if (startTime > 0) {
+      Profiler.instance().logSimpleTaskDuration(
+          startTime, waitTime, ProfilerTask.PACKAGE_GLOBS, packageId);
+    }
   }
 
   public void cancelBackgroundTasks() {
@@ -28,6 +28,7 @@ import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.collect.CollectionUtils;
 import com.google.devtools.build.lib.collect.ImmutableSortedKeyMap;
+import com.google.devtools.build.lib.events.CompactEvents;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.Location;
@@ -195,7 +196,7 @@ public class Package {
 
   private ImmutableSet<String> features;
 
-  private ImmutableList<Event> events;
+  private CompactEvents events;
 
   /**
    * Package initialization, part 1 of 3: instantiates a new package with the
@@ -317,7 +318,7 @@ public class Package {
     this.defaultLicense = builder.defaultLicense;
     this.defaultDistributionSet = builder.defaultDistributionSet;
     this.features = ImmutableSortedSet.copyOf(builder.features);
-    this.events = ImmutableList.copyOf(builder.events);
+    this.events = CompactEvents.create(builder.events);
   }
 
   /**
@@ -431,7 +432,7 @@ public class Package {
   }
 
   public List<Event> getEvents() {
-    return events;
+    return events.getEvents();
   }
 
   /**
@@ -17,6 +17,7 @@ package com.google.devtools.build.lib.packages;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
@@ -37,6 +38,7 @@ import com.google.devtools.build.lib.packages.RuleFactory.BuildLangTypedAttribut
 import com.google.devtools.build.lib.skylarkinterface.SkylarkSignature;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkSignature.Param;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkValue;
+import com.google.devtools.build.lib.syntax.Argument;
 import com.google.devtools.build.lib.syntax.AssignmentStatement;
 import com.google.devtools.build.lib.syntax.BaseFunction;
 import com.google.devtools.build.lib.syntax.BuildFileAST;
@@ -49,10 +51,13 @@ import com.google.devtools.build.lib.syntax.Environment.Phase;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.devtools.build.lib.syntax.EvalUtils;
 import com.google.devtools.build.lib.syntax.Expression;
+import com.google.devtools.build.lib.syntax.ExpressionStatement;
 import com.google.devtools.build.lib.syntax.FuncallExpression;
 import com.google.devtools.build.lib.syntax.FunctionSignature;
 import com.google.devtools.build.lib.syntax.GlobList;
 import com.google.devtools.build.lib.syntax.Identifier;
+import com.google.devtools.build.lib.syntax.IntegerLiteral;
+import com.google.devtools.build.lib.syntax.ListLiteral;
 import com.google.devtools.build.lib.syntax.Mutability;
 import com.google.devtools.build.lib.syntax.ParserInputSource;
 import com.google.devtools.build.lib.syntax.Runtime;
@@ -61,6 +66,8 @@ import com.google.devtools.build.lib.syntax.SkylarkList;
 import com.google.devtools.build.lib.syntax.SkylarkList.MutableList;
 import com.google.devtools.build.lib.syntax.SkylarkSignatureProcessor;
 import com.google.devtools.build.lib.syntax.Statement;
+import com.google.devtools.build.lib.syntax.StringLiteral;
+import com.google.devtools.build.lib.syntax.SyntaxTreeVisitor;
 import com.google.devtools.build.lib.syntax.Type;
 import com.google.devtools.build.lib.syntax.Type.ConversionException;
 import com.google.devtools.build.lib.util.Preconditions;
@@ -75,7 +82,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
@@ -324,6 +335,13 @@ public final class PackageFactory {
   private final ThreadPoolExecutor threadPool;
   private Map<String, String> platformSetRegexps;
 
+  // Shared by all instances: factories are created per runtime and in tests, and a pool per
+  // instance would never be shut down. Its worker threads exit when the pool is idle.
+  private static final ForkJoinPool RULE_CREATION_POOL =
+      new ForkJoinPool(java.lang.Runtime.getRuntime().availableProcessors());
+  private int parallelRuleCreationThreshold = 0;
+  private volatile boolean compactAttributeContainers = false;
+
   private final ImmutableList<EnvironmentExtension> environmentExtensions;
   private final ImmutableMap<String, PackageArgument<?>> packageArguments;
 
@@ -408,6 +426,32 @@ public final class PackageFactory {
     threadPool.setMaximumPoolSize(globbingThreads);
   }
 
+  /**
+   * Sets the minimum number of trailing, mutually independent rule declarations a BUILD file must
+   * have for those rules to be created in parallel. A value of 0 disables parallel rule creation.
+   *
+   * <p>See {@link #execBuildFile} for which declarations are considered independent.
+   */
+  public void setParallelRuleCreationThreshold(int parallelRuleCreationThreshold) {
+    Preconditions.checkArgument(parallelRuleCreationThreshold >= 0);
+    this.parallelRuleCreationThreshold = parallelRuleCreationThreshold;
+  }
+
+  /**
+   * Sets whether packages loaded from now on keep the attributes of their rules in
+   * {@link CompactAttributeContainer}s instead of the containers of the attribute container
+   * factory this factory was created with. Packages that are already loaded are not affected.
+   */
+  public void setCompactAttributeContainers(boolean compactAttributeContainers) {
+    this.compactAttributeContainers = compactAttributeContainers;
+  }
+
+  private Function<RuleClass, AttributeContainer> getAttributeContainerFactory() {
+    return compactAttributeContainers
+        ? CompactAttributeContainer.COMPACT_ATTRIBUTE_CONTAINER_FACTORY
+        : ruleFactory.getAttributeContainerFactory();
+  }
+
 
   /**
    * Returns the immutable, unordered set of names of all the known rule
@@ -1120,7 +1164,13 @@ public final class PackageFactory {
       throws RuleFactory.InvalidRuleException, Package.NameConflictException, InterruptedException {
     RuleClass ruleClass = getBuiltInRuleClass(ruleClassName, ruleFactory);
     BuildLangTypedAttributeValuesMap attributeValues = new BuildLangTypedAttributeValuesMap(kwargs);
-    AttributeContainer attributeContainer = ruleFactory.getAttributeContainer(ruleClass);
+    AttributeContainer attributeContainer =
+        context.getAttributeContainerFactory().apply(ruleClass);
+    if (context.deferredRules != null) {
+      context.deferredRules.add(
+          new DeferredRule(ruleClass, attributeValues, ast, attributeContainer));
+      return;
+    }
     RuleFactory.createAndAddRule(context, ruleClass, attributeValues, ast, env, attributeContainer);
   }
 
@@ -1398,6 +1448,12 @@ public final class PackageFactory {
     final EventHandler eventHandler;
     private final Function<RuleClass, AttributeContainer> attributeContainerFactory;
 
+    /**
+     * If non-null, rule declarations are recorded here instead of being added to
+     * {@link #pkgBuilder}. See {@link PackageFactory#execBuildFile}.
+     */
+    @Nullable private List<DeferredRule> deferredRules;
+
     @VisibleForTesting
     public PackageContext(
         Package.LegacyBuilder pkgBuilder,
@@ -1550,7 +1606,7 @@ public final class PackageFactory {
       // Stuff that closes over the package context:
       PackageContext context =
           new PackageContext(
-              pkgBuilder, globber, eventHandler, ruleFactory.getAttributeContainerFactory());
+              pkgBuilder, globber, eventHandler, getAttributeContainerFactory());
       buildPkgEnv(pkgEnv, context, ruleFactory);
       pkgEnv.setupDynamic(PKG_CONTEXT, context);
       pkgEnv.setupDynamic(Runtime.PKG_NAME, packageId.getPackageFragment().getPathString());
@@ -1576,7 +1632,7 @@ public final class PackageFactory {
       // as containing errors" is strewn all over this class.  Refactor to use an
       // event sensor--and see if we can simplify the calling code in
       // createPackage().
-      if (!buildFileAST.exec(pkgEnv, eventHandler)) {
+      if (!execBuildFile(buildFileAST, pkgEnv, context, eventHandler)) {
         pkgBuilder.setContainsErrors();
       }
     }
@@ -1585,6 +1641,274 @@ public final class PackageFactory {
     return pkgBuilder;
   }
 
+  /**
+   * A rule declaration whose evaluation has been split from its creation, so that the (expensive)
+   * attribute conversion and validation of many rules can happen concurrently.
+   */
+  private static final class DeferredRule {
+    private final RuleClass ruleClass;
+    private final BuildLangTypedAttributeValuesMap attributeValues;
+    private final FuncallExpression ast;
+    private final AttributeContainer attributeContainer;
+    private final StoredEventHandler eventHandler = new StoredEventHandler();
+
+    @Nullable private Rule rule;
+    @Nullable private RuleFactory.InvalidRuleException invalidRuleException;
+    private boolean interrupted;
+
+    private DeferredRule(
+        RuleClass ruleClass,
+        BuildLangTypedAttributeValuesMap attributeValues,
+        FuncallExpression ast,
+        AttributeContainer attributeContainer) {
+      this.ruleClass = ruleClass;
+      this.attributeValues = attributeValues;
+      this.ast = ast;
+      this.attributeContainer = attributeContainer;
+    }
+
+    /**
+     * Creates the rule without adding it to {@code pkgBuilder}. Only reads from {@code pkgBuilder},
+     * so may be called concurrently for different rules of the same package.
+     */
+    private void create(Package.Builder pkgBuilder) {
+      try {
+        // The environment is only consulted for macro generator attributes, which do not apply to
+        // top-level rule declarations.
+        rule = RuleFactory.createRule(pkgBuilder, ruleClass, attributeValues, eventHandler, ast,
+            ast.getLocation(), /*env=*/null, attributeContainer);
+      } catch (RuleFactory.InvalidRuleException e) {
+        invalidRuleException = e;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+  }
+
+  /** Creates the rules in {@code [from, to)} of a list of deferred rules, splitting recursively. */
+  private static final class CreateRulesAction extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private static final int BATCH_SIZE = 64;
+
+    private final Package.Builder pkgBuilder;
+    private final List<DeferredRule> rules;
+    private final int from;
+    private final int to;
+
+    private CreateRulesAction(
+        Package.Builder pkgBuilder, List<DeferredRule> rules, int from, int to) {
+      this.pkgBuilder = pkgBuilder;
+      this.rules = rules;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= BATCH_SIZE) {
+        for (DeferredRule rule : rules.subList(from, to)) {
+          rule.create(pkgBuilder);
+        }
+        return;
+      }
+      int mid = (from + to) >>> 1;
+      invokeAll(
+          new CreateRulesAction(pkgBuilder, rules, from, mid),
+          new CreateRulesAction(pkgBuilder, rules, mid, to));
+    }
+  }
+
+  /**
+   * Executes the statements of a BUILD file.
+   *
+   * <p>If parallel rule creation is enabled and the file ends in at least
+   * {@link #parallelRuleCreationThreshold} independent rule declarations, those declarations are
+   * evaluated in order but the resulting rules are created concurrently on
+   * {@link #RULE_CREATION_POOL} and then added to the package in declaration order, so the
+   * resulting package is identical to the one built by sequential evaluation. A declaration is
+   * independent if it is a direct call of a native rule with only keyword arguments, and those
+   * arguments call no functions other than {@code glob} and {@code select}; such declarations can
+   * neither observe the rules declared before them nor change the package defaults used by later
+   * ones.
+   */
+  private boolean execBuildFile(BuildFileAST buildFileAST, Environment pkgEnv,
+      PackageContext context, EventHandler eventHandler) throws InterruptedException {
+    List<Statement> statements = buildFileAST.getStatements();
+    int numStatements = statements.size();
+    int firstIndependent = numStatements;
+    if (parallelRuleCreationThreshold > 0) {
+      while (firstIndependent > 0 && isIndependentRuleCall(statements.get(firstIndependent - 1))) {
+        firstIndependent--;
+      }
+    }
+    if (numStatements - firstIndependent < parallelRuleCreationThreshold
+        || firstIndependent == numStatements) {
+      return buildFileAST.exec(pkgEnv, eventHandler);
+    }
+
+    boolean ok = buildFileAST.exec(pkgEnv, eventHandler, 0, firstIndependent);
+    // The earlier statements may have rebound a rule name, e.g. to a macro loaded from a .bzl file.
+    for (Statement stmt : statements.subList(firstIndependent, numStatements)) {
+      String function = getCallExpression(stmt).getFunction().getName();
+      if (!(pkgEnv.lookup(function, null) instanceof BuiltinFunction)) {
+        return buildFileAST.exec(pkgEnv, eventHandler, firstIndependent, numStatements) && ok;
+      }
+    }
+
+    List<DeferredRule> deferredRules = new ArrayList<>(numStatements - firstIndependent);
+    context.deferredRules = deferredRules;
+    try {
+      ok &= buildFileAST.exec(pkgEnv, eventHandler, firstIndependent, numStatements);
+    } finally {
+      context.deferredRules = null;
+    }
+
+    ForkJoinTask<?> task = RULE_CREATION_POOL.submit(
+        new CreateRulesAction(context.pkgBuilder, deferredRules, 0, deferredRules.size()));
+    try {
+      task.get();
+    } catch (InterruptedException e) {
+      task.cancel(true);
+      throw e;
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+
+    for (DeferredRule deferredRule : deferredRules) {
+      if (deferredRule.interrupted) {
+        throw new InterruptedException();
+      }
+      Event.replayEventsOn(eventHandler, deferredRule.eventHandler.getEvents());
+      try {
+        if (deferredRule.invalidRuleException != null) {
+          throw deferredRule.invalidRuleException;
+        }
+        context.pkgBuilder.addRule(deferredRule.rule);
+      } catch (RuleFactory.InvalidRuleException | Package.NameConflictException e) {
+        eventHandler.handle(Event.error(deferredRule.ast.getLocation(), e.getMessage()));
+        ok = false;
+      }
+    }
+    return ok;
+  }
+
+  @Nullable
+  private static FuncallExpression getCallExpression(Statement stmt) {
+    if (!(stmt instanceof ExpressionStatement)) {
+      return null;
+    }
+    Expression expr = ((ExpressionStatement) stmt).getExpression();
+    return expr instanceof FuncallExpression ? (FuncallExpression) expr : null;
+  }
+
+  private boolean isIndependentRuleCall(Statement stmt) {
+    FuncallExpression call = getCallExpression(stmt);
+    if (call == null
+        || call.getObject() != null
+        || !ruleFactory.getRuleClassNames().contains(call.getFunction().getName())) {
+      return false;
+    }
+    final boolean[] independent = {true};
+    SyntaxTreeVisitor argumentChecker = new SyntaxTreeVisitor() {
+      @Override
+      public void visit(FuncallExpression node) {
+        String name = node.getFunction().getName();
+        if (node.getObject() != null || !(name.equals("glob") || name.equals("select"))) {
+          independent[0] = false;
+        }
+        super.visit(node);
+      }
+    };
+    for (Argument.Passed arg : call.getArguments()) {
+      if (!arg.isKeyword()) {
+        return false;
+      }
+      argumentChecker.visit(arg.getValue());
+    }
+    return independent[0];
+  }
+
+  /**
+   * Starts, on {@code globber}, every {@code glob()} call in {@code buildFileAST} whose patterns
+   * are all string literals, without evaluating the BUILD file. This lets directory traversal
+   * overlap with loading the package's Skylark imports; the results are picked up when the same
+   * globs are evaluated later on the same globber.
+   *
+   * <p>Globs whose arguments are computed are left to {@link #prefetchGlobs}. Invalid patterns
+   * are ignored here and reported during evaluation.
+   */
+  public static void prefetchLiteralGlobs(BuildFileAST buildFileAST, final Globber globber) {
+    new SyntaxTreeVisitor() {
+      @Override
+      public void visit(FuncallExpression node) {
+        if (node.getObject() == null && node.getFunction().getName().equals("glob")) {
+          prefetchLiteralGlob(node, globber);
+        }
+        super.visit(node);
+      }
+    }.visit(buildFileAST);
+  }
+
+  private static final ImmutableList<String> GLOB_PARAMS =
+      ImmutableList.of("include", "exclude", "exclude_directories");
+
+  private static void prefetchLiteralGlob(FuncallExpression call, Globber globber) {
+    Expression[] args = new Expression[GLOB_PARAMS.size()];
+    List<Argument.Passed> arguments = call.getArguments();
+    for (int i = 0; i < arguments.size(); i++) {
+      Argument.Passed arg = arguments.get(i);
+      int pos;
+      if (arg.isPositional()) {
+        pos = i;
+      } else if (arg.isKeyword()) {
+        pos = GLOB_PARAMS.indexOf(arg.getName());
+      } else {
+        return;
+      }
+      if (pos < 0 || pos >= args.length) {
+        return;
+      }
+      args[pos] = arg.getValue();
+    }
+    List<String> includes = getStringLiterals(args[0]);
+    List<String> excludes =
+        args[1] == null ? ImmutableList.<String>of() : getStringLiterals(args[1]);
+    boolean excludeDirs = true;
+    if (args[2] instanceof IntegerLiteral) {
+      excludeDirs = ((IntegerLiteral) args[2]).getValue() != 0;
+    } else if (args[2] != null) {
+      return;
+    }
+    if (includes == null || excludes == null) {
+      return;
+    }
+    try {
+      globber.runAsync(includes, excludes, excludeDirs);
+    } catch (BadGlobException e) {
+      // Reported when the glob is evaluated.
+    }
+  }
+
+  /**
+   * Returns the elements of {@code expr} if it is a list literal of string literals, or null
+   * otherwise.
+   */
+  @Nullable
+  private static List<String> getStringLiterals(@Nullable Expression expr) {
+    if (!(expr instanceof ListLiteral)) {
+      return null;
+    }
+    List<Expression> elements = ((ListLiteral) expr).getElements();
+    List<String> result = new ArrayList<>(elements.size());
+    for (Expression element : elements) {
+      if (!(element instanceof StringLiteral)) {
+        return null;
+      }
+      result.add(((StringLiteral) element).getValue());
+    }
+    return result;
+  }
+
   /**
    * Visit all targets and expand the globs in parallel.
    */
@@ -1627,7 +1951,7 @@ public final class PackageFactory {
               pkgBuilder,
               globber,
               NullEventHandler.INSTANCE,
-              ruleFactory.getAttributeContainerFactory());
+              getAttributeContainerFactory());
       buildPkgEnv(pkgEnv, context, ruleFactory);
       try {
         pkgEnv.update("glob", newGlobFunction.apply(context, /*async=*/true));
@@ -111,6 +111,20 @@ public class PackageCacheOptions extends OptionsBase {
       help = "Number of threads to use for glob evaluation.")
   public int globbingThreads;
 
+  @Option(name = "experimental_parallel_rule_creation_threshold",
+      defaultValue = "0",
+      category = "undocumented",
+      help = "If positive, BUILD files ending in at least this many independent rule "
+          + "declarations create those rules in parallel. 0 disables parallel rule creation.")
+  public int parallelRuleCreationThreshold;
+
+  @Option(name = "experimental_compact_attribute_containers",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If true, rules of packages loaded from now on store their attribute values in a "
+          + "more compact form that is slightly slower to access.")
+  public boolean compactAttributeContainers;
+
   @Option(name = "min_pkg_count_for_ct_node_eviction",
       defaultValue = "3700",
       // Why is the default value 3700? As of December 2013, a medium target loads about this many
@@ -0,0 +1,678 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static com.google.devtools.build.lib.profiler.ProfilerTask.TASK_COUNT;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.devtools.build.lib.profiler.ProfileInfo.AggregateAttr;
+import com.google.devtools.build.lib.util.VarInt;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads profiles written in the compact profile format (see {@link CompactProfileWriter}).
+ *
+ * <p>Only the header and the index are read when a profile is opened. Tasks are streamed block by
+ * block to a {@link TaskVisitor}, and the index is used to skip the blocks that contain no tasks
+ * of a requested thread or type. Descriptions are read on demand from the string table.
+ *
+ * <p>If the profile is truncated, the index is rebuilt by scanning all complete blocks, and
+ * {@link #isCorruptedOrIncomplete} returns true.
+ *
+ * <p>This class is not thread-safe.
+ */
+public final class CompactProfileReader implements Closeable {
+
+  /**
+   * Receives the tasks of a profile.
+   */
+  public interface TaskVisitor {
+    /**
+     * Called for each task. The record is only valid during the call, since it is reused for the
+     * following tasks.
+     */
+    void visit(TaskRecord task) throws IOException;
+  }
+
+  /**
+   * A task read from the profile.
+   */
+  public final class TaskRecord {
+    private long threadId;
+    private int id;
+    private int parentId;
+    private long startTime;
+    private long durationNanos;
+    private int descIndex;
+    private ProfilerTask type;
+    private byte[] block;
+    private int statsOffset;
+    private int statsLength;
+
+    private TaskRecord() {}
+
+    public long getThreadId() {
+      return threadId;
+    }
+
+    public int getId() {
+      return id;
+    }
+
+    public int getParentId() {
+      return parentId;
+    }
+
+    public long getStartTime() {
+      return startTime;
+    }
+
+    public long getDurationNanos() {
+      return durationNanos;
+    }
+
+    public ProfilerTask getType() {
+      return type;
+    }
+
+    public int getDescriptionIndex() {
+      return descIndex;
+    }
+
+    public String getDescription() throws IOException {
+      return CompactProfileReader.this.getDescription(descIndex);
+    }
+
+    public boolean hasStats() {
+      return statsLength > 0;
+    }
+
+    /**
+     * Returns the aggregated statistics of the immediate subtasks, indexed by
+     * {@link ProfilerTask#ordinal}. Absent statistics are represented by null.
+     */
+    public AggregateAttr[] getStatAttrArray() {
+      int[] counts = new int[TASK_COUNT];
+      long[] durations = new long[TASK_COUNT];
+      ByteBuffer source = ByteBuffer.wrap(block, statsOffset, statsLength);
+      while (source.hasRemaining()) {
+        int index = types[source.get() & 0xff].ordinal();
+        counts[index] += VarInt.getVarInt(source);
+        durations[index] += VarInt.getVarLong(source);
+      }
+      AggregateAttr[] stats = ProfileInfo.createEmptyStatArray();
+      for (int i = 0; i < TASK_COUNT; i++) {
+        if (counts[i] > 0) {
+          stats[i] = new AggregateAttr(counts[i], durations[i]);
+        }
+      }
+      return stats;
+    }
+
+    /**
+     * Returns a copy of the statistics in the format used by {@link ProfileInfo}, or null if
+     * there are none.
+     */
+    byte[] copyStats() {
+      if (statsLength == 0) {
+        return null;
+      }
+      byte[] stats = Arrays.copyOfRange(block, statsOffset, statsOffset + statsLength);
+      if (!typesMatch) {
+        // Rewrite the type ordinals of the profile to the ones of this binary.
+        ByteBuffer buffer = ByteBuffer.wrap(stats);
+        while (buffer.hasRemaining()) {
+          int position = buffer.position();
+          stats[position] = (byte) types[buffer.get() & 0xff].ordinal();
+          VarInt.getVarInt(buffer);
+          VarInt.getVarLong(buffer);
+        }
+      }
+      return stats;
+    }
+  }
+
+  /** Index of the tasks of one thread or of one task type. */
+  private static final class TaskIndex {
+    final long taskCount;
+    final long totalDuration;
+    final int[] blocks;
+
+    TaskIndex(long taskCount, long totalDuration, int[] blocks) {
+      this.taskCount = taskCount;
+      this.totalDuration = totalDuration;
+      this.blocks = blocks;
+    }
+  }
+
+  /**
+   * A stream over the profile file that can be positioned at a block. Moving forward skips
+   * bytes, moving backward reopens the file.
+   */
+  private final class BlockInput implements Closeable {
+    private CountingInputStream counter;
+    private DataInputStream in;
+
+    DataInputStream seek(long offset) throws IOException {
+      if (in == null || offset < counter.getCount()) {
+        close();
+        counter = new CountingInputStream(
+            new BufferedInputStream(path.getInputStream(), 65536));
+        in = new DataInputStream(counter);
+      }
+      ByteStreams.skipFully(in, offset - counter.getCount());
+      return in;
+    }
+
+    /**
+     * Reads and inflates the block at the given offset.
+     */
+    byte[] readBlock(long offset, byte expectedKind) throws IOException {
+      DataInputStream input = seek(offset);
+      byte kind = input.readByte();
+      input.readInt(); // Item count.
+      int length = input.readInt();
+      int compressedLength = input.readInt();
+      if (kind != expectedKind || length < 0 || compressedLength < 0) {
+        throw new IOException("Invalid profile block at offset " + offset);
+      }
+      byte[] data = new byte[compressedLength];
+      input.readFully(data);
+      return inflate(data, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (in != null) {
+        in.close();
+        in = null;
+      }
+    }
+  }
+
+  // Number of decoded string blocks to keep in memory.
+  private static final int STRING_BLOCK_CACHE_SIZE = 16;
+
+  private final Path path;
+  private final String comment;
+  private final ProfilerTask[] types;
+  private final boolean typesMatch;
+  private boolean corruptedOrIncomplete = false;
+
+  private long taskCount;
+  private long[] taskBlockOffsets;
+  private int[] taskBlockSizes;
+  private int stringCount;
+  private long[] stringBlockOffsets;
+  private int[] stringBlockFirstIndices;
+  private final Map<Long, TaskIndex> threadIndex = new LinkedHashMap<>();
+  private final EnumMap<ProfilerTask, TaskIndex> typeIndex = new EnumMap<>(ProfilerTask.class);
+
+  private final Inflater inflater = new Inflater(true);
+  private final BlockInput taskInput = new BlockInput();
+  private final BlockInput stringInput = new BlockInput();
+  private final Map<Integer, String[]> stringBlockCache =
+      new LinkedHashMap<Integer, String[]>(STRING_BLOCK_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+          return size() > STRING_BLOCK_CACHE_SIZE;
+        }
+      };
+
+  private CompactProfileReader(Path path, String comment, ProfilerTask[] types) {
+    this.path = path;
+    this.comment = comment;
+    this.types = types;
+    boolean typesMatch = types.length == TASK_COUNT;
+    for (int i = 0; i < types.length && typesMatch; i++) {
+      typesMatch = types[i].ordinal() == i;
+    }
+    this.typesMatch = typesMatch;
+  }
+
+  /**
+   * Returns true if the given file is a profile in the compact format.
+   */
+  public static boolean isCompactProfile(Path profileFile) throws IOException {
+    try (DataInputStream in = new DataInputStream(profileFile.getInputStream())) {
+      return in.readInt() == CompactProfileWriter.MAGIC;
+    } catch (EOFException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Opens a profile in the compact format and reads its index.
+   *
+   * @throws UnsupportedEncodingException if the file format is invalid
+   * @throws IOException if the file can't be read
+   */
+  public static CompactProfileReader open(Path profileFile) throws IOException {
+    String comment;
+    ProfilerTask[] types;
+    long headerSize;
+    CountingInputStream counter =
+        new CountingInputStream(new BufferedInputStream(profileFile.getInputStream(), 65536));
+    try (DataInputStream in = new DataInputStream(counter)) {
+      if (in.readInt() != CompactProfileWriter.MAGIC) {
+        throw new UnsupportedEncodingException("Invalid profile datafile format");
+      }
+      if (in.readInt() != CompactProfileWriter.VERSION) {
+        throw new UnsupportedEncodingException("Incompatible profile datafile version");
+      }
+      comment = in.readUTF();
+      types = new ProfilerTask[in.readInt()];
+      for (int i = 0; i < types.length; i++) {
+        String name = in.readUTF();
+        types[i] = ProfilerTask.UNKNOWN;
+        for (ProfilerTask type : ProfilerTask.values()) {
+          if (type.toString().equals(name)) {
+            types[i] = type;
+          }
+        }
+      }
+      headerSize = counter.getCount();
+    }
+
+    CompactProfileReader reader = new CompactProfileReader(profileFile, comment, types);
+    try {
+      if (!reader.readIndex()) {
+        reader.corruptedOrIncomplete = true;
+        reader.scanBlocks(headerSize);
+      }
+    } catch (IOException e) {
+      reader.close();
+      throw e;
+    }
+    return reader;
+  }
+
+  public String getComment() {
+    return comment;
+  }
+
+  /**
+   * Returns true if the profile was truncated or corrupted, and only the tasks of its complete
+   * blocks can be read.
+   */
+  public boolean isCorruptedOrIncomplete() {
+    return corruptedOrIncomplete;
+  }
+
+  public long getTaskCount() {
+    return taskCount;
+  }
+
+  /**
+   * Returns the ids of all threads that executed tasks, in the order of their first task.
+   */
+  public Set<Long> getThreadIds() {
+    return Collections.unmodifiableSet(threadIndex.keySet());
+  }
+
+  public long getTaskCount(long threadId) {
+    TaskIndex index = threadIndex.get(threadId);
+    return index == null ? 0 : index.taskCount;
+  }
+
+  public long getTaskCount(ProfilerTask type) {
+    TaskIndex index = typeIndex.get(type);
+    return index == null ? 0 : index.taskCount;
+  }
+
+  /**
+   * Returns the sum of the durations of all tasks of the given type.
+   */
+  public long getTotalDuration(ProfilerTask type) {
+    TaskIndex index = typeIndex.get(type);
+    return index == null ? 0 : index.totalDuration;
+  }
+
+  public int getDescriptionCount() {
+    return stringCount;
+  }
+
+  /**
+   * Returns the description with the given index from the string table.
+   */
+  public String getDescription(int index) throws IOException {
+    if (index < 0 || index >= stringCount) {
+      throw new IndexOutOfBoundsException("No description " + index);
+    }
+    int block = Arrays.binarySearch(stringBlockFirstIndices, index);
+    if (block < 0) {
+      block = -block - 2;
+    }
+    String[] strings = stringBlockCache.get(block);
+    if (strings == null) {
+      strings = readStringBlock(block);
+      stringBlockCache.put(block, strings);
+    }
+    return strings[index - stringBlockFirstIndices[block]];
+  }
+
+  /**
+   * Streams all tasks in the order in which they were written.
+   */
+  public void readTasks(TaskVisitor visitor) throws IOException {
+    for (int block = 0; block < taskBlockOffsets.length; block++) {
+      readTaskBlock(block, visitor, null, null);
+    }
+  }
+
+  /**
+   * Streams the tasks of the given thread, reading only the blocks that contain them.
+   */
+  public void readTasksOfThread(long threadId, TaskVisitor visitor) throws IOException {
+    TaskIndex index = threadIndex.get(threadId);
+    if (index != null) {
+      for (int block : index.blocks) {
+        readTaskBlock(block, visitor, threadId, null);
+      }
+    }
+  }
+
+  /**
+   * Streams the tasks of the given type, reading only the blocks that contain them.
+   */
+  public void readTasksOfType(ProfilerTask type, TaskVisitor visitor) throws IOException {
+    TaskIndex index = typeIndex.get(type);
+    if (index != null) {
+      for (int block : index.blocks) {
+        readTaskBlock(block, visitor, null, type);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    inflater.end();
+    try {
+      taskInput.close();
+    } finally {
+      stringInput.close();
+    }
+  }
+
+  private void readTaskBlock(int block, TaskVisitor visitor, Long threadId, ProfilerTask type)
+      throws IOException {
+    byte[] data = taskInput.readBlock(taskBlockOffsets[block], CompactProfileWriter.TASK_BLOCK);
+    decodeTasks(data, taskBlockSizes[block], visitor, threadId, type);
+  }
+
+  private void decodeTasks(byte[] data, int count, TaskVisitor visitor, Long threadId,
+      ProfilerTask type) throws IOException {
+    TaskRecord task = new TaskRecord();
+    task.block = data;
+    ByteBuffer source = ByteBuffer.wrap(data);
+    try {
+      for (int i = 0; i < count; i++) {
+        task.threadId = VarInt.getVarLong(source);
+        task.id = VarInt.getVarInt(source);
+        task.parentId = VarInt.getVarInt(source);
+        task.startTime = VarInt.getVarLong(source);
+        task.durationNanos = VarInt.getVarLong(source);
+        task.descIndex = VarInt.getVarInt(source);
+        task.type = types[source.get() & 0xff];
+        task.statsLength = VarInt.getVarInt(source);
+        task.statsOffset = source.position();
+        source.position(task.statsOffset + task.statsLength);
+        if ((threadId == null || threadId == task.threadId)
+            && (type == null || type == task.type)) {
+          visitor.visit(task);
+        }
+      }
+    } catch (RuntimeException e) {
+      // Thrown by the ByteBuffer and by the array accesses above.
+      throw new IOException("Invalid profile task record", e);
+    }
+  }
+
+  private String[] readStringBlock(int block) throws IOException {
+    byte[] data =
+        stringInput.readBlock(stringBlockOffsets[block], CompactProfileWriter.STRING_BLOCK);
+    int end = block + 1 < stringBlockFirstIndices.length
+        ? stringBlockFirstIndices[block + 1]
+        : stringCount;
+    String[] strings = new String[end - stringBlockFirstIndices[block]];
+    ByteBuffer source = ByteBuffer.wrap(data);
+    try {
+      for (int i = 0; i < strings.length; i++) {
+        int length = VarInt.getVarInt(source);
+        strings[i] = new String(data, source.position(), length, StandardCharsets.UTF_8);
+        source.position(source.position() + length);
+      }
+    } catch (RuntimeException e) {
+      throw new IOException("Invalid profile string table", e);
+    }
+    return strings;
+  }
+
+  private byte[] inflate(byte[] data, int length) throws IOException {
+    byte[] result = new byte[length];
+    inflater.reset();
+    inflater.setInput(data);
+    try {
+      int inflated = 0;
+      while (inflated < length && !inflater.finished()) {
+        int n = inflater.inflate(result, inflated, length - inflated);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        inflated += n;
+      }
+      if (inflated != length) {
+        throw new IOException("Truncated profile block");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Invalid profile block", e);
+    }
+    return result;
+  }
+
+  /**
+   * Reads the index written at the end of a complete profile. Returns false if the profile has
+   * no valid footer.
+   */
+  private boolean readIndex() throws IOException {
+    long fileSize = path.getFileSize();
+    if (fileSize < CompactProfileWriter.FOOTER_SIZE) {
+      return false;
+    }
+    DataInputStream in = taskInput.seek(fileSize - CompactProfileWriter.FOOTER_SIZE);
+    long indexOffset = in.readLong();
+    if (in.readInt() != CompactProfileWriter.MAGIC
+        || indexOffset < 0 || indexOffset > fileSize - CompactProfileWriter.FOOTER_SIZE) {
+      return false;
+    }
+    in = taskInput.seek(indexOffset);
+
+    taskCount = in.readLong();
+    int taskBlockCount = in.readInt();
+    taskBlockOffsets = new long[taskBlockCount];
+    taskBlockSizes = new int[taskBlockCount];
+    for (int i = 0; i < taskBlockCount; i++) {
+      taskBlockOffsets[i] = in.readLong();
+      taskBlockSizes[i] = in.readInt();
+    }
+    stringCount = in.readInt();
+    int stringBlockCount = in.readInt();
+    stringBlockOffsets = new long[stringBlockCount];
+    stringBlockFirstIndices = new int[stringBlockCount];
+    for (int i = 0; i < stringBlockCount; i++) {
+      stringBlockOffsets[i] = in.readLong();
+      stringBlockFirstIndices[i] = in.readInt();
+    }
+    int threadCount = in.readInt();
+    for (int i = 0; i < threadCount; i++) {
+      long threadId = in.readLong();
+      threadIndex.put(threadId, readTaskIndex(in));
+    }
+    for (ProfilerTask type : types) {
+      TaskIndex index = readTaskIndex(in);
+      TaskIndex previous = typeIndex.get(type);
+      if (previous != null) {
+        // Several types unknown to this binary are all mapped to UNKNOWN.
+        index = merge(previous, index);
+      }
+      typeIndex.put(type, index);
+    }
+    return true;
+  }
+
+  private static TaskIndex readTaskIndex(DataInputStream in) throws IOException {
+    long taskCount = in.readLong();
+    long totalDuration = in.readLong();
+    int[] blocks = new int[in.readInt()];
+    for (int i = 0; i < blocks.length; i++) {
+      blocks[i] = in.readInt();
+    }
+    return new TaskIndex(taskCount, totalDuration, blocks);
+  }
+
+  private static TaskIndex merge(TaskIndex a, TaskIndex b) {
+    TreeSet<Integer> blocks = new TreeSet<>();
+    for (int block : a.blocks) {
+      blocks.add(block);
+    }
+    for (int block : b.blocks) {
+      blocks.add(block);
+    }
+    int[] merged = new int[blocks.size()];
+    int i = 0;
+    for (int block : blocks) {
+      merged[i++] = block;
+    }
+    return new TaskIndex(a.taskCount + b.taskCount, a.totalDuration + b.totalDuration, merged);
+  }
+
+  /**
+   * Rebuilds the index of a profile without footer from all of its complete blocks.
+   */
+  private void scanBlocks(long headerSize) throws IOException {
+    List<Long> taskOffsets = new ArrayList<>();
+    List<Integer> taskSizes = new ArrayList<>();
+    List<Long> stringOffsets = new ArrayList<>();
+    List<Integer> stringFirstIndices = new ArrayList<>();
+    final Map<Long, List<Integer>> threadBlocks = new LinkedHashMap<>();
+    final Map<ProfilerTask, List<Integer>> typeBlocks = new EnumMap<>(ProfilerTask.class);
+    final Map<Long, long[]> threadStats = new LinkedHashMap<>();
+    final Map<ProfilerTask, long[]> typeStats = new EnumMap<>(ProfilerTask.class);
+
+    long offset = headerSize;
+    long fileSize = path.getFileSize();
+    while (offset + CompactProfileWriter.BLOCK_HEADER_SIZE <= fileSize) {
+      DataInputStream in = taskInput.seek(offset);
+      byte kind = in.readByte();
+      final int count = in.readInt();
+      int length = in.readInt();
+      int compressedLength = in.readInt();
+      long end = offset + CompactProfileWriter.BLOCK_HEADER_SIZE + compressedLength;
+      if ((kind != CompactProfileWriter.TASK_BLOCK && kind != CompactProfileWriter.STRING_BLOCK)
+          || count < 0 || length < 0 || compressedLength < 0 || end > fileSize) {
+        // The rest of the file is the index, or a block that was not written completely.
+        break;
+      }
+      if (kind == CompactProfileWriter.STRING_BLOCK) {
+        stringOffsets.add(offset);
+        stringFirstIndices.add(stringCount);
+        stringCount += count;
+      } else {
+        final int block = taskOffsets.size();
+        byte[] data = new byte[compressedLength];
+        in.readFully(data);
+        decodeTasks(inflate(data, length), count, new TaskVisitor() {
+          @Override
+          public void visit(TaskRecord task) {
+            addToScannedIndex(threadBlocks, threadStats, task.threadId, block, task);
+            addToScannedIndex(typeBlocks, typeStats, task.type, block, task);
+          }
+        }, null, null);
+        taskOffsets.add(offset);
+        taskSizes.add(count);
+        taskCount += count;
+      }
+      offset = end;
+    }
+    taskInput.close();
+
+    taskBlockOffsets = toLongArray(taskOffsets);
+    taskBlockSizes = toIntArray(taskSizes);
+    stringBlockOffsets = toLongArray(stringOffsets);
+    stringBlockFirstIndices = toIntArray(stringFirstIndices);
+    for (Map.Entry<Long, List<Integer>> entry : threadBlocks.entrySet()) {
+      long[] stats = threadStats.get(entry.getKey());
+      threadIndex.put(
+          entry.getKey(), new TaskIndex(stats[0], stats[1], toIntArray(entry.getValue())));
+    }
+    for (Map.Entry<ProfilerTask, List<Integer>> entry : typeBlocks.entrySet()) {
+      long[] stats = typeStats.get(entry.getKey());
+      typeIndex.put(
+          entry.getKey(), new TaskIndex(stats[0], stats[1], toIntArray(entry.getValue())));
+    }
+  }
+
+  private static <K> void addToScannedIndex(Map<K, List<Integer>> blocks, Map<K, long[]> stats,
+      K key, int block, TaskRecord task) {
+    List<Integer> keyBlocks = blocks.get(key);
+    if (keyBlocks == null) {
+      keyBlocks = new ArrayList<>();
+      blocks.put(key, keyBlocks);
+      stats.put(key, new long[2]);
+    }
+    if (keyBlocks.isEmpty() || keyBlocks.get(keyBlocks.size() - 1) != block) {
+      keyBlocks.add(block);
+    }
+    long[] keyStats = stats.get(key);
+    keyStats[0]++;
+    keyStats[1] += task.durationNanos;
+  }
+
+  private static long[] toLongArray(List<Long> list) {
+    long[] array = new long[list.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = list.get(i);
+    }
+    return array;
+  }
+
+  private static int[] toIntArray(List<Integer> list) {
+    int[] array = new int[list.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = list.get(i);
+    }
+    return array;
+  }
+}
@@ -0,0 +1,305 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static com.google.devtools.build.lib.profiler.ProfilerTask.TASK_COUNT;
+
+import com.google.common.io.CountingOutputStream;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.util.VarInt;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Writes profile records in the compact profile format, which can be read back without loading
+ * the whole file by {@link CompactProfileReader}.
+ *
+ * <p>The file starts with an uncompressed header (magic, version, comment and the names of the
+ * {@link ProfilerTask} types). It is followed by independently deflated blocks of task records
+ * and of descriptions (the string table), which are written as soon as they are full, so memory
+ * use does not grow with the size of the profile. {@link #close} appends the index: the offsets
+ * of all blocks, and for each thread and each task type the number of its tasks and the blocks
+ * that contain them. A fixed size footer pointing to the index ends the file.
+ *
+ * <p>Task block and string block layout: kind byte, item count, uncompressed and compressed
+ * length (all ints), followed by the deflated data. A task record consists of the thread id, task
+ * id, parent id, start time, duration and description index as var-ints, the type ordinal byte,
+ * and the length of the aggregated statistics followed by the statistics in the format used by
+ * {@link ProfileInfo}. A string is its UTF-8 length as a var-int followed by its bytes.
+ *
+ * <p>This class is not thread-safe.
+ */
+final class CompactProfileWriter {
+  static final int MAGIC = 0x11223345;
+  static final int VERSION = 0x01;
+
+  static final byte TASK_BLOCK = 1;
+  static final byte STRING_BLOCK = 2;
+  static final int BLOCK_HEADER_SIZE = 1 + 4 + 4 + 4;
+  // Footer: offset of the index followed by the magic number.
+  static final int FOOTER_SIZE = 8 + 4;
+
+  // Uncompressed size at which blocks are written out. Large enough for the deflater to find
+  // repetitions between records, small enough to make reading a single block cheap.
+  static final int BLOCK_SIZE = 256 * 1024;
+  private static final int MAX_RECORD_SIZE =
+      6 * VarInt.MAX_VARLONG_SIZE + 1 + TASK_COUNT * (1 + VarInt.MAX_VARINT_SIZE
+          + VarInt.MAX_VARLONG_SIZE);
+
+  /** Index of the tasks of one thread or of one task type. */
+  private static final class TaskIndex {
+    long taskCount;
+    long totalDuration;
+    final List<Integer> blocks = new ArrayList<>();
+  }
+
+  private final CountingOutputStream counter;
+  private final DataOutputStream out;
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+  private byte[] compressed = new byte[BLOCK_SIZE];
+
+  private final ByteBuffer taskBlock = ByteBuffer.allocate(BLOCK_SIZE + MAX_RECORD_SIZE);
+  private int taskBlockCount = 0;
+  private final Set<Long> taskBlockThreads = new HashSet<>();
+  private final BitSet taskBlockTypes = new BitSet(TASK_COUNT);
+
+  private final ByteArrayOutputStream stringBlock = new ByteArrayOutputStream(BLOCK_SIZE);
+  private final ByteBuffer stringLength = ByteBuffer.allocate(VarInt.MAX_VARINT_SIZE);
+  private int stringCount = 0;
+  private int flushedStringCount = 0;
+
+  private final List<Long> taskBlockOffsets = new ArrayList<>();
+  private final List<Integer> taskBlockSizes = new ArrayList<>();
+  private final List<Long> stringBlockOffsets = new ArrayList<>();
+  private final List<Integer> stringBlockFirstIndices = new ArrayList<>();
+  private final Map<Long, TaskIndex> threadIndex = new LinkedHashMap<>();
+  private final TaskIndex[] typeIndex = new TaskIndex[TASK_COUNT];
+  private long taskCount = 0;
+
+  /**
+   * Writes the header of a new profile to the given stream, which is closed by {@link #close}.
+   */
+  CompactProfileWriter(OutputStream stream, String comment) throws IOException {
+    counter = new CountingOutputStream(new BufferedOutputStream(stream, 262144));
+    out = new DataOutputStream(counter);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeUTF(comment);
+    // As in the old format, types are referred to by their ordinal() value.
+    out.writeInt(TASK_COUNT);
+    for (ProfilerTask type : ProfilerTask.values()) {
+      out.writeUTF(type.toString());
+      typeIndex[type.ordinal()] = new TaskIndex();
+    }
+  }
+
+  /**
+   * Adds the next description to the string table. Descriptions are referred to by the order in
+   * which they were added, starting at 0.
+   */
+  int writeDescription(String description) throws IOException {
+    byte[] bytes = description.getBytes(StandardCharsets.UTF_8);
+    stringLength.clear();
+    VarInt.putVarInt(bytes.length, stringLength);
+    stringBlock.write(stringLength.array(), 0, stringLength.position());
+    stringBlock.write(bytes);
+    stringCount++;
+    if (stringBlock.size() >= BLOCK_SIZE) {
+      flushStringBlock();
+    }
+    return stringCount - 1;
+  }
+
+  /**
+   * Adds a task record. {@code counts} and {@code durations} are the aggregated statistics of the
+   * task's immediate subtasks, indexed by {@link ProfilerTask#ordinal}, or null if there are none.
+   */
+  void writeTask(long threadId, int id, int parentId, long startTime, long duration,
+      int descIndex, ProfilerTask type, int[] counts, long[] durations) throws IOException {
+    Preconditions.checkArgument(descIndex < stringCount, "Unknown description %s", descIndex);
+    VarInt.putVarLong(threadId, taskBlock);
+    VarInt.putVarInt(id, taskBlock);
+    VarInt.putVarInt(parentId, taskBlock);
+    VarInt.putVarLong(startTime, taskBlock);
+    VarInt.putVarLong(duration, taskBlock);
+    VarInt.putVarInt(descIndex, taskBlock);
+    taskBlock.put((byte) type.ordinal());
+
+    int statsStart = taskBlock.position();
+    taskBlock.put((byte) 0); // Placeholder for the length of the statistics.
+    if (counts != null) {
+      for (int i = 0; i < TASK_COUNT; i++) {
+        if (counts[i] > 0) {
+          taskBlock.put((byte) i);
+          VarInt.putVarInt(counts[i], taskBlock);
+          VarInt.putVarLong(durations[i], taskBlock);
+        }
+      }
+    }
+    int statsLength = taskBlock.position() - statsStart - 1;
+    if (statsLength > 0) {
+      // Stats rarely need a multi-byte length; move them when they do.
+      int lengthSize = VarInt.varIntSize(statsLength);
+      if (lengthSize > 1) {
+        System.arraycopy(taskBlock.array(), statsStart + 1, taskBlock.array(),
+            statsStart + lengthSize, statsLength);
+      }
+      taskBlock.position(statsStart);
+      VarInt.putVarInt(statsLength, taskBlock);
+      taskBlock.position(statsStart + lengthSize + statsLength);
+    }
+
+    taskCount++;
+    taskBlockCount++;
+    taskBlockThreads.add(threadId);
+    taskBlockTypes.set(type.ordinal());
+    TaskIndex thread = threadIndex.get(threadId);
+    if (thread == null) {
+      thread = new TaskIndex();
+      threadIndex.put(threadId, thread);
+    }
+    thread.taskCount++;
+    thread.totalDuration += duration;
+    typeIndex[type.ordinal()].taskCount++;
+    typeIndex[type.ordinal()].totalDuration += duration;
+    if (taskBlock.position() >= BLOCK_SIZE) {
+      flushTaskBlock();
+    }
+  }
+
+  /**
+   * Writes the remaining blocks and the index, and closes the underlying stream.
+   */
+  void close() throws IOException {
+    try {
+      flushTaskBlock();
+      flushStringBlock();
+
+      long indexOffset = counter.getCount();
+      out.writeLong(taskCount);
+      out.writeInt(taskBlockOffsets.size());
+      for (int i = 0; i < taskBlockOffsets.size(); i++) {
+        out.writeLong(taskBlockOffsets.get(i));
+        out.writeInt(taskBlockSizes.get(i));
+      }
+      out.writeInt(stringCount);
+      out.writeInt(stringBlockOffsets.size());
+      for (int i = 0; i < stringBlockOffsets.size(); i++) {
+        out.writeLong(stringBlockOffsets.get(i));
+        out.writeInt(stringBlockFirstIndices.get(i));
+      }
+      out.writeInt(threadIndex.size());
+      for (Map.Entry<Long, TaskIndex> entry : threadIndex.entrySet()) {
+        out.writeLong(entry.getKey());
+        writeTaskIndex(entry.getValue());
+      }
+      for (TaskIndex index : typeIndex) {
+        writeTaskIndex(index);
+      }
+      out.writeLong(indexOffset);
+      out.writeInt(MAGIC);
+    } finally {
+      deflater.end();
+      out.close();
+    }
+  }
+
+  /**
+   * Closes the underlying stream without writing the index, after an error.
+   */
+  void abandon() throws IOException {
+    deflater.end();
+    out.close();
+  }
+
+  private void writeTaskIndex(TaskIndex index) throws IOException {
+    out.writeLong(index.taskCount);
+    out.writeLong(index.totalDuration);
+    out.writeInt(index.blocks.size());
+    for (int block : index.blocks) {
+      out.writeInt(block);
+    }
+  }
+
+  private void flushTaskBlock() throws IOException {
+    if (taskBlockCount == 0) {
+      return;
+    }
+    // Write the descriptions first, so that a truncated profile has the descriptions of all the
+    // tasks it still contains.
+    flushStringBlock();
+    int block = taskBlockOffsets.size();
+    taskBlockOffsets.add(counter.getCount());
+    taskBlockSizes.add(taskBlockCount);
+    for (long threadId : taskBlockThreads) {
+      threadIndex.get(threadId).blocks.add(block);
+    }
+    for (int type = taskBlockTypes.nextSetBit(0); type >= 0;
+        type = taskBlockTypes.nextSetBit(type + 1)) {
+      typeIndex[type].blocks.add(block);
+    }
+    writeBlock(TASK_BLOCK, taskBlockCount, taskBlock.array(), taskBlock.position());
+    taskBlock.clear();
+    taskBlockCount = 0;
+    taskBlockThreads.clear();
+    taskBlockTypes.clear();
+  }
+
+  private void flushStringBlock() throws IOException {
+    int count = stringCount - flushedStringCount;
+    if (count == 0) {
+      return;
+    }
+    stringBlockOffsets.add(counter.getCount());
+    stringBlockFirstIndices.add(flushedStringCount);
+    writeBlock(STRING_BLOCK, count, stringBlock.toByteArray(), stringBlock.size());
+    stringBlock.reset();
+    flushedStringCount = stringCount;
+  }
+
+  private void writeBlock(byte kind, int count, byte[] data, int length) throws IOException {
+    deflater.reset();
+    deflater.setInput(data, 0, length);
+    deflater.finish();
+    int compressedLength = 0;
+    while (!deflater.finished()) {
+      if (compressedLength == compressed.length) {
+        byte[] larger = new byte[compressed.length * 2];
+        System.arraycopy(compressed, 0, larger, 0, compressedLength);
+        compressed = larger;
+      }
+      compressedLength +=
+          deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+    }
+    out.writeByte(kind);
+    out.writeInt(count);
+    out.writeInt(length);
+    out.writeInt(compressedLength);
+    out.write(compressed, 0, compressedLength);
+  }
+}
@@ -985,6 +985,12 @@ public class ProfileInfo {
    */
   public static ProfileInfo loadProfile(Path profileFile)
       throws IOException {
+    if (CompactProfileReader.isCompactProfile(profileFile)) {
+      try (CompactProfileReader reader = CompactProfileReader.open(profileFile)) {
+        return loadProfile(reader);
+      }
+    }
+
     // It is extremely important to wrap InflaterInputStream using
     // BufferedInputStream because majority of reads would be done using
     // readInt()/readLong() methods and InflaterInputStream is very inefficient
@@ -1075,6 +1081,26 @@ public class ProfileInfo {
     return info;
   }
 
+  /**
+   * Loads all tasks of a profile in the compact format.
+   */
+  private static ProfileInfo loadProfile(CompactProfileReader reader) throws IOException {
+    final ProfileInfo info = new ProfileInfo(reader.getComment());
+    info.corruptedOrIncomplete = reader.isCorruptedOrIncomplete();
+    for (int i = 0; i < reader.getDescriptionCount(); i++) {
+      info.descriptionList.add(reader.getDescription(i));
+    }
+    reader.readTasks(new CompactProfileReader.TaskVisitor() {
+      @Override
+      public void visit(CompactProfileReader.TaskRecord task) {
+        info.addTask(info.new Task(task.getThreadId(), task.getId(), task.getParentId(),
+            task.getStartTime(), task.getDurationNanos(), task.getType(),
+            task.getDescriptionIndex(), new CompactStatistics(task.copyStats())));
+      }
+    });
+    return info;
+  }
+
   /**
    * Loads and parses Blaze profile file, and reports what it is doing.
    *
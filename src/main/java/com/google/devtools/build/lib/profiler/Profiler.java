@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.profiler;
 
 import static com.google.devtools.build.lib.profiler.ProfilerTask.TASK_COUNT;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
@@ -28,9 +29,11 @@ import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -52,7 +55,8 @@ import java.util.zip.DeflaterOutputStream;
  * obtain reference.
  * <p>
  * Internally, profiler uses two data structures - ThreadLocal task stack to track
- * nested tasks and single ConcurrentLinkedQueue to gather all completed tasks.
+ * nested tasks and ThreadLocal ring buffers to gather completed tasks, which the
+ * save thread drains in batches.
  * <p>
  * Also, due to the nature of the provided functionality (instrumentation of all
  * Blaze components), build.lib.profiler package will be used by almost every
@@ -131,6 +135,14 @@ public final class Profiler {
   // separate thread every SAVE_DELAY ms.
   private static final int SAVE_DELAY = 2000; // ms
 
+  // Number of completed tasks each thread can buffer before they are saved. Both must be powers
+  // of two. A thread that fills its buffer before the next save saves it by itself, and doubles
+  // the buffer unless it is at its maximum capacity already.
+  private static final int INITIAL_BUFFER_CAPACITY = 32;
+  private static final int MAX_BUFFER_CAPACITY = 2048;
+
+  private static final ProfilerTask[] TASK_TYPES = ProfilerTask.values();
+
   /**
    * The profiler (a static singleton instance). Inactive by default.
    */
@@ -147,10 +159,10 @@ public final class Profiler {
     final Object object;
     ProfilerTask type;
 
-    private SlowTask(TaskData taskData) {
-      this.durationNanos = taskData.duration;
-      this.object = taskData.object;
-      this.type = taskData.type;
+    private SlowTask(long durationNanos, ProfilerTask type, Object object) {
+      this.durationNanos = durationNanos;
+      this.object = object;
+      this.type = type;
     }
 
     @Override
@@ -284,6 +296,77 @@ public final class Profiler {
     }
   }
 
+  /**
+   * Completed tasks of a single thread that have not been saved yet.
+   *
+   * <p>This is a single-producer, single-consumer ring buffer: only the owning thread adds tasks
+   * (see {@link Profiler#record}), and only {@link Profiler#drain} removes them, while holding the
+   * profiler lock. Tasks are encoded into arrays instead of {@link TaskData} objects, so recording
+   * a task neither allocates nor contends with other threads. The arrays start small, and are only
+   * replaced by larger ones while the buffer is empty and the profiler lock is held.
+   */
+  //@ThreadSafe - commented out to avoid cyclic dependency with lib.util.
+  private static final class TaskBuffer {
+    // Each task takes RECORD_SIZE slots: task id and parent id, start time, duration and type.
+    static final int RECORD_SIZE = 4;
+
+    final long threadId = Thread.currentThread().getId();
+    // Lets the buffer be dropped once its thread has died and its tasks are saved.
+    final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+    long[] records;
+    Object[] objects;
+    // Aggregated subtask stats, only present for tasks that had subtasks.
+    int[][] counts;
+    long[][] durations;
+
+    // Number of tasks ever removed and added. Only the consumer writes head, only the producer
+    // writes tail; the volatile writes publish the slots to the other side.
+    volatile long head = 0;
+    volatile long tail = 0;
+
+    TaskBuffer() {
+      allocate(INITIAL_BUFFER_CAPACITY);
+    }
+
+    int capacity() {
+      return objects.length;
+    }
+
+    private void allocate(int capacity) {
+      records = new long[capacity * RECORD_SIZE];
+      objects = new Object[capacity];
+      counts = new int[capacity][];
+      durations = new long[capacity][];
+    }
+
+    /** Doubles the capacity of the buffer, which must be empty, up to the maximum capacity. */
+    void grow() {
+      Preconditions.checkState(head == tail);
+      if (capacity() < MAX_BUFFER_CAPACITY) {
+        allocate(capacity() * 2);
+      }
+    }
+
+    boolean isOwnerDead() {
+      Thread thread = owner.get();
+      return thread == null || !thread.isAlive();
+    }
+  }
+
+  /**
+   * Provides the {@link TaskBuffer} of each thread, registering it for saving on first use.
+   */
+  private static final class TaskBufferLocal extends ThreadLocal<TaskBuffer> {
+    private final Queue<TaskBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    @Override
+    protected TaskBuffer initialValue() {
+      TaskBuffer buffer = new TaskBuffer();
+      buffers.add(buffer);
+      return buffer;
+    }
+  }
+
   private static String toDescription(Object object) {
     return (object instanceof Describable)
         ? ((Describable) object).describe()
@@ -331,71 +414,40 @@ public final class Profiler {
   /**
    * Aggregator class that keeps track of the slowest tasks of the specified type.
    *
-   * <p><code>priorityQueues</p> is sharded so that all threads need not compete for the same
-   * lock if they do the same operation at the same time. Access to the individual queues is
-   * synchronized on the queue objects themselves.
+   * <p>Tasks are only added while saving the task buffers, so all access happens with the
+   * profiler lock held.
    */
+  //@ThreadCompatible - commented out to avoid cyclic dependency with lib.util.
   private final class SlowestTaskAggregator {
-    private static final int SHARDS = 16;
     private final int size;
-
-    @SuppressWarnings({"unchecked", "rawtypes"})
-    private final PriorityQueue<SlowTask>[] priorityQueues = new PriorityQueue[SHARDS];
+    private final PriorityQueue<SlowTask> priorityQueue;
 
     SlowestTaskAggregator(int size) {
       this.size = size;
-
-      for (int i = 0; i < SHARDS; i++) {
-        priorityQueues[i] = new PriorityQueue<>(size + 1);
-      }
+      this.priorityQueue = new PriorityQueue<>(size + 1);
     }
 
-    // @ThreadSafe
-    void add(TaskData taskData) {
-      PriorityQueue<SlowTask> queue =
-          priorityQueues[(int) (Thread.currentThread().getId() % SHARDS)];
-      synchronized (queue) {
-        if (queue.size() == size) {
-          // Optimization: check if we are faster than the fastest element. If we are, we would
-          // be the ones to fall off the end of the queue, therefore, we can safely return early.
-          if (queue.peek().getDurationNanos() > taskData.duration) {
-            return;
-          }
-
-          queue.add(new SlowTask(taskData));
-          queue.remove();
-        } else {
-          queue.add(new SlowTask(taskData));
+    void add(long duration, ProfilerTask type, Object object) {
+      if (priorityQueue.size() == size) {
+        // Optimization: check if we are faster than the fastest element. If we are, we would
+        // be the ones to fall off the end of the queue, therefore, we can safely return early.
+        if (priorityQueue.peek().getDurationNanos() > duration) {
+          return;
         }
+
+        priorityQueue.add(new SlowTask(duration, type, object));
+        priorityQueue.remove();
+      } else {
+        priorityQueue.add(new SlowTask(duration, type, object));
       }
     }
 
-    // @ThreadSafe
     void clear() {
-      for (int i = 0; i < SHARDS; i++) {
-        PriorityQueue<SlowTask> queue = priorityQueues[i];
-        synchronized (queue) {
-          queue.clear();
-        }
-      }
+      priorityQueue.clear();
     }
 
-    // @ThreadSafe
     Iterable<SlowTask> getSlowestTasks() {
-      // This is slow, but since it only happens during the end of the invocation, it's OK
-      PriorityQueue<SlowTask> merged = new PriorityQueue<>(size * SHARDS);
-      for (int i = 0; i < SHARDS; i++) {
-        PriorityQueue<SlowTask> queue = priorityQueues[i];
-        synchronized (queue) {
-          merged.addAll(queue);
-        }
-      }
-
-      while (merged.size() > size) {
-        merged.remove();
-      }
-
-      return merged;
+      return ImmutableList.copyOf(priorityQueue);
     }
   }
 
@@ -445,6 +497,20 @@ public final class Profiler {
     abstract boolean isProfiling(ProfilerTask type);
   }
 
+  /**
+   * The file format in which the profile is written.
+   */
+  public enum Format {
+    /** A single deflated stream of records, which can only be read as a whole. */
+    DEFLATED,
+
+    /**
+     * Block-compressed records with a trailing index, see {@link CompactProfileWriter}. Can be
+     * streamed or read in parts with {@link CompactProfileReader}.
+     */
+    COMPACT
+  }
+
   private Clock clock;
   private ProfiledTaskKinds profiledTaskKinds;
   private volatile long profileStartTime = 0L;
@@ -452,11 +518,13 @@ public final class Profiler {
   private AtomicInteger taskId = new AtomicInteger();
 
   private TaskStack taskStack;
-  private Queue<TaskData> taskQueue;
+  private TaskBufferLocal taskBuffers;
   private DataOutputStream out;
+  private CompactProfileWriter compactWriter;
   private Timer timer;
   private IOException saveException;
   private ObjectDescriber describer;
+  private ByteBuffer sink;
   @SuppressWarnings("unchecked")
   private final SlowestTaskAggregator[] slowestTasks =
   new SlowestTaskAggregator[ProfilerTask.values().length];
@@ -524,12 +592,24 @@ public final class Profiler {
    * @param clock a {@code BlazeClock.instance()}
    * @param execStartTimeNanos execution start time in nanos obtained from {@code clock.nanoTime()}
    */
-  public synchronized void start(ProfiledTaskKinds profiledTaskKinds, OutputStream stream,
+  public void start(ProfiledTaskKinds profiledTaskKinds, OutputStream stream,
       String comment, boolean recordAllDurations, Clock clock, long execStartTimeNanos)
       throws IOException {
+    start(profiledTaskKinds, stream, Format.DEFLATED, comment, recordAllDurations, clock,
+        execStartTimeNanos);
+  }
+
+  /**
+   * Enable profiling, writing the profile in the given format.
+   *
+   * @see #start(ProfiledTaskKinds, OutputStream, String, boolean, Clock, long)
+   */
+  public synchronized void start(ProfiledTaskKinds profiledTaskKinds, OutputStream stream,
+      Format format, String comment, boolean recordAllDurations, Clock clock,
+      long execStartTimeNanos) throws IOException {
     Preconditions.checkState(!isActive(), "Profiler already active");
     taskStack = new TaskStack();
-    taskQueue = new ConcurrentLinkedQueue<>();
+    taskBuffers = new TaskBufferLocal();
     describer = new ObjectDescriber();
 
     this.profiledTaskKinds = profiledTaskKinds;
@@ -544,8 +624,14 @@ public final class Profiler {
     taskId.set(0);
     this.recordAllDurations = recordAllDurations;
     this.saveException = null;
-    if (stream != null) {
-      this.timer = new Timer("ProfilerTimer", true);
+    this.out = null;
+    this.compactWriter = null;
+    if (stream != null && format == Format.COMPACT) {
+      // The compact writer buffers and compresses whole blocks itself.
+      this.compactWriter = new CompactProfileWriter(stream, comment);
+    } else if (stream != null) {
+      // Allocate the sink once to avoid GC
+      this.sink = ByteBuffer.allocate(1024);
       // Wrapping deflater stream in the buffered stream proved to reduce CPU consumption caused by
       // the save() method. Values for buffer sizes were chosen by running small amount of tests
       // and identifying point of diminishing returns - but I have not really tried to optimize
@@ -562,20 +648,20 @@ public final class Profiler {
       for (ProfilerTask type : ProfilerTask.values()) {
         this.out.writeUTF(type.toString());
       }
-
-      // Start save thread
-      timer.schedule(new TimerTask() {
-        @Override public void run() { save(); }
-      }, SAVE_DELAY, SAVE_DELAY);
-    } else {
-      this.out = null;
     }
 
+    // Start save thread. It runs even if no profile is written, to collect the slowest tasks.
+    this.timer = new Timer("ProfilerTimer", true);
+    timer.schedule(new TimerTask() {
+      @Override public void run() { save(); }
+    }, SAVE_DELAY, SAVE_DELAY);
+
     // activate profiler
     profileStartTime = execStartTimeNanos;
   }
 
   public synchronized Iterable<SlowTask> getSlowestTasks() {
+    save();
     List<Iterable<SlowTask>> slowestTasksByType = new ArrayList<>();
 
     for (SlowestTaskAggregator aggregator : slowestTasks) {
@@ -618,6 +704,10 @@ public final class Profiler {
       out.close();
       out = null;
     }
+    if (compactWriter != null) {
+      compactWriter.close();
+      compactWriter = null;
+    }
   }
 
   /**
@@ -631,64 +721,152 @@ public final class Profiler {
     return profiledTaskKinds.isProfiling(type);
   }
 
+  private boolean isWritingProfile() {
+    return out != null || compactWriter != null;
+  }
+
+  /**
+   * Returns the number of threads whose task buffers are kept until the next save.
+   */
+  @VisibleForTesting
+  synchronized int getTaskBufferCount() {
+    return taskBuffers == null ? 0 : taskBuffers.buffers.size();
+  }
+
   /**
-   * Saves all gathered information from taskQueue queue to the file.
+   * Saves all gathered information from the task buffers to the file.
    * Method is invoked internally by the Timer-based thread and at the end of
    * profiling session.
    */
   private synchronized void save() {
-    if (out == null) {
+    if (taskBuffers == null) {
       return;
     }
-    try {
-      // Allocate the sink once to avoid GC
-      ByteBuffer sink = ByteBuffer.allocate(1024);
-      while (!taskQueue.isEmpty()) {
-        sink.clear();
-        TaskData data = taskQueue.poll();
-
-        VarInt.putVarLong(data.threadId, sink);
-        VarInt.putVarInt(data.id, sink);
-        VarInt.putVarInt(data.parentId, sink);
-        VarInt.putVarLong(data.startTime - profileStartTime, sink);
-        VarInt.putVarLong(data.duration, sink);
-
-        // To save space (and improve performance), convert all description
-        // strings to the canonical object and use IdentityHashMap to assign
-        // unique numbers for each string.
-        int descIndex = describer.getDescriptionIndex(data.object);
-        VarInt.putVarInt(descIndex + 1, sink); // Add 1 to avoid encoding negative values.
-
-        // Save types using their ordinal() value
-        sink.put((byte) data.type.ordinal());
-
-        // Save aggregated data stats.
-        if (data.counts != null) {
-          for (int i = 0; i < TASK_COUNT; i++) {
-            if (data.counts[i] > 0) {
-              sink.put((byte) i); // aggregated type ordinal value
-              VarInt.putVarInt(data.counts[i], sink);
-              VarInt.putVarLong(data.durations[i], sink);
-            }
-          }
+    for (Iterator<TaskBuffer> it = taskBuffers.buffers.iterator(); it.hasNext(); ) {
+      TaskBuffer buffer = it.next();
+      // Check for a dead thread first, so that no task can be added after the buffer is drained.
+      boolean ownerDead = buffer.isOwnerDead();
+      drain(buffer);
+      if (ownerDead) {
+        it.remove();
+      }
+    }
+    if (out != null) {
+      try {
+        this.out.flush();
+      } catch (IOException e) {
+        handleSaveException(e);
+      }
+    }
+  }
+
+  /**
+   * Removes all tasks from the given buffer, writing them to the profile and passing the slow
+   * ones on to the slowest task aggregators.
+   */
+  private synchronized void drain(TaskBuffer buffer) {
+    long head = buffer.head;
+    long tail = buffer.tail;
+    if (taskBuffers == null) {
+      // Profiling was stopped, drop the tasks.
+      buffer.head = tail;
+      return;
+    }
+    long[] records = buffer.records;
+    int mask = buffer.capacity() - 1;
+    for (; head < tail; head++) {
+      int index = (int) head & mask;
+      int offset = index * TaskBuffer.RECORD_SIZE;
+      long ids = records[offset];
+      long startTime = records[offset + 1];
+      long duration = records[offset + 2];
+      ProfilerTask type = TASK_TYPES[(int) records[offset + 3]];
+      Object object = buffer.objects[index];
+      int[] counts = buffer.counts[index];
+      long[] durations = buffer.durations[index];
+      buffer.objects[index] = null;
+      buffer.counts[index] = null;
+      buffer.durations[index] = null;
+
+      boolean slowEnoughToRecord = wasTaskSlowEnoughToRecord(type, duration);
+      if (isWritingProfile() && (slowEnoughToRecord || counts != null)) {
+        try {
+          writeTask(buffer.threadId, (int) (ids >>> 32), (int) ids, startTime, duration, type,
+              object, counts, durations);
+        } catch (IOException e) {
+          handleSaveException(e);
         }
+      }
+      SlowestTaskAggregator aggregator = slowestTasks[type.ordinal()];
+      if (slowEnoughToRecord && aggregator != null) {
+        aggregator.add(duration, type, object);
+      }
+    }
+    buffer.head = tail;
+  }
 
-        this.out.writeInt(sink.position());
-        this.out.write(sink.array(), 0, sink.position());
-        if (describer.isUnassigned(descIndex)) {
-          this.out.writeUTF(describer.getDescription(data.object));
+  private void writeTask(long threadId, int id, int parentId, long startTime, long duration,
+      ProfilerTask type, Object object, int[] counts, long[] durations) throws IOException {
+    // To save space (and improve performance), convert all description
+    // strings to the canonical object and use IdentityHashMap to assign
+    // unique numbers for each string.
+    int descIndex = describer.getDescriptionIndex(object);
+    if (compactWriter != null) {
+      if (describer.isUnassigned(descIndex)) {
+        descIndex = compactWriter.writeDescription(describer.getDescription(object));
+      }
+      compactWriter.writeTask(threadId, id, parentId, startTime - profileStartTime, duration,
+          descIndex, type, counts, durations);
+      return;
+    }
+
+    sink.clear();
+    VarInt.putVarLong(threadId, sink);
+    VarInt.putVarInt(id, sink);
+    VarInt.putVarInt(parentId, sink);
+    VarInt.putVarLong(startTime - profileStartTime, sink);
+    VarInt.putVarLong(duration, sink);
+    VarInt.putVarInt(descIndex + 1, sink); // Add 1 to avoid encoding negative values.
+
+    // Save types using their ordinal() value
+    sink.put((byte) type.ordinal());
+
+    // Save aggregated data stats.
+    if (counts != null) {
+      for (int i = 0; i < TASK_COUNT; i++) {
+        if (counts[i] > 0) {
+          sink.put((byte) i); // aggregated type ordinal value
+          VarInt.putVarInt(counts[i], sink);
+          VarInt.putVarLong(durations[i], sink);
         }
       }
-      this.out.flush();
-    } catch (IOException e) {
-      saveException = e;
-      clear();
-      try {
+    }
+
+    this.out.writeInt(sink.position());
+    this.out.write(sink.array(), 0, sink.position());
+    if (describer.isUnassigned(descIndex)) {
+      this.out.writeUTF(describer.getDescription(object));
+    }
+  }
+
+  /**
+   * Records the first error while writing the profile and stops writing it.
+   */
+  private void handleSaveException(IOException e) {
+    saveException = e;
+    try {
+      if (out != null) {
         out.close();
-      } catch (IOException e2) {
-        // ignore it
       }
+      if (compactWriter != null) {
+        compactWriter.abandon();
+      }
+    } catch (IOException e2) {
+      // ignore it
     }
+    out = null;
+    compactWriter = null;
+    clear();
   }
 
   private synchronized void clear() {
@@ -699,8 +877,9 @@ public final class Profiler {
       timer = null;
     }
     taskStack = null;
-    taskQueue = null;
+    taskBuffers = null;
     describer = null;
+    sink = null;
 
     // Note that slowest task aggregator are not cleared here because clearing happens
     // periodically over the course of a command invocation.
@@ -714,6 +893,34 @@ public final class Profiler {
     return (recordAllDurations || duration >= type.minDuration);
   }
 
+  /**
+   * Adds a completed task to the buffer of the current thread.
+   */
+  private void record(int id, int parentId, long startTime, long duration, ProfilerTask type,
+      Object object, int[] counts, long[] durations) {
+    TaskBuffer buffer = taskBuffers.get();
+    long tail = buffer.tail;
+    if (tail - buffer.head == buffer.capacity()) {
+      // The save thread is falling behind, save the tasks of this thread right away, and make
+      // room for more of them until the next save.
+      synchronized (this) {
+        drain(buffer);
+        buffer.grow();
+      }
+    }
+    int index = (int) tail & (buffer.capacity() - 1);
+    int offset = index * TaskBuffer.RECORD_SIZE;
+    long[] records = buffer.records;
+    records[offset] = ((long) id << 32) | (parentId & 0xffffffffL);
+    records[offset + 1] = startTime;
+    records[offset + 2] = duration;
+    records[offset + 3] = type.ordinal();
+    buffer.objects[index] = object;
+    buffer.counts[index] = counts;
+    buffer.durations[index] = durations;
+    buffer.tail = tail + 1;
+  }
+
   /**
    * Adds task directly to the main queue bypassing task stack. Used for simple
    * tasks that are known to not have any subtasks.
@@ -737,18 +944,10 @@ public final class Profiler {
     if (parent != null) {
       parent.aggregateChild(type, duration);
     }
-    if (wasTaskSlowEnoughToRecord(type, duration)) {
-      TaskData data = taskStack.create(startTime, type, object);
-      data.duration = duration;
-      if (out != null) {
-        taskQueue.add(data);
-      }
-
-      SlowestTaskAggregator aggregator = slowestTasks[type.ordinal()];
-
-      if (aggregator != null) {
-        aggregator.add(data);
-      }
+    if (wasTaskSlowEnoughToRecord(type, duration)
+        && (isWritingProfile() || slowestTasks[type.ordinal()] != null)) {
+      record(taskId.incrementAndGet(), parent == null ? 0 : parent.id, startTime, duration, type,
+          object, null, null);
     }
   }
 
@@ -837,6 +1036,7 @@ public final class Profiler {
     // enforce this, and Blaze only works because we happen not to add child tasks to those parent
     // tasks that have a minimum duration.
     Preconditions.checkNotNull(object);
+    SamplingProfiler.instance().push(type);
     if (isActive() && isProfiling(type)) {
       taskStack.push(type, object);
     }
@@ -850,6 +1050,7 @@ public final class Profiler {
    * @param type task type.
    */
   public void completeTask(ProfilerTask type) {
+    SamplingProfiler.instance().pop();
     if (isActive() && isProfiling(type)) {
       long endTime = clock.nanoTime();
       TaskData data = taskStack.pop();
@@ -864,16 +1065,10 @@ public final class Profiler {
         taskStack.peek().aggregateChild(data.type, data.duration);
       }
       boolean shouldRecordTask = wasTaskSlowEnoughToRecord(type, data.duration);
-      if (out != null && (shouldRecordTask || data.counts != null)) {
-        taskQueue.add(data);
-      }
-
-      if (shouldRecordTask) {
-        SlowestTaskAggregator aggregator = slowestTasks[type.ordinal()];
-
-        if (aggregator != null) {
-          aggregator.add(data);
-        }
+      if ((isWritingProfile() && (shouldRecordTask || data.counts != null))
+          || (shouldRecordTask && slowestTasks[type.ordinal()] != null)) {
+        record(data.id, data.parentId, data.startTime, data.duration, type, data.object,
+            data.counts, data.durations);
       }
     }
   }
@@ -883,6 +1078,7 @@ public final class Profiler {
    */
   public void markPhase(ProfilePhase phase) {
     MemoryProfiler.instance().markPhase(phase);
+    SamplingProfiler.instance().markPhase(phase);
     if (isActive() && isProfiling(ProfilerTask.PHASE)) {
       Preconditions.checkState(taskStack.isEmpty(), "Phase tasks must not be nested");
       logEvent(ProfilerTask.PHASE, phase.description);
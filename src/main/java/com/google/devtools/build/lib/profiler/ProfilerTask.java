@@ -90,6 +90,12 @@ public enum ProfilerTask {
   SKYLARK_USER_FN("Skylark user function call", -1, 0xCC0033, 0),
   SKYLARK_BUILTIN_FN("Skylark builtin function call", -1, 0x990033, 0),
   SKYLARK_USER_COMPILED_FN("Skylark compiled user function call", -1, 0xCC0033, 0),
+  PACKAGE_GLOBS("package loading blocked on globs", -1, 0x999966, 30),
+  ACTION_GRAPH_INDEX("action graph index update", -1, 0x3366CC, 0),
+  ARTIFACT_PREFIX_CONFLICTS("artifact prefix conflict check", -1, 0x996633, 0),
+  ACTION_OUTPUT_COLLECTION("action output collection", -1, 0xCC99FF, 0),
+  // An event per local process, described by the mnemonic of the action and the ResourceUsage.
+  SPAWN_RESOURCES("local process resource usage", -1, 0x663366, 0),
   UNKNOWN("Unknown event", -1, 0x339966, 0);
 
   // Size of the ProfilerTask value space.
@@ -0,0 +1,156 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+/**
+ * Resources used by local processes: CPU time, peak memory and I/O.
+ *
+ * <p>The text form, as written by process-wrapper and stored in {@link
+ * ProfilerTask#SPAWN_RESOURCES} profile events, is a whitespace-separated list of
+ * {@code key=value} pairs, e.g. {@code user_usec=1200 system_usec=300 max_rss_kb=5120
+ * read_bytes=4096 write_bytes=0}. Unknown keys are ignored, missing keys count as 0.
+ */
+//@Immutable - commented out to avoid cyclic dependency with lib.util package
+public final class ResourceUsage {
+
+  public static final ResourceUsage NONE = new ResourceUsage(0, 0, 0, 0, 0);
+
+  private final long userTimeMicros;
+  private final long systemTimeMicros;
+  private final long maxRssKb;
+  private final long readBytes;
+  private final long writeBytes;
+
+  public ResourceUsage(long userTimeMicros, long systemTimeMicros, long maxRssKb,
+      long readBytes, long writeBytes) {
+    this.userTimeMicros = userTimeMicros;
+    this.systemTimeMicros = systemTimeMicros;
+    this.maxRssKb = maxRssKb;
+    this.readBytes = readBytes;
+    this.writeBytes = writeBytes;
+  }
+
+  public long getUserTimeMicros() {
+    return userTimeMicros;
+  }
+
+  public long getSystemTimeMicros() {
+    return systemTimeMicros;
+  }
+
+  /** Returns the user and system CPU time. */
+  public long getCpuTimeMicros() {
+    return userTimeMicros + systemTimeMicros;
+  }
+
+  /** Returns the peak resident set size of the largest process. */
+  public long getMaxRssKb() {
+    return maxRssKb;
+  }
+
+  public long getReadBytes() {
+    return readBytes;
+  }
+
+  public long getWriteBytes() {
+    return writeBytes;
+  }
+
+  /**
+   * Returns the resources used by running the processes of this and {@code other}: the sum of
+   * the times and bytes, and the larger of the peak memory.
+   */
+  public ResourceUsage plus(ResourceUsage other) {
+    if (other == NONE) {
+      return this;
+    } else if (this == NONE) {
+      return other;
+    }
+    return new ResourceUsage(
+        userTimeMicros + other.userTimeMicros,
+        systemTimeMicros + other.systemTimeMicros,
+        Math.max(maxRssKb, other.maxRssKb),
+        readBytes + other.readBytes,
+        writeBytes + other.writeBytes);
+  }
+
+  /**
+   * Parses the text form of resource usage.
+   *
+   * @throws IllegalArgumentException if a value is not a number
+   */
+  public static ResourceUsage parse(String text) {
+    long userTimeMicros = 0;
+    long systemTimeMicros = 0;
+    long maxRssKb = 0;
+    long readBytes = 0;
+    long writeBytes = 0;
+    for (String pair : text.trim().split("\\s+")) {
+      int separator = pair.indexOf('=');
+      if (separator < 0) {
+        continue;
+      }
+      String key = pair.substring(0, separator);
+      long value = Long.parseLong(pair.substring(separator + 1));
+      switch (key) {
+        case "user_usec":
+          userTimeMicros = value;
+          break;
+        case "system_usec":
+          systemTimeMicros = value;
+          break;
+        case "max_rss_kb":
+          maxRssKb = value;
+          break;
+        case "read_bytes":
+          readBytes = value;
+          break;
+        case "write_bytes":
+          writeBytes = value;
+          break;
+        default:
+          break;
+      }
+    }
+    return new ResourceUsage(userTimeMicros, systemTimeMicros, maxRssKb, readBytes, writeBytes);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof ResourceUsage)) {
+      return false;
+    }
+    ResourceUsage other = (ResourceUsage) o;
+    return userTimeMicros == other.userTimeMicros
+        && systemTimeMicros == other.systemTimeMicros
+        && maxRssKb == other.maxRssKb
+        && readBytes == other.readBytes
+        && writeBytes == other.writeBytes;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (31 * (31 * (31 * (31 * userTimeMicros + systemTimeMicros) + maxRssKb)
+        + readBytes) + writeBytes);
+  }
+
+  @Override
+  public String toString() {
+    return "user_usec=" + userTimeMicros
+        + " system_usec=" + systemTimeMicros
+        + " max_rss_kb=" + maxRssKb
+        + " read_bytes=" + readBytes
+        + " write_bytes=" + writeBytes;
+  }
+}
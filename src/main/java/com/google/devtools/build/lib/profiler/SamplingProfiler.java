@@ -0,0 +1,272 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Blaze sampling profiler.
+ *
+ * <p>Unlike {@link Profiler}, which records every task, the sampling profiler only keeps track of
+ * the {@link ProfilerTask} types each thread is currently executing. A background thread
+ * periodically samples these stacks together with the JVM state of their threads into a fixed-size
+ * ring buffer, which is folded into per-phase counts whenever it is full. The cost per task is a
+ * thread-local array update, and memory use does not grow with the length of the build, so the
+ * sampling profiler can be left on for every build.
+ *
+ * <p>When stopped, the counts are written in the "folded stacks" format understood by flame graph
+ * tools: one line per distinct stack, with the build phase, the task types from the outermost to
+ * the innermost, and the thread state separated by semicolons, followed by the number of samples.
+ * Multiplied with the sampling interval, the number of samples estimates the thread time spent in
+ * that stack.
+ */
+public final class SamplingProfiler {
+
+  private static final SamplingProfiler INSTANCE = new SamplingProfiler();
+
+  public static SamplingProfiler instance() {
+    return INSTANCE;
+  }
+
+  // Number of samples buffered before they are folded into the per-phase counts.
+  private static final int RING_BUFFER_SIZE = 1 << 16;
+
+  // A sample is packed into a long: 3 bits of thread state, 3 bits of stack depth and one byte
+  // for each of the MAX_SAMPLED_DEPTH outermost task types. Deeper tasks are left out.
+  private static final int MAX_SAMPLED_DEPTH = 7;
+  private static final int STATE_BITS = 3;
+  private static final int DEPTH_BITS = 3;
+
+  // Deeper tasks are not tracked, but still counted, so that the stack stays balanced.
+  private static final int MAX_TRACKED_DEPTH = 32;
+
+  private static final Thread.State[] THREAD_STATES = Thread.State.values();
+  private static final ProfilerTask[] TASK_TYPES = ProfilerTask.values();
+
+  /**
+   * The task types a thread is currently executing. Only the owning thread modifies the stack;
+   * the sampler reads it without synchronization, which may produce an occasional torn sample but
+   * never blocks the owner.
+   */
+  private static final class ThreadStack {
+    final Thread thread = Thread.currentThread();
+    final byte[] types = new byte[MAX_TRACKED_DEPTH];
+    volatile int depth;
+    // Sampling session this stack was last used in; stale stacks are reset on first use.
+    int session;
+  }
+
+  private final ThreadLocal<ThreadStack> threadStack =
+      new ThreadLocal<ThreadStack>() {
+        @Override
+        protected ThreadStack initialValue() {
+          return new ThreadStack();
+        }
+      };
+  private final Set<ThreadStack> stacks =
+      Collections.newSetFromMap(new ConcurrentHashMap<ThreadStack, Boolean>());
+
+  private volatile boolean sampling = false;
+  private volatile int session = 0;
+  private volatile ProfilePhase currentPhase = ProfilePhase.INIT;
+
+  // Accessed by the sampler thread while sampling, and by stop() once it has finished.
+  private final long[] ring = new long[RING_BUFFER_SIZE];
+  private final ProfilePhase[] ringPhases = new ProfilePhase[RING_BUFFER_SIZE];
+  private int ringSize = 0;
+  private final EnumMap<ProfilePhase, Map<Long, Long>> counts = new EnumMap<>(ProfilePhase.class);
+
+  private PrintStream summary;
+  private Thread sampler;
+
+  private SamplingProfiler() {}
+
+  /**
+   * Starts sampling every {@code intervalMillis} ms. The summary is written to {@code out} when
+   * the profiler is stopped.
+   */
+  public synchronized void start(OutputStream out, final long intervalMillis) {
+    Preconditions.checkState(!sampling, "Sampling profiler already active");
+    Preconditions.checkArgument(intervalMillis > 0, "Invalid interval %s", intervalMillis);
+    summary = new PrintStream(out);
+    currentPhase = ProfilePhase.INIT;
+    counts.clear();
+    ringSize = 0;
+    stacks.clear();
+    session++;
+    sampling = true;
+    sampler = new Thread("sampling-profiler") {
+      @Override
+      public void run() {
+        while (sampling) {
+          try {
+            Thread.sleep(intervalMillis);
+          } catch (InterruptedException e) {
+            // stop() interrupts the sampler.
+            continue;
+          }
+          sample();
+        }
+      }
+    };
+    sampler.setDaemon(true);
+    sampler.start();
+  }
+
+  /**
+   * Stops sampling and writes the summary.
+   */
+  public synchronized void stop() {
+    if (!sampling) {
+      return;
+    }
+    sampling = false;
+    sampler.interrupt();
+    boolean interrupted = false;
+    while (true) {
+      try {
+        sampler.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    sampler = null;
+    fold();
+    writeSummary();
+    summary.close();
+    summary = null;
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public boolean isActive() {
+    return sampling;
+  }
+
+  public void markPhase(ProfilePhase phase) {
+    currentPhase = phase;
+  }
+
+  /**
+   * Records that the current thread started a task of the given type.
+   */
+  void push(ProfilerTask type) {
+    if (!sampling) {
+      return;
+    }
+    ThreadStack stack = threadStack.get();
+    if (stack.session != session) {
+      stack.session = session;
+      stack.depth = 0;
+      stacks.add(stack);
+    }
+    int depth = stack.depth;
+    if (depth < MAX_TRACKED_DEPTH) {
+      stack.types[depth] = (byte) type.ordinal();
+    }
+    stack.depth = depth + 1;
+  }
+
+  /**
+   * Records that the current thread completed its innermost task.
+   */
+  void pop() {
+    if (!sampling) {
+      return;
+    }
+    ThreadStack stack = threadStack.get();
+    // Tasks started before sampling started are not on the stack.
+    if (stack.session == session && stack.depth > 0) {
+      stack.depth--;
+    }
+  }
+
+  private void sample() {
+    ProfilePhase phase = currentPhase;
+    for (Iterator<ThreadStack> it = stacks.iterator(); it.hasNext(); ) {
+      ThreadStack stack = it.next();
+      Thread.State state = stack.thread.getState();
+      if (state == Thread.State.TERMINATED) {
+        it.remove();
+        continue;
+      }
+      int depth = Math.min(stack.depth, MAX_SAMPLED_DEPTH);
+      if (depth == 0) {
+        continue;
+      }
+      long sample = state.ordinal() | (depth << STATE_BITS);
+      for (int i = 0; i < depth; i++) {
+        sample |= (stack.types[i] & 0xffL) << (STATE_BITS + DEPTH_BITS + 8 * i);
+      }
+      if (ringSize == RING_BUFFER_SIZE) {
+        fold();
+      }
+      ring[ringSize] = sample;
+      ringPhases[ringSize] = phase;
+      ringSize++;
+    }
+  }
+
+  /**
+   * Adds the samples in the ring buffer to the per-phase counts and empties it.
+   */
+  private void fold() {
+    for (int i = 0; i < ringSize; i++) {
+      Map<Long, Long> phaseCounts = counts.get(ringPhases[i]);
+      if (phaseCounts == null) {
+        phaseCounts = new TreeMap<>();
+        counts.put(ringPhases[i], phaseCounts);
+      }
+      Long count = phaseCounts.get(ring[i]);
+      phaseCounts.put(ring[i], count == null ? 1 : count + 1);
+    }
+    ringSize = 0;
+  }
+
+  private void writeSummary() {
+    for (Map.Entry<ProfilePhase, Map<Long, Long>> phase : counts.entrySet()) {
+      for (Map.Entry<Long, Long> entry : phase.getValue().entrySet()) {
+        summary.println(phase.getKey().nick + ";" + describe(entry.getKey())
+            + " " + entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Returns the frames of a packed sample, separated by semicolons.
+   */
+  static String describe(long sample) {
+    StringBuilder builder = new StringBuilder();
+    int depth = (int) ((sample >>> STATE_BITS) & ((1 << DEPTH_BITS) - 1));
+    for (int i = 0; i < depth; i++) {
+      int type = (int) ((sample >>> (STATE_BITS + DEPTH_BITS + 8 * i)) & 0xff);
+      builder.append(type < TASK_TYPES.length ? TASK_TYPES[type] : ProfilerTask.UNKNOWN);
+      builder.append(';');
+    }
+    builder.append(THREAD_STATES[(int) (sample & ((1 << STATE_BITS) - 1))]);
+    return builder.toString();
+  }
+}
@@ -45,6 +45,8 @@ public class AggregatingChartCreator implements ChartCreator {
   /** The tasks in the 'blaze internal' category. */
   private static Set<ProfilerTask> BLAZE_TASKS =
       EnumSet.of(ProfilerTask.CREATE_PACKAGE, ProfilerTask.PACKAGE_VALIDITY_CHECK,
+          ProfilerTask.PACKAGE_GLOBS, ProfilerTask.ACTION_GRAPH_INDEX,
+          ProfilerTask.ARTIFACT_PREFIX_CONFLICTS,
           ProfilerTask.CONFIGURED_TARGET, ProfilerTask.TRANSITIVE_CLOSURE,
           ProfilerTask.EXCEPTION, ProfilerTask.INFO, ProfilerTask.UNKNOWN);
 
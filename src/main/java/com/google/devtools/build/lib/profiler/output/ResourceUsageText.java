@@ -0,0 +1,90 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler.output;
+
+import com.google.common.collect.Ordering;
+import com.google.devtools.build.lib.profiler.ResourceUsage;
+import com.google.devtools.build.lib.profiler.statistics.ResourceUsageStatistics;
+import com.google.devtools.build.lib.profiler.statistics.ResourceUsageStatistics.Entry;
+import com.google.devtools.build.lib.util.StringUtilities;
+import com.google.devtools.build.lib.util.TimeUtilities;
+
+import java.io.PrintStream;
+
+/**
+ * Generate textual output from {@link ResourceUsageStatistics}.
+ */
+public final class ResourceUsageText extends TextPrinter {
+
+  private static final String ROW_FORMAT = "%-24s %9s %11s %11s %11s %9s %9s %9s";
+
+  private final ResourceUsageStatistics stats;
+  private final int limit;
+
+  /**
+   * @param limit the number of actions to print in each ranking
+   */
+  public ResourceUsageText(PrintStream out, ResourceUsageStatistics stats, int limit) {
+    super(out);
+    this.stats = stats;
+    this.limit = limit;
+  }
+
+  public void print() {
+    if (stats.isEmpty()) {
+      printLn("No local process resource usage found. The profile must have been recorded with"
+          + " --profile and actions must have run locally.");
+      return;
+    }
+    Entry total = stats.getTotal();
+    printf("=== LOCAL PROCESS RESOURCE USAGE (%d processes in %d actions) ===%n",
+        total.getProcessCount(), stats.getActionCount());
+    lnPrintf(ROW_FORMAT, "Mnemonic", "Processes", "CPU time", "User", "System", "Max RSS",
+        "Read", "Written");
+    for (Entry mnemonic : stats.getMnemonics(ResourceUsageStatistics.BY_CPU_TIME)) {
+      printRow(mnemonic.mnemonic, mnemonic);
+    }
+    printRow("total", total);
+    printLn();
+
+    printActions("Actions by CPU time", ResourceUsageStatistics.BY_CPU_TIME);
+    printActions("Actions by peak memory", ResourceUsageStatistics.BY_MAX_RSS);
+    printLn();
+  }
+
+  private void printActions(String title, Ordering<Entry> ordering) {
+    printLn();
+    lnPrintf("%s:", title);
+    lnPrintf(ROW_FORMAT + "   %s", "Mnemonic", "Processes", "CPU time", "User", "System",
+        "Max RSS", "Read", "Written", "Description");
+    for (Entry action : stats.getTopActions(ordering, limit)) {
+      printRow(action.mnemonic, action);
+      printf("   %s", action.description);
+    }
+  }
+
+  private void printRow(String name, Entry entry) {
+    ResourceUsage usage = entry.getUsage();
+    lnPrintf(
+        ROW_FORMAT,
+        name,
+        entry.getProcessCount(),
+        TimeUtilities.prettyTime(usage.getCpuTimeMicros() * 1000),
+        TimeUtilities.prettyTime(usage.getUserTimeMicros() * 1000),
+        TimeUtilities.prettyTime(usage.getSystemTimeMicros() * 1000),
+        StringUtilities.prettyPrintBytes(usage.getMaxRssKb() * 1024),
+        StringUtilities.prettyPrintBytes(usage.getReadBytes()),
+        StringUtilities.prettyPrintBytes(usage.getWriteBytes()));
+  }
+}
@@ -0,0 +1,153 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler.statistics;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+import com.google.devtools.build.lib.profiler.ProfileInfo;
+import com.google.devtools.build.lib.profiler.ProfileInfo.Task;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.profiler.ResourceUsage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resources used by the local processes of actions, per action and per mnemonic, computed from
+ * the {@link ProfilerTask#SPAWN_RESOURCES} events of a profile.
+ */
+public final class ResourceUsageStatistics {
+
+  /** The resources used by the processes of an action or of all actions with a mnemonic. */
+  public static final class Entry {
+    public final String description;
+    public final String mnemonic;
+    private ResourceUsage usage = ResourceUsage.NONE;
+    private int processes;
+
+    Entry(String description, String mnemonic) {
+      this.description = description;
+      this.mnemonic = mnemonic;
+    }
+
+    private void add(ResourceUsage processUsage, int processCount) {
+      usage = usage.plus(processUsage);
+      processes += processCount;
+    }
+
+    public ResourceUsage getUsage() {
+      return usage;
+    }
+
+    public int getProcessCount() {
+      return processes;
+    }
+  }
+
+  public static final Ordering<Entry> BY_CPU_TIME = new Ordering<Entry>() {
+    @Override
+    public int compare(Entry a, Entry b) {
+      return Long.compare(a.usage.getCpuTimeMicros(), b.usage.getCpuTimeMicros());
+    }
+  };
+
+  public static final Ordering<Entry> BY_MAX_RSS = new Ordering<Entry>() {
+    @Override
+    public int compare(Entry a, Entry b) {
+      return Long.compare(a.usage.getMaxRssKb(), b.usage.getMaxRssKb());
+    }
+  };
+
+  private final List<Entry> actions = new ArrayList<>();
+  private final Map<String, Entry> mnemonics = new LinkedHashMap<>();
+  private final Entry total = new Entry("total", "");
+
+  /**
+   * Collects the resource usage events below the {@link ProfilerTask#ACTION} tasks of the
+   * profile. The task tree must have been built with {@link ProfileInfo#calculateStats()}.
+   */
+  public ResourceUsageStatistics(ProfileInfo info) {
+    Deque<Task> pending = new ArrayDeque<>();
+    for (Task action : info.allTasksById) {
+      if (action.type != ProfilerTask.ACTION) {
+        continue;
+      }
+      Entry entry = null;
+      pending.push(action);
+      while (!pending.isEmpty()) {
+        Task task = pending.pop();
+        for (Task subtask : task.subtasks) {
+          pending.push(subtask);
+        }
+        if (task.type != ProfilerTask.SPAWN_RESOURCES) {
+          continue;
+        }
+        String description = task.getDescription();
+        int separator = description.indexOf(' ');
+        if (separator < 0) {
+          continue;
+        }
+        String mnemonic = description.substring(0, separator);
+        ResourceUsage usage;
+        try {
+          usage = ResourceUsage.parse(description.substring(separator + 1));
+        } catch (IllegalArgumentException e) {
+          continue;
+        }
+        if (entry == null) {
+          entry = new Entry(action.getDescription(), mnemonic);
+          actions.add(entry);
+        }
+        entry.add(usage, 1);
+      }
+      if (entry != null) {
+        Entry mnemonic = mnemonics.get(entry.mnemonic);
+        if (mnemonic == null) {
+          mnemonic = new Entry(entry.mnemonic, entry.mnemonic);
+          mnemonics.put(entry.mnemonic, mnemonic);
+        }
+        mnemonic.add(entry.usage, entry.processes);
+        total.add(entry.usage, entry.processes);
+      }
+    }
+  }
+
+  public boolean isEmpty() {
+    return actions.isEmpty();
+  }
+
+  /** Returns the resources used by the processes of all actions. */
+  public Entry getTotal() {
+    return total;
+  }
+
+  /** Returns the number of actions that ran local processes. */
+  public int getActionCount() {
+    return actions.size();
+  }
+
+  /** Returns the {@code limit} actions ranking highest in the given order. */
+  public ImmutableList<Entry> getTopActions(Ordering<Entry> ordering, int limit) {
+    return ImmutableList.copyOf(ordering.greatestOf(actions, limit));
+  }
+
+  /** Returns all mnemonics, ranked by the given order. */
+  public ImmutableList<Entry> getMnemonics(Ordering<Entry> ordering) {
+    return ImmutableList.copyOf(ordering.reverse().sortedCopy(mnemonics.values()));
+  }
+}
@@ -16,16 +16,21 @@ package com.google.devtools.build.lib.query2;
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.cmdline.ResolvedTargets;
 import com.google.devtools.build.lib.cmdline.TargetParsingException;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.graph.Digraph;
 import com.google.devtools.build.lib.graph.Node;
+import com.google.devtools.build.lib.packages.AspectDefinition;
 import com.google.devtools.build.lib.packages.Attribute;
+import com.google.devtools.build.lib.packages.DependencyFilter;
+import com.google.devtools.build.lib.packages.NoSuchPackageException;
 import com.google.devtools.build.lib.packages.NoSuchThingException;
 import com.google.devtools.build.lib.packages.OutputFile;
 import com.google.devtools.build.lib.packages.Package;
@@ -38,18 +43,23 @@ import com.google.devtools.build.lib.pkgcache.TargetProvider;
 import com.google.devtools.build.lib.pkgcache.TransitivePackageLoader;
 import com.google.devtools.build.lib.query2.engine.Callback;
 import com.google.devtools.build.lib.query2.engine.DigraphQueryEvalResult;
+import com.google.devtools.build.lib.query2.engine.IndexedQueryEnvironment;
 import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.QueryException;
 import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.build.lib.query2.engine.QueryUtil;
 import com.google.devtools.build.lib.query2.engine.QueryUtil.AbstractUniquifier;
 import com.google.devtools.build.lib.query2.engine.QueryUtil.AggregateAllCallback;
 import com.google.devtools.build.lib.query2.engine.SkyframeRestartQueryException;
 import com.google.devtools.build.lib.query2.engine.Uniquifier;
+import com.google.devtools.build.lib.skyframe.ReverseDepsIndex;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -59,16 +69,21 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.annotation.Nullable;
+
 /**
  * The environment of a Blaze query. Not thread-safe.
  */
-public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
+public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
+    implements IndexedQueryEnvironment<Target> {
 
   private static final int MAX_DEPTH_FULL_SCAN_LIMIT = 20;
   private final Map<String, Set<Target>> resolvedTargetPatterns = new HashMap<>();
   private final TargetPatternEvaluator targetPatternEvaluator;
   private final TransitivePackageLoader transitivePackageLoader;
   private final TargetProvider targetProvider;
+  private final PackageProvider packageProvider;
+  @Nullable private final ReverseDepsIndex reverseDepsIndex;
   private final Digraph<Target> graph = new Digraph<>();
   private final ErrorPrintingTargetEdgeErrorObserver errorObserver;
   private final LabelVisitor labelVisitor;
@@ -86,6 +101,7 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
    *     allowed to be visited during query execution. If it returns false,
    *     the query execution is stopped with an error message.
    * @param settings a set of enabled settings
+   * @param reverseDepsIndex if not null, the index that rdeps() uses, if it can
    */
   BlazeQueryEnvironment(TransitivePackageLoader transitivePackageLoader,
       PackageProvider packageProvider,
@@ -96,11 +112,14 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
       Predicate<Label> labelFilter,
       EventHandler eventHandler,
       Set<Setting> settings,
-      Iterable<QueryFunction> extraFunctions) {
+      Iterable<QueryFunction> extraFunctions,
+      @Nullable ReverseDepsIndex reverseDepsIndex) {
     super(keepGoing, strictScope, labelFilter, eventHandler, settings, extraFunctions);
     this.targetPatternEvaluator = targetPatternEvaluator;
     this.transitivePackageLoader = transitivePackageLoader;
     this.targetProvider = packageProvider;
+    this.packageProvider = packageProvider;
+    this.reverseDepsIndex = reverseDepsIndex;
     this.errorObserver = new ErrorPrintingTargetEdgeErrorObserver(this.eventHandler);
     this.loadingPhaseThreads = loadingPhaseThreads;
     this.labelVisitor = new LabelVisitor(packageProvider, dependencyFilter);
@@ -278,6 +297,158 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     }
   }
 
+  @Override
+  public boolean getRdepsFromIndex(Set<Target> universe, QueryExpression expression,
+      Callback<Target> callback, int depth) throws QueryException, InterruptedException {
+    // The index has all edges, which it cannot filter without loading the rules.
+    if (reverseDepsIndex == null || dependencyFilter != DependencyFilter.ALL_DEPS) {
+      return false;
+    }
+    ReverseDepsIndex.Closure closure = getIndexedTransitiveClosure(universe);
+    if (closure == null) {
+      return false;
+    }
+
+    // Breadth-first search from the argument, as AllRdepsFunction does, but over labels.
+    Set<Label> visited = new LinkedHashSet<>();
+    List<Label> roots = new ArrayList<>();
+    for (Target target : QueryUtil.evalAll(this, expression)) {
+      Label label = target.getLabel();
+      if (closure.contains(label) && visited.add(label)) {
+        roots.add(label);
+      }
+    }
+    // The search goes on past the depth bound without reporting the targets it reaches: paths
+    // between the targets of the result can only go through reverse dependencies of the argument,
+    // and the output formatters order the result by these paths, as if the graph of the whole
+    // universe had been built.
+    List<Label> current = roots;
+    for (int i = 0; !current.isEmpty(); i++) {
+      if (i <= depth) {
+        callback.process(getIndexedTargets(current));
+      }
+      List<Label> next = new ArrayList<>();
+      for (Label label : current) {
+        for (Label rdep : Iterables.concat(
+            reverseDepsIndex.getReverseDeps(label), closure.getAspectReverseDeps(label))) {
+          if (closure.contains(rdep) && visited.add(rdep)) {
+            next.add(rdep);
+          }
+        }
+      }
+      current = next;
+    }
+
+    for (Label label : visited) {
+      for (Label dep : Iterables.concat(
+          reverseDepsIndex.getDeps(label), closure.getAspectDeps(label))) {
+        if (visited.contains(dep)) {
+          makeEdge(getIndexedTarget(label), getIndexedTarget(dep));
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the transitive closure of the given targets from the reverse dependency index, adding
+   * the packages it needs to the index, or null if the closure contains errors, which only
+   * {@link #buildTransitiveClosure} reports.
+   */
+  @Nullable
+  private ReverseDepsIndex.Closure getIndexedTransitiveClosure(Set<Target> targets)
+      throws QueryException, InterruptedException {
+    ImmutableSet.Builder<Label> rootsBuilder = ImmutableSet.builder();
+    for (Target target : targets) {
+      rootsBuilder.add(target.getLabel());
+    }
+    ImmutableSet<Label> roots = rootsBuilder.build();
+    ReverseDepsIndex.Closure closure = reverseDepsIndex.getCachedClosure(roots);
+    if (closure != null) {
+      return closure;
+    }
+
+    long generation = reverseDepsIndex.getGeneration();
+    boolean preloaded = false;
+    Set<Label> visited = new HashSet<>(roots);
+    Deque<Label> toVisit = new ArrayDeque<>(roots);
+    ImmutableSetMultimap.Builder<Label, Label> aspectDeps = ImmutableSetMultimap.builder();
+    while (!toVisit.isEmpty()) {
+      Label label = toVisit.poll();
+      if (!reverseDepsIndex.contains(label.getPackageIdentifier()) && !preloaded) {
+        // Load the packages the index misses in parallel, rather than one by one below.
+        preloadTransitiveClosure(targets, Integer.MAX_VALUE);
+        preloaded = true;
+      }
+      if (!indexPackage(label.getPackageIdentifier())) {
+        return null;
+      }
+      List<Label> deps = reverseDepsIndex.getDeps(label);
+      if (deps == null) {
+        return null;
+      }
+      for (Label dep : deps) {
+        if (visited.add(dep)) {
+          toVisit.add(dep);
+        }
+      }
+      for (Map.Entry<Attribute, Label> edge : reverseDepsIndex.getAspectEdges(label).entries()) {
+        if (!indexPackage(edge.getValue().getPackageIdentifier())) {
+          return null;
+        }
+        Target from = getIndexedTarget(label);
+        Target to;
+        try {
+          to = reverseDepsIndex.getTarget(edge.getValue());
+        } catch (NoSuchThingException e) {
+          return null;
+        }
+        for (Label dep : AspectDefinition.visitAspectsIfRequired(
+            from, edge.getKey(), to, DependencyFilter.ALL_DEPS).values()) {
+          aspectDeps.put(label, dep);
+          if (visited.add(dep)) {
+            toVisit.add(dep);
+          }
+        }
+      }
+    }
+    closure = new ReverseDepsIndex.Closure(ImmutableSet.copyOf(visited), aspectDeps.build());
+    reverseDepsIndex.cacheClosure(roots, generation, closure);
+    return closure;
+  }
+
+  /**
+   * Adds the given package to the reverse dependency index, if it is not there yet. Returns false
+   * if the package does not exist or contains errors.
+   */
+  private boolean indexPackage(PackageIdentifier packageId) throws InterruptedException {
+    if (!reverseDepsIndex.contains(packageId)) {
+      try {
+        reverseDepsIndex.put(packageProvider.getPackage(eventHandler, packageId));
+      } catch (NoSuchPackageException e) {
+        return false;
+      }
+    }
+    return !reverseDepsIndex.containsErrors(packageId);
+  }
+
+  /** Returns the target with the given label, which is in a package in the index. */
+  private Target getIndexedTarget(Label label) {
+    try {
+      return getOrCreate(reverseDepsIndex.getTarget(label));
+    } catch (NoSuchThingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private List<Target> getIndexedTargets(Collection<Label> labels) {
+    List<Target> targets = new ArrayList<>(labels.size());
+    for (Label label : labels) {
+      targets.add(getIndexedTarget(label));
+    }
+    return targets;
+  }
+
   @Override
   public Set<Target> getNodesOnPath(Target from, Target to) {
     return getTargetsFromNodes(graph.getShortestPath(getNode(from), getNode(to)));
@@ -0,0 +1,310 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.concurrent.ErrorClassifier;
+import com.google.devtools.build.lib.concurrent.ForkJoinQuiescingExecutor;
+import com.google.devtools.build.lib.concurrent.QuiescingExecutor;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.engine.Callback;
+import com.google.devtools.build.lib.query2.engine.QueryException;
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+
+/**
+ * A breadth-first traversal of the targets reachable from some targets, run in parallel on a
+ * fork-join pool. Each task expands a batch of targets with one graph lookup and passes the
+ * targets it finds to the callback right away, so that the results stream out while the
+ * traversal is still running.
+ *
+ * <p>The tasks race, so a target may first be found along a longer path than its shortest one.
+ * With a depth bound, a target is expanded again whenever it is found at a smaller depth, so the
+ * result is the same as that of a sequential breadth-first search. Without one, every target is
+ * expanded once.
+ *
+ * <p>A visitor can be used for several calls to {@link #visit}, which share the visited targets
+ * and one fork-join pool. Calls to {@link #visit} only schedule the traversal, so that they can
+ * be made from the callback of another traversal, e.g. for nested query expressions, without
+ * blocking its threads; {@link #awaitCompletion} then waits for all of it.
+ */
+class ParallelTargetVisitor {
+
+  /** The number of targets that a task expands with one graph lookup. */
+  private static final int BATCH_SIZE = 100;
+
+  private static final ErrorClassifier ERROR_CLASSIFIER = new ErrorClassifier() {
+    @Override
+    protected ErrorClassification classifyException(Exception e) {
+      return e instanceof CallbackException
+          ? ErrorClassification.CRITICAL
+          : ErrorClassification.CRITICAL_AND_LOG;
+    }
+  };
+
+  /** Carries an exception thrown by the callback out of a task. */
+  private static final class CallbackException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private CallbackException(Exception cause) {
+      super(cause);
+    }
+  }
+
+  private final Function<Iterable<Target>, Map<Target, Collection<Target>>> successors;
+  private final Predicate<Target> universe;
+  private final int depthBound;
+  private final int parallelism;
+  @Nullable private final Callback<Target> callback;
+  @Nullable private final Predicate<Target> goal;
+
+  // The smallest depth at which each target was found. Without a depth bound, always 0.
+  private final ConcurrentMap<Label, Integer> depths = new ConcurrentHashMap<>();
+  // The target each target was first found from, if there is a goal.
+  private final Map<Label, Target> parents = new ConcurrentHashMap<>();
+  private final AtomicReference<Target> goalFound = new AtomicReference<>();
+  private volatile boolean cancelled = false;
+
+  // Created by the first call to visit() that has targets to expand.
+  @Nullable private volatile QuiescingExecutor executor;
+
+  /**
+   * @param successors returns the successors of each of the given targets
+   * @param universe the targets to visit; the others are neither passed to the callback nor
+   *     expanded
+   * @param depthBound the maximum number of edges between a visited target and the closest of
+   *     the targets passed to {@link #visit}, or {@link Integer#MAX_VALUE} for no bound
+   * @param callback receives each visited target once; called by one thread at a time
+   * @param goal if not null, the traversal stops as soon as it finds a target satisfying it
+   */
+  ParallelTargetVisitor(
+      Function<Iterable<Target>, Map<Target, Collection<Target>>> successors,
+      Predicate<Target> universe,
+      int depthBound,
+      int parallelism,
+      @Nullable Callback<Target> callback,
+      @Nullable Predicate<Target> goal) {
+    Preconditions.checkArgument(depthBound >= 0, depthBound);
+    this.successors = successors;
+    this.universe = universe;
+    this.depthBound = depthBound;
+    this.parallelism = parallelism;
+    this.callback = callback;
+    this.goal = goal;
+  }
+
+  /**
+   * Visits {@code roots} and schedules the traversal of the targets reachable from them, without
+   * waiting for it.
+   */
+  void visit(Iterable<Target> roots) throws QueryException, InterruptedException {
+    if (isDone()) {
+      return;
+    }
+    try {
+      List<Target> found = new ArrayList<>();
+      List<Target> toExpand = new ArrayList<>();
+      for (Target root : roots) {
+        visitTarget(root, null, 0, found, toExpand);
+      }
+      report(found);
+      if (!isDone()) {
+        expandAll(toExpand, 0);
+      }
+    } catch (CallbackException e) {
+      throw unwrap(e);
+    }
+  }
+
+  /**
+   * Waits for the traversal of the targets reachable from all targets passed to {@link #visit} to
+   * finish.
+   */
+  void awaitCompletion() throws QueryException, InterruptedException {
+    QuiescingExecutor executor = this.executor;
+    if (executor == null) {
+      return;
+    }
+    try {
+      executor.awaitQuiescence(/*interruptWorkers=*/ true);
+    } catch (CallbackException e) {
+      throw unwrap(e);
+    }
+  }
+
+  /**
+   * Stops the traversal, e.g. because computing the targets to visit failed, and waits for the
+   * tasks that are already running. Errors of the traversal are dropped.
+   */
+  void cancel() {
+    cancelled = true;
+    try {
+      awaitCompletion();
+    } catch (QueryException e) {
+      // The caller reports its own error.
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Returns the exception thrown by the callback, or throws it if it is an interruption. */
+  private static QueryException unwrap(CallbackException e) throws InterruptedException {
+    if (e.getCause() instanceof InterruptedException) {
+      throw (InterruptedException) e.getCause();
+    }
+    return (QueryException) e.getCause();
+  }
+
+  private boolean isDone() {
+    return cancelled || goalFound.get() != null;
+  }
+
+  /**
+   * Returns the path from one of the targets passed to {@link #visit} to the first target found
+   * that satisfies the goal, or null if none was found.
+   */
+  @Nullable
+  List<Target> getPathToGoal() {
+    Target target = goalFound.get();
+    if (target == null) {
+      return null;
+    }
+    List<Target> path = new ArrayList<>();
+    while (target != null) {
+      path.add(target);
+      target = parents.get(target.getLabel());
+    }
+    return Lists.reverse(path);
+  }
+
+  /**
+   * Marks {@code target}, found from {@code parent} at {@code depth}, as visited. Adds it to
+   * {@code found} if it was not visited before and to {@code toExpand} if it needs to be
+   * expanded.
+   */
+  private void visitTarget(Target target, @Nullable Target parent, int depth,
+      List<Target> found, List<Target> toExpand) {
+    if (!universe.apply(target)) {
+      return;
+    }
+    Label label = target.getLabel();
+    Integer previous = depths.get(label);
+    if (previous == null) {
+      previous = depths.putIfAbsent(label, depth);
+      if (previous == null) {
+        if (goal != null) {
+          if (parent != null) {
+            parents.put(label, parent);
+          }
+          if (goal.apply(target)) {
+            goalFound.compareAndSet(null, target);
+          }
+        }
+        found.add(target);
+        if (depth < depthBound) {
+          toExpand.add(target);
+        }
+        return;
+      }
+    }
+    // Found along a shorter path than before, so its successors may be within the bound now.
+    while (previous > depth) {
+      if (depths.replace(label, previous, depth)) {
+        if (depth < depthBound) {
+          toExpand.add(target);
+        }
+        return;
+      }
+      previous = depths.get(label);
+    }
+  }
+
+  /** Passes the found targets to the callback. */
+  private void report(List<Target> found) {
+    if (callback == null || found.isEmpty()) {
+      return;
+    }
+    try {
+      synchronized (callback) {
+        callback.process(found);
+      }
+    } catch (QueryException | InterruptedException e) {
+      throw new CallbackException(e);
+    }
+  }
+
+  /** Schedules the expansion of targets found at the given depth. */
+  private void expandAll(List<Target> targets, int depth) {
+    if (targets.isEmpty()) {
+      return;
+    }
+    QuiescingExecutor executor = getExecutor();
+    for (List<Target> batch : Iterables.partition(targets, BATCH_SIZE)) {
+      expand(executor, batch, depth);
+    }
+  }
+
+  private QuiescingExecutor getExecutor() {
+    QuiescingExecutor result = executor;
+    if (result == null) {
+      synchronized (this) {
+        result = executor;
+        if (result == null) {
+          result = new ForkJoinQuiescingExecutor(new ForkJoinPool(parallelism), ERROR_CLASSIFIER);
+          executor = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  private void expand(QuiescingExecutor executor, final List<Target> targets, final int depth) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (isDone()) {
+          return;
+        }
+        // Without a depth bound, all targets are kept at depth 0, so none is expanded twice.
+        int nextDepth = depthBound == Integer.MAX_VALUE ? 0 : depth + 1;
+        List<Target> found = new ArrayList<>();
+        List<Target> toExpand = new ArrayList<>();
+        for (Map.Entry<Target, Collection<Target>> entry :
+            successors.apply(targets).entrySet()) {
+          for (Target successor : entry.getValue()) {
+            visitTarget(successor, entry.getKey(), nextDepth, found, toExpand);
+          }
+        }
+        report(found);
+        if (!isDone()) {
+          expandAll(toExpand, nextDepth);
+        }
+      }
+    });
+  }
+}
@@ -23,6 +23,7 @@ import com.google.devtools.build.lib.pkgcache.TargetPatternEvaluator;
 import com.google.devtools.build.lib.pkgcache.TransitivePackageLoader;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.skyframe.ReverseDepsIndex;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
 
@@ -41,7 +42,7 @@ public class QueryEnvironmentFactory {
       boolean orderedResults, List<String> universeScope, int loadingPhaseThreads,
       Predicate<Label> labelFilter,
       EventHandler eventHandler, Set<Setting> settings, Iterable<QueryFunction> functions,
-      @Nullable PathPackageLocator packagePath) {
+      @Nullable PathPackageLocator packagePath, @Nullable ReverseDepsIndex reverseDepsIndex) {
     Preconditions.checkNotNull(universeScope);
     if (canUseSkyQuery(orderedResults, universeScope, packagePath)) {
       return new SkyQueryEnvironment(keepGoing, strictScope, loadingPhaseThreads, labelFilter,
@@ -50,7 +51,7 @@ public class QueryEnvironmentFactory {
     } else {
       return new BlazeQueryEnvironment(transitivePackageLoader, packageProvider,
           targetPatternEvaluator, keepGoing, strictScope, loadingPhaseThreads, labelFilter,
-          eventHandler, settings, functions);
+          eventHandler, settings, functions, reverseDepsIndex);
     }
   }
 
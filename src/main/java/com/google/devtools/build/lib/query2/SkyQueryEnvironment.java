@@ -56,6 +56,7 @@ import com.google.devtools.build.lib.query2.engine.QueryExpression;
 import com.google.devtools.build.lib.query2.engine.QueryExpressionMapper;
 import com.google.devtools.build.lib.query2.engine.QueryUtil.AbstractUniquifier;
 import com.google.devtools.build.lib.query2.engine.RdepsFunction;
+import com.google.devtools.build.lib.query2.engine.StreamableQueryEnvironment;
 import com.google.devtools.build.lib.query2.engine.TargetLiteral;
 import com.google.devtools.build.lib.query2.engine.Uniquifier;
 import com.google.devtools.build.lib.skyframe.BlacklistedPackagePrefixesValue;
@@ -103,8 +104,12 @@ import javax.annotation.Nullable;
  * reverse edges. Results obtained by calling {@link #evaluateQuery} are not guaranteed to be in
  * any particular order. As well, this class eagerly loads the full transitive closure of targets,
  * even if the full closure isn't needed.
+ *
+ * <p>The traversals of {@code allrdeps}, {@code rdeps}, {@code deps} and {@code somepath} walk
+ * the graph with {@code loadingPhaseThreads} threads, see {@link ParallelTargetVisitor}.
  */
-public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
+public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
+    implements StreamableQueryEnvironment<Target> {
   // 10k is likely a good balance between using batch efficiently and not blowing up memory.
   // TODO(janakr): Unify with RecursivePackageProviderBackedTargetPatternResolver's constant.
   private static final int BATCH_CALLBACK_SIZE = 10000;
@@ -124,15 +129,6 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
 
   private static final Logger LOG = Logger.getLogger(SkyQueryEnvironment.class.getName());
 
-  private static final Function<Target, Label> TARGET_LABEL_FUNCTION =
-      new Function<Target, Label>() {
-    
-    @Override
-    public Label apply(Target target) {
-      return target.getLabel();
-    }
-  };
-
   private static class BlacklistSupplier implements Supplier<ImmutableSet<PathFragment>> {
     private final WalkableGraph graph;
 
@@ -304,45 +300,143 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
     }
   }
 
-  @Override
-  public Collection<Target> getFwdDeps(Iterable<Target> targets) {
-    Set<Target> result = new HashSet<>();
+  /** Returns the dependencies of each target allowed by the dependency filter. */
+  private Map<Target, Collection<Target>> getFwdDepsMap(Iterable<Target> targets) {
     Map<Target, Collection<Target>> rawFwdDeps = getRawFwdDeps(targets);
     warnIfMissingTargets(targets, rawFwdDeps.keySet());
+    Map<Target, Collection<Target>> result = new HashMap<>();
     for (Map.Entry<Target, Collection<Target>> entry : rawFwdDeps.entrySet()) {
-      result.addAll(filterFwdDeps(entry.getKey(), entry.getValue()));
+      result.put(entry.getKey(), filterFwdDeps(entry.getKey(), entry.getValue()));
     }
     return result;
   }
 
-  @Override
-  public Collection<Target> getReverseDeps(Iterable<Target> targets) {
-    Set<Target> result = CompactHashSet.create();
+  /** Returns the reverse dependencies of each target allowed by the dependency filter. */
+  private Map<Target, Collection<Target>> getReverseDepsMap(Iterable<Target> targets) {
     Map<Target, Collection<Target>> rawReverseDeps = getRawReverseDeps(targets);
     warnIfMissingTargets(targets, rawReverseDeps.keySet());
+    if (dependencyFilter == DependencyFilter.ALL_DEPS) {
+      return rawReverseDeps;
+    }
 
-    CompactHashSet<Target> visited = CompactHashSet.create();
-
-    Set<Label> keys = CompactHashSet.create(Collections2.transform(rawReverseDeps.keySet(),
-        TARGET_LABEL_FUNCTION));
-    for (Collection<Target> parentCollection : rawReverseDeps.values()) {
-      for (Target parent : parentCollection) {
-        if (visited.add(parent)) {
-          if (parent instanceof Rule && dependencyFilter != DependencyFilter.ALL_DEPS) {
-            for (Label label : getAllowedDeps((Rule) parent)) {
-              if (keys.contains(label)) {
-                result.add(parent);
-              }
-            }
-          } else {
-            result.add(parent);
+    Map<Rule, Set<Label>> allowedDeps = new HashMap<>();
+    Map<Target, Collection<Target>> result = new HashMap<>();
+    for (Map.Entry<Target, Collection<Target>> entry : rawReverseDeps.entrySet()) {
+      Label label = entry.getKey().getLabel();
+      List<Target> parents = new ArrayList<>(entry.getValue().size());
+      for (Target parent : entry.getValue()) {
+        if (parent instanceof Rule) {
+          Set<Label> parentAllowedDeps = allowedDeps.get(parent);
+          if (parentAllowedDeps == null) {
+            parentAllowedDeps = getAllowedDeps((Rule) parent);
+            allowedDeps.put((Rule) parent, parentAllowedDeps);
+          }
+          if (!parentAllowedDeps.contains(label)) {
+            continue;
           }
         }
+        parents.add(parent);
       }
+      result.put(entry.getKey(), parents);
     }
     return result;
   }
 
+  @Override
+  public Collection<Target> getFwdDeps(Iterable<Target> targets) {
+    Set<Target> result = new HashSet<>();
+    for (Collection<Target> deps : getFwdDepsMap(targets).values()) {
+      result.addAll(deps);
+    }
+    return result;
+  }
+
+  @Override
+  public Collection<Target> getReverseDeps(Iterable<Target> targets) {
+    Set<Target> result = CompactHashSet.create();
+    for (Collection<Target> parents : getReverseDepsMap(targets).values()) {
+      result.addAll(parents);
+    }
+    return result;
+  }
+
+  private final Function<Iterable<Target>, Map<Target, Collection<Target>>> fwdDepsFunction =
+      new Function<Iterable<Target>, Map<Target, Collection<Target>>>() {
+        @Override
+        public Map<Target, Collection<Target>> apply(Iterable<Target> targets) {
+          return getFwdDepsMap(targets);
+        }
+      };
+
+  private final Function<Iterable<Target>, Map<Target, Collection<Target>>> reverseDepsFunction =
+      new Function<Iterable<Target>, Map<Target, Collection<Target>>>() {
+        @Override
+        public Map<Target, Collection<Target>> apply(Iterable<Target> targets) {
+          return getReverseDepsMap(targets);
+        }
+      };
+
+  @Override
+  public void getAllRdeps(QueryExpression expression, Predicate<Target> universe,
+      Callback<Target> callback, int depth) throws QueryException, InterruptedException {
+    final ParallelTargetVisitor visitor = new ParallelTargetVisitor(
+        reverseDepsFunction, universe, depth, loadingPhaseThreads, callback, null);
+    evalAndAwait(expression, new Callback<Target>() {
+      @Override
+      public void process(Iterable<Target> partialResult)
+          throws QueryException, InterruptedException {
+        visitor.visit(partialResult);
+      }
+    }, visitor);
+  }
+
+  @Override
+  public void getDeps(final QueryExpression caller, QueryExpression expression,
+      Callback<Target> callback, final int depth) throws QueryException, InterruptedException {
+    final ParallelTargetVisitor visitor = new ParallelTargetVisitor(
+        fwdDepsFunction, Predicates.<Target>alwaysTrue(), depth, loadingPhaseThreads, callback,
+        null);
+    evalAndAwait(expression, new Callback<Target>() {
+      @Override
+      public void process(Iterable<Target> partialResult)
+          throws QueryException, InterruptedException {
+        buildTransitiveClosure(caller, ImmutableSet.copyOf(partialResult), depth);
+        visitor.visit(partialResult);
+      }
+    }, visitor);
+  }
+
+  /**
+   * Evaluates {@code expression} with a callback that passes its result to {@code visitor}, and
+   * waits for the traversal. The traversal runs on the visitor's own threads while the expression
+   * is still being evaluated, even if that is done by the threads of another visitor.
+   */
+  private void evalAndAwait(QueryExpression expression, Callback<Target> callback,
+      ParallelTargetVisitor visitor) throws QueryException, InterruptedException {
+    boolean success = false;
+    try {
+      eval(expression, callback);
+      success = true;
+    } finally {
+      if (!success) {
+        visitor.cancel();
+      }
+    }
+    visitor.awaitCompletion();
+  }
+
+  @Override
+  public Set<Target> getSomePath(Set<Target> from, Set<Target> to)
+      throws QueryException, InterruptedException {
+    ParallelTargetVisitor visitor = new ParallelTargetVisitor(
+        fwdDepsFunction, Predicates.<Target>alwaysTrue(), Integer.MAX_VALUE, loadingPhaseThreads,
+        null, Predicates.in(to));
+    visitor.visit(from);
+    visitor.awaitCompletion();
+    List<Target> path = visitor.getPathToGoal();
+    return path == null ? ImmutableSet.<Target>of() : ImmutableSet.copyOf(path);
+  }
+
   @Override
   public Set<Target> getTransitiveClosure(Set<Target> targets) {
     Set<Target> visited = new HashSet<>();
@@ -58,8 +58,13 @@ public class AllRdepsFunction implements QueryFunction {
   protected static <T> void eval(final QueryEnvironment<T> env, final List<Argument> args,
       final Callback<T> callback, final Predicate<T> universe)
       throws QueryException, InterruptedException {
-    final Uniquifier<T> uniquifier = env.createUniquifier();
     final int depthBound = args.size() > 1 ? args.get(1).getInteger() : Integer.MAX_VALUE;
+    if (env instanceof StreamableQueryEnvironment) {
+      ((StreamableQueryEnvironment<T>) env)
+          .getAllRdeps(args.get(0).getExpression(), universe, callback, depthBound);
+      return;
+    }
+    final Uniquifier<T> uniquifier = env.createUniquifier();
     env.eval(args.get(0).getExpression(), new Callback<T>() {
       @Override
       public void process(Iterable<T> partialResult) throws QueryException, InterruptedException {
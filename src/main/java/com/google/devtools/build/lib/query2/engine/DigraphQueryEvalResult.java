@@ -14,9 +14,12 @@
 
 package com.google.devtools.build.lib.query2.engine;
 
+import com.google.devtools.build.lib.graph.CompactDigraph;
 import com.google.devtools.build.lib.graph.Digraph;
 import com.google.devtools.build.lib.util.Preconditions;
 
+import java.util.Set;
+
 /** {@link QueryEvalResult} along with a digraph giving the structure of the results. */
 public class DigraphQueryEvalResult<T> extends QueryEvalResult {
 
@@ -31,4 +34,13 @@ public class DigraphQueryEvalResult<T> extends QueryEvalResult {
   public Digraph<T> getGraph() {
     return graph;
   }
+
+  /**
+   * Returns the subgraph of the recorded graph with the given nodes, as computed by
+   * {@link Digraph#extractSubgraph}, in compact form. Unlike {@link Digraph#extractSubgraph}, this
+   * does not copy the recorded graph.
+   */
+  public CompactDigraph<T> getCompactSubgraph(Set<T> nodes) {
+    return CompactDigraph.extractSubgraph(graph, nodes);
+  }
 }
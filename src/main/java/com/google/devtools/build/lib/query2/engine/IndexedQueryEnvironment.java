@@ -0,0 +1,35 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import java.util.Set;
+
+/**
+ * A {@link QueryEnvironment} that may keep an index of the reverse dependencies of its nodes,
+ * which lets {@code rdeps} find them without building the transitive closure of its universe.
+ */
+public interface IndexedQueryEnvironment<T> extends QueryEnvironment<T> {
+
+  /**
+   * Passes the nodes in the transitive closure of {@code universe} that are within {@code depth}
+   * reverse dependency edges of the result of {@code expression} to {@code callback}, following
+   * only edges within that closure.
+   *
+   * <p>Returns false without evaluating {@code expression} if the index cannot answer, e.g.
+   * because there is no index or there are errors in the transitive closure of the universe. The
+   * caller must then build the closure itself, which reports the errors.
+   */
+  boolean getRdepsFromIndex(Set<T> universe, QueryExpression expression, Callback<T> callback,
+      int depth) throws QueryException, InterruptedException;
+}
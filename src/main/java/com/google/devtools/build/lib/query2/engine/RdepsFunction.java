@@ -51,13 +51,21 @@ public final class RdepsFunction extends AllRdepsFunction {
 
   /**
    * Compute the transitive closure of the universe, then breadth-first search from the argument
-   * towards the universe while staying within the transitive closure.
+   * towards the universe while staying within the transitive closure. Environments with an index
+   * of reverse dependencies answer from it instead, if they can.
    */
   @Override
   public <T> void eval(QueryEnvironment<T> env, QueryExpression expression,
       List<Argument> args, Callback<T> callback)
       throws QueryException, InterruptedException {
     Set<T> universeValue = QueryUtil.evalAll(env, args.get(0).getExpression());
+    if (env instanceof IndexedQueryEnvironment) {
+      int depthBound = args.size() > 2 ? args.get(2).getInteger() : Integer.MAX_VALUE;
+      if (((IndexedQueryEnvironment<T>) env).getRdepsFromIndex(
+          universeValue, args.get(1).getExpression(), callback, depthBound)) {
+        return;
+      }
+    }
     env.buildTransitiveClosure(expression, universeValue, Integer.MAX_VALUE);
 
     Predicate<T> universe = Predicates.in(env.getTransitiveClosure(universeValue));
@@ -48,21 +48,40 @@ class SomeFunction implements QueryFunction {
     return ImmutableList.of(ArgumentType.EXPRESSION);
   }
 
+  /** Thrown by the callback to stop evaluating the argument once it has a node. */
+  private static final class SomeFoundException extends QueryException {
+    private static final long serialVersionUID = 1L;
+
+    SomeFoundException(QueryExpression expression) {
+      super(expression, "some node found");
+    }
+  }
+
   @Override
   public <T> void eval(QueryEnvironment<T> env, QueryExpression expression,
       List<Argument> args, final Callback<T> callback)
       throws QueryException, InterruptedException {
     final AtomicBoolean someFound = new AtomicBoolean(false);
-    env.eval(args.get(0).getExpression(), new Callback<T>() {
-      @Override
-      public void process(Iterable<T> partialResult) throws QueryException, InterruptedException {
-        if (someFound.get() || Iterables.isEmpty(partialResult)) {
-          return;
+    // Nested some() expressions each stop their own evaluation.
+    final SomeFoundException stop = new SomeFoundException(expression);
+    try {
+      env.eval(args.get(0).getExpression(), new Callback<T>() {
+        @Override
+        public void process(Iterable<T> partialResult)
+            throws QueryException, InterruptedException {
+          if (Iterables.isEmpty(partialResult) || !someFound.compareAndSet(false, true)) {
+            return;
+          }
+          callback.process(ImmutableSet.of(partialResult.iterator().next()));
+          // Environments that let the exception through stop evaluating the argument early.
+          throw stop;
         }
-        callback.process(ImmutableSet.of(partialResult.iterator().next()));
-        someFound.set(true);
+      });
+    } catch (SomeFoundException e) {
+      if (e != stop) {
+        throw e;
       }
-    });
+    }
     if (!someFound.get()) {
       throw new QueryException(expression, "argument set is empty");
     }
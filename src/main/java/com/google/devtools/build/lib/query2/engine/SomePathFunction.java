@@ -63,6 +63,11 @@ class SomePathFunction implements QueryFunction {
 
     env.buildTransitiveClosure(expression, fromValue, Integer.MAX_VALUE);
 
+    if (env instanceof StreamableQueryEnvironment) {
+      callback.process(((StreamableQueryEnvironment<T>) env).getSomePath(fromValue, toValue));
+      return;
+    }
+
     // This set contains all nodes whose TC does not intersect "toValue".
     Uniquifier<T> uniquifier = env.createUniquifier();
 
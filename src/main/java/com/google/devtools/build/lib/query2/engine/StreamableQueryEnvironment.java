@@ -0,0 +1,53 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import com.google.common.base.Predicate;
+
+import java.util.Set;
+
+/**
+ * A {@link QueryEnvironment} that traverses its graph for the transitive query functions itself,
+ * e.g. in parallel, and passes the nodes it finds to the callback as soon as it finds them rather
+ * than one depth at a time.
+ *
+ * <p>The functions use these methods instead of their own breadth-first search if the environment
+ * implements this interface.
+ */
+public interface StreamableQueryEnvironment<T> extends QueryEnvironment<T> {
+
+  /**
+   * Passes the nodes in {@code universe} that are within {@code depth} reverse dependency edges
+   * of the result of {@code expression} to {@code callback}, following only edges within
+   * {@code universe}.
+   */
+  void getAllRdeps(QueryExpression expression, Predicate<T> universe, Callback<T> callback,
+      int depth) throws QueryException, InterruptedException;
+
+  /**
+   * Passes the nodes that are within {@code depth} dependency edges of the result of
+   * {@code expression} to {@code callback}.
+   *
+   * @param caller the expression to report errors loading the nodes for
+   */
+  void getDeps(QueryExpression caller, QueryExpression expression, Callback<T> callback,
+      int depth) throws QueryException, InterruptedException;
+
+  /**
+   * Returns the nodes on some dependency path from a node in {@code from} to a node in
+   * {@code to}, or an empty set if there is no such path. The traversal stops as soon as it
+   * reaches a node in {@code to}.
+   */
+  Set<T> getSomePath(Set<T> from, Set<T> to) throws QueryException, InterruptedException;
+}
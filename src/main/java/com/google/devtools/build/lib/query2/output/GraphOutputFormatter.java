@@ -13,26 +13,24 @@
 // limitations under the License.
 package com.google.devtools.build.lib.query2.output;
 
-import com.google.common.collect.ImmutableSet;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Ordering;
-import com.google.devtools.build.lib.collect.CollectionUtils;
-import com.google.devtools.build.lib.collect.EquivalenceRelation;
-import com.google.devtools.build.lib.graph.Digraph;
-import com.google.devtools.build.lib.graph.DotOutputVisitor;
-import com.google.devtools.build.lib.graph.LabelSerializer;
-import com.google.devtools.build.lib.graph.Node;
+import com.google.devtools.build.lib.graph.CompactDigraph;
 import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.query2.output.QueryOptions.OrderOutput;
 
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+
+import javax.annotation.Nullable;
 
 /**
  * An output formatter that prints the result as factored graph in AT&amp;T
@@ -48,7 +46,7 @@ class GraphOutputFormatter extends OutputFormatter {
   }
 
   @Override
-  public void output(QueryOptions options, Digraph<Target> result, PrintStream out,
+  public void output(QueryOptions options, CompactDigraph<Target> result, PrintStream out,
       AspectResolver aspectProvider) {
     this.graphNodeStringLimit = options.graphNodeStringLimit;
 
@@ -60,71 +58,103 @@ class GraphOutputFormatter extends OutputFormatter {
     }
   }
 
-  private void outputUnfactored(Digraph<Target> result, PrintWriter out, boolean sortLabels) {
-    result.visitNodesBeforeEdges(
-        new DotOutputVisitor<Target>(out, LABEL_STRINGIFIER) {
-          @Override
-          public void beginVisit() {
-            super.beginVisit();
-            // TODO(bazel-team): (2009) make this the default in Digraph.
-            out.println("  node [shape=box];");
-          }
-        },
-        sortLabels ? new TargetOrdering() : null);
+  private void outputUnfactored(
+      CompactDigraph<Target> result, PrintWriter out, boolean sortLabels) {
+    outputNodesBeforeEdges(result, out, sortLabels ? TARGET_ORDERING : null, LABEL_STRINGIFIER);
   }
 
-  private static final Ordering<Node<Target>> NODE_COMPARATOR =
-      Ordering.from(new TargetOrdering()).onResultOf(EXTRACT_NODE_LABEL);
+  private static final Ordering<Target> TARGET_ORDERING = Ordering.from(new TargetOrdering());
 
-  private static final Comparator<Iterable<Node<Target>>> ITERABLE_COMPARATOR =
-      NODE_COMPARATOR.lexicographical();
+  private static final Comparator<Iterable<Target>> ITERABLE_COMPARATOR =
+      TARGET_ORDERING.lexicographical();
 
   /**
-   * Given {@code collectionOfUnorderedSets}, a collection of sets of nodes, returns a collection
-   * of sets with the same elements as {@code collectionOfUnorderedSets} but with a stable
-   * iteration order within each set given by the target ordering, and the collection ordered by the
-   * same induced order.
+   * The predecessors and successors of a node. Two nodes are considered equal iff they have equal
+   * topology.
    */
-  private static Collection<Set<Node<Target>>> orderPartition(
-      Collection<Set<Node<Target>>> collectionOfUnorderedSets) {
-    List<Set<Node<Target>>> result = new ArrayList<>();
-    for (Set<Node<Target>> part : collectionOfUnorderedSets) {
-      List<Node<Target>> toSort = new ArrayList<>(part);
-      Collections.sort(toSort, NODE_COMPARATOR);
-      result.add(ImmutableSet.copyOf(toSort));
+  private static final class Topology {
+    private final int[] predecessors;
+    private final int[] successors;
+    private final int hashCode;
+
+    Topology(int[] predecessors, int[] successors) {
+      Arrays.sort(predecessors);
+      Arrays.sort(successors);
+      this.predecessors = predecessors;
+      this.successors = successors;
+      this.hashCode = 31 * Arrays.hashCode(predecessors) + Arrays.hashCode(successors);
     }
-    Collections.sort(result, ITERABLE_COMPARATOR);
-    return result;
-  }
 
-  private void outputFactored(Digraph<Target> result, PrintWriter out, final boolean sortLabels) {
-    EquivalenceRelation<Node<Target>> equivalenceRelation = createEquivalenceRelation();
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Topology)) {
+        return false;
+      }
+      Topology that = (Topology) o;
+      return hashCode == that.hashCode
+          && Arrays.equals(predecessors, that.predecessors)
+          && Arrays.equals(successors, that.successors);
+    }
 
-    Collection<Set<Node<Target>>> partition =
-        CollectionUtils.partition(result.getNodes(), equivalenceRelation);
-    if (sortLabels) {
-      partition = orderPartition(partition);
+    @Override
+    public int hashCode() {
+      return hashCode;
     }
+  }
 
-    Digraph<Set<Node<Target>>> factoredGraph = result.createImageUnderPartition(partition);
+  private void outputFactored(
+      CompactDigraph<Target> result, PrintWriter out, final boolean sortLabels) {
+    // Partition the nodes into classes of topologically-equivalent nodes, in a single pass.
+    int[] classOf = new int[result.size()];
+    List<List<Target>> classes = new ArrayList<>();
+    Map<Topology, Integer> classIds = new HashMap<>();
+    for (int node = 0; node < result.size(); node++) {
+      Topology topology =
+          new Topology(result.getPredecessors(node), result.getSuccessors(node));
+      Integer classId = classIds.get(topology);
+      if (classId == null) {
+        classId = classes.size();
+        classIds.put(topology, classId);
+        classes.add(new ArrayList<Target>());
+      }
+      classOf[node] = classId;
+      classes.get(classId).add(result.getLabel(node));
+    }
+    classIds = null;
+
+    CompactDigraph.Builder<ImmutableList<Target>> builder = new CompactDigraph.Builder<>();
+    for (List<Target> members : classes) {
+      // Classes are disjoint, so they get consecutive ids.
+      builder.addNode(sortLabels
+          ? TARGET_ORDERING.immutableSortedCopy(members)
+          : ImmutableList.copyOf(members));
+    }
+    classes = null;
+    for (int node = 0; node < result.size(); node++) {
+      for (int successor : result.getSuccessors(node)) {
+        builder.addEdge(classOf[node], classOf[successor]);
+      }
+    }
+    CompactDigraph<ImmutableList<Target>> factoredGraph = builder.build();
 
     // Concatenate the labels of all topologically-equivalent nodes.
-    LabelSerializer<Set<Node<Target>>> labelSerializer = new LabelSerializer<Set<Node<Target>>>() {
+    Function<ImmutableList<Target>, String> labelSerializer =
+        new Function<ImmutableList<Target>, String>() {
       @Override
-      public String serialize(Node<Set<Node<Target>>> node) {
+      public String apply(ImmutableList<Target> eqClass) {
         int actualLimit = graphNodeStringLimit - RESERVED_LABEL_CHARS;
         boolean firstItem = true;
         StringBuilder buf = new StringBuilder();
         int count = 0;
-        for (Node<Target> eqNode : node.getLabel()) {
-          String labelString = eqNode.getLabel().getLabel().toString();
+        for (Target eqNode : eqClass) {
+          String labelString = eqNode.getLabel().toString();
           if (!firstItem) {
             buf.append("\\n");
 
             // Use -1 to denote no limit, as it is easier than trying to pass MAX_INT on the cmdline
             if (graphNodeStringLimit != -1 && (buf.length() + labelString.length() > actualLimit)) {
               buf.append("...and ");
-              buf.append(node.getLabel().size() - count);
+              buf.append(eqClass.size() - count);
               buf.append(" more items");
               break;
             }
@@ -138,61 +168,44 @@ class GraphOutputFormatter extends OutputFormatter {
       }
     };
 
-    factoredGraph.visitNodesBeforeEdges(
-        new DotOutputVisitor<Set<Node<Target>>>(out, labelSerializer) {
-          @Override
-          public void beginVisit() {
-            super.beginVisit();
-            // TODO(bazel-team): (2009) make this the default in Digraph.
-            out.println("  node [shape=box];");
-          }
-        },
-        sortLabels ? ITERABLE_COMPARATOR : null);
+    outputNodesBeforeEdges(
+        factoredGraph, out, sortLabels ? ITERABLE_COMPARATOR : null, labelSerializer);
   }
 
   /**
-   * Returns an equivalence relation for nodes in the specified graph.
-   *
-   * <p>Two nodes are considered equal iff they have equal topology (predecessors and successors).
-   *
-   * TODO(bazel-team): Make this a method of Digraph.
+   * Prints the graph in dot format, visiting nodes in topological order such that each node is
+   * printed before the edges coming out of it. Ties among nodes, and the edges of each node, are
+   * ordered by {@code comparator} if it is not null.
    */
-  private static <LABEL> EquivalenceRelation<Node<LABEL>> createEquivalenceRelation() {
-    return new EquivalenceRelation<Node<LABEL>>() {
-      @Override
-      public int compare(Node<LABEL> x, Node<LABEL> y) {
-        if (x == y) {
-          return 0;
-        }
-
-        if (x.numPredecessors() != y.numPredecessors()
-            || x.numSuccessors() != y.numSuccessors()) {
-          return -1;
-        }
-
-        Set<Node<LABEL>> xpred = new HashSet<>(x.getPredecessors());
-        Set<Node<LABEL>> ypred = new HashSet<>(y.getPredecessors());
-        if (!xpred.equals(ypred)) {
-          return -1;
-        }
-
-        Set<Node<LABEL>> xsucc = new HashSet<>(x.getSuccessors());
-        Set<Node<LABEL>> ysucc = new HashSet<>(y.getSuccessors());
-        if (!xsucc.equals(ysucc)) {
-          return -1;
-        }
-
-        return 0;
+  private static <T> void outputNodesBeforeEdges(CompactDigraph<T> graph, PrintWriter out,
+      @Nullable Comparator<? super T> comparator, Function<? super T, String> serializer) {
+    int[] order = comparator == null
+        ? graph.getTopologicalOrder()
+        : graph.getTopologicalOrder(comparator);
+    out.println("digraph mygraph {");
+    out.println("  node [shape=box];");
+    for (int node : order) {
+      String from = serializer.apply(graph.getLabel(node));
+      out.println("\"" + from + "\"");
+      List<T> successors = graph.getLabels(graph.getSuccessors(node));
+      if (comparator != null) {
+        Collections.sort(successors, comparator);
       }
-    };
+      for (T successor : successors) {
+        out.println("\"" + from + "\" -> \"" + serializer.apply(successor) + "\"");
+      }
+    }
+    out.println("}");
+    out.flush();
   }
 
   private static final int RESERVED_LABEL_CHARS = "\\n...and 9999999 more items".length();
 
-  private static final LabelSerializer<Target> LABEL_STRINGIFIER = new LabelSerializer<Target>() {
+  private static final Function<Target, String> LABEL_STRINGIFIER =
+      new Function<Target, String>() {
     @Override
-    public String serialize(Node<Target> node) {
-      return node.getLabel().getLabel().toString();
+    public String apply(Target target) {
+      return target.getLabel().toString();
     }
   };
 }
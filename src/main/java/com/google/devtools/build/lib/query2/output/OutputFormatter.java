@@ -22,8 +22,7 @@ import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.collect.CompactHashSet;
 import com.google.devtools.build.lib.events.Location;
-import com.google.devtools.build.lib.graph.Digraph;
-import com.google.devtools.build.lib.graph.Node;
+import com.google.devtools.build.lib.graph.CompactDigraph;
 import com.google.devtools.build.lib.packages.AggregatingAttributeMapper;
 import com.google.devtools.build.lib.packages.Attribute;
 import com.google.devtools.build.lib.packages.DependencyFilter;
@@ -41,13 +40,11 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.Nullable;
@@ -84,14 +81,6 @@ public abstract class OutputFormatter implements Serializable {
     DEFAULT   // Rule class default
   }
 
-  public static final Function<Node<Target>, Target> EXTRACT_NODE_LABEL =
-      new Function<Node<Target>, Target>() {
-        @Override
-        public Target apply(Node<Target> input) {
-          return input.getLabel();
-        }
-      };
-
   /**
    * Converter from strings to OutputFormatter.Type.
    */
@@ -155,7 +144,7 @@ public abstract class OutputFormatter implements Serializable {
    * Format the result (a set of target nodes implicitly ordered according to
    * the graph maintained by the QueryEnvironment), and print it to "out".
    */
-  public abstract void output(QueryOptions options, Digraph<Target> result, PrintStream out,
+  public abstract void output(QueryOptions options, CompactDigraph<Target> result, PrintStream out,
       AspectResolver aspectProvider) throws IOException, InterruptedException;
 
   /**
@@ -183,16 +172,15 @@ public abstract class OutputFormatter implements Serializable {
   abstract static class AbstractUnorderedFormatter extends OutputFormatter
       implements StreamedFormatter {
     protected Iterable<Target> getOrderedTargets(
-        Digraph<Target> result, QueryOptions options) {
-      Iterable<Node<Target>> orderedResult =
+        CompactDigraph<Target> result, QueryOptions options) {
+      return result.getLabels(
           options.orderOutput == OrderOutput.DEPS
               ? result.getTopologicalOrder()
-              : result.getTopologicalOrder(new TargetOrdering());
-      return Iterables.transform(orderedResult, EXTRACT_NODE_LABEL);
+              : result.getTopologicalOrder(new TargetOrdering()));
     }
 
     @Override
-    public void output(QueryOptions options, Digraph<Target> result, PrintStream out,
+    public void output(QueryOptions options, CompactDigraph<Target> result, PrintStream out,
         AspectResolver aspectResolver) throws IOException, InterruptedException {
       OutputFormatterCallback.processAllTargets(
           createStreamCallback(options, out, aspectResolver),
@@ -436,7 +424,7 @@ public abstract class OutputFormatter implements Serializable {
     }
 
     @Override
-    public void output(QueryOptions options, Digraph<Target> result, PrintStream out,
+    public void output(QueryOptions options, CompactDigraph<Target> result, PrintStream out,
         AspectResolver aspectResolver) {
       // getRoots() isn't defined for cyclic graphs, so in order to handle
       // cycles correctly, we need work on the strong component graph, as
@@ -445,28 +433,32 @@ public abstract class OutputFormatter implements Serializable {
 
       List<RankAndLabel> outputToOrder =
           options.orderOutput == OrderOutput.FULL ? new ArrayList<RankAndLabel>() : null;
-      Digraph<Set<Node<Target>>> scGraph = result.getStrongComponentGraph();
-      Set<Node<Set<Node<Target>>>> rankNodes = scGraph.getRoots();
-      Set<Node<Set<Node<Target>>>> seen = new HashSet<>();
-      seen.addAll(rankNodes);
-      for (int rank = 0; !rankNodes.isEmpty(); rank++) {
+      CompactDigraph<ImmutableList<Target>> scGraph = result.getStrongComponentGraph();
+      int[] rankNodes = scGraph.getRoots();
+      BitSet seen = new BitSet(scGraph.size());
+      for (int xScc : rankNodes) {
+        seen.set(xScc);
+      }
+      int[] nextRankNodes = new int[scGraph.size()];
+      for (int rank = 0; rankNodes.length > 0; rank++) {
         // Print out this rank:
-        for (Node<Set<Node<Target>>> xScc : rankNodes) {
-          for (Node<Target> x : xScc.getLabel()) {
-            outputToStreamOrSave(rank, x.getLabel().getLabel(), out, outputToOrder);
+        for (int xScc : rankNodes) {
+          for (Target x : scGraph.getLabel(xScc)) {
+            outputToStreamOrSave(rank, x.getLabel(), out, outputToOrder);
           }
         }
 
         // Find the next rank:
-        Set<Node<Set<Node<Target>>>> nextRankNodes = new LinkedHashSet<>();
-        for (Node<Set<Node<Target>>> x : rankNodes) {
-          for (Node<Set<Node<Target>>> y : x.getSuccessors()) {
-            if (seen.add(y)) {
-              nextRankNodes.add(y);
+        int nextRankSize = 0;
+        for (int x : rankNodes) {
+          for (int y : scGraph.getSuccessors(x)) {
+            if (!seen.get(y)) {
+              seen.set(y);
+              nextRankNodes[nextRankSize++] = y;
             }
           }
         }
-        rankNodes = nextRankNodes;
+        rankNodes = Arrays.copyOf(nextRankNodes, nextRankSize);
       }
       if (outputToOrder != null) {
         Collections.sort(outputToOrder);
@@ -495,7 +487,7 @@ public abstract class OutputFormatter implements Serializable {
     }
 
     @Override
-    public void output(QueryOptions options, Digraph<Target> result, PrintStream out,
+    public void output(QueryOptions options, CompactDigraph<Target> result, PrintStream out,
         AspectResolver aspectResolver) {
       // In order to handle cycles correctly, we need work on the strong
       // component graph, as cycles should be treated a "clump" of nodes all on
@@ -503,33 +495,23 @@ public abstract class OutputFormatter implements Serializable {
 
       // Dynamic programming algorithm:
       // rank(x) = max(rank(p)) + 1 foreach p in preds(x)
-      // TODO(bazel-team): Move to Digraph.
-      class DP {
-        final Map<Node<Set<Node<Target>>>, Integer> ranks = new HashMap<>();
-
-        int rank(Node<Set<Node<Target>>> node) {
-          Integer rank = ranks.get(node);
-          if (rank == null) {
-            int maxPredRank = -1;
-            for (Node<Set<Node<Target>>> p : node.getPredecessors()) {
-              maxPredRank = Math.max(maxPredRank, rank(p));
-            }
-            rank = maxPredRank + 1;
-            ranks.put(node, rank);
-          }
-          return rank;
+      // The strong component graph numbers its nodes in topological order, so the ranks of the
+      // predecessors of a node are known by the time it is reached.
+      CompactDigraph<ImmutableList<Target>> scGraph = result.getStrongComponentGraph();
+      int[] ranks = new int[scGraph.size()];
+      List<RankAndLabel> output = new ArrayList<>();
+      for (int x = 0; x < scGraph.size(); x++) {
+        int maxPredRank = -1;
+        for (int p : scGraph.getPredecessors(x)) {
+          maxPredRank = Math.max(maxPredRank, ranks[p]);
+        }
+        ranks[x] = maxPredRank + 1;
+        for (Target y : scGraph.getLabel(x)) {
+          output.add(new RankAndLabel(ranks[x], y.getLabel()));
         }
       }
-      DP dp = new DP();
 
       // Now sort by rank...
-      List<RankAndLabel> output = new ArrayList<>();
-      for (Node<Set<Node<Target>>> x : result.getStrongComponentGraph().getNodes()) {
-        int rank = dp.rank(x);
-        for (Node<Target> y : x.getLabel()) {
-          output.add(new RankAndLabel(rank, y.getLabel().getLabel()));
-        }
-      }
       if (options.orderOutput == OrderOutput.FULL) {
         // Use the natural order for RankAndLabels, which breaks ties alphabetically.
         Collections.sort(output);
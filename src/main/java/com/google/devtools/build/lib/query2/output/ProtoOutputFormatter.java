@@ -23,7 +23,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.cmdline.Label;
-import com.google.devtools.build.lib.graph.Digraph;
+import com.google.devtools.build.lib.graph.CompactDigraph;
 import com.google.devtools.build.lib.packages.AggregatingAttributeMapper;
 import com.google.devtools.build.lib.packages.Attribute;
 import com.google.devtools.build.lib.packages.AttributeSerializer;
@@ -115,13 +115,13 @@ public class ProtoOutputFormatter extends AbstractUnorderedFormatter {
     };
   }
 
-  private static Iterable<Target> getSortedLabels(Digraph<Target> result) {
-    return Iterables.transform(
-        result.getTopologicalOrder(new TargetOrdering()), EXTRACT_NODE_LABEL);
+  private static Iterable<Target> getSortedLabels(CompactDigraph<Target> result) {
+    return result.getLabels(result.getTopologicalOrder(new TargetOrdering()));
   }
 
   @Override
-  protected Iterable<Target> getOrderedTargets(Digraph<Target> result, QueryOptions options) {
+  protected Iterable<Target> getOrderedTargets(
+      CompactDigraph<Target> result, QueryOptions options) {
     return options.orderOutput == OrderOutput.FULL ? getSortedLabels(result) : result.getLabels();
   }
 
@@ -215,6 +215,14 @@ public class QueryOptions extends OptionsBase {
           + "aspect is decided in the analysis phase, which is not run during 'blaze query'.")
   public AspectResolver.Mode aspectDeps;
 
+  @Option(name = "experimental_reverse_deps_index",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If true, rdeps() finds reverse dependencies in an index that the server keeps "
+          + "between queries, instead of walking the whole universe every time. The index is "
+          + "dropped by a query without this flag.")
+  public boolean useReverseDepsIndex;
+
   @Option(
     name = "query_file",
     defaultValue = "",
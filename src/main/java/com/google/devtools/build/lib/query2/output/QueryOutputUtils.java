@@ -46,7 +46,7 @@ public class QueryOutputUtils {
     boolean orderedResults = !shouldStreamResults(queryOptions, formatter);
     if (orderedResults) {
       formatter.output(queryOptions,
-          ((DigraphQueryEvalResult<Target>) result).getGraph().extractSubgraph(targetsResult),
+          ((DigraphQueryEvalResult<Target>) result).getCompactSubgraph(targetsResult),
           outputStream, aspectResolver);
     } else {
       OutputFormatterCallback.processAllTargets(((StreamedFormatter) formatter)
@@ -23,6 +23,7 @@ import com.google.devtools.build.lib.actions.ActionExecutionMetadata;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.actions.ActionStatusMessage;
 import com.google.devtools.build.lib.actions.ExecException;
 import com.google.devtools.build.lib.actions.ExecutionStrategy;
 import com.google.devtools.build.lib.actions.Executor;
@@ -131,9 +132,12 @@ final class RemoteSpawnStrategy implements SpawnActionContext {
     try {
       // Look up action cache using |actionOutputKey|. Reuse the action output if it is found.
       if (writeActionOutput(spawn.getMnemonic(), actionOutputKey, eventHandler, true)) {
+        executor.getEventBus().post(
+            ActionStatusMessage.runningStrategy(actionMetadata, "remote cache"));
         return;
       }
 
+      executor.getEventBus().post(ActionStatusMessage.runningStrategy(actionMetadata, "remote"));
       FileOutErr outErr = actionExecutionContext.getFileOutErr();
       if (executeWorkRemotely(
           inputFileCache,
@@ -43,7 +43,6 @@ import com.google.devtools.build.lib.analysis.AnalysisEnvironment;
 import com.google.devtools.build.lib.analysis.RuleContext;
 import com.google.devtools.build.lib.analysis.actions.CommandLine;
 import com.google.devtools.build.lib.analysis.actions.CustomCommandLine;
-import com.google.devtools.build.lib.analysis.actions.CustomCommandLine.CustomArgv;
 import com.google.devtools.build.lib.analysis.actions.CustomCommandLine.CustomMultiArgv;
 import com.google.devtools.build.lib.analysis.actions.ParameterFileWriteAction;
 import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
@@ -378,7 +377,7 @@ public final class JavaCompileAction extends AbstractAction {
   protected String computeKey() {
     Fingerprint f = new Fingerprint();
     f.addString(GUID);
-    f.addStrings(commandLine.arguments());
+    commandLine.addToFingerprint(f);
     return f.hexDigestAndReset();
   }
 
@@ -551,17 +550,8 @@ public final class JavaCompileAction extends AbstractAction {
       result.addExecPath("--output_deps_proto", outputDepsProto);
     }
 
-    result.add("--classpath").add(new CustomArgv() {
-      @Override
-      public String argv() {
-        List<PathFragment> classpathEntries = new ArrayList<>();
-        for (Artifact classpathArtifact : classpath) {
-          classpathEntries.add(classpathArtifact.getExecPath());
-        }
-        classpathEntries.add(classDirectory);
-        return Joiner.on(configuration.getHostPathSeparator()).join(classpathEntries);
-      }
-    });
+    result.addJoinExecPaths(
+        "--classpath", configuration.getHostPathSeparator(), classpath, classDirectory);
 
     if (!extdirInputs.isEmpty()) {
       result.add("--extdir");
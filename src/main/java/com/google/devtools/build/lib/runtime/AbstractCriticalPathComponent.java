@@ -40,6 +40,10 @@ public class AbstractCriticalPathComponent<C extends AbstractCriticalPathCompone
   /** The action for which we are storing the stat. */
   private final Action action;
 
+  /** How the action was run, e.g. "cached" or the name of a spawn strategy. */
+  @Nullable
+  private volatile String strategy;
+
   /**
    * Child with the maximum critical path.
    */
@@ -77,6 +81,21 @@ public class AbstractCriticalPathComponent<C extends AbstractCriticalPathCompone
     return action;
   }
 
+  /**
+   * Returns how the action was run: {@link CriticalPathComputer#CACHED},
+   * {@link CriticalPathComputer#MIDDLEMAN}, the name of the strategy that ran it, e.g.
+   * "standalone" or "worker", or {@link CriticalPathComputer#INTERNAL} if it did not run any
+   * spawn.
+   */
+  public String getStrategy() {
+    String strategy = this.strategy;
+    return strategy == null ? CriticalPathComputer.INTERNAL : strategy;
+  }
+
+  void setStrategy(String strategy) {
+    this.strategy = strategy;
+  }
+
   /**
    * Add statistics for one dependency of this action.
    */
@@ -132,7 +151,8 @@ public class AbstractCriticalPathComponent<C extends AbstractCriticalPathCompone
   public String toString() {
     String currentTime = "still running ";
     if (!isRunning) {
-      currentTime = String.format("%.2f", getElapsedTimeMillis() / 1000.0) + "s ";
+      currentTime = String.format("%.2f", getElapsedTimeMillis() / 1000.0) + "s ("
+          + getStrategy() + ") ";
     }
     return currentTime + action.describe();
   }
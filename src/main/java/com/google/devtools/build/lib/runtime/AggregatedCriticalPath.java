@@ -14,8 +14,14 @@
 
 package com.google.devtools.build.lib.runtime;
 
+import com.google.common.base.Functions;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Ordering;
+
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Aggregates all the critical path components in one object. This allows us to easily access the
@@ -41,6 +47,25 @@ public class AggregatedCriticalPath<T extends AbstractCriticalPathComponent<?>>
     return criticalPathComponents;
   }
 
+  /**
+   * Returns the time in ms spent on the critical path by each way of running actions, see
+   * {@link AbstractCriticalPathComponent#getStrategy}, slowest first.
+   */
+  public ImmutableMap<String, Long> getTimeByStrategy() {
+    Map<String, Long> times = new HashMap<>();
+    for (T component : criticalPathComponents) {
+      Long time = times.get(component.getStrategy());
+      times.put(component.getStrategy(),
+          (time == null ? 0 : time) + component.getElapsedTimeMillis());
+    }
+    ImmutableMap.Builder<String, Long> builder = ImmutableMap.builder();
+    for (String strategy : Ordering.natural().onResultOf(Functions.forMap(times)).reverse()
+        .sortedCopy(times.keySet())) {
+      builder.put(strategy, times.get(strategy));
+    }
+    return builder.build();
+  }
+
   @Override
   public String toString() {
     return toString(false);
@@ -0,0 +1,158 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.EventHandler;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An event handler that hands events to another handler on a dedicated thread, so that the
+ * threads reporting events never wait for the terminal.
+ *
+ * <p>Events are queued without locking and passed on in order, once per frame. Of the progress
+ * events (PROGRESS, START and FINISH) that arrive during a frame, only the latest one is passed
+ * on, which also rate limits them. Other events are never dropped, so the queue grows while the
+ * terminal is slower than the build; it holds no more than the build writes to the terminal
+ * anyway.
+ *
+ * <p>{@link #close} must be called at the end of the command to write out the queued events.
+ */
+public final class AsynchronousEventHandler implements EventHandler {
+
+  private static final Logger LOG = Logger.getLogger(AsynchronousEventHandler.class.getName());
+
+  /** The frame length if progress events are not rate limited. */
+  static final long DEFAULT_FRAME_MILLIS = 30L;
+
+  private final EventHandler delegate;
+  private final long frameNanos;
+  private final boolean coalesceProgress;
+  private final Queue<Event> events = new ConcurrentLinkedQueue<>();
+  private final AtomicReference<Event> latestProgress = new AtomicReference<>();
+  // Serializes the calls to the delegate between the render thread and close().
+  private final Object renderLock = new Object();
+  private final Thread renderThread;
+  private volatile boolean closed;
+
+  /**
+   * Creates an event handler that passes events on to {@code delegateTo} on its own thread.
+   *
+   * @param delegateTo the event handler that ultimately handles the events
+   * @param rateLimitation the minimum number of seconds between progress events passed on to
+   *     {@code delegateTo}, which is also the time between frames. If less than zero (or NaN), all
+   *     progress events are passed on.
+   */
+  public static AsynchronousEventHandler create(EventHandler delegateTo, double rateLimitation) {
+    if (rateLimitation < 0.0 || Double.isNaN(rateLimitation)) {
+      return new AsynchronousEventHandler(delegateTo, DEFAULT_FRAME_MILLIS, false);
+    }
+    return new AsynchronousEventHandler(
+        delegateTo, Math.max(1L, Math.round(rateLimitation * 1000)), true);
+  }
+
+  AsynchronousEventHandler(EventHandler delegate, long frameMillis, boolean coalesceProgress) {
+    this.delegate = delegate;
+    this.frameNanos = TimeUnit.MILLISECONDS.toNanos(frameMillis);
+    this.coalesceProgress = coalesceProgress;
+    this.renderThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (!closed) {
+          LockSupport.parkNanos(frameNanos);
+          render();
+        }
+      }
+    }, "event-handler-render");
+    renderThread.setDaemon(true);
+    renderThread.start();
+  }
+
+  /** Returns the event handler that the events are passed on to. */
+  public EventHandler getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public void handle(Event event) {
+    switch (event.getKind()) {
+      case PROGRESS:
+      case START:
+      case FINISH:
+        if (coalesceProgress) {
+          latestProgress.set(event);
+        } else {
+          events.add(event);
+        }
+        break;
+      case STDOUT:
+      case STDERR:
+        // The reporter of the event may reuse the array once handle() returns.
+        Event copy = Event.of(event.getKind(), event.getLocation(),
+            event.getMessageBytes().clone());
+        events.add(event.getTag() == null ? copy : copy.withTag(event.getTag()));
+        break;
+      default:
+        events.add(event);
+        break;
+    }
+    if (closed) {
+      // Late events, e.g. from threads that outlive the command, are handled right away.
+      render();
+    }
+  }
+
+  /**
+   * Passes the queued events and the latest progress event on to the delegate.
+   */
+  private void render() {
+    synchronized (renderLock) {
+      try {
+        Event event;
+        while ((event = events.poll()) != null) {
+          delegate.handle(event);
+        }
+        event = latestProgress.getAndSet(null);
+        if (event != null) {
+          delegate.handle(event);
+        }
+      } catch (RuntimeException e) {
+        // Carry on with the next frame rather than stopping all output for the command.
+        LOG.log(Level.WARNING, "Failed to handle event", e);
+      }
+    }
+  }
+
+  /**
+   * Stops the render thread and passes the remaining events on to the delegate. Events handled
+   * afterwards are passed on immediately.
+   */
+  public void close() {
+    closed = true;
+    LockSupport.unpark(renderThread);
+    try {
+      renderThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    render();
+  }
+}
@@ -26,12 +26,14 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Flushables;
 import com.google.devtools.build.lib.Constants;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.flags.InvocationPolicyEnforcer;
+import com.google.devtools.build.lib.pkgcache.PackageCacheOptions;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.AnsiStrippingOutputStream;
 import com.google.devtools.build.lib.util.ExitCode;
@@ -50,9 +52,11 @@ import com.google.devtools.common.options.OptionsParsingException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -144,9 +148,25 @@ public class BlazeCommandDispatcher {
     }
   }
 
+  /** A client waiting for the command lock. Compared by identity. */
+  private static final class QueuedClient {
+    private final String clientDescription;
+    @Nullable private final Object sharingKey;
+
+    private QueuedClient(String clientDescription, @Nullable Object sharingKey) {
+      this.clientDescription = clientDescription;
+      this.sharingKey = sharingKey;
+    }
+  }
+
   private final BlazeRuntime runtime;
   private final Object commandLock;
+  // The client of the command that holds the command lock, or of the host of the shared graph.
   private String currentClientDescription = null;
+  // The commands that share the graph with the running command, if it is shareable.
+  private GraphSharing graphSharing = null;
+  // The clients waiting for the command lock, which is handed to them in this order.
+  private final Deque<QueuedClient> queuedClients = new ArrayDeque<>();
   private OutputStream logOutputStream = null;
   private final LoadingCache<BlazeCommand, OpaqueOptionsData> optionsDataCache =
       CacheBuilder.newBuilder().build(
@@ -264,6 +284,28 @@ public class BlazeCommandDispatcher {
     }
   }
 
+  /**
+   * Parses the command line and the .rc files of a command, and applies the invocation policies.
+   */
+  private OptionsParser parseOptions(BlazeCommand command, Command commandAnnotation,
+      String commandName, List<String> args, List<String> rcfileNotes, OutErr outErr)
+      throws OptionsParsingException {
+    OptionsParser optionsParser = createOptionsParser(command);
+    parseArgsAndConfigs(optionsParser, commandAnnotation, args, rcfileNotes, outErr);
+
+    InvocationPolicyEnforcer optionsPolicyEnforcer =
+        new InvocationPolicyEnforcer(runtime.getInvocationPolicy());
+    optionsPolicyEnforcer.enforce(optionsParser, commandName);
+    optionsPolicyEnforcer =
+        InvocationPolicyEnforcer.create(
+            getRuntime()
+                .getStartupOptionsProvider()
+                .getOptions(BlazeServerStartupOptions.class)
+                .invocationPolicy);
+    optionsPolicyEnforcer.enforce(optionsParser, commandName);
+    return optionsParser;
+  }
+
   /**
    * Executes a single command. Returns the Unix exit status for the Blaze
    * client process, or throws {@link ShutdownBlazeServerException} to
@@ -291,52 +333,166 @@ public class BlazeCommandDispatcher {
     }
 
 
+    // Most commands are serialized: every command shares the workspace's Skyframe executor, event
+    // bus and profiler through its CommandEnvironment. Shareable commands like query may also run
+    // as guests of a running shareable command that synced the package cache with the same
+    // options; see GraphSharing.
+    Object sharingKey = getSharingKey(command, commandName, args);
+    GraphSharing sharing;
+    boolean guest;
     synchronized (commandLock) {
-      if (currentClientDescription != null) {
-        switch (lockingMode) {
-          case WAIT:
-            outErr.printErrLn("Another command (" + currentClientDescription + ") is running. "
-                + " Waiting for it to complete...");
-            commandLock.wait();
-            break;
+      switch (lockingMode) {
+        case WAIT:
+          if (!queuedClients.isEmpty() || !canStart(sharingKey)) {
+            QueuedClient client = new QueuedClient(clientDescription, sharingKey);
+            queuedClients.addLast(client);
+            outErr.printErrLn(getWaitingMessage(queuedClients.size() - 1));
+            waitForTurn(client);
+          }
+          break;
 
-          case ERROR_OUT:
-            outErr.printErrLn(String.format("Another command (" + currentClientDescription + ") is "
-                + "running. Exiting immediately."));
+        case ERROR_OUT:
+          // Clients that are queued but not yet running do not keep this one from starting.
+          if (!canStart(sharingKey)) {
+            outErr.printErrLn("Another command (" + currentClientDescription + ") is running. "
+                + "Exiting immediately.");
             return ExitCode.COMMAND_LINE_ERROR.getNumericExitCode();
+          }
+          break;
 
-          default:
-            throw new IllegalStateException();
-        }
+        default:
+          throw new IllegalStateException();
+      }
+      guest = currentClientDescription != null;
+      if (guest) {
+        sharing = Verify.verifyNotNull(graphSharing);
+        sharing.addGuest();
+      } else {
+        currentClientDescription = clientDescription;
+        sharing = sharingKey == null ? null : new GraphSharing(commandLock, sharingKey);
+        graphSharing = sharing;
       }
-      Verify.verify(currentClientDescription == null);
-      currentClientDescription = clientDescription;
     }
 
     try {
-      return execExclusively(args, outErr, firstContactTime, commandName, command);
+      return execCommand(args, outErr, firstContactTime, commandName, command, sharing, guest);
     } finally {
       synchronized (commandLock) {
-        currentClientDescription = null;
-        commandLock.notify();
+        if (guest) {
+          sharing.removeGuest();
+        } else {
+          if (sharing != null) {
+            // Already done by execCommand, unless the command returned before it ran.
+            sharing.awaitGuests();
+          }
+          currentClientDescription = null;
+          graphSharing = null;
+        }
+        commandLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Returns whether a command with the given sharing key may start now: either no command is
+   * running, or it can run as a guest of the running one.
+   */
+  private boolean canStart(@Nullable Object sharingKey) {
+    return currentClientDescription == null
+        || (sharingKey != null && graphSharing != null && graphSharing.admits(sharingKey));
+  }
+
+  /**
+   * Returns what a {@link Command#shareable} command must have in common with the host of a shared
+   * graph to run as its guest, or null if the command has to run on its own.
+   *
+   * <p>The command line is parsed once before the command takes the lock, for this only. A command
+   * line that does not parse runs on its own, and reports its errors then.
+   */
+  @Nullable
+  private Object getSharingKey(BlazeCommand command, String commandName, List<String> args) {
+    Command commandAnnotation = command.getClass().getAnnotation(Command.class);
+    if (!commandAnnotation.shareable()) {
+      return null;
+    }
+    OptionsParser optionsParser;
+    try {
+      OutputStream discarded = ByteStreams.nullOutputStream();
+      optionsParser = parseOptions(command, commandAnnotation, commandName, args,
+          new ArrayList<String>(), OutErr.create(discarded, discarded));
+    } catch (OptionsParsingException e) {
+      return null;
+    }
+    CommonCommandOptions commonOptions = optionsParser.getOptions(CommonCommandOptions.class);
+    PackageCacheOptions packageCacheOptions = optionsParser.getOptions(PackageCacheOptions.class);
+    // The profilers only record the command that set them up.
+    if (packageCacheOptions == null || commonOptions.profilePath != null
+        || commonOptions.memoryProfilePath != null || commonOptions.samplingProfilePath != null) {
+      return null;
+    }
+    // The package path may be relative to the working directory.
+    return ImmutableList.of(packageCacheOptions, commonOptions.clientCwd);
+  }
+
+  /**
+   * Returns the message printed to a client that has to wait for the running command, if any,
+   * and for the {@code queuedAhead} clients queued before it.
+   */
+  private String getWaitingMessage(int queuedAhead) {
+    StringBuilder message = new StringBuilder();
+    if (currentClientDescription != null) {
+      message.append("Another command (").append(currentClientDescription).append(") is running. ");
+      if (queuedAhead > 0) {
+        message.append(queuedAhead).append(" more command(s) are queued before this one. ");
       }
+    } else {
+      message.append(queuedAhead).append(" command(s) are queued before this one. ");
+    }
+    boolean single = currentClientDescription == null ? queuedAhead == 1 : queuedAhead == 0;
+    return message.append("Waiting for ").append(single ? "it" : "them").append(" to complete...")
+        .toString();
+  }
+
+  /**
+   * Waits until {@code client} is the first queued client and its command may start, then removes
+   * it from the queue. Clients are served in the order in which they asked for the lock, so that a
+   * command does not wait indefinitely behind clients that keep issuing new commands, even if they
+   * could share the graph with the running command.
+   */
+  private void waitForTurn(QueuedClient client) throws InterruptedException {
+    try {
+      while (queuedClients.getFirst() != client || !canStart(client.sharingKey)) {
+        commandLock.wait();
+      }
+    } finally {
+      queuedClients.remove(client);
+      // The next client in the queue may be waiting for its turn, either because this one gave
+      // up, or because it may join this one as a guest.
+      commandLock.notifyAll();
     }
   }
 
-  private int execExclusively(List<String> args, OutErr outErr, long firstContactTime,
-      String commandName, BlazeCommand command) throws ShutdownBlazeServerException {
+  /**
+   * Runs the command once it holds the command lock. A guest of a shared graph leaves the
+   * server-wide state, which the host of the graph set up, alone; see {@link GraphSharing}.
+   */
+  private int execCommand(List<String> args, OutErr outErr, long firstContactTime,
+      String commandName, BlazeCommand command, @Nullable GraphSharing sharing, boolean guest)
+      throws ShutdownBlazeServerException {
     Command commandAnnotation = command.getClass().getAnnotation(Command.class);
+    Iterable<BlazeModule> modules =
+        guest ? ImmutableList.<BlazeModule>of() : runtime.getBlazeModules();
 
     // Record the start time for the profiler. Do not put anything before this!
     long execStartTimeNanos = runtime.getClock().nanoTime();
 
     // The initCommand call also records the start time for the timestamp granularity monitor.
-    CommandEnvironment env = runtime.getWorkspace().initCommand();
+    CommandEnvironment env = runtime.getWorkspace().initCommand(sharing, guest);
     // Record the command's starting time for use by the commands themselves.
     env.recordCommandStartTime(firstContactTime);
 
     AbruptExitException exitCausingException = null;
-    for (BlazeModule module : runtime.getBlazeModules()) {
+    for (BlazeModule module : modules) {
       try {
         module.beforeCommand(commandAnnotation, env);
       } catch (AbruptExitException e) {
@@ -354,18 +510,21 @@ public class BlazeCommandDispatcher {
       return exitCausingException.getExitCode().getNumericExitCode();
     }
 
-    try {
-      Path commandLog = getCommandLogPath(env.getOutputBase());
+    // The command log is the host's.
+    if (!guest) {
+      try {
+        Path commandLog = getCommandLogPath(env.getOutputBase());
 
-      // Unlink old command log from previous build, if present, so scripts
-      // reading it don't conflate it with the command log we're about to write.
-      commandLog.delete();
+        // Unlink old command log from previous build, if present, so scripts
+        // reading it don't conflate it with the command log we're about to write.
+        commandLog.delete();
 
-      logOutputStream = commandLog.getOutputStream();
-      outErr = tee(outErr, OutErr.create(logOutputStream, logOutputStream));
-    } catch (IOException ioException) {
-      LoggingUtil.logToRemote(
-          Level.WARNING, "Unable to delete or open command.log", ioException);
+        logOutputStream = commandLog.getOutputStream();
+        outErr = tee(outErr, OutErr.create(logOutputStream, logOutputStream));
+      } catch (IOException ioException) {
+        LoggingUtil.logToRemote(
+            Level.WARNING, "Unable to delete or open command.log", ioException);
+      }
     }
 
     ExitCode result = checkCwdInWorkspace(env, commandAnnotation, commandName, outErr);
@@ -378,19 +537,8 @@ public class BlazeCommandDispatcher {
     // rc file.
     List<String> rcfileNotes = new ArrayList<>();
     try {
-      optionsParser = createOptionsParser(command);
-      parseArgsAndConfigs(optionsParser, commandAnnotation, args, rcfileNotes, outErr);
-
-      InvocationPolicyEnforcer optionsPolicyEnforcer =
-          new InvocationPolicyEnforcer(runtime.getInvocationPolicy());
-      optionsPolicyEnforcer.enforce(optionsParser, commandName);
-      optionsPolicyEnforcer =
-          InvocationPolicyEnforcer.create(
-              getRuntime()
-                  .getStartupOptionsProvider()
-                  .getOptions(BlazeServerStartupOptions.class)
-                  .invocationPolicy);
-      optionsPolicyEnforcer.enforce(optionsParser, commandName);
+      optionsParser =
+          parseOptions(command, commandAnnotation, commandName, args, rcfileNotes, outErr);
     } catch (OptionsParsingException e) {
       for (String note : rcfileNotes) {
         outErr.printErrLn("INFO: " + note);
@@ -414,7 +562,9 @@ public class BlazeCommandDispatcher {
     }
 
     CommonCommandOptions commonOptions = optionsParser.getOptions(CommonCommandOptions.class);
-    BlazeRuntime.setupLogging(commonOptions.verbosity);
+    if (!guest) {
+      BlazeRuntime.setupLogging(commonOptions.verbosity);
+    }
 
     // Do this before an actual crash so we don't have to worry about
     // allocating memory post-crash.
@@ -426,7 +576,7 @@ public class BlazeCommandDispatcher {
     EventHandler handler = createEventHandler(outErr, eventHandlerOptions);
     Reporter reporter = env.getReporter();
     reporter.addHandler(handler);
-    env.getEventBus().register(handler);
+    env.getEventBus().register(getTerminalHandler(handler));
 
     // We register an ANSI-allowing handler associated with {@code handler} so that ANSI control
     // codes can be re-introduced later even if blaze is invoked with --color=no. This is useful
@@ -436,22 +586,24 @@ public class BlazeCommandDispatcher {
     if (!eventHandlerOptions.useColor()) {
       ansiAllowingHandler = createEventHandler(colorfulOutErr, eventHandlerOptions);
       reporter.registerAnsiAllowingHandler(handler, ansiAllowingHandler);
-      if (ansiAllowingHandler instanceof ExperimentalEventHandler) {
+      if (getTerminalHandler(ansiAllowingHandler) instanceof ExperimentalEventHandler) {
         env.getEventBus()
             .register(
                 new PassiveExperimentalEventHandler(
-                    (ExperimentalEventHandler) ansiAllowingHandler));
+                    (ExperimentalEventHandler) getTerminalHandler(ansiAllowingHandler)));
       }
     }
 
     try {
       // While a Blaze command is active, direct all errors to the client's
-      // event handler (and out/err streams).
-      OutErr reporterOutErr = reporter.getOutErr();
-      System.setOut(new PrintStream(reporterOutErr.getOutputStream(), /*autoflush=*/true));
-      System.setErr(new PrintStream(reporterOutErr.getErrorStream(), /*autoflush=*/true));
+      // event handler (and out/err streams). Those of guests go to the host's.
+      if (!guest) {
+        OutErr reporterOutErr = reporter.getOutErr();
+        System.setOut(new PrintStream(reporterOutErr.getOutputStream(), /*autoflush=*/true));
+        System.setErr(new PrintStream(reporterOutErr.getErrorStream(), /*autoflush=*/true));
+      }
 
-      for (BlazeModule module : runtime.getBlazeModules()) {
+      for (BlazeModule module : modules) {
         module.checkEnvironment(env);
       }
 
@@ -491,13 +643,19 @@ public class BlazeCommandDispatcher {
           : ExitCode.BLAZE_INTERNAL_ERROR.getNumericExitCode();
       throw new ShutdownBlazeServerException(numericExitCode, ShutdownMethod.CLEAN, e);
     } finally {
+      if (sharing != null && !guest) {
+        // The guests run on the server-wide state that afterCommand tears down.
+        sharing.awaitGuests();
+      }
       runtime.afterCommand(env, numericExitCode);
       // Swallow IOException, as we are already in a finally clause
       Flushables.flushQuietly(outErr.getOutputStream());
       Flushables.flushQuietly(outErr.getErrorStream());
 
-      System.setOut(savedOut);
-      System.setErr(savedErr);
+      if (!guest) {
+        System.setOut(savedOut);
+        System.setErr(savedErr);
+      }
       reporter.removeHandler(handler);
       releaseHandler(handler);
       if (!eventHandlerOptions.useColor()) {
@@ -515,7 +673,7 @@ public class BlazeCommandDispatcher {
   @VisibleForTesting
   public int exec(List<String> args, LockingMode lockingMode, String clientDescription,
       OutErr originalOutErr) throws ShutdownBlazeServerException, InterruptedException {
-    return exec(args, originalOutErr, LockingMode.ERROR_OUT, clientDescription,
+    return exec(args, originalOutErr, lockingMode, clientDescription,
         runtime.getClock().currentTimeMillis());
   }
 
@@ -732,21 +890,43 @@ public class BlazeCommandDispatcher {
       BlazeCommandEventHandler.Options eventOptions) {
     EventHandler eventHandler;
     if (eventOptions.experimentalUi) {
-      // The experimental event handler is not to be rate limited.
-      return new ExperimentalEventHandler(outErr, eventOptions, runtime.getClock());
+      eventHandler = new ExperimentalEventHandler(outErr, eventOptions, runtime.getClock());
+      if (!eventOptions.experimentalAsyncUi) {
+        // The experimental event handler is not to be rate limited.
+        return eventHandler;
+      }
     } else if ((eventOptions.useColor() || eventOptions.useCursorControl())) {
       eventHandler = new FancyTerminalEventHandler(outErr, eventOptions);
     } else {
       eventHandler = new BlazeCommandEventHandler(outErr, eventOptions);
     }
 
+    if (eventOptions.experimentalAsyncUi) {
+      // Also rate limits the progress messages.
+      return AsynchronousEventHandler.create(eventHandler, eventOptions.showProgressRateLimit);
+    }
     return RateLimitingEventHandler.create(eventHandler, eventOptions.showProgressRateLimit);
   }
 
+  /**
+   * Returns the event handler that writes to the terminal, which also subscribes to the events
+   * posted on the event bus.
+   */
+  private static EventHandler getTerminalHandler(EventHandler eventHandler) {
+    return eventHandler instanceof AsynchronousEventHandler
+        ? ((AsynchronousEventHandler) eventHandler).getDelegate()
+        : eventHandler;
+  }
+
   /**
    * Unsets the event handler.
    */
   private void releaseHandler(EventHandler eventHandler) {
+    if (eventHandler instanceof AsynchronousEventHandler) {
+      // Write out the events that are still queued.
+      ((AsynchronousEventHandler) eventHandler).close();
+      eventHandler = ((AsynchronousEventHandler) eventHandler).getDelegate();
+    }
     if (eventHandler instanceof FancyTerminalEventHandler) {
       // Make sure that the terminal state of the old event handler is clear
       // before creating a new one.
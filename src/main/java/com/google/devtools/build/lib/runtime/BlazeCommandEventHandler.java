@@ -157,6 +157,16 @@ public class BlazeCommandEventHandler implements EventHandler {
     )
     public boolean experimentalUiDebugAllEvents;
 
+    @Option(
+      name = "experimental_async_ui",
+      defaultValue = "false",
+      category = "verbosity",
+      help = "Write to the terminal from a dedicated thread, so that a slow terminal does not slow "
+          + "down the build. Progress messages are combined and written at most once every "
+          + "--show_progress_rate_limit seconds."
+    )
+    public boolean experimentalAsyncUi;
+
 
     public boolean useColor() {
       return useColorEnum == UseColor.YES || (useColorEnum == UseColor.AUTO && isATty);
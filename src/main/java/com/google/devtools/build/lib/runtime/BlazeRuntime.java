@@ -48,6 +48,7 @@ import com.google.devtools.build.lib.profiler.ProfilePhase;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.profiler.SamplingProfiler;
 import com.google.devtools.build.lib.query2.AbstractBlazeQueryEnvironment;
 import com.google.devtools.build.lib.query2.QueryEnvironmentFactory;
 import com.google.devtools.build.lib.query2.output.OutputFormatter;
@@ -360,6 +361,7 @@ public final class BlazeRuntime {
   private final boolean initProfiler(CommandEnvironment env, CommonCommandOptions options,
       UUID buildID, long execStartTimeNanos) {
     OutputStream out = null;
+    Profiler.Format format = Profiler.Format.DEFLATED;
     boolean recordFullProfilerData = false;
     ProfiledTaskKinds profiledTasks = ProfiledTaskKinds.NONE;
 
@@ -368,6 +370,9 @@ public final class BlazeRuntime {
         Path profilePath = env.getWorkspace().getRelative(options.profilePath);
 
         recordFullProfilerData = options.recordFullProfilerData;
+        if (options.compactProfile) {
+          format = Profiler.Format.COMPACT;
+        }
         out = new BufferedOutputStream(profilePath.getOutputStream(), 1024 * 1024);
         env.getReporter().handle(Event.info("Writing profile data to '" + profilePath + "'"));
         profiledTasks = ProfiledTaskKinds.ALL;
@@ -377,7 +382,7 @@ public final class BlazeRuntime {
         profiledTasks = ProfiledTaskKinds.SLOWEST;
       }
       if (profiledTasks != ProfiledTaskKinds.NONE) {
-        Profiler.instance().start(profiledTasks, out,
+        Profiler.instance().start(profiledTasks, out, format,
             "Blaze profile for " + env.getOutputBase() + " at " + new Date()
             + ", build ID: " + buildID,
             recordFullProfilerData, clock, execStartTimeNanos);
@@ -495,6 +500,22 @@ public final class BlazeRuntime {
       }
     }
 
+    if (options.samplingProfilePath != null && options.samplingProfileIntervalMillis <= 0) {
+      env.getReporter().handle(
+          Event.error("--experimental_sampling_profile_interval must be positive"));
+    } else if (options.samplingProfilePath != null) {
+      Path samplingProfilePath =
+          env.getWorkingDirectory().getRelative(options.samplingProfilePath);
+      try {
+        SamplingProfiler.instance().start(
+            new BufferedOutputStream(samplingProfilePath.getOutputStream()),
+            options.samplingProfileIntervalMillis);
+      } catch (IOException e) {
+        env.getReporter().handle(
+            Event.error("Error while creating sampling profile file: " + e.getMessage()));
+      }
+    }
+
     // Initialize exit code to dummy value for afterCommand.
     storedExitCode.set(ExitCode.RESERVED.getNumericExitCode());
   }
@@ -522,6 +543,12 @@ public final class BlazeRuntime {
     // Remove any filters that the command might have added to the reporter.
     env.getReporter().setOutputFilter(OutputFilter.OUTPUT_EVERYTHING);
 
+    if (env.isGuest()) {
+      // The host of the shared graph tears down the server-wide state once it is done.
+      env.getEventBus().post(new CommandCompleteEvent(exitCode));
+      return;
+    }
+
     notifyCommandComplete(exitCode);
 
     for (BlazeModule module : blazeModules) {
@@ -535,6 +562,9 @@ public final class BlazeRuntime {
       MemoryProfiler.instance().stop();
     } catch (IOException e) {
       env.getReporter().handle(Event.error("Error while writing profile file: " + e.getMessage()));
+    } finally {
+      // The sampling thread must not outlive the command, even if writing a profile failed.
+      SamplingProfiler.instance().stop();
     }
   }
 
@@ -25,6 +25,7 @@ import com.google.devtools.build.lib.actions.cache.NullActionCache;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.WorkspaceStatusAction;
 import com.google.devtools.build.lib.analysis.config.BinTools;
+import com.google.devtools.build.lib.events.CompactEvents;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
@@ -87,6 +88,7 @@ public final class BlazeWorkspace {
       writeDoNotBuildHereFile(runtime.getStartupOptionsProvider());
     }
     setupExecRoot();
+    setupEventSpillDirectory();
     // Here we use outputBase instead of outputPath because we need a file system to create the
     // latter.
     this.outputBaseFilesystemTypeName = FileSystemUtils.getFileSystem(getOutputBase());
@@ -185,7 +187,16 @@ public final class BlazeWorkspace {
   }
 
   public CommandEnvironment initCommand() {
-    return new CommandEnvironment(runtime, this, new EventBus(eventBusExceptionHandler));
+    return initCommand(null, /*guest=*/false);
+  }
+
+  /**
+   * Initializes a command that shares the Skyframe graph with other commands as described by
+   * {@code sharing}, as their host or as a guest.
+   */
+  CommandEnvironment initCommand(@Nullable GraphSharing sharing, boolean guest) {
+    return new CommandEnvironment(
+        runtime, this, new EventBus(eventBusExceptionHandler), sharing, guest);
   }
 
   void clearEventBus() {
@@ -288,5 +299,19 @@ public final class BlazeWorkspace {
           + e.getMessage());
     }
   }
+
+  /**
+   * Lets large stored events be moved to files under outputBase. The events of the previous
+   * server are gone, so are their files.
+   */
+  private void setupEventSpillDirectory() {
+    Path directory = getOutputBase().getChild("stored_events");
+    try {
+      CompactEvents.setSpillDirectory(directory);
+    } catch (IOException e) {
+      LOG.warning("failed to set up stored events directory '" + directory + "': "
+          + e.getMessage());
+    }
+  }
 }
 
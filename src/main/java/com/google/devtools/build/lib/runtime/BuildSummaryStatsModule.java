@@ -14,21 +14,36 @@
 package com.google.devtools.build.lib.runtime;
 
 import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
+import com.google.devtools.build.lib.analysis.AnalysisPhaseCompleteEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildCompleteEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.ExecutionStartingEvent;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.pkgcache.LoadingPhaseCompleteEvent;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.skyframe.LoadingPhaseStartedEvent;
+import com.google.devtools.build.lib.skyframe.LoadingProgressReceiver;
 import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.common.options.OptionsBase;
+import com.google.devtools.common.options.OptionsProvider;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 /**
  * Blaze module for the build summary message that reports various stats to the user.
  */
@@ -36,22 +51,71 @@ public class BuildSummaryStatsModule extends BlazeModule {
 
   private static final Logger LOG = Logger.getLogger(BuildSummaryStatsModule.class.getName());
 
+  /** The number of slower targets and packages named when comparing with the last build. */
+  private static final int SLOWER_TARGETS_LIMIT = 5;
+
   private SimpleCriticalPathComputer criticalPathComputer;
+  private CommandEnvironment env;
   private EventBus eventBus;
   private Reporter reporter;
 
+  // Null unless --critical_path_history is set.
+  private Path historyFile;
+  private LoadingProgressReceiver loadingProgressReceiver;
+  private long loadingTimeMillis;
+  private long analysisTimeMillis;
+  private ImmutableMap<Label, Long> configuredTargetTimes = ImmutableMap.of();
+
   @Override
   public void beforeCommand(Command command, CommandEnvironment env) {
+    this.env = env;
     this.reporter = env.getReporter();
     this.eventBus = env.getEventBus();
     eventBus.register(this);
   }
 
+  @Override
+  public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
+    return command.builds()
+        ? ImmutableList.<Class<? extends OptionsBase>>of(BuildSummaryStatsOptions.class)
+        : ImmutableList.<Class<? extends OptionsBase>>of();
+  }
+
+  @Override
+  public void handleOptions(OptionsProvider optionsProvider) {
+    BuildSummaryStatsOptions options = optionsProvider.getOptions(BuildSummaryStatsOptions.class);
+    if (options != null && !options.criticalPathHistory.isEmpty()) {
+      historyFile = env.getWorkingDirectory().getRelative(options.criticalPathHistory);
+    }
+  }
+
   @Override
   public void afterCommand() {
     this.criticalPathComputer = null;
+    this.env = null;
     this.eventBus = null;
     this.reporter = null;
+    this.historyFile = null;
+    this.loadingProgressReceiver = null;
+    this.loadingTimeMillis = 0;
+    this.analysisTimeMillis = 0;
+    this.configuredTargetTimes = ImmutableMap.of();
+  }
+
+  @Subscribe
+  public void loadingPhaseStarted(LoadingPhaseStartedEvent event) {
+    loadingProgressReceiver = event.getLoadingProgressReceiver();
+  }
+
+  @Subscribe
+  public void loadingPhaseComplete(LoadingPhaseCompleteEvent event) {
+    loadingTimeMillis = event.getTimeInMs();
+  }
+
+  @Subscribe
+  public void analysisPhaseComplete(AnalysisPhaseCompleteEvent event) {
+    analysisTimeMillis = event.getTimeInMs();
+    configuredTargetTimes = event.getConfiguredTargetTimes();
   }
 
   @Subscribe
@@ -67,10 +131,10 @@ public class BuildSummaryStatsModule extends BlazeModule {
       List<String> items = new ArrayList<>();
       items.add(String.format("Elapsed time: %.3fs", event.getResult().getElapsedSeconds()));
 
+      AggregatedCriticalPath<SimpleCriticalPathComponent> criticalPath = null;
       if (criticalPathComputer != null) {
         Profiler.instance().startTask(ProfilerTask.CRITICAL_PATH, "Critical path");
-        AggregatedCriticalPath<SimpleCriticalPathComponent> criticalPath =
-            criticalPathComputer.aggregate();
+        criticalPath = criticalPathComputer.aggregate();
         items.add(criticalPath.toStringSummary());
         LOG.info(criticalPath.toString());
         LOG.info("Slowest actions:\n  " + Joiner.on("\n  ")
@@ -88,8 +152,67 @@ public class BuildSummaryStatsModule extends BlazeModule {
       }
 
       reporter.handle(Event.info(Joiner.on(", ").join(items)));
+      if (historyFile != null) {
+        compareWithLastBuild(getBuildTimings(criticalPath));
+      }
     } finally {
       criticalPathComputer = null;
     }
   }
+
+  private BuildTimings getBuildTimings(
+      @Nullable AggregatedCriticalPath<SimpleCriticalPathComponent> criticalPath) {
+    BuildTimings.Builder timings = new BuildTimings.Builder();
+    if (criticalPath != null) {
+      timings.setPhaseTimes(loadingTimeMillis, analysisTimeMillis, criticalPath.totalTime());
+      timings.setStrategyTimes(criticalPath.getTimeByStrategy());
+      for (SimpleCriticalPathComponent component : criticalPath.components()) {
+        Label label = component.getAction().getOwner().getLabel();
+        if (label != null) {
+          timings.addCriticalPathTarget(label.toString());
+        }
+      }
+      for (Map.Entry<Label, Long> entry : criticalPathComputer.getExecutionTimes().entrySet()) {
+        timings.addExecutionTime(
+            entry.getKey().toString(), TimeUnit.NANOSECONDS.toMillis(entry.getValue()));
+      }
+    } else {
+      timings.setPhaseTimes(loadingTimeMillis, analysisTimeMillis, 0);
+    }
+    if (loadingProgressReceiver != null) {
+      for (Map.Entry<PackageIdentifier, Long> entry
+          : loadingProgressReceiver.getPackageTimes().entrySet()) {
+        timings.addPackageTime(
+            entry.getKey().toString(), TimeUnit.NANOSECONDS.toMillis(entry.getValue()));
+      }
+    }
+    for (Map.Entry<Label, Long> entry : configuredTargetTimes.entrySet()) {
+      timings.addAnalysisTime(
+          entry.getKey().toString(), TimeUnit.NANOSECONDS.toMillis(entry.getValue()));
+    }
+    return timings.build();
+  }
+
+  /**
+   * Reports the critical path of the build compared with the one saved in the history file, then
+   * saves the timings of this build in its place.
+   */
+  private void compareWithLastBuild(BuildTimings timings) {
+    BuildTimings previous = null;
+    if (historyFile.exists()) {
+      try {
+        previous = BuildTimings.readFrom(historyFile);
+      } catch (IOException e) {
+        reporter.handle(Event.warn("Could not read the timings of the last build from "
+            + historyFile + ": " + e.getMessage()));
+      }
+    }
+    reporter.handle(Event.info(timings.describe(previous, SLOWER_TARGETS_LIMIT)));
+    try {
+      timings.writeTo(historyFile);
+    } catch (IOException e) {
+      reporter.handle(Event.warn(
+          "Could not save the timings of the build to " + historyFile + ": " + e.getMessage()));
+    }
+  }
 }
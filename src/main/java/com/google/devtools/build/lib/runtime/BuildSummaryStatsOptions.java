@@ -0,0 +1,34 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+
+/**
+ * Options for the build summary printed by {@link BuildSummaryStatsModule}.
+ */
+public class BuildSummaryStatsOptions extends OptionsBase {
+
+  @Option(
+      name = "critical_path_history",
+      defaultValue = "",
+      category = "verbosity",
+      help = "If set, the critical path of the build is broken down by phase and by how its "
+          + "actions ran, and compared with the build that last wrote this file. The timings of "
+          + "the build, per package and target, are then saved to the file."
+  )
+  public String criticalPathHistory;
+
+}
@@ -0,0 +1,352 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Ordering;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * The timings of a build that determine its critical path: the loading, analysis and execution
+ * phases, which run one after the other, how the actions on the execution critical path ran, and
+ * the time spent on each package and target. All times are in milliseconds.
+ *
+ * <p>The timings can be saved to a file, so that the next build can tell what made its critical
+ * path longer. The file has one tab-separated record per line, e.g. {@code phase analysis 2300},
+ * {@code strategy standalone 5120}, {@code critical_path //foo:bar},
+ * {@code package foo 40}, {@code analysis //foo:bar 12} or {@code execution //foo:bar 5000}.
+ */
+public final class BuildTimings {
+
+  private static final String HEADER = "# Build timings, see BuildTimings.java";
+
+  private final long loadingTime;
+  private final long analysisTime;
+  private final long executionTime;
+  private final ImmutableMap<String, Long> strategyTimes;
+  private final ImmutableSet<String> criticalPath;
+  private final ImmutableMap<String, Long> packageTimes;
+  private final ImmutableMap<String, Long> analysisTimes;
+  private final ImmutableMap<String, Long> executionTimes;
+
+  private BuildTimings(Builder builder) {
+    this.loadingTime = builder.loadingTime;
+    this.analysisTime = builder.analysisTime;
+    this.executionTime = builder.executionTime;
+    this.strategyTimes = ImmutableMap.copyOf(builder.strategyTimes);
+    this.criticalPath = builder.criticalPath.build();
+    this.packageTimes = ImmutableMap.copyOf(builder.packageTimes);
+    this.analysisTimes = ImmutableMap.copyOf(builder.analysisTimes);
+    this.executionTimes = ImmutableMap.copyOf(builder.executionTimes);
+  }
+
+  /** Returns the length of the critical path of the whole build. */
+  public long getCriticalPathTime() {
+    return loadingTime + analysisTime + executionTime;
+  }
+
+  public long getLoadingTime() {
+    return loadingTime;
+  }
+
+  public long getAnalysisTime() {
+    return analysisTime;
+  }
+
+  /** Returns the length of the critical path of the execution phase. */
+  public long getExecutionTime() {
+    return executionTime;
+  }
+
+  /** Returns the time of the execution critical path, by how its actions ran. */
+  public ImmutableMap<String, Long> getStrategyTimes() {
+    return strategyTimes;
+  }
+
+  /** Returns the targets owning the actions on the execution critical path. */
+  public ImmutableSet<String> getCriticalPath() {
+    return criticalPath;
+  }
+
+  /** Returns the time spent loading each package. */
+  public ImmutableMap<String, Long> getPackageTimes() {
+    return packageTimes;
+  }
+
+  /** Returns the time spent analyzing each target. */
+  public ImmutableMap<String, Long> getAnalysisTimes() {
+    return analysisTimes;
+  }
+
+  /** Returns the time spent running the actions of each target. */
+  public ImmutableMap<String, Long> getExecutionTimes() {
+    return executionTimes;
+  }
+
+  /**
+   * Describes the critical path of this build and, if {@code previous} is not null, how it
+   * compares to the previous build.
+   *
+   * @param limit the maximum number of slower targets and packages to name
+   */
+  public String describe(@Nullable BuildTimings previous, int limit) {
+    StringBuilder sb = new StringBuilder("Critical path ");
+    sb.append(seconds(getCriticalPathTime()));
+    if (previous != null) {
+      sb.append(", ").append(difference(getCriticalPathTime(), previous.getCriticalPathTime()))
+          .append(" vs. last build");
+    }
+    sb.append(": loading ").append(compare(loadingTime, previous, previous == null
+        ? 0 : previous.loadingTime));
+    sb.append(", analysis ").append(compare(analysisTime, previous, previous == null
+        ? 0 : previous.analysisTime));
+    sb.append(", execution ").append(compare(executionTime, previous, previous == null
+        ? 0 : previous.executionTime));
+
+    if (!strategyTimes.isEmpty()) {
+      List<String> strategies = new ArrayList<>();
+      for (Map.Entry<String, Long> entry : strategyTimes.entrySet()) {
+        Long previousTime = previous == null ? null : previous.strategyTimes.get(entry.getKey());
+        strategies.add(entry.getKey() + " " + compare(entry.getValue(), previous,
+            previousTime == null ? 0 : previousTime));
+      }
+      sb.append("\n  Execution critical path by strategy: ");
+      Joiner.on(", ").appendTo(sb, strategies);
+    }
+
+    if (previous != null) {
+      Map<String, Long> targetTimes = totalTargetTimes();
+      Map<String, Long> previousTargetTimes = previous.totalTargetTimes();
+      List<String> targets = new ArrayList<>();
+      for (String label : slowerKeys(targetTimes, previousTargetTimes, limit)) {
+        targets.add(describeSlower(label, targetTimes, previousTargetTimes)
+            + (criticalPath.contains(label) ? " (critical path)" : ""));
+      }
+      if (!targets.isEmpty()) {
+        sb.append("\n  Slower targets: ");
+        Joiner.on(", ").appendTo(sb, targets);
+      }
+      List<String> packages = new ArrayList<>();
+      for (String pkg : slowerKeys(packageTimes, previous.packageTimes, limit)) {
+        packages.add(describeSlower(pkg, packageTimes, previous.packageTimes));
+      }
+      if (!packages.isEmpty()) {
+        sb.append("\n  Slower packages: ");
+        Joiner.on(", ").appendTo(sb, packages);
+      }
+    }
+    return sb.toString();
+  }
+
+  /** Returns the analysis and execution time of each target. */
+  private Map<String, Long> totalTargetTimes() {
+    Map<String, Long> times = new LinkedHashMap<>(analysisTimes);
+    for (Map.Entry<String, Long> entry : executionTimes.entrySet()) {
+      Long time = times.get(entry.getKey());
+      times.put(entry.getKey(), (time == null ? 0 : time) + entry.getValue());
+    }
+    return times;
+  }
+
+  /**
+   * Returns the keys that took longer than in the previous build, the largest difference first.
+   * Keys only in the previous build did not run in this one and are ignored; keys only in this
+   * build count as new.
+   */
+  private static List<String> slowerKeys(
+      Map<String, Long> times, Map<String, Long> previousTimes, int limit) {
+    final Map<String, Long> differences = new LinkedHashMap<>();
+    for (String key : times.keySet()) {
+      long difference = difference(key, times, previousTimes);
+      if (difference > 0) {
+        differences.put(key, difference);
+      }
+    }
+    return new Ordering<String>() {
+      @Override
+      public int compare(String a, String b) {
+        return Long.compare(differences.get(a), differences.get(b));
+      }
+    }.greatestOf(differences.keySet(), limit);
+  }
+
+  private static long difference(
+      String key, Map<String, Long> times, Map<String, Long> previousTimes) {
+    Long previousTime = previousTimes.get(key);
+    return times.get(key) - (previousTime == null ? 0 : previousTime);
+  }
+
+  private static String describeSlower(
+      String key, Map<String, Long> times, Map<String, Long> previousTimes) {
+    return key + " " + difference(difference(key, times, previousTimes), 0)
+        + (previousTimes.containsKey(key) ? "" : " (new)");
+  }
+
+  private static String compare(long time, @Nullable BuildTimings previous, long previousTime) {
+    return previous == null
+        ? seconds(time)
+        : seconds(time) + " (" + difference(time, previousTime) + ")";
+  }
+
+  private static String seconds(long millis) {
+    return String.format("%.2fs", millis / 1000.0);
+  }
+
+  private static String difference(long millis, long previousMillis) {
+    return String.format("%+.2fs", (millis - previousMillis) / 1000.0);
+  }
+
+  /** Saves the timings to a file, replacing its contents. */
+  public void writeTo(Path file) throws IOException {
+    List<String> lines = new ArrayList<>();
+    lines.add(HEADER);
+    lines.add("phase\tloading\t" + loadingTime);
+    lines.add("phase\tanalysis\t" + analysisTime);
+    lines.add("phase\texecution\t" + executionTime);
+    addLines(lines, "strategy", strategyTimes);
+    for (String label : criticalPath) {
+      lines.add("critical_path\t" + label);
+    }
+    addLines(lines, "package", packageTimes);
+    addLines(lines, "analysis", analysisTimes);
+    addLines(lines, "execution", executionTimes);
+    FileSystemUtils.writeLinesAs(file, UTF_8, lines);
+  }
+
+  private static void addLines(List<String> lines, String kind, Map<String, Long> times) {
+    for (Map.Entry<String, Long> entry : times.entrySet()) {
+      lines.add(kind + "\t" + entry.getKey() + "\t" + entry.getValue());
+    }
+  }
+
+  /**
+   * Reads timings saved by {@link #writeTo}.
+   *
+   * @throws IOException if the file cannot be read or is not a timings file
+   */
+  public static BuildTimings readFrom(Path file) throws IOException {
+    Builder builder = new Builder();
+    Splitter splitter = Splitter.on('\t');
+    for (String line : FileSystemUtils.readLines(file, UTF_8)) {
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      List<String> fields = splitter.splitToList(line);
+      try {
+        switch (fields.get(0)) {
+          case "phase":
+            long time = Long.parseLong(fields.get(2));
+            switch (fields.get(1)) {
+              case "loading":
+                builder.loadingTime = time;
+                break;
+              case "analysis":
+                builder.analysisTime = time;
+                break;
+              case "execution":
+                builder.executionTime = time;
+                break;
+              default:
+                break;
+            }
+            break;
+          case "strategy":
+            builder.strategyTimes.put(fields.get(1), Long.parseLong(fields.get(2)));
+            break;
+          case "critical_path":
+            builder.addCriticalPathTarget(fields.get(1));
+            break;
+          case "package":
+            builder.packageTimes.put(fields.get(1), Long.parseLong(fields.get(2)));
+            break;
+          case "analysis":
+            builder.analysisTimes.put(fields.get(1), Long.parseLong(fields.get(2)));
+            break;
+          case "execution":
+            builder.executionTimes.put(fields.get(1), Long.parseLong(fields.get(2)));
+            break;
+          default:
+            // Written by a newer version, ignore.
+            break;
+        }
+      } catch (IndexOutOfBoundsException | NumberFormatException e) {
+        throw new IOException(file + ": invalid build timings line '" + line + "'", e);
+      }
+    }
+    return builder.build();
+  }
+
+  /** Builder for {@link BuildTimings}. */
+  public static final class Builder {
+    private long loadingTime;
+    private long analysisTime;
+    private long executionTime;
+    private final Map<String, Long> strategyTimes = new LinkedHashMap<>();
+    private final ImmutableSet.Builder<String> criticalPath = ImmutableSet.builder();
+    private final Map<String, Long> packageTimes = new LinkedHashMap<>();
+    private final Map<String, Long> analysisTimes = new LinkedHashMap<>();
+    private final Map<String, Long> executionTimes = new LinkedHashMap<>();
+
+    public Builder setPhaseTimes(long loadingTime, long analysisTime, long executionTime) {
+      this.loadingTime = loadingTime;
+      this.analysisTime = analysisTime;
+      this.executionTime = executionTime;
+      return this;
+    }
+
+    public Builder setStrategyTimes(Map<String, Long> strategyTimes) {
+      this.strategyTimes.clear();
+      this.strategyTimes.putAll(strategyTimes);
+      return this;
+    }
+
+    public Builder addCriticalPathTarget(String label) {
+      criticalPath.add(label);
+      return this;
+    }
+
+    public Builder addPackageTime(String pkg, long time) {
+      packageTimes.put(pkg, time);
+      return this;
+    }
+
+    public Builder addAnalysisTime(String label, long time) {
+      analysisTimes.put(label, time);
+      return this;
+    }
+
+    public Builder addExecutionTime(String label, long time) {
+      executionTimes.put(label, time);
+      return this;
+    }
+
+    public BuildTimings build() {
+      return new BuildTimings(this);
+    }
+  }
+}
@@ -72,6 +72,13 @@ public @interface Command {
    */
   boolean allowResidue() default false;
 
+  /**
+   * True if the command only reads the Skyframe graph once it has set up the package cache, so that
+   * it can run alongside other such commands set up with the same package cache options instead of
+   * waiting for them. See {@link BlazeCommandDispatcher}.
+   */
+  boolean shareable() default false;
+
   /**
    * Returns true if this command wants to write binary data to stdout.
    * Enabling this flag will disable ANSI escape stripping for this command.
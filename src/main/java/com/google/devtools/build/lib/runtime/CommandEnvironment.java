@@ -68,6 +68,8 @@ import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicReference;
 
+import javax.annotation.Nullable;
+
 /**
  * Encapsulates the state needed for a single command. The environment is dropped when the current
  * command is done and all corresponding objects are garbage collected.
@@ -83,6 +85,8 @@ public final class CommandEnvironment {
   private final BlazeModule.ModuleEnvironment blazeModuleEnvironment;
   private final Map<String, String> clientEnv = new HashMap<>();
   private final TimestampGranularityMonitor timestampGranularityMonitor;
+  @Nullable private final GraphSharing graphSharing;
+  private final boolean guest;
 
   private PathFragment relativeWorkingDirectory = PathFragment.EMPTY_FRAGMENT;
   private long commandStartTime;
@@ -107,7 +111,9 @@ public final class CommandEnvironment {
     }
   }
 
-  CommandEnvironment(BlazeRuntime runtime, BlazeWorkspace workspace, EventBus eventBus) {
+  CommandEnvironment(BlazeRuntime runtime, BlazeWorkspace workspace, EventBus eventBus,
+      @Nullable GraphSharing graphSharing, boolean guest) {
+    Preconditions.checkArgument(graphSharing != null || !guest);
     this.runtime = runtime;
     this.workspace = workspace;
     this.directories = workspace.getDirectories();
@@ -116,6 +122,8 @@ public final class CommandEnvironment {
     this.eventBus = eventBus;
     this.blazeModuleEnvironment = new BlazeModuleEnvironment();
     this.timestampGranularityMonitor = new TimestampGranularityMonitor(runtime.getClock());
+    this.graphSharing = graphSharing;
+    this.guest = guest;
     // Record the command's starting time again, for use by
     // TimestampGranularityMonitor.waitForTimestampGranularity().
     // This should be done as close as possible to the start of
@@ -126,7 +134,9 @@ public final class CommandEnvironment {
     // in setupPackageCache(). This leads to NPE if we don't set it here.
     this.workingDirectory = directories.getWorkspace();
 
-    workspace.getSkyframeExecutor().setEventBus(eventBus);
+    if (!guest) {
+      workspace.getSkyframeExecutor().setEventBus(eventBus);
+    }
   }
 
   public BlazeRuntime getRuntime() {
@@ -152,6 +162,14 @@ public final class CommandEnvironment {
     return eventBus;
   }
 
+  /**
+   * Returns whether this command runs alongside the command that set up the server-wide state and
+   * the Skyframe graph, which it leaves alone; see {@link GraphSharing}.
+   */
+  boolean isGuest() {
+    return guest;
+  }
+
   public BlazeModule.ModuleEnvironment getBlazeModuleEnvironment() {
     return blazeModuleEnvironment;
   }
@@ -387,6 +405,11 @@ public final class CommandEnvironment {
    */
   public void setupPackageCache(PackageCacheOptions packageCacheOptions,
       String defaultsPackageContents) throws InterruptedException, AbruptExitException {
+    if (guest) {
+      // The host synced the package cache with the same options, and the graph must not change
+      // under the commands that share it.
+      return;
+    }
     SkyframeExecutor skyframeExecutor = getSkyframeExecutor();
     if (!skyframeExecutor.hasIncrementalState()) {
       skyframeExecutor.resetEvaluator();
@@ -394,6 +417,9 @@ public final class CommandEnvironment {
     skyframeExecutor.sync(reporter, packageCacheOptions, getOutputBase(),
         getWorkingDirectory(), defaultsPackageContents, commandId,
         timestampGranularityMonitor);
+    if (graphSharing != null) {
+      graphSharing.graphReady();
+    }
   }
 
   public void recordLastExecutionTime() {
@@ -442,9 +468,6 @@ public final class CommandEnvironment {
       }
     }
 
-    SkyframeExecutor skyframeExecutor = getSkyframeExecutor();
-    skyframeExecutor.setOutputService(outputService);
-
     // Ensure that the working directory will be under the workspace directory.
     Path workspace = getWorkspace();
     Path workingDirectory;
@@ -459,15 +482,20 @@ public final class CommandEnvironment {
 
     updateClientEnv(options.clientEnv, options.ignoreClientEnv);
 
-    // Fail fast in the case where a Blaze command forgets to install the package path correctly.
-    skyframeExecutor.setActive(false);
-    // Let skyframe figure out if it needs to store graph edges for this build.
-    skyframeExecutor.decideKeepIncrementalState(
-        runtime.getStartupOptionsProvider().getOptions(BlazeServerStartupOptions.class).batch,
-        optionsParser.getOptions(BuildView.Options.class));
-
-    // Start the performance and memory profilers.
-    runtime.beforeCommand(this, options, execStartTimeNanos);
+    // A guest leaves the Skyframe executor and the profilers as the host set them up.
+    if (!guest) {
+      SkyframeExecutor skyframeExecutor = getSkyframeExecutor();
+      skyframeExecutor.setOutputService(outputService);
+      // Fail fast in the case where a Blaze command forgets to install the package path correctly.
+      skyframeExecutor.setActive(false);
+      // Let skyframe figure out if it needs to store graph edges for this build.
+      skyframeExecutor.decideKeepIncrementalState(
+          runtime.getStartupOptionsProvider().getOptions(BlazeServerStartupOptions.class).batch,
+          optionsParser.getOptions(BuildView.Options.class));
+
+      // Start the performance and memory profilers.
+      runtime.beforeCommand(this, options, execStartTimeNanos);
+    }
 
     if (command.builds()) {
       Map<String, String> testEnv = new TreeMap<>();
@@ -492,8 +520,10 @@ public final class CommandEnvironment {
         throw new IllegalStateException(e);
       }
     }
-    for (BlazeModule module : runtime.getBlazeModules()) {
-      module.handleOptions(optionsParser);
+    if (!guest) {
+      for (BlazeModule module : runtime.getBlazeModules()) {
+        module.handleOptions(optionsParser);
+      }
     }
 
     eventBus.post(
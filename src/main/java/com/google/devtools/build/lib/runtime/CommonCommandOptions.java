@@ -191,6 +191,30 @@ public class CommonCommandOptions extends OptionsBase {
           + "hit. Option only has effect if --profile used as well.")
   public boolean recordFullProfilerData;
 
+  @Option(name = "experimental_compact_profile",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If enabled, the file named by --profile is written in a block-compressed, indexed "
+          + "format, which blaze analyze-profile can read in parts instead of loading it as a "
+          + "whole.")
+  public boolean compactProfile;
+
+  @Option(name = "experimental_sampling_profile",
+      defaultValue = "null",
+      category = "undocumented",
+      converter = OptionsUtils.PathFragmentConverter.class,
+      help = "If set, periodically sample the tasks that Blaze threads are executing, and write a "
+          + "per-phase summary in the folded stacks format of flame graph tools to the specified "
+          + "file. Unlike --profile, the overhead is low enough to leave this on for every build.")
+  public PathFragment samplingProfilePath;
+
+  @Option(name = "experimental_sampling_profile_interval",
+      defaultValue = "10",
+      category = "undocumented",
+      help = "The interval between two samples of --experimental_sampling_profile, in "
+          + "milliseconds.")
+  public int samplingProfileIntervalMillis;
+
   @Option(name = "memory_profile",
       defaultValue = "null",
       category = "undocumented",
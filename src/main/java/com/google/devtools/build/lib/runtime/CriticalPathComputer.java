@@ -15,22 +15,29 @@
 package com.google.devtools.build.lib.runtime;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.eventbus.Subscribe;
 import com.google.devtools.build.lib.actions.Action;
 import com.google.devtools.build.lib.actions.ActionCompletionEvent;
 import com.google.devtools.build.lib.actions.ActionMiddlemanEvent;
 import com.google.devtools.build.lib.actions.ActionStartedEvent;
+import com.google.devtools.build.lib.actions.ActionStatusMessage;
 import com.google.devtools.build.lib.actions.Actions;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.CachedActionEvent;
+import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.util.Clock;
 import com.google.devtools.build.lib.util.Preconditions;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.concurrent.ThreadSafe;
@@ -46,6 +53,14 @@ public abstract class CriticalPathComputer<C extends AbstractCriticalPathCompone
 
   /** Number of top actions to record. */
   static final int SLOWEST_COMPONENTS_SIZE = 30;
+
+  /** The strategy of actions that were found in the action cache. */
+  public static final String CACHED = "cached";
+  /** The strategy of middleman actions, which do not run anything. */
+  public static final String MIDDLEMAN = "middleman";
+  /** The strategy of actions that ran inside Blaze rather than through a spawn strategy. */
+  public static final String INTERNAL = "internal";
+
   // outputArtifactToComponent is accessed from multiple event handlers.
   protected final ConcurrentMap<Artifact, C> outputArtifactToComponent = Maps.newConcurrentMap();
 
@@ -113,9 +128,26 @@ public abstract class CriticalPathComputer<C extends AbstractCriticalPathCompone
   public void middlemanAction(ActionMiddlemanEvent event) {
     Action action = event.getAction();
     C component = tryAddComponent(createComponent(action, event.getNanoTimeStart()));
+    component.setStrategy(MIDDLEMAN);
     finalizeActionStat(event.getNanoTimeStart(), action, component);
   }
 
+  /**
+   * Record the strategy an action runs with. Strategies post this when they start running the
+   * spawn of an action, so for actions with several spawns the last strategy wins.
+   */
+  @Subscribe
+  public void actionStatus(ActionStatusMessage event) {
+    String strategy = event.getRunningStrategy();
+    if (strategy == null || strategy.equals("unknown")) {
+      return;
+    }
+    C component = outputArtifactToComponent.get(event.getActionMetadata().getPrimaryOutput());
+    if (component != null) {
+      component.setStrategy(strategy);
+    }
+  }
+
   /**
    * Try to add the component to the map of critical path components. If there is an existing
    * component for its primary output it uses that to update the rest of the outputs.
@@ -163,6 +195,7 @@ public abstract class CriticalPathComputer<C extends AbstractCriticalPathCompone
   public void actionCached(CachedActionEvent event) {
     Action action = event.getAction();
     C component = tryAddComponent(createComponent(action, event.getNanoTimeStart()));
+    component.setStrategy(CACHED);
     finalizeActionStat(event.getNanoTimeStart(), action, component);
   }
 
@@ -197,6 +230,24 @@ public abstract class CriticalPathComputer<C extends AbstractCriticalPathCompone
     return ImmutableList.copyOf(list).reverse();
   }
 
+  /**
+   * Returns the time spent running the finished actions of each target, in nanoseconds, ignoring
+   * the time to build dependencies. Actions without an owning target are left out.
+   */
+  public ImmutableMap<Label, Long> getExecutionTimes() {
+    Map<Label, Long> times = new HashMap<>();
+    Set<C> seen = Sets.newIdentityHashSet();
+    for (C component : outputArtifactToComponent.values()) {
+      Label label = component.getAction().getOwner().getLabel();
+      if (component.isRunning || label == null || !seen.add(component)) {
+        continue;
+      }
+      Long time = times.get(label);
+      times.put(label, (time == null ? 0 : time) + component.getElapsedTimeNanos());
+    }
+    return ImmutableMap.copyOf(times);
+  }
+
   private void finalizeActionStat(long startTimeNanos, Action action, C component) {
     boolean updated = component.finishActionExecution(startTimeNanos, clock.nanoTime());
 
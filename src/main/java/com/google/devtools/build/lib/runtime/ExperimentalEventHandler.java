@@ -35,6 +35,7 @@ import com.google.devtools.build.lib.util.io.OutErr;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.view.test.TestStatus.BlazeTestStatus;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
@@ -59,11 +60,12 @@ public class ExperimentalEventHandler extends BlazeCommandEventHandler {
   private final boolean debugAllEvents;
   private final ExperimentalStateTracker stateTracker;
   private final long minimalUpdateInterval;
+  private final boolean deferRefresh;
   private long lastRefreshMillis;
   private int numLinesProgressBar;
   private boolean buildComplete;
-  private boolean progressBarNeedsRefresh;
-  private Thread updateThread;
+  private volatile boolean progressBarNeedsRefresh;
+  private volatile Thread updateThread;
 
   public final int terminalWidth;
 
@@ -88,6 +90,7 @@ public class ExperimentalEventHandler extends BlazeCommandEventHandler {
     this.numLinesProgressBar = 0;
     this.minimalDelayMillis = Math.round(options.showProgressRateLimit * 1000);
     this.minimalUpdateInterval = Math.max(this.minimalDelayMillis, MAXIMAL_UPDATE_DELAY_MILLIS);
+    this.deferRefresh = options.experimentalAsyncUi;
     // The progress bar has not been updated yet.
     ignoreRefreshLimitOnce();
   }
@@ -232,13 +235,13 @@ public class ExperimentalEventHandler extends BlazeCommandEventHandler {
   @Subscribe
   public void actionStarted(ActionStartedEvent event) {
     stateTracker.actionStarted(event);
-    refresh();
+    actionRefresh();
   }
 
   @Subscribe
   public void actionCompletion(ActionCompletionEvent event) {
     stateTracker.actionCompletion(event);
-    refresh();
+    actionRefresh();
   }
 
   @Subscribe
@@ -283,6 +286,22 @@ public class ExperimentalEventHandler extends BlazeCommandEventHandler {
     doRefresh();
   }
 
+  /**
+   * Refresh after an action started or completed. These events arrive on the threads executing
+   * actions, so with --experimental_async_ui they only mark the progress bar as stale and leave
+   * the writing to the update thread.
+   */
+  private void actionRefresh() {
+    if (!deferRefresh) {
+      refresh();
+      return;
+    }
+    progressBarNeedsRefresh = true;
+    if (updateThread == null) {
+      startUpdateThread();
+    }
+  }
+
   private void doRefresh() {
     long nowMillis = clock.currentTimeMillis();
     if (lastRefreshMillis + minimalDelayMillis < nowMillis) {
@@ -367,6 +386,10 @@ public class ExperimentalEventHandler extends BlazeCommandEventHandler {
     }
     if (threadToWaitFor != null) {
       threadToWaitFor.interrupt();
+      if (threadToWaitFor == Thread.currentThread()) {
+        // Called by the update thread itself, which stops at its next sleep.
+        return;
+      }
       try {
         threadToWaitFor.join();
       } catch (InterruptedException e) {
@@ -401,8 +424,11 @@ public class ExperimentalEventHandler extends BlazeCommandEventHandler {
   }
 
   private void addProgressBar() throws IOException {
+    // Render the progress bar into a buffer first, so that the state tracker, which is also
+    // updated by the threads executing actions, is not locked while writing to the terminal.
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
     LineCountingAnsiTerminalWriter countingTerminalWriter =
-        new LineCountingAnsiTerminalWriter(terminal);
+        new LineCountingAnsiTerminalWriter(new AnsiTerminal(buffer));
     AnsiTerminalWriter terminalWriter = countingTerminalWriter;
     if (cursorControl) {
       terminalWriter = new LineWrappingAnsiTerminalWriter(terminalWriter, terminalWidth - 1);
@@ -410,5 +436,6 @@ public class ExperimentalEventHandler extends BlazeCommandEventHandler {
     stateTracker.writeProgressBar(terminalWriter, /* shortVersion=*/ !cursorControl);
     terminalWriter.newline();
     numLinesProgressBar = countingTerminalWriter.getWrittenLines();
+    buffer.writeTo(outErr.getErrorStream());
   }
 }
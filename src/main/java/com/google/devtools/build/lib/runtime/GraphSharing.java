@@ -0,0 +1,95 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import com.google.devtools.build.lib.util.Preconditions;
+
+/**
+ * The {@link Command#shareable} commands that run alongside each other.
+ *
+ * <p>The first of them, the host, runs like any other command: it sets up the server-wide state
+ * (the modules, the profilers, the event bus of the Skyframe executor, the standard streams and
+ * the command log) and syncs the package cache. The others, the guests, leave all of that alone.
+ * They only start once the host has synced the package cache with the same options, and do not
+ * sync it again, so that they run against a graph that only grows while they run. Evaluations of
+ * the graph are serialized by the build driver. The host tears the server-wide state down once all
+ * guests are done.
+ *
+ * <p>The methods synchronize on the lock of the {@link BlazeCommandDispatcher}, which decides when
+ * a command may start.
+ */
+final class GraphSharing {
+  private final Object lock;
+  private final Object key;
+  private boolean graphReady = false;
+  private boolean closed = false;
+  private int guests = 0;
+
+  GraphSharing(Object lock, Object key) {
+    this.lock = Preconditions.checkNotNull(lock);
+    this.key = Preconditions.checkNotNull(key);
+  }
+
+  /** Returns whether a command with the given sharing key may start as a guest now. */
+  boolean admits(Object key) {
+    synchronized (lock) {
+      return graphReady && !closed && this.key.equals(key);
+    }
+  }
+
+  void addGuest() {
+    synchronized (lock) {
+      Preconditions.checkState(admits(key));
+      guests++;
+    }
+  }
+
+  void removeGuest() {
+    synchronized (lock) {
+      Preconditions.checkState(guests > 0);
+      guests--;
+      lock.notifyAll();
+    }
+  }
+
+  /** Called by the host once it has synced the package cache; guests may start from now on. */
+  void graphReady() {
+    synchronized (lock) {
+      graphReady = true;
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Called by the host before it tears down the server-wide state: no guest may start any more,
+   * and this waits until the running ones are done.
+   */
+  void awaitGuests() {
+    synchronized (lock) {
+      closed = true;
+      boolean interrupted = false;
+      while (guests > 0) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          // The guests use the state that the host is about to tear down, so keep waiting.
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -18,17 +18,22 @@ import com.google.common.base.Optional;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.profiler.CompactProfileReader;
+import com.google.devtools.build.lib.profiler.CompactProfileReader.TaskRecord;
 import com.google.devtools.build.lib.profiler.ProfileInfo;
+import com.google.devtools.build.lib.profiler.ProfileInfo.AggregateAttr;
 import com.google.devtools.build.lib.profiler.ProfileInfo.InfoListener;
 import com.google.devtools.build.lib.profiler.ProfileInfo.Task;
 import com.google.devtools.build.lib.profiler.ProfilePhase;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.profiler.output.HtmlCreator;
 import com.google.devtools.build.lib.profiler.output.PhaseText;
+import com.google.devtools.build.lib.profiler.output.ResourceUsageText;
 import com.google.devtools.build.lib.profiler.statistics.CriticalPathStatistics;
 import com.google.devtools.build.lib.profiler.statistics.MultiProfileStatistics;
 import com.google.devtools.build.lib.profiler.statistics.PhaseStatistics;
 import com.google.devtools.build.lib.profiler.statistics.PhaseSummaryStatistics;
+import com.google.devtools.build.lib.profiler.statistics.ResourceUsageStatistics;
 import com.google.devtools.build.lib.runtime.BlazeCommand;
 import com.google.devtools.build.lib.runtime.Command;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
@@ -145,6 +150,22 @@ public final class ProfileCommand implements BlazeCommand {
     )
     public long taskTreeThreshold;
 
+    @Option(
+      name = "resource_usage",
+      defaultValue = "false",
+      help =
+          "If present, rank the mnemonics and actions by the CPU time and peak memory of their"
+              + " local processes, instead of printing the phase statistics."
+    )
+    public boolean resourceUsage;
+
+    @Option(
+      name = "resource_usage_limit",
+      defaultValue = "20",
+      help = "Maximum number of actions to print in each --resource_usage ranking."
+    )
+    public int resourceUsageLimit;
+
     @Option(name = "vfs_stats",
         defaultValue = "false",
         help = "If present, include VFS path statistics.")
@@ -225,6 +246,13 @@ public final class ProfileCommand implements BlazeCommand {
         for (String name : options.getResidue()) {
           Path profileFile = env.getWorkingDirectory().getRelative(name);
           try {
+            if (opts.dumpMode != null && opts.dumpMode.contains("unsorted")
+                && CompactProfileReader.isCompactProfile(profileFile)) {
+              // Unsorted dumps need no task tree, so the tasks are streamed instead of loaded.
+              dumpCompactProfile(profileFile, getInfoListener(env), out, opts.dumpMode);
+              continue;
+            }
+
             ProfileInfo info = ProfileInfo.loadProfileVerbosely(profileFile, getInfoListener(env));
 
             if (opts.dumpMode == null || !opts.dumpMode.contains("unsorted")) {
@@ -236,6 +264,13 @@ public final class ProfileCommand implements BlazeCommand {
               continue;
             }
 
+            if (opts.resourceUsage && opts.dumpMode == null) {
+              new ResourceUsageText(
+                      out, new ResourceUsageStatistics(info), opts.resourceUsageLimit)
+                  .print();
+              continue;
+            }
+
             if (opts.dumpMode != null) {
               dumpProfile(info, out, opts.dumpMode);
               continue;
@@ -339,10 +374,52 @@ public final class ProfileCommand implements BlazeCommand {
     }
   }
 
+  /**
+   * Dumps the tasks of a compact profile in one of the unsorted formats, streaming them from the
+   * file.
+   */
+  private void dumpCompactProfile(Path profileFile, InfoListener listener, final PrintStream out,
+      String dumpMode) throws IOException {
+    listener.info("Loading " + profileFile.getPathString());
+    try (CompactProfileReader reader = CompactProfileReader.open(profileFile)) {
+      if (reader.isCorruptedOrIncomplete()) {
+        listener.warn("Profile file is incomplete or corrupted - not all records were parsed");
+      }
+      listener.info(reader.getComment() + ", " + reader.getTaskCount() + " record(s)");
+      final boolean raw = dumpMode.contains("raw");
+      reader.readTasks(new CompactProfileReader.TaskVisitor() {
+        @Override
+        public void visit(TaskRecord task) throws IOException {
+          AggregateAttr[] stats = task.hasStats() ? task.getStatAttrArray() : null;
+          if (raw) {
+            out.println(formatRaw(task.getThreadId(), task.getId(), task.getParentId(),
+                task.getStartTime(), task.getDurationNanos(), stats, task.getType(),
+                task.getDescription()));
+          } else {
+            out.println(formatTask(task.getType(), task.getDescription(), task.getThreadId(),
+                task.getId(), task.getParentId(), task.getStartTime(), task.getDurationNanos(),
+                stats));
+          }
+        }
+      });
+    }
+  }
+
   /**
    * Dumps the task information and all subtasks.
    */
   private void dumpTask(ProfileInfo.Task task, PrintStream out, int indent) {
+    String text = formatTask(task.type, task.getDescription(), task.threadId, task.id,
+        task.parentId, task.startTime, task.durationNanos,
+        task.hasStats() ? task.getStatAttrArray() : null);
+    out.println(StringUtil.indent(text, indent));
+    for (ProfileInfo.Task subtask : task.subtasks) {
+      dumpTask(subtask, out, indent + 1);
+    }
+  }
+
+  private static String formatTask(ProfilerTask type, String description, long threadId, int id,
+      int parentId, long startTime, long durationNanos, AggregateAttr[] stats) {
     StringBuilder builder =
         new StringBuilder(
             String.format(
@@ -352,51 +429,53 @@ public final class ProfileCommand implements BlazeCommand {
                         "%s %s",
                         "Thread: %-6d  Id: %-6d  Parent: %d",
                         "Start time: %-12s   Duration: %s"),
-                task.type,
-                task.getDescription(),
-                task.threadId,
-                task.id,
-                task.parentId,
-                TimeUtilities.prettyTime(task.startTime),
-                TimeUtilities.prettyTime(task.durationNanos)));
-    if (task.hasStats()) {
+                type,
+                description,
+                threadId,
+                id,
+                parentId,
+                TimeUtilities.prettyTime(startTime),
+                TimeUtilities.prettyTime(durationNanos)));
+    if (stats != null) {
       builder.append("\n");
-      ProfileInfo.AggregateAttr[] stats = task.getStatAttrArray();
-      for (ProfilerTask type : ProfilerTask.values()) {
-        ProfileInfo.AggregateAttr attr = stats[type.ordinal()];
+      for (ProfilerTask statType : ProfilerTask.values()) {
+        AggregateAttr attr = stats[statType.ordinal()];
         if (attr != null) {
-          builder.append(type.toString().toLowerCase()).append("=(").
+          builder.append(statType.toString().toLowerCase()).append("=(").
               append(attr.count).append(", ").
               append(TimeUtilities.prettyTime(attr.totalTime)).append(") ");
         }
       }
     }
-    out.println(StringUtil.indent(builder.toString(), indent));
-    for (ProfileInfo.Task subtask : task.subtasks) {
-      dumpTask(subtask, out, indent + 1);
-    }
+    return builder.toString();
   }
 
   private void dumpRaw(ProfileInfo.Task task, PrintStream out) {
+    out.println(formatRaw(task.threadId, task.id, task.parentId, task.startTime,
+        task.durationNanos, task.getStatAttrArray(), task.type, task.getDescription()));
+  }
+
+  private static String formatRaw(long threadId, int id, int parentId, long startTime,
+      long durationNanos, AggregateAttr[] stats, ProfilerTask type, String description) {
     StringBuilder aggregateString = new StringBuilder();
-    ProfileInfo.AggregateAttr[] stats = task.getStatAttrArray();
-    for (ProfilerTask type : ProfilerTask.values()) {
-      ProfileInfo.AggregateAttr attr = stats[type.ordinal()];
-      if (attr != null) {
-        aggregateString.append(type.toString().toLowerCase()).append(",").
-            append(attr.count).append(",").append(attr.totalTime).append(" ");
+    if (stats != null) {
+      for (ProfilerTask statType : ProfilerTask.values()) {
+        AggregateAttr attr = stats[statType.ordinal()];
+        if (attr != null) {
+          aggregateString.append(statType.toString().toLowerCase()).append(",").
+              append(attr.count).append(",").append(attr.totalTime).append(" ");
+        }
       }
     }
-    out.println(
-        Joiner.on('|')
-            .join(
-                task.threadId,
-                task.id,
-                task.parentId,
-                task.startTime,
-                task.durationNanos,
-                aggregateString.toString().trim(),
-                task.type,
-                task.getDescription()));
+    return Joiner.on('|')
+        .join(
+            threadId,
+            id,
+            parentId,
+            startTime,
+            durationNanos,
+            aggregateString.toString().trim(),
+            type,
+            description);
   }
 }
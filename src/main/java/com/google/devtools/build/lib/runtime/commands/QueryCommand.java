@@ -66,7 +66,8 @@ import java.util.Set;
          allowResidue = true,
          binaryStdOut = true,
          completion = "label",
-         canRunInOutputDirectory = true)
+         canRunInOutputDirectory = true,
+         shareable = true)
 public final class QueryCommand implements BlazeCommand {
 
   @Override
@@ -133,6 +134,7 @@ public final class QueryCommand implements BlazeCommand {
     }
 
     Set<Setting> settings = queryOptions.toSettings();
+    env.getSkyframeExecutor().setReverseDepsIndexEnabled(queryOptions.useReverseDepsIndex);
     boolean streamResults = QueryOutputUtils.shouldStreamResults(queryOptions, formatter);
     AbstractBlazeQueryEnvironment<Target> queryEnv = newQueryEnvironment(
         env,
@@ -286,7 +288,8 @@ public final class QueryCommand implements BlazeCommand {
         env.getReporter(),
         settings,
         functions.build(),
-        env.getPackageManager().getPackagePath());
+        env.getPackageManager().getPackagePath(),
+        env.getSkyframeExecutor().getReverseDepsIndex());
   }
 
   private static class AggregateAllOutputFormatterCallback<T> extends OutputFormatterCallback<T> {
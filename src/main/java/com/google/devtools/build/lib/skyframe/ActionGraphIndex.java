@@ -0,0 +1,457 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.actions.ActionAnalysisMetadata;
+import com.google.devtools.build.lib.actions.ActionGraph;
+import com.google.devtools.build.lib.actions.Actions;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.ArtifactPrefixConflictException;
+import com.google.devtools.build.lib.actions.MutableActionGraph.ActionConflictException;
+import com.google.devtools.build.lib.concurrent.ExecutorUtil;
+import com.google.devtools.build.lib.concurrent.Sharder;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
+import com.google.devtools.build.lib.concurrent.ThrowableRecordingRunnableWrapper;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nullable;
+
+/**
+ * An index from the exec paths of generated artifacts to their generating actions, which is kept
+ * up to date with the {@link ActionLookupValue}s in Skyframe across builds.
+ *
+ * <p>Each call to {@link #update} only registers the actions of the values that were not indexed
+ * before and unregisters those of the values that are gone, so that its cost is proportional to
+ * the amount of re-analysis rather than to the size of the action graph. Values are compared by
+ * identity: re-analyzing a target always creates a new value.
+ *
+ * <p>Exec paths are interned to small integer ids, which index flat arrays holding the artifact
+ * and the generating actions of each path. Ids of paths that are no longer generated are reused.
+ * When several actions generate the same path, they are kept in the order in which they were
+ * registered, and the first one is the generating action of the path. Actions registered later
+ * which cannot be shared with it are in conflict.
+ *
+ * <p>Prefix conflicts, where one generated path is an ancestor of another, are kept as pairs of
+ * path ids. {@link #updatePrefixConflicts} only looks for the conflicts of paths that were added
+ * since it was last called, using a sorted set of all indexed paths, and checks them in parallel
+ * when there are many of them.
+ */
+@ThreadCompatible
+final class ActionGraphIndex implements ActionGraph {
+
+  private static final int[] NO_IDS = new int[0];
+
+  /** The values whose actions are registered, mapped to the path ids of their map entries. */
+  private final Map<ActionLookupValue, int[]> indexedValues = new IdentityHashMap<>();
+
+  private final Map<PathFragment, Integer> pathIds = new HashMap<>();
+  private PathFragment[] paths = new PathFragment[16];
+  private Artifact[] artifacts = new Artifact[16];
+  // Either a single ActionAnalysisMetadata, or an ActionAnalysisMetadata[] in registration order.
+  private Object[] actions = new Object[16];
+  private int nextId = 0;
+  private int[] freeIds = new int[16];
+  private int freeIdCount = 0;
+
+  /** The ids of the paths which have conflicting generating actions. */
+  private final BitSet conflictingPaths = new BitSet();
+
+  /**
+   * Below this many unchecked paths, prefix conflicts are looked for in the calling thread, since
+   * starting a thread pool would cost more than the check itself.
+   */
+  private static final int MIN_PATHS_PER_SHARD = 5000;
+
+  private final NavigableSet<PathFragment> sortedPaths = new TreeSet<>();
+  /** The ids of the paths added since prefix conflicts were last looked for. */
+  private final BitSet uncheckedPaths = new BitSet();
+  /** Prefix conflicts, with the id of the prefix path in the high and the other in the low bits. */
+  private final Set<Long> prefixConflicts = new HashSet<>();
+
+  /**
+   * Brings the index up to date with {@code values}, which must be all the action lookup values
+   * in Skyframe.
+   */
+  void update(Iterable<ActionLookupValue> values) {
+    Set<ActionLookupValue> current = Sets.newIdentityHashSet();
+    List<ActionLookupValue> added = new ArrayList<>();
+    for (ActionLookupValue value : values) {
+      if (current.add(value) && !indexedValues.containsKey(value)) {
+        added.add(value);
+      }
+    }
+    BitSet dirtyPaths = new BitSet();
+    Iterator<Map.Entry<ActionLookupValue, int[]>> it = indexedValues.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<ActionLookupValue, int[]> entry = it.next();
+      if (!current.contains(entry.getKey())) {
+        unregister(entry.getKey(), entry.getValue(), dirtyPaths);
+        it.remove();
+      }
+    }
+    for (ActionLookupValue value : added) {
+      indexedValues.put(value, register(value, dirtyPaths));
+    }
+    BitSet releasedPaths = new BitSet();
+    for (int id = dirtyPaths.nextSetBit(0); id >= 0; id = dirtyPaths.nextSetBit(id + 1)) {
+      if (actions[id] == null) {
+        releaseId(id);
+        releasedPaths.set(id);
+      } else {
+        conflictingPaths.set(id, hasConflict(actions[id]));
+      }
+    }
+    if (!releasedPaths.isEmpty()) {
+      Iterator<Long> conflicts = prefixConflicts.iterator();
+      while (conflicts.hasNext()) {
+        long conflict = conflicts.next();
+        if (releasedPaths.get(prefixId(conflict)) || releasedPaths.get(suffixId(conflict))) {
+          conflicts.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Looks for the prefix conflicts of the paths added by {@link #update} since the last call,
+   * using up to {@code numJobs} threads.
+   */
+  void updatePrefixConflicts(int numJobs) throws InterruptedException {
+    int count = uncheckedPaths.cardinality();
+    int numShards = Math.min(numJobs, count / MIN_PATHS_PER_SHARD);
+    if (numShards <= 1) {
+      List<Long> found = new ArrayList<>();
+      for (int id = uncheckedPaths.nextSetBit(0); id >= 0; id = uncheckedPaths.nextSetBit(id + 1)) {
+        findPrefixConflicts(id, found);
+      }
+      prefixConflicts.addAll(found);
+      uncheckedPaths.clear();
+      return;
+    }
+
+    Sharder<Integer> shards = new Sharder<>(numShards, count);
+    for (int id = uncheckedPaths.nextSetBit(0); id >= 0; id = uncheckedPaths.nextSetBit(id + 1)) {
+      shards.add(id);
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(
+        numShards,
+        new ThreadFactoryBuilder().setNameFormat("Artifact Prefix Conflict Checker %d").build());
+    ThrowableRecordingRunnableWrapper wrapper =
+        new ThrowableRecordingRunnableWrapper("ActionGraphIndex#updatePrefixConflicts");
+    List<List<Long>> results = new ArrayList<>();
+    // The index is not modified until all the jobs are done, so they can read it concurrently.
+    for (final List<Integer> shard : shards) {
+      final List<Long> found = new ArrayList<>();
+      results.add(found);
+      executor.execute(wrapper.wrap(new Runnable() {
+        @Override
+        public void run() {
+          for (int id : shard) {
+            findPrefixConflicts(id, found);
+          }
+        }
+      }));
+    }
+    boolean interrupted = ExecutorUtil.interruptibleShutdown(executor);
+    Throwables.propagateIfPossible(wrapper.getFirstThrownError());
+    if (interrupted) {
+      throw new InterruptedException();
+    }
+    for (List<Long> found : results) {
+      prefixConflicts.addAll(found);
+    }
+    uncheckedPaths.clear();
+  }
+
+  /**
+   * Adds the prefix conflicts of path {@code id} with the indexed paths above and below it to
+   * {@code found}.
+   */
+  private void findPrefixConflicts(int id, List<Long> found) {
+    PathFragment path = paths[id];
+    for (PathFragment dir = path.getParentDirectory(); dir != null;
+        dir = dir.getParentDirectory()) {
+      Integer ancestorId = pathIds.get(dir);
+      if (ancestorId != null) {
+        found.add(prefixConflict(ancestorId, id));
+      }
+    }
+    // Descendants of a path sort right after it, since paths are compared segment by segment.
+    for (PathFragment descendant : sortedPaths.tailSet(path, false)) {
+      if (!descendant.startsWith(path)) {
+        break;
+      }
+      found.add(prefixConflict(id, pathIds.get(descendant)));
+    }
+  }
+
+  private static long prefixConflict(int prefixId, int suffixId) {
+    return ((long) prefixId << 32) | suffixId;
+  }
+
+  private static int prefixId(long prefixConflict) {
+    return (int) (prefixConflict >>> 32);
+  }
+
+  private static int suffixId(long prefixConflict) {
+    return (int) prefixConflict;
+  }
+
+  private int[] register(ActionLookupValue value, BitSet dirtyPaths) {
+    Map<Artifact, ActionAnalysisMetadata> map = value.getMapForConsistencyCheck();
+    if (map.isEmpty()) {
+      return NO_IDS;
+    }
+    int[] ids = new int[map.size()];
+    int i = 0;
+    for (Map.Entry<Artifact, ActionAnalysisMetadata> entry : map.entrySet()) {
+      int id = internPath(entry.getKey());
+      if (actions[id] == null) {
+        artifacts[id] = entry.getKey();
+      }
+      actions[id] = addAction(actions[id], entry.getValue());
+      dirtyPaths.set(id);
+      ids[i++] = id;
+    }
+    return ids;
+  }
+
+  private void unregister(ActionLookupValue value, int[] ids, BitSet dirtyPaths) {
+    int i = 0;
+    for (ActionAnalysisMetadata action : value.getMapForConsistencyCheck().values()) {
+      int id = ids[i++];
+      actions[id] = removeAction(actions[id], action);
+      dirtyPaths.set(id);
+    }
+  }
+
+  private int internPath(Artifact artifact) {
+    PathFragment path = artifact.getExecPath();
+    Integer id = pathIds.get(path);
+    if (id != null) {
+      return id;
+    }
+    int newId;
+    if (freeIdCount > 0) {
+      newId = freeIds[--freeIdCount];
+    } else {
+      newId = nextId++;
+      if (newId == paths.length) {
+        int newLength = paths.length * 2;
+        paths = Arrays.copyOf(paths, newLength);
+        artifacts = Arrays.copyOf(artifacts, newLength);
+        actions = Arrays.copyOf(actions, newLength);
+      }
+    }
+    paths[newId] = path;
+    artifacts[newId] = artifact;
+    pathIds.put(path, newId);
+    sortedPaths.add(path);
+    uncheckedPaths.set(newId);
+    return newId;
+  }
+
+  private void releaseId(int id) {
+    pathIds.remove(paths[id]);
+    sortedPaths.remove(paths[id]);
+    paths[id] = null;
+    artifacts[id] = null;
+    conflictingPaths.clear(id);
+    uncheckedPaths.clear(id);
+    if (freeIdCount == freeIds.length) {
+      freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+    }
+    freeIds[freeIdCount++] = id;
+  }
+
+  private static Object addAction(@Nullable Object registered, ActionAnalysisMetadata action) {
+    if (registered == null) {
+      return action;
+    }
+    ActionAnalysisMetadata[] previous = asArray(registered);
+    ActionAnalysisMetadata[] result = Arrays.copyOf(previous, previous.length + 1);
+    result[previous.length] = action;
+    return result;
+  }
+
+  @Nullable
+  private static Object removeAction(Object registered, ActionAnalysisMetadata action) {
+    if (registered == action) {
+      return null;
+    }
+    ActionAnalysisMetadata[] previous = asArray(registered);
+    int index = 0;
+    while (previous[index] != action) {
+      index++;
+      Preconditions.checkState(index < previous.length, "%s not registered", action);
+    }
+    if (previous.length == 2) {
+      return previous[1 - index];
+    }
+    ActionAnalysisMetadata[] result = new ActionAnalysisMetadata[previous.length - 1];
+    System.arraycopy(previous, 0, result, 0, index);
+    System.arraycopy(previous, index + 1, result, index, result.length - index);
+    return result;
+  }
+
+  private static ActionAnalysisMetadata[] asArray(Object registered) {
+    return registered instanceof ActionAnalysisMetadata
+        ? new ActionAnalysisMetadata[] {(ActionAnalysisMetadata) registered}
+        : (ActionAnalysisMetadata[]) registered;
+  }
+
+  private static boolean hasConflict(Object registered) {
+    if (registered instanceof ActionAnalysisMetadata) {
+      return false;
+    }
+    ActionAnalysisMetadata[] registeredActions = (ActionAnalysisMetadata[]) registered;
+    ActionAnalysisMetadata head = registeredActions[0];
+    for (int i = 1; i < registeredActions.length; i++) {
+      if (isConflict(head, registeredActions[i])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isConflict(ActionAnalysisMetadata head, ActionAnalysisMetadata action) {
+    return action != head && !Actions.canBeShared(action, head);
+  }
+
+  @Override
+  @Nullable
+  public ActionAnalysisMetadata getGeneratingAction(Artifact artifact) {
+    Integer id = pathIds.get(artifact.getExecPath());
+    return id == null ? null : head(id);
+  }
+
+  private ActionAnalysisMetadata head(int id) {
+    Object registered = actions[id];
+    return registered instanceof ActionAnalysisMetadata
+        ? (ActionAnalysisMetadata) registered
+        : ((ActionAnalysisMetadata[]) registered)[0];
+  }
+
+  /**
+   * Returns the conflicts between actions that generate the same artifact. Each action that was
+   * registered after an action it cannot be shared with is mapped to the first such conflict.
+   */
+  ImmutableMap<ActionAnalysisMetadata, ActionConflictException> getActionConflicts() {
+    Map<ActionAnalysisMetadata, ActionConflictException> conflicts = new LinkedHashMap<>();
+    for (int id = conflictingPaths.nextSetBit(0); id >= 0;
+        id = conflictingPaths.nextSetBit(id + 1)) {
+      ActionAnalysisMetadata[] registeredActions = (ActionAnalysisMetadata[]) actions[id];
+      ActionAnalysisMetadata head = registeredActions[0];
+      for (int i = 1; i < registeredActions.length; i++) {
+        ActionAnalysisMetadata action = registeredActions[i];
+        if (isConflict(head, action) && !conflicts.containsKey(action)) {
+          conflicts.put(action, new ActionConflictException(artifacts[id], head, action));
+        }
+      }
+    }
+    return ImmutableMap.copyOf(conflicts);
+  }
+
+  /**
+   * Returns the actions that generate an artifact whose path is a prefix of another's, as of the
+   * last call to {@link #updatePrefixConflicts}. As in {@link Actions#findArtifactPrefixConflicts},
+   * if x << y << z (where x << y means "y starts with x"), only (x,y) and (x,z) are reported.
+   */
+  ImmutableMap<ActionAnalysisMetadata, ArtifactPrefixConflictException> getPrefixConflicts() {
+    List<Long> conflicts = new ArrayList<>();
+    for (long conflict : prefixConflicts) {
+      if (!hasIndexedAncestor(paths[prefixId(conflict)])) {
+        conflicts.add(conflict);
+      }
+    }
+    // Keep deterministic ordering of bad actions.
+    Collections.sort(conflicts, new Comparator<Long>() {
+      @Override
+      public int compare(Long a, Long b) {
+        int cmp = paths[prefixId(a)].compareTo(paths[prefixId(b)]);
+        return cmp != 0 ? cmp : paths[suffixId(a)].compareTo(paths[suffixId(b)]);
+      }
+    });
+    Map<ActionAnalysisMetadata, ArtifactPrefixConflictException> badActions =
+        new LinkedHashMap<>();
+    for (long conflict : conflicts) {
+      int prefixId = prefixId(conflict);
+      int suffixId = suffixId(conflict);
+      ActionAnalysisMetadata actionI = head(prefixId);
+      ActionAnalysisMetadata actionJ = head(suffixId);
+      if (actionI.shouldReportPathPrefixConflict(actionJ)) {
+        ArtifactPrefixConflictException exception = new ArtifactPrefixConflictException(
+            paths[prefixId], paths[suffixId],
+            actionI.getOwner().getLabel(), actionJ.getOwner().getLabel());
+        badActions.put(actionI, exception);
+        badActions.put(actionJ, exception);
+      }
+    }
+    return ImmutableMap.copyOf(badActions);
+  }
+
+  private boolean hasIndexedAncestor(PathFragment path) {
+    for (PathFragment dir = path.getParentDirectory(); dir != null;
+        dir = dir.getParentDirectory()) {
+      if (pathIds.containsKey(dir)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns the number of distinct exec paths in the index. */
+  int size() {
+    return pathIds.size();
+  }
+
+  /** Drops all registered actions. */
+  void clear() {
+    indexedValues.clear();
+    pathIds.clear();
+    paths = new PathFragment[16];
+    artifacts = new Artifact[16];
+    actions = new Object[16];
+    nextId = 0;
+    freeIds = new int[16];
+    freeIdCount = 0;
+    conflictingPaths.clear();
+    sortedPaths.clear();
+    uncheckedPaths.clear();
+    prefixConflicts.clear();
+  }
+}
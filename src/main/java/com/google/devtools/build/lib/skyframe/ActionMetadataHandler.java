@@ -14,6 +14,7 @@
 package com.google.devtools.build.lib.skyframe;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
@@ -30,6 +31,7 @@ import com.google.devtools.build.lib.actions.cache.MetadataHandler;
 import com.google.devtools.build.lib.skyframe.TreeArtifactValue.TreeArtifactException;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.BatchStat;
 import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
 import com.google.devtools.build.lib.vfs.FileStatusWithDigestAdapter;
@@ -40,13 +42,18 @@ import com.google.devtools.build.lib.vfs.Symlinks;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nullable;
 
@@ -72,6 +79,12 @@ import javax.annotation.Nullable;
 @VisibleForTesting
 public class ActionMetadataHandler implements MetadataHandler {
 
+  /**
+   * Actions with fewer output files than this have their metadata collected sequentially, on
+   * demand, since handing the files to another thread would cost more than statting them.
+   */
+  private static final int MIN_OUTPUTS_TO_COLLECT_IN_PARALLEL = 16;
+
   /**
    * Data for input artifacts. Immutable.
    *
@@ -525,6 +538,99 @@ public class ActionMetadataHandler implements MetadataHandler {
     return injectedFiles.contains(file);
   }
 
+  /**
+   * Collects the metadata of the output files of an action that was just executed, so that it is
+   * cached by the time the outputs are checked. The files are statted in one batch by {@code
+   * batchStatter} if it is given, and their metadata, including any digests that need computing,
+   * is constructed on {@code digestPool}. Tree artifacts contribute the files they contain.
+   *
+   * <p>Files whose metadata cannot be collected here are skipped; their errors are reported when
+   * their metadata is requested as usual. Does nothing for actions with few output files.
+   */
+  void collectOutputMetadata(@Nullable BatchStat batchStatter, ExecutorService digestPool)
+      throws InterruptedException {
+    final List<Artifact> files = new ArrayList<>();
+    for (Artifact output : outputs) {
+      if (output.isMiddlemanArtifact() || omittedOutputs.contains(output)
+          || injectedFiles.contains(output)) {
+        continue;
+      }
+      if (output.isTreeArtifact()) {
+        for (TreeFileArtifact child : getTreeArtifactFilesToCollect(output)) {
+          if (!cachedTreeFileArtifactData.containsKey(child)) {
+            files.add(child);
+          }
+        }
+      } else if (!outputArtifactData.containsKey(output)) {
+        files.add(output);
+      }
+    }
+    if (files.size() < MIN_OUTPUTS_TO_COLLECT_IN_PARALLEL) {
+      return;
+    }
+
+    List<FileStatusWithDigest> stats = null;
+    if (batchStatter != null) {
+      try {
+        stats = batchStatter.batchStat(/*includeDigest=*/true, /*includeLinks=*/true,
+            Artifact.asPathFragments(files));
+        Preconditions.checkState(files.size() == stats.size(),
+            "files.size() == %s stats.size() == %s", files.size(), stats.size());
+      } catch (IOException e) {
+        // Batch stat did not work. Fall back on statting each file in its own task.
+      }
+    }
+
+    List<Future<?>> futures = new ArrayList<>(files.size());
+    for (int i = 0; i < files.size(); i++) {
+      final Artifact file = files.get(i);
+      final FileStatusWithDigest stat = stats == null ? null : stats.get(i);
+      futures.add(digestPool.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            FileValue fileValue = fileValueFromArtifact(file, stat, tsgm);
+            // Only publish the file value once its additional data is stored, so that a file
+            // whose digest could not be computed is looked at again when it is requested.
+            maybeStoreAdditionalData(file, fileValue, null);
+            outputArtifactData.putIfAbsent(file, fileValue);
+          } catch (IOException e) {
+            // Reported when the metadata of the file is requested.
+          }
+        }
+      }));
+    }
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } finally {
+      for (Future<?> future : futures) {
+        future.cancel(/*mayInterruptIfRunning=*/true);
+      }
+    }
+  }
+
+  private Collection<TreeFileArtifact> getTreeArtifactFilesToCollect(Artifact artifact) {
+    Set<TreeFileArtifact> registeredContents = outputDirectoryListings.get(artifact);
+    if (registeredContents != null) {
+      return registeredContents;
+    }
+    Path path = artifact.getPath();
+    if (!path.isDirectory() || path.isSymbolicLink()) {
+      return ImmutableList.of();
+    }
+    try {
+      return ActionInputHelper.asTreeFileArtifacts(
+          artifact, TreeArtifactValue.explodeDirectory(artifact));
+    } catch (IOException | TreeArtifactException e) {
+      // Reported when the tree artifact is constructed.
+      return ImmutableList.of();
+    }
+  }
+
   /** @return data for output files that was computed during execution. */
   Map<Artifact, FileValue> getOutputArtifactData() {
     return outputArtifactData;
@@ -21,13 +21,21 @@ import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.skyframe.ExternalFilesHelper.FileType;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.lib.vfs.Symlinks;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.Nullable;
@@ -55,6 +63,38 @@ public class DirtinessCheckerUtils {
         return null;
       }
     }
+
+    /** Stats the paths of all the keys at once, instead of one at a time. */
+    @Override
+    public List<DirtyResult> checkBatch(List<SkyKey> keys, List<SkyValue> oldValues,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      List<RootedPath> rootedPaths = new ArrayList<>(keys.size());
+      List<Path> paths = new ArrayList<>(keys.size());
+      for (SkyKey key : keys) {
+        RootedPath rootedPath = (RootedPath) key.argument();
+        rootedPaths.add(rootedPath);
+        paths.add(rootedPath.asPath());
+      }
+      List<FileStatus> stats;
+      try {
+        stats = FileSystemUtils.statIfFound(paths, Symlinks.NOFOLLOW);
+      } catch (IOException e) {
+        // Check the files one at a time, so that the error only affects the file it is about.
+        return checkEach(keys, oldValues, tsgm);
+      }
+      List<DirtyResult> results = new ArrayList<>(keys.size());
+      for (int i = 0; i < keys.size(); i++) {
+        SkyValue newValue;
+        try {
+          newValue = FileStateValue.createWithStatIfFound(rootedPaths.get(i), stats.get(i), tsgm);
+        } catch (InconsistentFilesystemException | IOException e) {
+          // See createNewValue above.
+          newValue = null;
+        }
+        results.add(compare(oldValues.get(i), newValue));
+      }
+      return results;
+    }
   }
 
   static class DirectoryDirtinessChecker extends SkyValueDirtinessChecker {
@@ -91,6 +131,12 @@ public class DirtinessCheckerUtils {
     public SkyValue createNewValue(SkyKey key, @Nullable TimestampGranularityMonitor tsgm) {
       return checker.createNewValue(key, tsgm);
     }
+
+    @Override
+    public List<DirtyResult> checkBatch(List<SkyKey> keys, List<SkyValue> oldValues,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      return checker.checkBatch(keys, oldValues, tsgm);
+    }
   }
 
   static final class MissingDiffDirtinessChecker extends BasicFilesystemDirtinessChecker {
@@ -149,6 +195,12 @@ public class DirtinessCheckerUtils {
       }
       return SkyValueDirtinessChecker.DirtyResult.dirtyWithNewValue(oldValue, newValue);
     }
+
+    @Override
+    public List<DirtyResult> checkBatch(List<SkyKey> keys, List<SkyValue> oldValues,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      return checkEach(keys, oldValues, tsgm);
+    }
   }
 
   /** {@link SkyValueDirtinessChecker} that encompasses a union of other dirtiness checkers. */
@@ -185,5 +237,39 @@ public class DirtinessCheckerUtils {
         @Nullable TimestampGranularityMonitor tsgm) {
       return Preconditions.checkNotNull(getChecker(key), key).check(key, oldValue, tsgm);
     }
+
+    /** Checks the keys of each of the checkers as one batch. */
+    @Override
+    public List<DirtyResult> checkBatch(List<SkyKey> keys, List<SkyValue> oldValues,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      Map<SkyValueDirtinessChecker, List<Integer>> indicesByChecker = new LinkedHashMap<>();
+      for (int i = 0; i < keys.size(); i++) {
+        SkyValueDirtinessChecker checker =
+            Preconditions.checkNotNull(getChecker(keys.get(i)), keys.get(i));
+        List<Integer> indices = indicesByChecker.get(checker);
+        if (indices == null) {
+          indices = new ArrayList<>();
+          indicesByChecker.put(checker, indices);
+        }
+        indices.add(i);
+      }
+      DirtyResult[] results = new DirtyResult[keys.size()];
+      for (Map.Entry<SkyValueDirtinessChecker, List<Integer>> entry :
+          indicesByChecker.entrySet()) {
+        List<Integer> indices = entry.getValue();
+        List<SkyKey> checkerKeys = new ArrayList<>(indices.size());
+        List<SkyValue> checkerOldValues = new ArrayList<>(indices.size());
+        for (int i : indices) {
+          checkerKeys.add(keys.get(i));
+          checkerOldValues.add(oldValues.get(i));
+        }
+        List<DirtyResult> checkerResults =
+            entry.getKey().checkBatch(checkerKeys, checkerOldValues, tsgm);
+        for (int j = 0; j < indices.size(); j++) {
+          results[indices.get(j)] = checkerResults.get(j);
+        }
+      }
+      return Arrays.asList(results);
+    }
   }
 }
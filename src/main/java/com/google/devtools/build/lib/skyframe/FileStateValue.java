@@ -77,10 +77,21 @@ public abstract class FileStateValue implements SkyValue {
     // Stat, but don't throw an exception for the common case of a nonexistent file. This still
     // throws an IOException in case any other IO error is encountered.
     FileStatus stat = path.statIfFound(Symlinks.NOFOLLOW);
-    if (stat == null) {
+    return createWithStatIfFound(rootedPath, stat, tsgm);
+  }
+
+  /**
+   * Like {@link #create}, but for an already known result of
+   * {@code statIfFound(Symlinks.NOFOLLOW)} on the path, e.g. from a batched stat.
+   */
+  static FileStateValue createWithStatIfFound(RootedPath rootedPath,
+      @Nullable FileStatus statNoFollow, @Nullable TimestampGranularityMonitor tsgm)
+          throws InconsistentFilesystemException, IOException {
+    if (statNoFollow == null) {
       return NONEXISTENT_FILE_STATE_NODE;
     }
-    return createWithStatNoFollow(rootedPath, FileStatusWithDigestAdapter.adapt(stat), tsgm);
+    return createWithStatNoFollow(
+        rootedPath, FileStatusWithDigestAdapter.adapt(statNoFollow), tsgm);
   }
 
   static FileStateValue createWithStatNoFollow(RootedPath rootedPath,
@@ -44,6 +44,7 @@ import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.WalkableGraph;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -68,6 +69,9 @@ import javax.annotation.Nullable;
 public class FilesystemValueChecker {
 
   private static final int DIRTINESS_CHECK_THREADS = 200;
+  // The maximum number of keys checked by each task, so that checkers can batch their filesystem
+  // calls. Smaller sets of keys use smaller batches, so that all the threads get some work.
+  private static final int MAX_DIRTINESS_CHECK_BATCH_SIZE = 256;
   private static final Logger LOG = Logger.getLogger(FilesystemValueChecker.class.getName());
 
   private static final Predicate<SkyKey> ACTION_FILTER =
@@ -439,28 +443,32 @@ public class FilesystemValueChecker {
           }
         }
     };
+    int batchSize = getBatchSize(keys);
     try (AutoProfiler prof = AutoProfiler.create(elapsedTimeReceiver)) {
-      for (final SkyKey key : keys) {
+      List<SkyKey> batchKeys = new ArrayList<>(batchSize);
+      List<SkyValue> batchValues = new ArrayList<>(batchSize);
+      for (SkyKey key : keys) {
         numKeysScanned.incrementAndGet();
         if (!checker.applies(key)) {
           continue;
         }
-        final SkyValue value = fetcher.get(key);
+        SkyValue value = fetcher.get(key);
         if (!checkMissingValues && value == null) {
           continue;
         }
-        executor.execute(
-            wrapper.wrap(
-                new Runnable() {
-                  @Override
-                  public void run() {
-                    numKeysChecked.incrementAndGet();
-                    DirtyResult result = checker.check(key, value, tsgm);
-                    if (result.isDirty()) {
-                      batchResult.add(key, value, result.getNewValue());
-                    }
-                  }
-                }));
+        batchKeys.add(key);
+        batchValues.add(value);
+        if (batchKeys.size() == batchSize) {
+          executor.execute(wrapper.wrap(
+              newCheckBatchRunnable(batchKeys, batchValues, checker, batchResult,
+                  numKeysChecked)));
+          batchKeys = new ArrayList<>(batchSize);
+          batchValues = new ArrayList<>(batchSize);
+        }
+      }
+      if (!batchKeys.isEmpty()) {
+        executor.execute(wrapper.wrap(
+            newCheckBatchRunnable(batchKeys, batchValues, checker, batchResult, numKeysChecked)));
       }
 
       boolean interrupted = ExecutorUtil.interruptibleShutdown(executor);
@@ -472,6 +480,33 @@ public class FilesystemValueChecker {
     return batchResult;
   }
 
+  private static int getBatchSize(Iterable<SkyKey> keys) {
+    if (!(keys instanceof Collection)) {
+      return MAX_DIRTINESS_CHECK_BATCH_SIZE;
+    }
+    int numKeys = ((Collection<?>) keys).size();
+    return Math.max(1,
+        Math.min(MAX_DIRTINESS_CHECK_BATCH_SIZE, numKeys / (DIRTINESS_CHECK_THREADS * 4)));
+  }
+
+  private Runnable newCheckBatchRunnable(final List<SkyKey> keys, final List<SkyValue> values,
+      final SkyValueDirtinessChecker checker, final BatchDirtyResult batchResult,
+      final AtomicInteger numKeysChecked) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        numKeysChecked.addAndGet(keys.size());
+        List<DirtyResult> results = checker.checkBatch(keys, values, tsgm);
+        for (int i = 0; i < keys.size(); i++) {
+          DirtyResult result = results.get(i);
+          if (result.isDirty()) {
+            batchResult.add(keys.get(i), values.get(i), result.getNewValue());
+          }
+        }
+      }
+    };
+  }
+
   /**
    * Result of a batch call to {@link SkyValueDirtinessChecker#check}. Partitions the dirty
    * values based on whether we have a new value available for them or not.
@@ -14,7 +14,10 @@
 package com.google.devtools.build.lib.skyframe;
 
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.AtomicLongMap;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.skyframe.EvaluationProgressReceiver;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
@@ -37,6 +40,7 @@ public class LoadingProgressReceiver implements EvaluationProgressReceiver {
   private final Set<SkyKey> enqueuedPackages = Sets.newConcurrentHashSet();
   private final Set<SkyKey> completedPackages = Sets.newConcurrentHashSet();
   private final Deque<SkyKey> pending = new ArrayDeque<>();
+  private final AtomicLongMap<PackageIdentifier> packageTimes = AtomicLongMap.create();
 
   @Override
   public void invalidated(SkyKey skyKey, InvalidationState state) {}
@@ -50,7 +54,11 @@ public class LoadingProgressReceiver implements EvaluationProgressReceiver {
   }
 
   @Override
-  public void computed(SkyKey skyKey, long elapsedTimeNanos) {}
+  public void computed(SkyKey skyKey, long elapsedTimeNanos) {
+    if (skyKey.functionName().equals(SkyFunctions.PACKAGE)) {
+      packageTimes.addAndGet((PackageIdentifier) skyKey.argument(), elapsedTimeNanos);
+    }
+  }
 
   @Override
   public synchronized void evaluated(
@@ -61,6 +69,14 @@ public class LoadingProgressReceiver implements EvaluationProgressReceiver {
     }
   }
 
+  /**
+   * Returns the time spent loading each package, in nanoseconds. The time of the packages it
+   * depends on, e.g. for Skylark imports, is not included.
+   */
+  public ImmutableMap<PackageIdentifier, Long> getPackageTimes() {
+    return ImmutableMap.copyOf(packageTimes.asMap());
+  }
+
   public synchronized String progressState() {
     long completed = completedPackages.size();
     long enqueued = enqueuedPackages.size();
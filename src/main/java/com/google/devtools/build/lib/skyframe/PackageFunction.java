@@ -622,14 +622,21 @@ public class PackageFunction implements SkyFunction {
                     importLookupKeys,
                     SkylarkImportFailedException.class,
                     InconsistentFilesystemException.class);
-        valuesMissing = env.valuesMissing();
         for (Map.Entry<
               SkyKey,
               ValueOrException2<
                   SkylarkImportFailedException,
                   InconsistentFilesystemException>> entry : skylarkLookupResults.entrySet()) {
-          // Fetching the value will raise any deferred exceptions
-          skylarkImportMap.put(entry.getKey(), entry.getValue().get());
+          // Fetching the value will raise any deferred exceptions. This does not check
+          // env.valuesMissing(), which is also set by the glob values requested by the prefetch
+          // of literal globs: those are delegated to the legacy globber in the meantime, and are
+          // only needed once the package has been evaluated.
+          SkyValue skyValue = entry.getValue().get();
+          if (skyValue == null) {
+            valuesMissing = true;
+          } else {
+            skylarkImportMap.put(entry.getKey(), skyValue);
+          }
         }
       } else {
         // Inlining calls to SkylarkImportLookupFunction
@@ -1137,14 +1144,18 @@ public class PackageFunction implements SkyFunction {
           StoredEventHandler astParsingEventHandler = new StoredEventHandler();
           BuildFileAST ast = PackageFactory.parseBuildFile(packageId, preprocessingResult.result,
               preludeStatements, astParsingEventHandler);
-          // If no globs were fetched during preprocessing, then there's no need to reuse the
-          // legacy globber instance during BUILD file evaluation since the performance argument
-          // below does not apply.
+          // Start traversing the directories of literal globs right away, so that it overlaps
+          // with loading the Skylark imports below. Globs whose values are already in Skyframe are
+          // not traversed again; the others are delegated to the legacy globber. Their glob
+          // values are needed before the package is done anyway, so requesting them here does
+          // not add a restart; see discoverSkylarkImports.
+          PackageFactory.prefetchLiteralGlobs(ast, skyframeGlobber);
+          // The legacy globber now holds the prefetched globs (and any globs fetched during
+          // preprocessing), so it must be reused during BUILD file evaluation.
           Set<SkyKey> globDepsRequested = skyframeGlobber.getGlobDepsRequested();
-          Globber legacyGlobberToStore = globDepsRequested.isEmpty() ? null : legacyGlobber;
           astCacheEntry = new CacheEntryWithGlobDeps<>(
               new AstAfterPreprocessing(preprocessingResult, ast, astParsingEventHandler),
-              globDepsRequested, legacyGlobberToStore);
+              globDepsRequested, legacyGlobber);
           astCache.put(packageId, astCacheEntry);
         }
         AstAfterPreprocessing astAfterPreprocessing = astCacheEntry.value;
@@ -1158,15 +1169,18 @@ public class PackageFunction implements SkyFunction {
               env);
         } catch (PackageFunctionException | InterruptedException e) {
           astCache.invalidate(packageId);
+          if (astCacheEntry.legacyGlobber != null) {
+            astCacheEntry.legacyGlobber.onInterrupt();
+          }
           throw e;
         }
         if (importResult == null) {
           return null;
         }
         astCache.invalidate(packageId);
-        // If a legacy globber was used to evaluate globs during preprocessing, it's important that
-        // we reuse that globber during BUILD file evaluation for performance, in the case that
-        // globs were fetched lazily during preprocessing. See Preprocessor.Factory#considersGlobs.
+        // The legacy globber that prefetched the literal globs, and possibly evaluated globs during
+        // preprocessing, must be reused during BUILD file evaluation for performance, so that its
+        // in-flight globs are not started again. See Preprocessor.Factory#considersGlobs.
         Globber legacyGlobber = astCacheEntry.legacyGlobber != null
             ? astCacheEntry.legacyGlobber
             : packageFactory.createLegacyGlobber(
@@ -0,0 +1,308 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.SetMultimap;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.packages.AggregatingAttributeMapper;
+import com.google.devtools.build.lib.packages.Attribute;
+import com.google.devtools.build.lib.packages.AttributeMap;
+import com.google.devtools.build.lib.packages.BuildType;
+import com.google.devtools.build.lib.packages.InputFile;
+import com.google.devtools.build.lib.packages.NoSuchTargetException;
+import com.google.devtools.build.lib.packages.OutputFile;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.PackageGroup;
+import com.google.devtools.build.lib.packages.Rule;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * An index of the dependency edges between the targets of packages loaded by Skyframe, which
+ * lets query find the reverse dependencies of a target without walking the transitive closure of
+ * its universe every time.
+ *
+ * <p>For each indexed package, the index keeps the labels that each of its targets depends on,
+ * with the same edges as query follows when it includes all dependencies, and for each label the
+ * indexed targets depending on it. Packages are added by query when it needs them (see
+ * {@link #put}) and are removed as soon as Skyframe invalidates them, so the index never contains
+ * a package that is out of date with respect to the last evaluation.
+ *
+ * <p>Which dependencies an aspect adds depends on the rule class of the dependency it is applied
+ * to, which may be in another package. These are not indexed; instead, the index records the
+ * edges through attributes with aspects (see {@link #getAspectEdges}).
+ *
+ * <p>The index also keeps the transitive closure of the last universe it was asked about (see
+ * {@link #cacheClosure}) until a package in the index changes.
+ */
+@ThreadSafe
+public final class ReverseDepsIndex {
+
+  /** The targets of one package and their dependencies. */
+  private static final class PackageEntry {
+    private final Package pkg;
+    private final ImmutableMap<Label, ImmutableList<Label>> deps;
+    private final ImmutableMap<Label, ImmutableSetMultimap<Attribute, Label>> aspectEdges;
+    private final boolean containsErrors;
+
+    private PackageEntry(Package pkg) {
+      this.pkg = pkg;
+      ImmutableMap.Builder<Label, ImmutableList<Label>> deps = ImmutableMap.builder();
+      ImmutableMap.Builder<Label, ImmutableSetMultimap<Attribute, Label>> aspectEdges =
+          ImmutableMap.builder();
+      boolean containsErrors = pkg.containsErrors();
+      for (Target target : pkg.getTargets()) {
+        deps.put(target.getLabel(), getDeps(target));
+        if (target instanceof Rule) {
+          Rule rule = (Rule) target;
+          containsErrors |= rule.containsErrors();
+          ImmutableSetMultimap<Attribute, Label> edges = getAspectEdges(rule);
+          if (!edges.isEmpty()) {
+            aspectEdges.put(rule.getLabel(), edges);
+          }
+        }
+      }
+      this.deps = deps.build();
+      this.aspectEdges = aspectEdges.build();
+      this.containsErrors = containsErrors;
+    }
+
+    /** Returns the labels that query visits from the given target, without aspects. */
+    private static ImmutableList<Label> getDeps(Target target) {
+      final Set<Label> labels = new LinkedHashSet<>();
+      if (target instanceof OutputFile) {
+        labels.add(((OutputFile) target).getGeneratingRule().getLabel());
+        labels.addAll(target.getVisibility().getDependencyLabels());
+      } else if (target instanceof InputFile) {
+        labels.addAll(target.getVisibility().getDependencyLabels());
+      } else if (target instanceof Rule) {
+        Rule rule = (Rule) target;
+        if (rule.getRuleClassObject().hasAttr("visibility", BuildType.NODEP_LABEL_LIST)) {
+          labels.addAll(target.getVisibility().getDependencyLabels());
+        }
+        AggregatingAttributeMapper.of(rule).visitLabels(new AttributeMap.AcceptsLabelAttribute() {
+          @Override
+          public void acceptLabelAttribute(Label label, Attribute attribute) {
+            labels.add(label);
+          }
+        });
+      } else if (target instanceof PackageGroup) {
+        labels.addAll(((PackageGroup) target).getIncludes());
+      }
+      return ImmutableList.copyOf(labels);
+    }
+
+    private static ImmutableSetMultimap<Attribute, Label> getAspectEdges(Rule rule) {
+      final ImmutableSetMultimap.Builder<Attribute, Label> edges = ImmutableSetMultimap.builder();
+      AggregatingAttributeMapper.of(rule).visitLabels(new AttributeMap.AcceptsLabelAttribute() {
+        @Override
+        public void acceptLabelAttribute(Label label, Attribute attribute) {
+          if (attribute.hasAspects()) {
+            edges.put(attribute, label);
+          }
+        }
+      });
+      return edges.build();
+    }
+  }
+
+  /** The labels in the transitive closure of some targets. */
+  public static final class Closure {
+    private final ImmutableSet<Label> labels;
+    private final ImmutableSetMultimap<Label, Label> aspectDeps;
+
+    /**
+     * @param labels the labels of the targets in the closure
+     * @param aspectDeps the dependencies added by aspects to the targets in the closure
+     */
+    public Closure(ImmutableSet<Label> labels, ImmutableSetMultimap<Label, Label> aspectDeps) {
+      this.labels = labels;
+      this.aspectDeps = aspectDeps;
+    }
+
+    public boolean contains(Label label) {
+      return labels.contains(label);
+    }
+
+    /** Returns the dependencies added by aspects to the given target. */
+    public ImmutableSet<Label> getAspectDeps(Label label) {
+      return aspectDeps.get(label);
+    }
+
+    /** Returns the targets in the closure that depend on the given label through an aspect. */
+    public ImmutableSet<Label> getAspectReverseDeps(Label label) {
+      return aspectDeps.inverse().get(label);
+    }
+  }
+
+  private final Map<PackageIdentifier, PackageEntry> packages = new HashMap<>();
+  private final SetMultimap<Label, Label> reverseDeps = HashMultimap.create();
+
+  // Incremented whenever a package in the index changes or is removed.
+  private long generation;
+  @Nullable private ImmutableSet<Label> cachedRoots;
+  @Nullable private Closure cachedClosure;
+
+  /** Adds the given package to the index, replacing the indexed version of it, if any. */
+  public void put(Package pkg) {
+    PackageIdentifier packageId = pkg.getPackageIdentifier();
+    synchronized (this) {
+      PackageEntry previous = packages.get(packageId);
+      if (previous != null && previous.pkg == pkg) {
+        return;
+      }
+    }
+    // Computed outside of the lock, since it visits every attribute of every rule.
+    PackageEntry entry = new PackageEntry(pkg);
+    synchronized (this) {
+      removeReverseDeps(packages.put(packageId, entry));
+      for (Map.Entry<Label, ImmutableList<Label>> targetDeps : entry.deps.entrySet()) {
+        for (Label dep : targetDeps.getValue()) {
+          reverseDeps.put(dep, targetDeps.getKey());
+        }
+      }
+    }
+  }
+
+  /** Removes the given package from the index, if it is there. */
+  public synchronized void remove(PackageIdentifier packageId) {
+    removeReverseDeps(packages.remove(packageId));
+  }
+
+  /** Removes all packages from the index. */
+  public synchronized void clear() {
+    packages.clear();
+    reverseDeps.clear();
+    invalidateClosure();
+  }
+
+  private void removeReverseDeps(@Nullable PackageEntry entry) {
+    if (entry == null) {
+      return;
+    }
+    for (Map.Entry<Label, ImmutableList<Label>> targetDeps : entry.deps.entrySet()) {
+      for (Label dep : targetDeps.getValue()) {
+        reverseDeps.remove(dep, targetDeps.getKey());
+      }
+    }
+    // Adding a package cannot change the closure of targets in other packages, but changing or
+    // removing one can.
+    invalidateClosure();
+  }
+
+  private void invalidateClosure() {
+    generation++;
+    cachedRoots = null;
+    cachedClosure = null;
+  }
+
+  /** Returns whether the given package is in the index. */
+  public synchronized boolean contains(PackageIdentifier packageId) {
+    return packages.containsKey(packageId);
+  }
+
+  /**
+   * Returns whether the given package, or one of its rules, contains errors. The package must be
+   * in the index.
+   */
+  public synchronized boolean containsErrors(PackageIdentifier packageId) {
+    return getEntry(packageId).containsErrors;
+  }
+
+  /**
+   * Returns the target with the given label. Its package must be in the index.
+   *
+   * @throws NoSuchTargetException if the package has no such target
+   */
+  public Target getTarget(Label label) throws NoSuchTargetException {
+    Package pkg;
+    synchronized (this) {
+      pkg = getEntry(label.getPackageIdentifier()).pkg;
+    }
+    return pkg.getTarget(label.getName());
+  }
+
+  /**
+   * Returns the labels that the given target depends on, without those added by aspects, or null
+   * if its package, which must be in the index, has no such target.
+   */
+  @Nullable
+  public synchronized ImmutableList<Label> getDeps(Label label) {
+    return getEntry(label.getPackageIdentifier()).deps.get(label);
+  }
+
+  /**
+   * Returns the labels that the given target depends on through attributes with aspects, by
+   * attribute. Its package must be in the index.
+   */
+  public synchronized ImmutableSetMultimap<Attribute, Label> getAspectEdges(Label label) {
+    ImmutableSetMultimap<Attribute, Label> edges =
+        getEntry(label.getPackageIdentifier()).aspectEdges.get(label);
+    return edges != null ? edges : ImmutableSetMultimap.<Attribute, Label>of();
+  }
+
+  /**
+   * Returns the targets in the index that depend on the given label, without those depending on
+   * it through an aspect.
+   */
+  public synchronized Collection<Label> getReverseDeps(Label label) {
+    return ImmutableList.copyOf(reverseDeps.get(label));
+  }
+
+  private PackageEntry getEntry(PackageIdentifier packageId) {
+    return Preconditions.checkNotNull(packages.get(packageId), packageId);
+  }
+
+  /**
+   * Returns a number that changes whenever a package in the index changes or is removed. Pass it
+   * to {@link #cacheClosure} along with a closure computed from the index.
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Keeps the transitive closure of the given targets until a package in the index changes, unless
+   * one has changed since {@code generation} was obtained from {@link #getGeneration}, while the
+   * closure was being computed. Replaces the closure kept before, if any.
+   */
+  public synchronized void cacheClosure(ImmutableSet<Label> roots, long generation,
+      Closure closure) {
+    if (generation == this.generation) {
+      cachedRoots = roots;
+      cachedClosure = closure;
+    }
+  }
+
+  /** Returns the transitive closure of the given targets, if it was cached. */
+  @Nullable
+  public synchronized Closure getCachedClosure(ImmutableSet<Label> roots) {
+    return roots.equals(cachedRoots) ? cachedClosure : null;
+  }
+}
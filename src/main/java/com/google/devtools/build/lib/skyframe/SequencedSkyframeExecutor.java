@@ -31,6 +31,10 @@ import com.google.devtools.build.lib.analysis.WorkspaceStatusAction;
 import com.google.devtools.build.lib.analysis.WorkspaceStatusAction.Factory;
 import com.google.devtools.build.lib.analysis.buildinfo.BuildInfoFactory;
 import com.google.devtools.build.lib.analysis.config.BinTools;
+import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
+import com.google.devtools.build.lib.analysis.config.BuildConfigurationCollection;
+import com.google.devtools.build.lib.analysis.config.BuildOptions;
+import com.google.devtools.build.lib.analysis.config.FragmentOptions;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.concurrent.Uninterruptibles;
 import com.google.devtools.build.lib.events.EventHandler;
@@ -546,6 +550,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
   private void discardAnalysisCache(Collection<ConfiguredTarget> topLevelTargets) {
     try (AutoProfiler p = AutoProfiler.logged("discarding analysis cache", LOG)) {
       lastAnalysisDiscarded = true;
+      clearActionGraphIndex();
       for (Map.Entry<SkyKey, SkyValue> entry : memoizingEvaluator.getValues().entrySet()) {
         if (!entry.getKey().functionName().equals(SkyFunctions.CONFIGURED_TARGET)) {
           continue;
@@ -568,6 +573,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
   public void dropConfiguredTargets() {
     skyframeBuildView.clearInvalidatedConfiguredTargets();
     skyframeBuildView.clearLegacyData();
+    clearActionGraphIndex();
     memoizingEvaluator.delete(
         // We delete any value that can hold an action -- all subclasses of ActionLookupValue -- as
         // well as ActionExecutionValues, since they do not depend on ActionLookupValues.
@@ -581,6 +587,51 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     );
   }
 
+  @Override
+  public void dropConfiguredTargetsNotTrimmedFrom(BuildConfigurationCollection configurations) {
+    final Set<BuildOptions> currentOptions = new HashSet<>();
+    for (BuildConfiguration configuration : configurations.getTargetConfigurations()) {
+      currentOptions.add(configuration.getOptions());
+    }
+    currentOptions.add(configurations.getHostConfiguration().getOptions());
+    // Many configured targets share a configuration, so each one is only checked once.
+    final Map<BuildConfiguration, Boolean> stale = Maps.newConcurrentMap();
+    memoizingEvaluator.delete(new Predicate<SkyKey>() {
+      @Override
+      public boolean apply(SkyKey key) {
+        if (!key.functionName().equals(SkyFunctions.CONFIGURED_TARGET)
+            || !(key.argument() instanceof ConfiguredTargetKey)) {
+          return false;
+        }
+        BuildConfiguration configuration =
+            ((ConfiguredTargetKey) key.argument()).getConfiguration();
+        if (configuration == null) {
+          return false;
+        }
+        Boolean isStale = stale.get(configuration);
+        if (isStale == null) {
+          isStale = !isTrimmedFrom(configuration.getOptions(), currentOptions);
+          stale.put(configuration, isStale);
+        }
+        return isStale;
+      }
+    });
+  }
+
+  /** Returns whether {@code options} is one of {@code currentOptions} trimmed to its classes. */
+  private static boolean isTrimmedFrom(BuildOptions options, Set<BuildOptions> currentOptions) {
+    Set<Class<? extends FragmentOptions>> optionsClasses = new HashSet<>();
+    for (FragmentOptions fragmentOptions : options.getOptions()) {
+      optionsClasses.add(fragmentOptions.getClass());
+    }
+    for (BuildOptions current : currentOptions) {
+      if (options.equals(current.trim(optionsClasses))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * Deletes all ConfiguredTarget values from the Skyframe cache.
    *
@@ -18,6 +18,9 @@ import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.annotation.Nullable;
 
 /**
@@ -41,7 +44,36 @@ public abstract class SkyValueDirtinessChecker {
    */
   public DirtyResult check(SkyKey key, @Nullable SkyValue oldValue,
       @Nullable TimestampGranularityMonitor tsgm) {
-    SkyValue newValue = createNewValue(key, tsgm);
+    return compare(oldValue, createNewValue(key, tsgm));
+  }
+
+  /**
+   * Like {@link #check}, but for a batch of keys the checker applies to and their old values.
+   * Returns the results in the same order as the keys. Checkers that can check many keys more
+   * cheaply together than one at a time, e.g. by batching filesystem calls, should override this
+   * method.
+   */
+  public List<DirtyResult> checkBatch(List<SkyKey> keys, List<SkyValue> oldValues,
+      @Nullable TimestampGranularityMonitor tsgm) {
+    return checkEach(keys, oldValues, tsgm);
+  }
+
+  /** Checks the keys one at a time with {@link #check}. */
+  protected final List<DirtyResult> checkEach(List<SkyKey> keys, List<SkyValue> oldValues,
+      @Nullable TimestampGranularityMonitor tsgm) {
+    Preconditions.checkArgument(keys.size() == oldValues.size(), "%s %s", keys, oldValues);
+    List<DirtyResult> results = new ArrayList<>(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      results.add(check(keys.get(i), oldValues.get(i), tsgm));
+    }
+    return results;
+  }
+
+  /**
+   * Returns the result of checking {@code oldValue} against {@code newValue}, where a {@code null}
+   * new value means that it could not be created.
+   */
+  static DirtyResult compare(@Nullable SkyValue oldValue, @Nullable SkyValue newValue) {
     if (newValue == null) {
       return DirtyResult.dirty(oldValue);
     }
@@ -30,7 +30,6 @@ import com.google.devtools.build.lib.actions.ActionExecutionContext;
 import com.google.devtools.build.lib.actions.ActionExecutionContextFactory;
 import com.google.devtools.build.lib.actions.ActionExecutionException;
 import com.google.devtools.build.lib.actions.ActionExecutionStatusReporter;
-import com.google.devtools.build.lib.actions.ActionGraph;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.actions.ActionInputHelper;
@@ -45,8 +44,6 @@ import com.google.devtools.build.lib.actions.ArtifactPrefixConflictException;
 import com.google.devtools.build.lib.actions.CachedActionEvent;
 import com.google.devtools.build.lib.actions.EnvironmentalExecException;
 import com.google.devtools.build.lib.actions.Executor;
-import com.google.devtools.build.lib.actions.MapBasedActionGraph;
-import com.google.devtools.build.lib.actions.MutableActionGraph;
 import com.google.devtools.build.lib.actions.MutableActionGraph.ActionConflictException;
 import com.google.devtools.build.lib.actions.NotifyOnActionCacheHit;
 import com.google.devtools.build.lib.actions.PackageRootResolutionException;
@@ -57,9 +54,6 @@ import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.actions.TargetOutOfDateException;
 import com.google.devtools.build.lib.actions.cache.MetadataHandler;
 import com.google.devtools.build.lib.cmdline.Label;
-import com.google.devtools.build.lib.concurrent.ExecutorUtil;
-import com.google.devtools.build.lib.concurrent.Sharder;
-import com.google.devtools.build.lib.concurrent.ThrowableRecordingRunnableWrapper;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.exec.OutputService;
@@ -77,20 +71,18 @@ import com.google.protobuf.ByteString;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedMap;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentNavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
@@ -128,6 +120,9 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
   // thrown when execution of the action is requested. This field is set during each call to
   // findAndStoreArtifactConflicts, and is preserved across builds otherwise.
   private ImmutableMap<ActionAnalysisMetadata, ConflictException> badActionMap = ImmutableMap.of();
+  // The generating actions of all artifacts in Skyframe, which are re-indexed incrementally by
+  // findAndStoreArtifactConflicts.
+  private final ActionGraphIndex actionGraphIndex = new ActionGraphIndex();
   private boolean keepGoing;
   private boolean hadExecutionError;
   private ActionInputFileCache perBuildFileCache;
@@ -136,6 +131,20 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
   private final AtomicReference<ActionExecutionStatusReporter> statusReporterRef;
   private OutputService outputService;
 
+  // Stats and digests the outputs of actions that have many of them. Shared by all actions and
+  // builds; its threads exit when they have been idle for a while.
+  private static final ExecutorService OUTPUT_METADATA_POOL = createOutputMetadataPool();
+
+  private static ExecutorService createOutputMetadataPool() {
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads,
+        10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder()
+            .setNameFormat("action-output-metadata-%d").setDaemon(true).build());
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
   SkyframeActionExecutor(ResourceManager resourceManager,
       AtomicReference<EventBus> eventBus,
       AtomicReference<ActionExecutionStatusReporter> statusReporterRef) {
@@ -197,8 +206,10 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
    * first time it is executed, the correct exception will be thrown.
    *
    * <p>This method must be called if a new action was added to the graph this build, so
-   * whenever a new configured target was analyzed this build. It is somewhat expensive (~1s
-   * range for a medium build as of 2014), so it should only be called when necessary.
+   * whenever a new configured target was analyzed this build. The generating actions are kept in
+   * an {@link ActionGraphIndex} across builds, so only the actions of action lookup values that
+   * changed since the last call are registered again, and only the paths they add are checked
+   * for prefix conflicts.
    *
    * <p>Conflicts found may not be requested this build, and so we may overzealously throw an error.
    * For instance, if actions A and B generate the same artifact foo, and the user first requests
@@ -216,15 +227,28 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
    */
   void findAndStoreArtifactConflicts(Iterable<ActionLookupValue> actionLookupValues)
       throws InterruptedException {
-    ConcurrentMap<ActionAnalysisMetadata, ConflictException> temporaryBadActionMap =
-        new ConcurrentHashMap<>();
-    Pair<ActionGraph, SortedMap<PathFragment, Artifact>> result;
-    result = constructActionGraphAndPathMap(actionLookupValues, temporaryBadActionMap);
-    ActionGraph actionGraph = result.first;
-    SortedMap<PathFragment, Artifact> artifactPathMap = result.second;
+    profiler.startTask(ProfilerTask.ACTION_GRAPH_INDEX, "action graph index");
+    try {
+      actionGraphIndex.update(actionLookupValues);
+    } finally {
+      profiler.completeTask(ProfilerTask.ACTION_GRAPH_INDEX);
+    }
+    profiler.startTask(ProfilerTask.ARTIFACT_PREFIX_CONFLICTS, "artifact prefix conflicts");
+    try {
+      actionGraphIndex.updatePrefixConflicts(Runtime.getRuntime().availableProcessors());
+    } finally {
+      profiler.completeTask(ProfilerTask.ARTIFACT_PREFIX_CONFLICTS);
+    }
+
+    Map<ActionAnalysisMetadata, ConflictException> temporaryBadActionMap = new HashMap<>();
+    for (Map.Entry<ActionAnalysisMetadata, ActionConflictException> actionExceptionPair :
+        actionGraphIndex.getActionConflicts().entrySet()) {
+      temporaryBadActionMap.put(
+          actionExceptionPair.getKey(), new ConflictException(actionExceptionPair.getValue()));
+    }
 
     Map<ActionAnalysisMetadata, ArtifactPrefixConflictException> actionsWithArtifactPrefixConflict =
-        Actions.findArtifactPrefixConflicts(actionGraph, artifactPathMap);
+        actionGraphIndex.getPrefixConflicts();
     for (Map.Entry<ActionAnalysisMetadata, ArtifactPrefixConflictException> actionExceptionPair :
         actionsWithArtifactPrefixConflict.entrySet()) {
       temporaryBadActionMap.put(
@@ -235,77 +259,12 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
   }
 
   /**
-   * Simultaneously construct an action graph for all the actions in Skyframe and a map from
-   * {@link PathFragment}s to their respective {@link Artifact}s. We do this in a threadpool to save
-   * around 1.5 seconds on a mid-sized build versus a single-threaded operation.
+   * Drops the generating actions kept by {@link #findAndStoreArtifactConflicts}, which would
+   * otherwise keep the action lookup values they came from alive. The next call registers all
+   * actions again.
    */
-  private static Pair<ActionGraph, SortedMap<PathFragment, Artifact>>
-      constructActionGraphAndPathMap(
-          Iterable<ActionLookupValue> values,
-          ConcurrentMap<ActionAnalysisMetadata, ConflictException> badActionMap)
-      throws InterruptedException {
-    MutableActionGraph actionGraph = new MapBasedActionGraph();
-    ConcurrentNavigableMap<PathFragment, Artifact> artifactPathMap = new ConcurrentSkipListMap<>();
-    // Action graph construction is CPU-bound.
-    int numJobs = Runtime.getRuntime().availableProcessors();
-    // No great reason for expecting 5000 action lookup values, but not worth counting size of
-    // values.
-    Sharder<ActionLookupValue> actionShards = new Sharder<>(numJobs, 5000);
-    for (ActionLookupValue value : values) {
-      actionShards.add(value);
-    }
-
-    ThrowableRecordingRunnableWrapper wrapper = new ThrowableRecordingRunnableWrapper(
-        "SkyframeActionExecutor#constructActionGraphAndPathMap");
-
-    ExecutorService executor = Executors.newFixedThreadPool(
-        numJobs,
-        new ThreadFactoryBuilder().setNameFormat("ActionLookupValue Processor %d").build());
-    for (List<ActionLookupValue> shard : actionShards) {
-      executor.execute(
-          wrapper.wrap(actionRegistration(shard, actionGraph, artifactPathMap, badActionMap)));
-    }
-    boolean interrupted = ExecutorUtil.interruptibleShutdown(executor);
-    Throwables.propagateIfPossible(wrapper.getFirstThrownError());
-    if (interrupted) {
-      throw new InterruptedException();
-    }
-    return Pair.<ActionGraph, SortedMap<PathFragment, Artifact>>of(actionGraph, artifactPathMap);
-  }
-
-  private static Runnable actionRegistration(
-      final List<ActionLookupValue> values,
-      final MutableActionGraph actionGraph,
-      final ConcurrentMap<PathFragment, Artifact> artifactPathMap,
-      final ConcurrentMap<ActionAnalysisMetadata, ConflictException> badActionMap) {
-    return new Runnable() {
-      @Override
-      public void run() {
-        for (ActionLookupValue value : values) {
-          Set<ActionAnalysisMetadata> registeredActions = new HashSet<>();
-          for (Map.Entry<Artifact, ActionAnalysisMetadata> entry :
-              value.getMapForConsistencyCheck().entrySet()) {
-            ActionAnalysisMetadata action = entry.getValue();
-            // We have an entry for each <action, artifact> pair. Only try to register each action
-            // once.
-            if (registeredActions.add(action)) {
-              try {
-                actionGraph.registerAction(action);
-              } catch (ActionConflictException e) {
-                Exception oldException = badActionMap.put(action, new ConflictException(e));
-                Preconditions.checkState(oldException == null,
-                  "%s | %s | %s", action, e, oldException);
-                // We skip the rest of the loop, and do not add the path->artifact mapping for this
-                // artifact below -- we don't need to check it since this action is already in
-                // error.
-                continue;
-              }
-            }
-            artifactPathMap.put(entry.getKey().getExecPath(), entry.getKey());
-          }
-        }
-      }
-    };
+  void clearActionGraphIndex() {
+    actionGraphIndex.clear();
   }
 
   void prepareForExecution(Reporter reporter, Executor executor, boolean keepGoing,
@@ -704,7 +663,8 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
         handle.close();
       }
       statusReporter.remove(action);
-      postEvent(new ActionCompletionEvent(actionStartTime, action));
+      postEvent(
+          new ActionCompletionEvent(actionStartTime, action, context.getResourceUsage()));
     }
   }
 
@@ -778,13 +738,17 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
   }
 
   private void completeAction(Action action, MetadataHandler metadataHandler,
-      FileOutErr fileOutErr, boolean outputAlreadyDumped) throws ActionExecutionException {
+      FileOutErr fileOutErr, boolean outputAlreadyDumped)
+      throws ActionExecutionException, InterruptedException {
     try {
       Preconditions.checkState(action.inputsKnown(),
           "Action %s successfully executed, but inputs still not known", action);
 
       profiler.startTask(ProfilerTask.ACTION_COMPLETE, action);
       try {
+        if (metadataHandler instanceof ActionMetadataHandler) {
+          collectOutputMetadata(action, (ActionMetadataHandler) metadataHandler);
+        }
         if (!checkOutputs(action, metadataHandler)) {
           reportError("not all outputs were created", null, action,
               outputAlreadyDumped ? null : fileOutErr);
@@ -822,6 +786,21 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
     }
   }
 
+  /**
+   * Collects the metadata of the action's outputs in parallel, batching their stats if the output
+   * service supports it, so that {@link #checkOutputs} and the action cache find it cached.
+   */
+  private void collectOutputMetadata(Action action, ActionMetadataHandler metadataHandler)
+      throws InterruptedException {
+    profiler.startTask(ProfilerTask.ACTION_OUTPUT_COLLECTION, action);
+    try {
+      metadataHandler.collectOutputMetadata(
+          outputService == null ? null : outputService.getBatchStatter(), OUTPUT_METADATA_POOL);
+    } finally {
+      profiler.completeTask(ProfilerTask.ACTION_OUTPUT_COLLECTION);
+    }
+  }
+
   private static void setPathReadOnlyAndExecutable(MetadataHandler metadataHandler,
       Artifact artifact)
       throws IOException {
@@ -24,6 +24,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.eventbus.EventBus;
+import com.google.common.util.concurrent.AtomicLongMap;
 import com.google.devtools.build.lib.actions.ActionAnalysisMetadata;
 import com.google.devtools.build.lib.actions.ArtifactFactory;
 import com.google.devtools.build.lib.actions.ArtifactOwner;
@@ -102,6 +103,8 @@ public final class SkyframeBuildView {
   private final EvaluationProgressReceiver invalidationReceiver =
       new ConfiguredTargetValueInvalidationReceiver();
   private final Set<SkyKey> evaluatedConfiguredTargets = Sets.newConcurrentHashSet();
+  // Time spent in the configured target function, by label, since the last reset.
+  private final AtomicLongMap<Label> configuredTargetTimes = AtomicLongMap.create();
   // Used to see if checks of graph consistency need to be done after analysis.
   private volatile boolean someConfiguredTargetEvaluated = false;
 
@@ -139,12 +142,21 @@ public final class SkyframeBuildView {
 
   public void resetEvaluatedConfiguredTargetKeysSet() {
     evaluatedConfiguredTargets.clear();
+    configuredTargetTimes.clear();
   }
 
   public Set<SkyKey> getEvaluatedTargetKeys() {
     return ImmutableSet.copyOf(evaluatedConfiguredTargets);
   }
 
+  /**
+   * Returns the time spent creating each freshly evaluated configured target, summed over its
+   * configurations, in nanoseconds. The time of the dependencies is not included.
+   */
+  public ImmutableMap<Label, Long> getConfiguredTargetTimes() {
+    return ImmutableMap.copyOf(configuredTargetTimes.asMap());
+  }
+
   ConfiguredTargetFactory getConfiguredTargetFactory() {
     return factory;
   }
@@ -154,13 +166,31 @@ public final class SkyframeBuildView {
    */
   @VisibleForTesting
   public void setConfigurations(BuildConfigurationCollection configurations) {
+    setConfigurations(configurations, /*keepOnConfigurationChange=*/false);
+  }
+
+  /**
+   * Sets the configurations of the next build. If {@code keepOnConfigurationChange} is true, the
+   * cached ConfiguredTargets whose configuration is a trimming of the new configurations are kept
+   * even if the configurations changed. This is only useful if configured targets are keyed on
+   * trimmed configurations, since they can then be reused by builds whose configurations only
+   * differ in options they do not read.
+   */
+  public void setConfigurations(BuildConfigurationCollection configurations,
+      boolean keepOnConfigurationChange) {
     // Clear all cached ConfiguredTargets on configuration change of if --discard_analysis_cache
     // was set on the previous build. In the former case, it's not required for correctness, but
     // prevents unbounded memory usage.
-    if ((this.configurations != null && !configurations.equals(this.configurations))
-        || skyframeAnalysisWasDiscarded) {
+    boolean configurationsChanged =
+        this.configurations != null && !configurations.equals(this.configurations);
+    if ((configurationsChanged && !keepOnConfigurationChange) || skyframeAnalysisWasDiscarded) {
       LOG.info("Discarding analysis cache: configurations have changed.");
       skyframeExecutor.dropConfiguredTargets();
+    } else if (configurationsChanged) {
+      // The configured targets of the previous options that depend on a changed option would
+      // generate the same outputs as their new versions, which would be reported as conflicts.
+      LOG.info("Discarding configured targets whose trimmed configurations have changed.");
+      skyframeExecutor.dropConfiguredTargetsNotTrimmedFrom(configurations);
     }
     skyframeAnalysisWasDiscarded = false;
     this.configurations = configurations;
@@ -603,7 +633,12 @@ public final class SkyframeBuildView {
     public void enqueueing(SkyKey skyKey) {}
 
     @Override
-    public void computed(SkyKey skyKey, long elapsedTimeNanos) {}
+    public void computed(SkyKey skyKey, long elapsedTimeNanos) {
+      if (skyKey.functionName().equals(SkyFunctions.CONFIGURED_TARGET)) {
+        configuredTargetTimes.addAndGet(
+            ((ConfiguredTargetKey) skyKey.argument()).getLabel(), elapsedTimeNanos);
+      }
+    }
 
     @Override
     public void evaluated(SkyKey skyKey, Supplier<SkyValue> skyValueSupplier,
@@ -55,6 +55,7 @@ import com.google.devtools.build.lib.analysis.ConfiguredRuleClassProvider;
 import com.google.devtools.build.lib.analysis.ConfiguredTarget;
 import com.google.devtools.build.lib.analysis.Dependency;
 import com.google.devtools.build.lib.analysis.MergedConfiguredTarget;
+import com.google.devtools.build.lib.analysis.TargetAndConfiguration;
 import com.google.devtools.build.lib.analysis.TopLevelArtifactContext;
 import com.google.devtools.build.lib.analysis.WorkspaceStatusAction;
 import com.google.devtools.build.lib.analysis.WorkspaceStatusAction.Factory;
@@ -71,8 +72,10 @@ import com.google.devtools.build.lib.analysis.config.PatchTransition;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.cmdline.TargetParsingException;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.concurrent.ThreadSafety;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
+import com.google.devtools.build.lib.events.CompactEvents;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.exec.OutputService;
@@ -244,6 +247,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private final SkyframeActionExecutor skyframeActionExecutor;
   private CompletionReceiver actionExecutionFunction;
   protected SkyframeProgressReceiver progressReceiver;
+  @Nullable private volatile ReverseDepsIndex reverseDepsIndex;
   private final AtomicReference<CyclesReporter> cyclesReporter = new AtomicReference<>();
 
   private final BinTools binTools;
@@ -549,9 +553,20 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
    */
   public void resetEvaluator() {
     init();
+    ReverseDepsIndex index = reverseDepsIndex;
+    if (index != null) {
+      index.clear();
+    }
+    clearActionGraphIndex();
     emittedEventState.clear();
     skyframeBuildView.clearLegacyData();
     reinjectConstantValuesLazily();
+    // The events stored in the old graph were the ones referring to the spill files.
+    try {
+      CompactEvents.deleteSpillFiles();
+    } catch (IOException e) {
+      LOG.warning("Failed to delete stored events: " + e.getMessage());
+    }
   }
 
   protected abstract Differencer evaluatorDiffer();
@@ -578,6 +593,26 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
    */
   public abstract void dropConfiguredTargets();
 
+  /**
+   * Deletes the configured targets whose configuration is not one of the given configurations
+   * trimmed to its own options classes, together with everything that depends on them. Configured
+   * targets keyed on trimmed configurations may be reused after unrelated options changed, but
+   * those of the previous options would otherwise stay around, and their actions would conflict
+   * with the ones of the current options.
+   *
+   * <p>The next evaluation will delete the values.
+   */
+  public abstract void dropConfiguredTargetsNotTrimmedFrom(
+      BuildConfigurationCollection configurations);
+
+  /**
+   * Drops the index of generating actions used for conflict checking, e.g. when the action lookup
+   * values are deleted or their analysis data is discarded.
+   */
+  protected void clearActionGraphIndex() {
+    skyframeActionExecutor.clearActionGraphIndex();
+  }
+
   /**
    * Removes ConfigurationFragmentValuess and ConfigurationCollectionValues from the cache.
    */
@@ -1265,6 +1300,61 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     return builder;
   }
 
+  /**
+   * Returns the given top-level targets in the same order, each in a dynamic configuration trimmed
+   * to the fragments needed by its transitive closure and to the options those fragments read.
+   * Targets whose configuration is null or static, and targets whose transitive closure failed to
+   * load, keep their configuration. Targets in different top-level configurations may end up in
+   * the same trimmed one.
+   *
+   * <p>Top-level targets are thus keyed like their dependencies in {@link
+   * ConfiguredTargetFunction#trimConfigurations}: changing an option that a target does not read
+   * yields the same key, and its cached analysis is reused.
+   */
+  public List<TargetAndConfiguration> trimConfigurations(EventHandler eventHandler,
+      List<TargetAndConfiguration> nodes) {
+    List<SkyKey> transitiveFragmentSkyKeys = new ArrayList<>();
+    for (TargetAndConfiguration node : nodes) {
+      if (node.getConfiguration() != null && node.getConfiguration().useDynamicConfigurations()) {
+        transitiveFragmentSkyKeys.add(TransitiveTargetValue.key(node.getLabel()));
+      }
+    }
+    if (transitiveFragmentSkyKeys.isEmpty()) {
+      return nodes;
+    }
+    EvaluationResult<SkyValue> fragmentsResult =
+        evaluateSkyKeys(eventHandler, transitiveFragmentSkyKeys);
+
+    Map<TargetAndConfiguration, SkyKey> configSkyKeys = new HashMap<>();
+    for (TargetAndConfiguration node : nodes) {
+      TransitiveTargetValue ttv = node.getConfiguration() == null
+          ? null
+          : (TransitiveTargetValue) fragmentsResult.get(TransitiveTargetValue.key(node.getLabel()));
+      if (ttv == null) {
+        continue;
+      }
+      NestedSet<Class<? extends BuildConfiguration.Fragment>> fragments =
+          ttv.getTransitiveConfigFragments();
+      BuildOptions trimmedOptions = node.getConfiguration().getOptions().trim(
+          BuildConfiguration.getOptionsClasses(fragments, pkgFactory.getRuleClassProvider()));
+      configSkyKeys.put(node, BuildConfigurationValue.key(fragments.toSet(), trimmedOptions));
+    }
+    EvaluationResult<SkyValue> configsResult =
+        evaluateSkyKeys(eventHandler, configSkyKeys.values());
+
+    List<TargetAndConfiguration> result = new ArrayList<>(nodes.size());
+    for (TargetAndConfiguration node : nodes) {
+      SkyKey configSkyKey = configSkyKeys.get(node);
+      BuildConfigurationValue trimmedConfig = configSkyKey == null
+          ? null
+          : (BuildConfigurationValue) configsResult.get(configSkyKey);
+      result.add(trimmedConfig == null
+          ? node
+          : new TargetAndConfiguration(node.getTarget(), trimmedConfig.getConfiguration()));
+    }
+    return ImmutableList.copyOf(result);
+  }
+
   /**
    * Computes the build options needed for the given key, accounting for transitions possibly
    * specified in the key.
@@ -1514,6 +1604,24 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     };
   }
 
+  /**
+   * Enables or disables the index of reverse dependencies that query uses. The index is kept
+   * until it is disabled, and packages are removed from it as they are invalidated.
+   */
+  public void setReverseDepsIndexEnabled(boolean enabled) {
+    if (!enabled) {
+      reverseDepsIndex = null;
+    } else if (reverseDepsIndex == null) {
+      reverseDepsIndex = new ReverseDepsIndex();
+    }
+  }
+
+  /** Returns the index of reverse dependencies that query uses, or null if it is disabled. */
+  @Nullable
+  public ReverseDepsIndex getReverseDepsIndex() {
+    return reverseDepsIndex;
+  }
+
   public PackageManager getPackageManager() {
     return packageManager;
   }
@@ -1599,6 +1707,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         packageCacheOptions.defaultVisibility, packageCacheOptions.showLoadingProgress,
         packageCacheOptions.globbingThreads, defaultsPackageContents, commandId, tsgm);
     setDeletedPackages(packageCacheOptions.getDeletedPackages());
+    pkgFactory.setParallelRuleCreationThreshold(packageCacheOptions.parallelRuleCreationThreshold);
+    pkgFactory.setCompactAttributeContainers(packageCacheOptions.compactAttributeContainers);
 
     incrementalBuildMonitor = new SkyframeIncrementalBuildMonitor();
     invalidateTransientErrors();
@@ -1789,6 +1899,11 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
 
     @Override
     public void invalidated(SkyKey skyKey, InvalidationState state) {
+      // Also done while invalidations are ignored, which may delete packages.
+      ReverseDepsIndex index = reverseDepsIndex;
+      if (index != null && skyKey.functionName().equals(SkyFunctions.PACKAGE)) {
+        index.remove((PackageIdentifier) skyKey.argument());
+      }
       if (ignoreInvalidations) {
         return;
       }
@@ -1810,7 +1925,15 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     }
 
     @Override
-    public void computed(SkyKey skyKey, long elapsedTimeNanos) {}
+    public void computed(SkyKey skyKey, long elapsedTimeNanos) {
+      if (ignoreInvalidations) {
+        return;
+      }
+      skyframeBuildView.getInvalidationReceiver().computed(skyKey, elapsedTimeNanos);
+      if (loadingProgressReceiver != null) {
+        loadingProgressReceiver.computed(skyKey, elapsedTimeNanos);
+      }
+    }
 
     @Override
     public void evaluated(SkyKey skyKey, Supplier<SkyValue> valueSupplier, EvaluationState state) {
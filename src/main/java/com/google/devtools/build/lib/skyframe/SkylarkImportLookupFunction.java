@@ -244,8 +244,17 @@ public class SkylarkImportLookupFunction implements SkyFunction {
             lookupMap.keySet(),
             BuildFileNotFoundException.class,
             InconsistentFilesystemException.class);
-    if (env.valuesMissing()) {
-     return null;
+    // Only the lookups requested here are checked: the calling function may have requested other
+    // values that it does not need yet, e.g. the globs prefetched by PackageFunction.
+    for (ValueOrException2<BuildFileNotFoundException, InconsistentFilesystemException> result
+        : lookupResults.values()) {
+      try {
+        if (result.get() == null) {
+          return null;
+        }
+      } catch (BuildFileNotFoundException | InconsistentFilesystemException e) {
+        // Rethrown below, in the order of the lookups.
+      }
     }
     try {
       // Process lookup results.
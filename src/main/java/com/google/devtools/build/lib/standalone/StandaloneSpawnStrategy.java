@@ -13,6 +13,8 @@
 // limitations under the License.
 package com.google.devtools.build.lib.standalone;
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
 import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.actions.ActionExecutionContext;
 import com.google.devtools.build.lib.actions.ActionStatusMessage;
@@ -23,6 +25,9 @@ import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.actions.SpawnActionContext;
 import com.google.devtools.build.lib.actions.UserExecException;
 import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.profiler.ResourceUsage;
 import com.google.devtools.build.lib.rules.apple.AppleConfiguration;
 import com.google.devtools.build.lib.rules.apple.AppleHostInfo;
 import com.google.devtools.build.lib.rules.apple.DottedVersion;
@@ -34,9 +39,11 @@ import com.google.devtools.build.lib.util.CommandFailureUtils;
 import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.util.OsUtils;
 import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -88,6 +95,8 @@ public class StandaloneSpawnStrategy implements SpawnActionContext {
     // We must wrap the subprocess with process-wrapper to kill the process tree.
     // All actions therefore depend on the process-wrapper file. Since it's embedded,
     // we don't bother with declaring it as an input.
+    FileOutErr outErr = actionExecutionContext.getFileOutErr();
+    Path statsFile = null;
     List<String> args = new ArrayList<>();
     if (OS.getCurrent() != OS.WINDOWS) {
       // TODO(bazel-team): process-wrapper seems to work on Windows, but requires
@@ -95,6 +104,13 @@ public class StandaloneSpawnStrategy implements SpawnActionContext {
       // Disable it for now to make the setup easier and to avoid further PATH hacks.
       // Ideally we should have a native implementation of process-wrapper for Windows.
       args.add(processWrapper.getPathString());
+      Path outputFile = outErr.getOutputFile();
+      if (outputFile != null && outputFile.getFileSystem() == execRoot.getFileSystem()) {
+        // Let process-wrapper measure the resources used by the process, next to its output.
+        statsFile = outputFile.getParentDirectory()
+            .getRelative(outputFile.getBaseName() + ".stats");
+        args.add("--stats=" + statsFile.getPathString());
+      }
       args.add(Integer.toString(timeout));
       args.add("5"); /* kill delay: give some time to print stacktraces and whatnot. */
 
@@ -109,7 +125,6 @@ public class StandaloneSpawnStrategy implements SpawnActionContext {
     Command cmd = new Command(args.toArray(new String[]{}),
         locallyDeterminedEnv(spawn.getEnvironment()), new File(cwd));
 
-    FileOutErr outErr = actionExecutionContext.getFileOutErr();
     try {
       cmd.execute(
           /* stdin */ new byte[]{},
@@ -128,6 +143,33 @@ public class StandaloneSpawnStrategy implements SpawnActionContext {
       String message = CommandFailureUtils.describeCommandFailure(
           verboseFailures, spawn.getArguments(), spawn.getEnvironment(), cwd);
       throw new UserExecException(message, e);
+    } finally {
+      if (statsFile != null) {
+        recordResourceUsage(spawn, actionExecutionContext, statsFile);
+      }
+    }
+  }
+
+  /**
+   * Adds the resources used by the process of the spawn, as written by process-wrapper, to the
+   * action and the profile. The statistics are best effort, a missing or invalid file is ignored.
+   */
+  private static void recordResourceUsage(
+      Spawn spawn, ActionExecutionContext actionExecutionContext, Path statsFile) {
+    ResourceUsage usage;
+    try {
+      if (!statsFile.exists()) {
+        return;
+      }
+      usage = ResourceUsage.parse(FileSystemUtils.readContent(statsFile, ISO_8859_1));
+      statsFile.delete();
+    } catch (IOException | IllegalArgumentException e) {
+      return;
+    }
+    actionExecutionContext.addResourceUsage(usage);
+    Profiler profiler = Profiler.instance();
+    if (profiler.isActive() && profiler.isProfiling(ProfilerTask.SPAWN_RESOURCES)) {
+      profiler.logEvent(ProfilerTask.SPAWN_RESOURCES, spawn.getMnemonic() + " " + usage);
     }
   }
 
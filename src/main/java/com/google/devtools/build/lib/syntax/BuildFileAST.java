@@ -146,8 +146,19 @@ public class BuildFileAST extends ASTNode {
    * @return true if no error occurred during execution.
    */
   public boolean exec(Environment env, EventHandler eventHandler) throws InterruptedException {
+    return exec(env, eventHandler, 0, stmts.size());
+  }
+
+  /**
+   * Executes the top-level statements with indices in {@code [fromIndex, toIndex)} in a given
+   * Environment, with the same error handling as {@link #exec(Environment, EventHandler)}.
+   *
+   * @return true if no error occurred during execution.
+   */
+  public boolean exec(Environment env, EventHandler eventHandler, int fromIndex, int toIndex)
+      throws InterruptedException {
     boolean ok = true;
-    for (Statement stmt : stmts) {
+    for (Statement stmt : stmts.subList(fromIndex, toIndex)) {
       try {
         stmt.exec(env);
       } catch (EvalException e) {
@@ -0,0 +1,114 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.unix;
+
+import com.google.devtools.build.lib.UnixJniLoader;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Access to the Linux inotify(7) API, for watching directories for changes to their entries.
+ *
+ * <p>Events are decoded natively into the kinds below, so that callers do not depend on the
+ * Linux event masks. On other platforms, {@link #create} throws an {@link IOException}.
+ */
+public final class NativeInotify implements Closeable {
+
+  static {
+    if (!"0".equals(System.getProperty("io.bazel.UnixFileSystem"))) {
+      UnixJniLoader.loadJni();
+    }
+  }
+
+  /** An entry was created in, or moved into, the watched directory. */
+  public static final int CREATED = 1;
+  /** An entry was deleted from, or moved out of, the watched directory. */
+  public static final int DELETED = 2;
+  /** The contents or metadata of an entry of the watched directory changed. */
+  public static final int MODIFIED = 3;
+  /** The watch was removed, explicitly or because its directory is gone. */
+  public static final int WATCH_REMOVED = 4;
+  /** The kernel event queue overflowed and events were lost. */
+  public static final int OVERFLOW = 5;
+  /** Or'ed into the kind of an event if the entry is a directory. */
+  public static final int IS_DIRECTORY = 8;
+
+  /**
+   * The largest number of events returned by a single call to {@link #readEvents}; the arrays
+   * passed to it should have this length.
+   */
+  public static final int MAX_EVENTS_PER_READ = 4096;
+
+  private final int fd;
+
+  private NativeInotify(int fd) {
+    this.fd = fd;
+  }
+
+  /** Creates a new inotify instance without any watches. */
+  public static NativeInotify create() throws IOException {
+    return new NativeInotify(init());
+  }
+
+  /**
+   * Starts watching the entries of the given directory, without following symlinks. Returns the
+   * watch descriptor that events for this directory are reported with; adding a watch for a
+   * directory that is already watched returns its existing descriptor.
+   */
+  public int addWatch(String path) throws IOException {
+    return addWatch(fd, path);
+  }
+
+  /** Stops watching the directory with the given watch descriptor. */
+  public void removeWatch(int watchDescriptor) throws IOException {
+    removeWatch(fd, watchDescriptor);
+  }
+
+  /**
+   * Waits for at most {@code timeoutMillis} milliseconds for events to become available. Returns
+   * true iff there are events to read.
+   */
+  public boolean waitForEvents(int timeoutMillis) throws IOException {
+    return waitForEvents(fd, timeoutMillis);
+  }
+
+  /**
+   * Reads the pending events, without blocking. For the i-th event, sets the i-th element of the
+   * arrays to its watch descriptor, kind and entry name. Returns the number of events read, 0 if
+   * there are none.
+   */
+  public int readEvents(int[] watchDescriptors, int[] kinds, String[] names) throws IOException {
+    return readEvents(fd, watchDescriptors, kinds, names);
+  }
+
+  @Override
+  public void close() throws IOException {
+    close(fd);
+  }
+
+  private static native int init() throws IOException;
+
+  private static native int addWatch(int fd, String path) throws IOException;
+
+  private static native void removeWatch(int fd, int wd) throws IOException;
+
+  private static native boolean waitForEvents(int fd, int timeoutMillis) throws IOException;
+
+  private static native int readEvents(int fd, int[] wds, int[] kinds, String[] names)
+      throws IOException;
+
+  private static native void close(int fd) throws IOException;
+}
@@ -213,6 +213,26 @@ public final class NativePosixFiles {
    */
   public static native ErrnoFileStatus errnoLstat(String path);
 
+  /**
+   * Like {@link #errnoStat}, but stats all the given paths with a single
+   * call into native code, which is considerably cheaper for large batches.
+   *
+   * @param paths the files to stat.
+   * @return an array containing an ErrnoFileStatus instance for each of
+   *   the paths, in the same order.
+   */
+  public static native ErrnoFileStatus[] errnoStatBatch(String[] paths);
+
+  /**
+   * Like {@link #errnoLstat}, but lstats all the given paths with a single
+   * call into native code, which is considerably cheaper for large batches.
+   *
+   * @param paths the files to lstat.
+   * @return an array containing an ErrnoFileStatus instance for each of
+   *   the paths, in the same order.
+   */
+  public static native ErrnoFileStatus[] errnoLstatBatch(String[] paths);
+
   /**
    * Native wrapper around POSIX utime(2) syscall.
    *
@@ -450,6 +450,21 @@ public abstract class FileSystem {
     }
   }
 
+  /**
+   * Like {@link #statIfFound}, but for a batch of paths on this file system. Returns a list
+   * containing the status of each path, or null if it was not found, in the same order.
+   * File systems that can stat multiple files more cheaply than one at a time should override
+   * this method.
+   */
+  protected List<FileStatus> statIfFound(List<Path> paths, boolean followSymlinks)
+      throws IOException {
+    List<FileStatus> result = Lists.newArrayListWithCapacity(paths.size());
+    for (Path path : paths) {
+      result.add(statIfFound(path, followSymlinks));
+    }
+    return result;
+  }
+
   /**
    * Returns true iff {@code path} denotes an existing directory. See
    * {@link Path#isDirectory(Symlinks)} for specification.
@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.vfs;
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
 
 import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -494,6 +495,30 @@ public class FileSystemUtils {
     return target;
   }
 
+  /**
+   * Returns the result of {@link Path#statIfFound(Symlinks)} for each of the given paths, in the
+   * same order. Paths on the same file system are stat'ed together, which is much cheaper than
+   * stat'ing them one at a time on file systems that support it.
+   */
+  @ThreadSafe
+  public static List<FileStatus> statIfFound(List<Path> paths, Symlinks followSymlinks)
+      throws IOException {
+    if (paths.isEmpty()) {
+      return ImmutableList.of();
+    }
+    FileSystem fileSystem = paths.get(0).getFileSystem();
+    for (Path path : paths) {
+      if (path.getFileSystem() != fileSystem) {
+        List<FileStatus> result = new ArrayList<>(paths.size());
+        for (Path p : paths) {
+          result.add(p.statIfFound(followSymlinks));
+        }
+        return result;
+      }
+    }
+    return fileSystem.statIfFound(paths, followSymlinks.toBoolean());
+  }
+
   /****************************************************************************
    * Directory tree operations.
    */
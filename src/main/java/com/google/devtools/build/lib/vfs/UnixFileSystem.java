@@ -311,6 +311,42 @@ public class UnixFileSystem extends AbstractFileSystemWithCustomStat {
     }
   }
 
+  /**
+   * Stats all the paths with a single call into native code. Paths that could not be stat'ed for
+   * a reason other than {@code ENOENT} or {@code ENOTDIR} are retried one at a time, to throw the
+   * proper exception.
+   */
+  @Override
+  protected List<FileStatus> statIfFound(List<Path> paths, boolean followSymlinks)
+      throws IOException {
+    String[] names = new String[paths.size()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = paths.get(i).getPathString();
+    }
+    long startTime = Profiler.nanoTimeMaybe();
+    ErrnoFileStatus[] stats;
+    try {
+      stats = followSymlinks
+          ? NativePosixFiles.errnoStatBatch(names)
+          : NativePosixFiles.errnoLstatBatch(names);
+    } finally {
+      profiler.logSimpleTask(startTime, ProfilerTask.VFS_STAT, names.length + " files");
+    }
+    List<FileStatus> result = new ArrayList<>(stats.length);
+    for (int i = 0; i < stats.length; i++) {
+      ErrnoFileStatus stat = stats[i];
+      if (!stat.hasError()) {
+        result.add(new UnixFileStatus(stat));
+      } else if (stat.getErrno() == ErrnoFileStatus.ENOENT
+          || stat.getErrno() == ErrnoFileStatus.ENOTDIR) {
+        result.add(null);
+      } else {
+        result.add(statIfFound(paths.get(i), followSymlinks));
+      }
+    }
+    return result;
+  }
+
   @Override
   protected boolean isReadable(Path path) throws IOException {
     return (statInternal(path, true).getPermissions() & 0400) != 0;
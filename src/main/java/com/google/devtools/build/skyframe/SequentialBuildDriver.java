@@ -31,8 +31,10 @@ public class SequentialBuildDriver implements BuildDriver {
     this.curVersion = IntVersion.of(0);
   }
 
+  // Synchronized, because the evaluator runs one evaluation at a time, and each evaluation is at a
+  // new version. Commands that share the graph may evaluate from several threads.
   @Override
-  public <T extends SkyValue> EvaluationResult<T> evaluate(
+  public synchronized <T extends SkyValue> EvaluationResult<T> evaluate(
       Iterable<SkyKey> roots, boolean keepGoing, int numThreads, EventHandler reporter)
       throws InterruptedException {
     try {
@@ -14,7 +14,7 @@
 package com.google.devtools.build.skyframe;
 
 import com.google.common.collect.ImmutableCollection;
-import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.events.CompactEvents;
 import com.google.devtools.build.lib.events.Event;
 
 import java.io.Serializable;
@@ -29,6 +29,8 @@ import javax.annotation.concurrent.Immutable;
  *
  * <p>The only usage of this code for now is to be able to use --output_filter in Skyframe
  *
+ * <p>The events are kept for the life of the graph, so they are stored as {@link CompactEvents}.
+ *
  * <p>This is intended only for use in alternative {@code MemoizingEvaluator} implementations.
  */
 @Immutable
@@ -36,12 +38,12 @@ public final class TaggedEvents implements Serializable {
 
   @Nullable
   private final String tag;
-  private final ImmutableCollection<Event> events;
+  private final CompactEvents events;
 
   TaggedEvents(@Nullable String tag, ImmutableCollection<Event> events) {
 
     this.tag = tag;
-    this.events = events;
+    this.events = CompactEvents.create(events);
   }
 
   @Nullable
@@ -50,7 +52,7 @@ public final class TaggedEvents implements Serializable {
   }
 
   ImmutableCollection<Event> getEvents() {
-    return events;
+    return events.getEvents();
   }
 
   /**
@@ -59,7 +61,7 @@ public final class TaggedEvents implements Serializable {
    */
   @Override
   public String toString() {
-    return tag == null ? "<unknown>" : tag + ": " + Iterables.toString(events);
+    return tag == null ? "<unknown>" : tag + ": " + events;
   }
 
   @Override
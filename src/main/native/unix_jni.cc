@@ -19,6 +19,7 @@
 #include <errno.h>
 #include <fcntl.h>
 #include <limits.h>
+#include <poll.h>
 #include <stdlib.h>
 #include <string.h>
 #include <sys/resource.h>
@@ -348,7 +349,7 @@ static jobject NewErrnoFileStatus(JNIEnv *env,
   }
 
   if (saved_errno != 0) {
-    return env->NewObject(errno_file_status_class, errorno_ctor, errno);
+    return env->NewObject(errno_file_status_class, errorno_ctor, saved_errno);
   }
   return env->NewObject(
       errno_file_status_class, no_error_ctor, stat_ref.st_mode,
@@ -462,6 +463,67 @@ Java_com_google_devtools_build_lib_unix_NativePosixFiles_errnoLstat(JNIEnv *env,
   return ::StatCommon(env, path, portable_lstat, false);
 }
 
+// Stats all the given paths with a single JNI crossing. Never throws for
+// errors of the individual stat calls; they are reported as the errno of
+// the corresponding ErrnoFileStatus instead.
+static jobjectArray StatBatchCommon(
+    JNIEnv *env,
+    jobjectArray paths,
+    int (*stat_function)(const char *, portable_stat_struct *)) {
+  jclass errno_file_status_class =
+      env->FindClass("com/google/devtools/build/lib/unix/ErrnoFileStatus");
+  if (errno_file_status_class == NULL) {
+    return NULL;
+  }
+  jsize length = env->GetArrayLength(paths);
+  jobjectArray result =
+      env->NewObjectArray(length, errno_file_status_class, NULL);
+  if (result == NULL) {
+    return NULL;
+  }
+  for (jsize i = 0; i < length; i++) {
+    jstring path = static_cast<jstring>(env->GetObjectArrayElement(paths, i));
+    const char *path_chars = GetStringLatin1Chars(env, path);
+    portable_stat_struct statbuf;
+    int r;
+    while ((r = stat_function(path_chars, &statbuf)) == -1 && errno == EINTR) {
+    }
+    int saved_errno = r == -1 ? errno : 0;
+    ::ReleaseStringLatin1Chars(path_chars);
+    env->DeleteLocalRef(path);
+
+    jobject status = NewErrnoFileStatus(env, saved_errno, statbuf);
+    if (status == NULL) {
+      return NULL;
+    }
+    env->SetObjectArrayElement(result, i, status);
+    env->DeleteLocalRef(status);
+  }
+  return result;
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
+ * Method:    errnoStatBatch
+ * Signature: ([Ljava/lang/String;)[Lcom/google/devtools/build/lib/unix/ErrnoFileStatus;
+ */
+extern "C" JNIEXPORT jobjectArray JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixFiles_errnoStatBatch(
+    JNIEnv *env, jclass clazz, jobjectArray paths) {
+  return ::StatBatchCommon(env, paths, portable_stat);
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
+ * Method:    errnoLstatBatch
+ * Signature: ([Ljava/lang/String;)[Lcom/google/devtools/build/lib/unix/ErrnoFileStatus;
+ */
+extern "C" JNIEXPORT jobjectArray JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixFiles_errnoLstatBatch(
+    JNIEnv *env, jclass clazz, jobjectArray paths) {
+  return ::StatBatchCommon(env, paths, portable_lstat);
+}
+
 /*
  * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
  * Method:    utime
@@ -870,3 +932,91 @@ Java_com_google_devtools_build_lib_unix_NativePosixSystem_sysctlbynameGetLong(
   ReleaseStringLatin1Chars(name_chars);
   return r;
 }
+
+////////////////////////////////////////////////////////////////////////
+// inotify support.
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_unix_NativeInotify_init(JNIEnv *env,
+                                                           jclass clazz) {
+  int fd = portable_inotify_init();
+  if (fd == -1) {
+    ::PostSystemException(env, errno, "inotify_init", "");
+  }
+  return fd;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_unix_NativeInotify_addWatch(JNIEnv *env,
+                                                               jclass clazz,
+                                                               jint fd,
+                                                               jstring path) {
+  const char *path_chars = GetStringLatin1Chars(env, path);
+  int wd = portable_inotify_add_watch(fd, path_chars);
+  if (wd == -1) {
+    ::PostFileException(env, errno, path_chars);
+  }
+  ReleaseStringLatin1Chars(path_chars);
+  return wd;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_unix_NativeInotify_removeWatch(JNIEnv *env,
+                                                                  jclass clazz,
+                                                                  jint fd,
+                                                                  jint wd) {
+  if (portable_inotify_rm_watch(fd, wd) == -1) {
+    ::PostSystemException(env, errno, "inotify_rm_watch",
+                          std::to_string(wd).c_str());
+  }
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_google_devtools_build_lib_unix_NativeInotify_waitForEvents(
+    JNIEnv *env, jclass clazz, jint fd, jint timeout_millis) {
+  struct pollfd pfd;
+  pfd.fd = fd;
+  pfd.events = POLLIN;
+  int r = ::poll(&pfd, 1, timeout_millis);
+  if (r == -1) {
+    if (errno == EINTR) {
+      return false;
+    }
+    ::PostSystemException(env, errno, "poll", "inotify");
+    return false;
+  }
+  return r > 0;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_unix_NativeInotify_readEvents(
+    JNIEnv *env, jclass clazz, jint fd, jintArray wds, jintArray kinds,
+    jobjectArray names) {
+  std::vector<portable_inotify_event> events;
+  int count = portable_inotify_read(fd, env->GetArrayLength(wds), &events);
+  if (count == -1) {
+    ::PostSystemException(env, errno, "read", "inotify");
+    return 0;
+  }
+  for (int i = 0; i < count; i++) {
+    const portable_inotify_event &event = events[i];
+    env->SetIntArrayRegion(wds, i, 1, &event.wd);
+    env->SetIntArrayRegion(kinds, i, 1, &event.kind);
+    jstring name = NewStringLatin1(env, event.name.c_str());
+    if (name == NULL) {
+      return 0;  // async exception!
+    }
+    env->SetObjectArrayElement(names, i, name);
+    env->DeleteLocalRef(name);
+  }
+  return count;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_unix_NativeInotify_close(JNIEnv *env,
+                                                            jclass clazz,
+                                                            jint fd) {
+  if (::close(fd) == -1 && errno != EINTR) {
+    ::PostSystemException(env, errno, "close", "inotify");
+  }
+}
@@ -21,6 +21,7 @@
 #include <sys/stat.h>
 
 #include <string>
+#include <vector>
 
 #define CHECK(condition) \
     do { \
@@ -94,4 +95,42 @@ ssize_t portable_lgetxattr(const char *path, const char *name, void *value,
 // Run sysctlbyname(3), only available on darwin
 int portable_sysctlbyname(const char *name_chars, long *mibp, size_t *sizep);
 
+// Kinds of decoded inotify events. Keep consistent with NativeInotify.java.
+enum InotifyEventKind {
+  INOTIFY_CREATED = 1,        // an entry was created or moved in
+  INOTIFY_DELETED = 2,        // an entry was deleted or moved out
+  INOTIFY_MODIFIED = 3,       // the contents or metadata of an entry changed
+  INOTIFY_WATCH_REMOVED = 4,  // the watch is gone, e.g. its directory was deleted
+  INOTIFY_OVERFLOW = 5,       // the kernel event queue overflowed
+};
+
+// Or'ed into the kind of an event about a directory entry.
+#define INOTIFY_IS_DIRECTORY 8
+
+// An inotify event, decoded independently of the platform's event masks.
+struct portable_inotify_event {
+  int wd;
+  int kind;
+  std::string name;
+};
+
+// Runs inotify_init1(2) for a non-blocking, close-on-exec descriptor, if
+// available. If not, sets errno to ENOSYS.
+int portable_inotify_init();
+
+// Runs inotify_add_watch(2) for changes to the entries of the given directory,
+// if available. If not, sets errno to ENOSYS.
+int portable_inotify_add_watch(int fd, const char *path);
+
+// Runs inotify_rm_watch(2), if available. If not, sets errno to ENOSYS.
+int portable_inotify_rm_watch(int fd, int wd);
+
+// Appends to events the pending events of the given non-blocking inotify
+// descriptor, with a single read(2) of at most max_events events. max_events
+// must be large enough for an event with the longest possible file name.
+// Returns the number of events appended (0 if none were pending), or -1 and
+// sets errno on failure, including ENOSYS if inotify is not available.
+int portable_inotify_read(int fd, size_t max_events,
+                          std::vector<portable_inotify_event> *events);
+
 #endif  // BAZEL_SRC_MAIN_NATIVE_UNIX_JNI_H__
@@ -83,3 +83,24 @@ ssize_t portable_lgetxattr(const char *path, const char *name, void *value,
 int portable_sysctlbyname(const char *name_chars, long *mibp, size_t *sizep) {
   return sysctlbyname(name_chars, mibp, sizep, NULL, 0);
 }
+
+int portable_inotify_init() {
+  errno = ENOSYS;
+  return -1;
+}
+
+int portable_inotify_add_watch(int fd, const char *path) {
+  errno = ENOSYS;
+  return -1;
+}
+
+int portable_inotify_rm_watch(int fd, int wd) {
+  errno = ENOSYS;
+  return -1;
+}
+
+int portable_inotify_read(int fd, size_t max_events,
+                          std::vector<portable_inotify_event> *events) {
+  errno = ENOSYS;
+  return -1;
+}
@@ -17,10 +17,13 @@
 #include <errno.h>
 #include <stdlib.h>
 #include <string.h>
+#include <sys/inotify.h>
 #include <sys/stat.h>
 #include <sys/xattr.h>
+#include <unistd.h>
 
 #include <string>
+#include <vector>
 
 std::string ErrorMessage(int error_number) {
   char buf[1024] = "";
@@ -79,3 +82,64 @@ int portable_sysctlbyname(const char *name_chars, long *mibp, size_t *sizep) {
   errno = ENOSYS;
   return -1;
 }
+
+int portable_inotify_init() {
+  return ::inotify_init1(IN_NONBLOCK | IN_CLOEXEC);
+}
+
+int portable_inotify_add_watch(int fd, const char *path) {
+  return ::inotify_add_watch(fd, path,
+                             IN_CREATE | IN_DELETE | IN_MODIFY | IN_ATTRIB |
+                             IN_MOVED_FROM | IN_MOVED_TO | IN_ONLYDIR |
+                             IN_DONT_FOLLOW | IN_EXCL_UNLINK);
+}
+
+int portable_inotify_rm_watch(int fd, int wd) {
+  return ::inotify_rm_watch(fd, wd);
+}
+
+int portable_inotify_read(int fd, size_t max_events,
+                          std::vector<portable_inotify_event> *events) {
+  // Every event takes at least sizeof(struct inotify_event) bytes, so a buffer
+  // of max_events of them cannot receive more than max_events events.
+  std::vector<struct inotify_event> buf(max_events);
+  ssize_t len;
+  while ((len = ::read(fd, buf.data(), max_events * sizeof(buf[0]))) == -1 &&
+         errno == EINTR) { }
+  if (len == -1) {
+    return errno == EAGAIN ? 0 : -1;
+  }
+  int count = 0;
+  const char *p = reinterpret_cast<const char *>(buf.data());
+  const char *end = p + len;
+  while (p < end) {
+    const struct inotify_event *event =
+        reinterpret_cast<const struct inotify_event *>(p);
+    p += sizeof(struct inotify_event) + event->len;
+    int kind;
+    if (event->mask & IN_Q_OVERFLOW) {
+      kind = INOTIFY_OVERFLOW;
+    } else if (event->mask & IN_IGNORED) {
+      kind = INOTIFY_WATCH_REMOVED;
+    } else if (event->mask & (IN_CREATE | IN_MOVED_TO)) {
+      kind = INOTIFY_CREATED;
+    } else if (event->mask & (IN_DELETE | IN_MOVED_FROM)) {
+      kind = INOTIFY_DELETED;
+    } else if (event->mask & (IN_MODIFY | IN_ATTRIB)) {
+      kind = INOTIFY_MODIFIED;
+    } else {
+      continue;
+    }
+    if (event->mask & IN_ISDIR) {
+      kind |= INOTIFY_IS_DIRECTORY;
+    }
+    portable_inotify_event decoded;
+    decoded.wd = event->wd;
+    decoded.kind = kind;
+    // The name is padded with NULs up to event->len.
+    decoded.name = event->len > 0 ? std::string(event->name) : std::string();
+    events->push_back(decoded);
+    count++;
+  }
+  return count;
+}
@@ -21,6 +21,13 @@
 // unless process-wrapper receives a signal. ie, on SIGTERM this program will
 // die with raise(SIGTERM) even if the child process handles SIGTERM with
 // exit(0).
+//
+// If the first argument is --stats=<file>, the resources used by the
+// subprocess and the descendants it waited for are written to <file> once it
+// has exited, as whitespace-separated key=value pairs: user_usec and
+// system_usec (CPU time), max_rss_kb (peak resident set size of the largest
+// process) and, on Linux, read_bytes and write_bytes (bytes passed to read and
+// write system calls).
 
 #define _GNU_SOURCE
 
@@ -31,6 +38,7 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <sys/resource.h>
 #include <sys/types.h>
 #include <sys/stat.h>
 #include <sys/wait.h>
@@ -51,6 +59,7 @@ struct Options {
   double kill_delay_secs;
   const char *stdout_path;
   const char *stderr_path;
+  const char *stats_path;
   char *const *args;
 };
 
@@ -59,8 +68,8 @@ struct Options {
 // string for the error message to print.
 static void Usage(char *const *argv) {
   fprintf(stderr,
-          "Usage: %s <timeout-secs> <kill-delay-secs> <stdout-redirect> "
-          "<stderr-redirect> <command> [args] ...\n",
+          "Usage: %s [--stats=<file>] <timeout-secs> <kill-delay-secs> "
+          "<stdout-redirect> <stderr-redirect> <command> [args] ...\n",
           argv[0]);
   exit(EXIT_FAILURE);
 }
@@ -68,11 +77,16 @@ static void Usage(char *const *argv) {
 // Parse the command line flags and return the result in an Options structure
 // passed as argument.
 static void ParseCommandLine(int argc, char *const *argv, struct Options *opt) {
+  char *const *args = argv + 1;
+  if (argc > 1 && strncmp(*args, "--stats=", 8) == 0) {
+    opt->stats_path = *args++ + 8;
+    argc--;
+  }
   if (argc <= 5) {
     Usage(argv);
   }
 
-  argv++;
+  argv = args;
   if (sscanf(*argv++, "%lf", &opt->timeout_secs) != 1) {
     DIE("timeout_secs is not a real number.\n");
   }
@@ -104,9 +118,58 @@ void OnSignal(int sig) {
   }
 }
 
+// Adds the value of the given field of /proc/self/io (e.g. "rchar: 1234") to
+// the stats file, as the given key. Since the accounting data of waited-for
+// children is added to the parent, this includes the I/O of the subprocess.
+static void WriteIoStat(FILE *stats, const char *field, const char *key) {
+  FILE *io = fopen("/proc/self/io", "r");
+  if (io == NULL) {
+    return;
+  }
+  char line[128];
+  size_t field_len = strlen(field);
+  while (fgets(line, sizeof(line), io) != NULL) {
+    unsigned long long value;
+    if (strncmp(line, field, field_len) == 0 && line[field_len] == ':' &&
+        sscanf(line + field_len + 1, "%llu", &value) == 1) {
+      fprintf(stats, "%s=%llu\n", key, value);
+      break;
+    }
+  }
+  fclose(io);
+}
+
+// Writes the resources used by the children waited for so far to the given
+// file. Failures are ignored, the subprocess result is what matters.
+static void WriteStats(const char *path) {
+  struct rusage usage;
+  if (getrusage(RUSAGE_CHILDREN, &usage) < 0) {
+    return;
+  }
+  FILE *stats = fopen(path, "w");
+  if (stats == NULL) {
+    return;
+  }
+  fprintf(stats, "user_usec=%lld\n",
+          (long long)usage.ru_utime.tv_sec * 1000000 + usage.ru_utime.tv_usec);
+  fprintf(stats, "system_usec=%lld\n",
+          (long long)usage.ru_stime.tv_sec * 1000000 + usage.ru_stime.tv_usec);
+#ifdef __APPLE__
+  // ru_maxrss is in bytes on OS X, but in kilobytes on Linux.
+  fprintf(stats, "max_rss_kb=%ld\n", (long)usage.ru_maxrss / 1024);
+#else
+  fprintf(stats, "max_rss_kb=%ld\n", (long)usage.ru_maxrss);
+#endif
+  WriteIoStat(stats, "rchar", "read_bytes");
+  WriteIoStat(stats, "wchar", "write_bytes");
+  fclose(stats);
+}
+
 // Run the command specified by the argv array and kill it after timeout
-// seconds.
-static void SpawnCommand(char *const *argv, double timeout_secs) {
+// seconds. If stats_path is not NULL, the resources used by the command are
+// written to it.
+static void SpawnCommand(char *const *argv, double timeout_secs,
+                         const char *stats_path) {
   CHECK_CALL(global_child_pid = fork());
   if (global_child_pid == 0) {
     // In child.
@@ -136,6 +199,10 @@ static void SpawnCommand(char *const *argv, double timeout_secs) {
     // kill.
     kill(-global_child_pid, SIGKILL);
 
+    if (stats_path != NULL) {
+      WriteStats(stats_path);
+    }
+
     if (global_signal > 0) {
       // Don't trust the exit code if we got a timeout or signal.
       UnHandle(global_signal);
@@ -163,7 +230,7 @@ int main(int argc, char *argv[]) {
   RedirectStdout(opt.stdout_path);
   RedirectStderr(opt.stderr_path);
 
-  SpawnCommand(opt.args, opt.timeout_secs);
+  SpawnCommand(opt.args, opt.timeout_secs, opt.stats_path);
 
   return 0;
 }
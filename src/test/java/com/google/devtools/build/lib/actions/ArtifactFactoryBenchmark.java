@@ -0,0 +1,123 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the throughput of {@link ArtifactFactory} when many threads create and resolve
+ * artifacts at once, as the ConfiguredTargetFunction threads do during parallel analysis.
+ *
+ * <p>Usage: {@code ArtifactFactoryBenchmark [numPackages] [filesPerPackage] [threads...]}
+ * (defaults 1,000, 100 and 1, 8, 200). Each thread gets source and derived artifacts for every
+ * file of a disjoint slice of the packages, and resolves the source files of all packages, so
+ * that both the creating and the cache hit paths are exercised.
+ */
+public final class ArtifactFactoryBenchmark {
+
+  private ArtifactFactoryBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    int numPackages = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    int filesPerPackage = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    List<Integer> threadCounts = new ArrayList<>();
+    for (int i = 2; i < args.length; i++) {
+      threadCounts.add(Integer.parseInt(args[i]));
+    }
+    if (threadCounts.isEmpty()) {
+      threadCounts = ImmutableList.of(1, 8, 200);
+    }
+
+    Path execRoot = new InMemoryFileSystem(BlazeClock.instance()).getPath("/exec");
+    Root sourceRoot = Root.asSourceRoot(execRoot.getRelative("src"));
+    Root outRoot = Root.asDerivedRoot(execRoot, execRoot.getRelative("out"));
+    Map<PackageIdentifier, Root> packageRoots = new HashMap<>();
+    List<PathFragment> files = new ArrayList<>(numPackages * filesPerPackage);
+    for (int i = 0; i < numPackages; i++) {
+      PathFragment pkg = new PathFragment("pkg" + i);
+      packageRoots.put(PackageIdentifier.createInMainRepo(pkg), sourceRoot);
+      for (int j = 0; j < filesPerPackage; j++) {
+        files.add(pkg.getRelative("file" + j + ".cc"));
+      }
+    }
+
+    // Warm up the JIT.
+    run(execRoot, outRoot, packageRoots, files, sourceRoot, 4);
+    for (int threads : threadCounts) {
+      long start = System.nanoTime();
+      long operations = run(execRoot, outRoot, packageRoots, files, sourceRoot, threads);
+      long elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+      System.out.printf("%4d threads: %,d operations in %,d ms (%,d operations/s)%n",
+          threads, operations, elapsedMillis, operations * 1000 / elapsedMillis);
+    }
+  }
+
+  /** Runs one round on a fresh factory and returns the number of factory calls. */
+  private static long run(Path execRoot, final Root outRoot,
+      Map<PackageIdentifier, Root> packageRoots, final List<PathFragment> files,
+      final Root sourceRoot, int threads) throws Exception {
+    final ArtifactFactory factory = new ArtifactFactory(execRoot);
+    factory.setPackageRoots(packageRoots);
+    factory.setDerivedArtifactRoots(ImmutableList.of(outRoot));
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Long>> futures = new ArrayList<>();
+      final int sliceSize = (files.size() + threads - 1) / threads;
+      for (int i = 0; i < threads; i++) {
+        final List<PathFragment> slice =
+            files.subList(Math.min(i * sliceSize, files.size()),
+                Math.min((i + 1) * sliceSize, files.size()));
+        final int offset = i * sliceSize;
+        futures.add(executor.submit(new Callable<Long>() {
+          @Override
+          public Long call() {
+            long operations = 0;
+            for (PathFragment file : slice) {
+              factory.getSourceArtifact(file, sourceRoot, ArtifactOwner.NULL_OWNER);
+              factory.getDerivedArtifact(
+                  file.replaceName(file.getBaseName() + ".o"), outRoot, ArtifactOwner.NULL_OWNER);
+              operations += 2;
+            }
+            for (int j = 0; j < files.size(); j++) {
+              factory.resolveSourceArtifact(files.get((offset + j) % files.size()));
+              operations++;
+            }
+            return operations;
+          }
+        }));
+      }
+      long operations = 0;
+      for (Future<Long> future : futures) {
+        operations += future.get();
+      }
+      return operations;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
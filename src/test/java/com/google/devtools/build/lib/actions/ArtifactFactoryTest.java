@@ -37,9 +37,15 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nullable;
 
@@ -118,6 +124,37 @@ public class ArtifactFactoryTest {
                    clientRoot));
   }
 
+  @Test
+  public void testConcurrentGetSourceArtifactYieldsSameArtifact() throws Exception {
+    final int numPaths = 100;
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Artifact[]>> futures = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        futures.add(executor.submit(new Callable<Artifact[]>() {
+          @Override
+          public Artifact[] call() {
+            Artifact[] artifacts = new Artifact[numPaths];
+            for (int j = 0; j < numPaths; j++) {
+              artifacts[j] = artifactFactory.getSourceArtifact(
+                  fooPath.getRelative("source" + j + ".txt"), clientRoot);
+            }
+            return artifacts;
+          }
+        }));
+      }
+      Artifact[] expected = futures.get(0).get();
+      for (Future<Artifact[]> future : futures) {
+        Artifact[] artifacts = future.get();
+        for (int j = 0; j < numPaths; j++) {
+          assertSame(expected[j], artifacts[j]);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   @Test
   public void testResolveArtifact_noDerived_simpleSource() throws Exception {
     assertSame(artifactFactory.getSourceArtifact(fooRelative, clientRoot),
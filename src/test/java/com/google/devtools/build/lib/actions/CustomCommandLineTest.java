@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.actions;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.analysis.actions.CustomCommandLine;
@@ -22,14 +23,20 @@ import com.google.devtools.build.lib.analysis.actions.CustomCommandLine.CustomAr
 import com.google.devtools.build.lib.analysis.actions.CustomCommandLine.CustomMultiArgv;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.collect.nestedset.Order;
 import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.vfs.PathFragment;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.Arrays;
+
 /**
  * Tests for CustomCommandLine.
  */
@@ -165,4 +172,50 @@ public class CustomCommandLineTest {
         .build();
     assertEquals(ImmutableList.of(), cl.arguments());
   }
+
+  @Test
+  public void testLazyArguments() {
+    CustomCommandLine cl = CustomCommandLine.builder()
+        .add("--arg")
+        .addBeforeEachExecPath("-f", NestedSetBuilder.create(Order.STABLE_ORDER,
+            artifact1, artifact2))
+        .addFormatEach("-I%s", ImmutableList.of("foo", "bar"))
+        .addJoinExecPaths("--path", ":", ImmutableList.of(artifact1, artifact2))
+        .add(new CustomMultiArgv() {
+          @Override
+          public ImmutableList<String> argv() {
+            return ImmutableList.of("--arg1", "--arg2");
+          }
+        })
+        .build();
+    assertEquals(cl.arguments(), ImmutableList.copyOf(cl.lazyArguments()));
+  }
+
+  private static String fingerprint(CustomCommandLine cl) {
+    Fingerprint fingerprint = new Fingerprint();
+    cl.addToFingerprint(fingerprint);
+    return fingerprint.hexDigestAndReset();
+  }
+
+  private CustomCommandLine classpathCommandLine(Artifact... classpath) {
+    NestedSet<Artifact> nestedClasspath = NestedSetBuilder.<Artifact>stableOrder()
+        .add(artifact1)
+        .addTransitive(NestedSetBuilder.wrap(Order.STABLE_ORDER, Arrays.asList(classpath)))
+        .build();
+    return CustomCommandLine.builder()
+        .addJoinExecPaths("--classpath", ":", nestedClasspath, new PathFragment("classes"))
+        .addBeforeEachExecPath("-f", nestedClasspath)
+        .build();
+  }
+
+  @Test
+  public void testNestedSetFingerprints() {
+    CustomCommandLine cl = classpathCommandLine(artifact2);
+    assertEquals(ImmutableList.of("--classpath", "dir/file2.txt:dir/file1.txt:classes",
+        "-f", "dir/file2.txt", "-f", "dir/file1.txt"), cl.arguments());
+
+    assertEquals(fingerprint(cl), fingerprint(classpathCommandLine(artifact2)));
+    assertFalse(fingerprint(cl).equals(fingerprint(classpathCommandLine())));
+    assertFalse(fingerprint(cl).equals(fingerprint(classpathCommandLine(artifact1))));
+  }
 }
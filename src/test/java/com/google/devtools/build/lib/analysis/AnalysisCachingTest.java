@@ -22,6 +22,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.actions.Action;
 import com.google.devtools.build.lib.analysis.util.AnalysisCachingTestBase;
 import com.google.devtools.build.lib.events.Event;
@@ -93,6 +94,60 @@ public class AnalysisCachingTest extends AnalysisCachingTestBase {
     assertSame(old, current);
   }
 
+  @Test
+  public void testTrimmedTopLevelTargetCachedAcrossIrrelevantOptions() throws Exception {
+    scratch.file("java/a/BUILD",
+        "java_library(name = 'A',",
+        "             srcs = ['A.java'])");
+    useConfiguration("--experimental_dynamic_configs",
+        "--experimental_trim_top_level_configurations", "--objccopt=-DFOO");
+    update("//java/a:A");
+    ConfiguredTarget old = Iterables.getOnlyElement(getAnalysisResult().getTargetsToBuild());
+    useConfiguration("--experimental_dynamic_configs",
+        "--experimental_trim_top_level_configurations", "--objccopt=-DBAR");
+    update("//java/a:A");
+    ConfiguredTarget current = Iterables.getOnlyElement(getAnalysisResult().getTargetsToBuild());
+    assertSame(old, current);
+  }
+
+  @Test
+  public void testTrimmedTopLevelTargetReanalyzedWithoutConflictAfterRelevantOptions()
+      throws Exception {
+    scratch.file("cc/a/BUILD",
+        "cc_library(name = 'a',",
+        "           srcs = ['a.cc'])");
+    useConfiguration("--experimental_dynamic_configs",
+        "--experimental_trim_top_level_configurations", "--copt=-DFOO");
+    update("//cc/a:a");
+    ConfiguredTarget old = Iterables.getOnlyElement(getAnalysisResult().getTargetsToBuild());
+    // The old and new versions of the target would generate the same object files.
+    useConfiguration("--experimental_dynamic_configs",
+        "--experimental_trim_top_level_configurations", "--copt=-DBAR");
+    update("//cc/a:a");
+    ConfiguredTarget current = Iterables.getOnlyElement(getAnalysisResult().getTargetsToBuild());
+    assertNotSame(old, current);
+    assertNoEvents();
+    useConfiguration("--experimental_dynamic_configs",
+        "--experimental_trim_top_level_configurations", "--copt=-DFOO");
+    update("//cc/a:a");
+    assertNotSame(current, Iterables.getOnlyElement(getAnalysisResult().getTargetsToBuild()));
+    assertNoEvents();
+  }
+
+  @Test
+  public void testUntrimmedTopLevelTargetReanalyzedAfterIrrelevantOptions() throws Exception {
+    scratch.file("java/a/BUILD",
+        "java_library(name = 'A',",
+        "             srcs = ['A.java'])");
+    useConfiguration("--experimental_dynamic_configs", "--objccopt=-DFOO");
+    update("//java/a:A");
+    ConfiguredTarget old = Iterables.getOnlyElement(getAnalysisResult().getTargetsToBuild());
+    useConfiguration("--experimental_dynamic_configs", "--objccopt=-DBAR");
+    update("//java/a:A");
+    ConfiguredTarget current = Iterables.getOnlyElement(getAnalysisResult().getTargetsToBuild());
+    assertNotSame(old, current);
+  }
+
   @Test
   public void testDependencyChanged() throws Exception {
     scratch.file("java/a/BUILD",
@@ -0,0 +1,169 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.bazel.eventlog;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.bazel.eventlog.BuildEventLogProtos.BuildEvent;
+import com.google.devtools.build.lib.bazel.eventlog.BuildEventLogProtos.TargetCompleted;
+import com.google.devtools.build.lib.testutil.ManualClock;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests for {@link BuildEventLogWriter}.
+ */
+@RunWith(JUnit4.class)
+public class BuildEventLogWriterTest {
+
+  private static final long TIMEOUT_MILLIS = 60000;
+
+  private final ManualClock clock = new ManualClock();
+
+  private static BuildEvent.Builder target(String label) {
+    return BuildEvent.newBuilder().setTargetCompleted(
+        TargetCompleted.newBuilder().setLabel(label).setSuccess(true));
+  }
+
+  private static List<BuildEvent> parse(byte[] log) throws IOException {
+    List<BuildEvent> events = new ArrayList<>();
+    InputStream in = new ByteArrayInputStream(log);
+    BuildEvent event;
+    while ((event = BuildEvent.parseDelimitedFrom(in)) != null) {
+      events.add(event);
+    }
+    return events;
+  }
+
+  @Test
+  public void testEventsAreWrittenInOrder() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BuildEventLogWriter writer = new BuildEventLogWriter(out, 100, clock);
+    writer.post(target("//a"));
+    clock.advanceMillis(5);
+    writer.post(target("//b"));
+    writer.close(TIMEOUT_MILLIS);
+
+    List<BuildEvent> events = parse(out.toByteArray());
+    assertThat(events).hasSize(2);
+    assertThat(events.get(0).getSequenceNumber()).isEqualTo(0);
+    assertThat(events.get(0).getTargetCompleted().getLabel()).isEqualTo("//a");
+    assertThat(events.get(1).getSequenceNumber()).isEqualTo(1);
+    assertThat(events.get(1).getTargetCompleted().getLabel()).isEqualTo("//b");
+    assertThat(events.get(1).getTimestampMillis() - events.get(0).getTimestampMillis())
+        .isEqualTo(5);
+  }
+
+  @Test
+  public void testEventsAreDroppedWhenTheReaderIsSlow() throws Exception {
+    final CountDownLatch released = new CountDownLatch(1);
+    final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    OutputStream slowOut = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        try {
+          released.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        log.write(b, off, len);
+      }
+    };
+    BuildEventLogWriter writer = new BuildEventLogWriter(slowOut, 10, clock);
+    for (int i = 0; i < 1000; i++) {
+      writer.post(target("//t" + i));
+    }
+    released.countDown();
+    writer.close(TIMEOUT_MILLIS);
+
+    long written = 0;
+    long dropped = 0;
+    long lastSequenceNumber = -1;
+    for (BuildEvent event : parse(log.toByteArray())) {
+      if (event.hasEventsDropped()) {
+        dropped += event.getEventsDropped().getCount();
+      } else {
+        assertThat(event.getSequenceNumber()).isGreaterThan(lastSequenceNumber);
+        lastSequenceNumber = event.getSequenceNumber();
+        written++;
+      }
+    }
+    assertThat(dropped).isGreaterThan(0L);
+    assertThat(written + dropped).isEqualTo(1000);
+  }
+
+  @Test
+  public void testWriteErrorIsReportedOnClose() throws Exception {
+    OutputStream brokenOut = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("broken pipe");
+      }
+    };
+    BuildEventLogWriter writer = new BuildEventLogWriter(brokenOut, 1, clock);
+    for (int i = 0; i < 100; i++) {
+      writer.post(target("//t" + i));
+    }
+    try {
+      writer.close(TIMEOUT_MILLIS);
+      fail();
+    } catch (IOException e) {
+      assertThat(e).hasMessage("broken pipe");
+    }
+  }
+
+  @Test
+  public void testCloseGivesUpOnStalledReader() throws Exception {
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    OutputStream stalledOut = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        try {
+          new CountDownLatch(1).await();
+        } catch (InterruptedException e) {
+          interrupted.countDown();
+          throw new IOException(e);
+        }
+      }
+    };
+    BuildEventLogWriter writer = new BuildEventLogWriter(stalledOut, 1, clock);
+    for (int i = 0; i < 100; i++) {
+      writer.post(target("//t" + i));
+    }
+    try {
+      writer.close(100);
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Timed out");
+    }
+    interrupted.await();
+  }
+}
@@ -0,0 +1,124 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+
+/**
+ * Tests for {@link NestedSetExpansionCache}.
+ */
+@RunWith(JUnit4.class)
+public class NestedSetExpansionCacheTest {
+
+  @Before
+  public final void clearCache() {
+    NestedSetExpansionCache.clear();
+  }
+
+  /**
+   * Returns a diamond of nested sets: the first set includes the second and the third, both of
+   * which include the fourth. All of them share a few elements.
+   */
+  private static List<NestedSet<String>> diamond(Order order) {
+    NestedSet<String> d = builder(order, "d").build();
+    NestedSet<String> b = builder(order, "b").add("d3").add("shared").addTransitive(d).build();
+    NestedSet<String> c = builder(order, "c").add("shared").add("d7").addTransitive(d).build();
+    NestedSet<String> a = builder(order, "a").addTransitive(b).add("c1").addTransitive(c).build();
+    return ImmutableList.of(a, b, c, d);
+  }
+
+  private static NestedSetBuilder<String> builder(Order order, String prefix) {
+    NestedSetBuilder<String> builder = new NestedSetBuilder<>(order);
+    for (int i = 0; i < NestedSetExpansionCache.MIN_CACHED_SIZE; i++) {
+      builder.add(prefix + i);
+    }
+    return builder;
+  }
+
+  @Test
+  public void testExpansionIsCached() {
+    NestedSet<String> set = diamond(Order.STABLE_ORDER).get(0);
+    long avoided = NestedSetExpansionCache.getExpansionsAvoided();
+    List<String> expansion = set.toList();
+    assertThat(NestedSetExpansionCache.getExpansionsAvoided()).isEqualTo(avoided);
+    assertThat(set.toList()).isSameAs(expansion);
+    assertThat(NestedSetExpansionCache.getExpansionsAvoided()).isEqualTo(avoided + 1);
+  }
+
+  @Test
+  public void testSmallExpansionIsNotCached() {
+    NestedSet<String> set = NestedSetBuilder.<String>stableOrder()
+        .add("a")
+        .addTransitive(NestedSetBuilder.create(Order.STABLE_ORDER, "b", "c"))
+        .build();
+    assertThat(set.toList()).isNotSameAs(set.toList());
+  }
+
+  @Test
+  public void testTransitiveExpansionsAreReused() {
+    for (Order order : Order.values()) {
+      List<String> expected = diamond(order).get(0).toList();
+
+      List<NestedSet<String>> sets = diamond(order);
+      sets.get(1).toList();
+      sets.get(2).toList();
+      long reused = NestedSetExpansionCache.getTransitiveExpansionsReused();
+      assertThat(sets.get(0).toList()).containsExactlyElementsIn(expected).inOrder();
+      assertThat(NestedSetExpansionCache.getTransitiveExpansionsReused())
+          .isEqualTo(reused + 2);
+    }
+  }
+
+  @Test
+  public void testSmallSetsAreNotLookedUp() {
+    NestedSet<String> directs = NestedSetBuilder.create(Order.STABLE_ORDER, "b", "c");
+    NestedSet<String> small = NestedSetBuilder.<String>stableOrder()
+        .add("a")
+        .addTransitive(directs)
+        .build();
+    NestedSet<String> large = diamond(Order.STABLE_ORDER).get(0);
+    assertFalse(NestedSetExpansionCache.mayBeCached(directs));
+    assertTrue(NestedSetExpansionCache.mayBeCached(small));
+    assertTrue(NestedSetExpansionCache.mayBeCached(large));
+
+    // Flattening records a memo, which bounds the size of the expansion.
+    small.toList();
+    large.toList();
+    assertFalse(NestedSetExpansionCache.mayBeCached(small));
+    assertTrue(NestedSetExpansionCache.mayBeCached(large));
+  }
+
+  @Test
+  public void testResetStatistics() {
+    NestedSet<String> set = diamond(Order.STABLE_ORDER).get(0);
+    set.toList();
+    set.toList();
+    NestedSetExpansionCache.resetStatistics();
+    assertThat(NestedSetExpansionCache.getExpansions()).isEqualTo(0);
+    assertThat(NestedSetExpansionCache.getExpansionsAvoided()).isEqualTo(0);
+    set.toList();
+    assertThat(NestedSetExpansionCache.getExpansionsAvoided()).isEqualTo(1);
+  }
+}
@@ -0,0 +1,68 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Functions;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link NestedSetFingerprintCache}.
+ */
+@RunWith(JUnit4.class)
+public class NestedSetFingerprintCacheTest {
+
+  private final NestedSetFingerprintCache<String> cache =
+      new NestedSetFingerprintCache<>(Functions.<String>identity());
+
+  private static NestedSet<String> set(Order order, String direct, String... transitive) {
+    return new NestedSetBuilder<String>(order)
+        .add(direct)
+        .addTransitive(NestedSetBuilder.create(order, transitive))
+        .build();
+  }
+
+  @Test
+  public void testDigestDependsOnContents() {
+    byte[] digest = cache.digest(set(Order.STABLE_ORDER, "a", "b", "c"));
+    assertThat(cache.digest(set(Order.STABLE_ORDER, "a", "b", "c"))).isEqualTo(digest);
+    assertThat(cache.digest(set(Order.STABLE_ORDER, "a", "c", "b"))).isNotEqualTo(digest);
+    assertThat(cache.digest(set(Order.STABLE_ORDER, "b", "a", "c"))).isNotEqualTo(digest);
+    assertThat(cache.digest(set(Order.LINK_ORDER, "a", "b", "c"))).isNotEqualTo(digest);
+  }
+
+  @Test
+  public void testDigestIsCached() {
+    NestedSetBuilder<String> builder = NestedSetBuilder.stableOrder();
+    for (int i = 0; i < NestedSetFingerprintCache.MIN_CACHED_SIZE; i++) {
+      builder.add("a" + i);
+    }
+    NestedSet<String> flat = builder.build();
+    assertThat(cache.digest(flat)).isSameAs(cache.digest(flat));
+
+    NestedSet<String> nested = builder.addTransitive(set(Order.STABLE_ORDER, "b", "c")).build();
+    assertThat(cache.digest(nested)).isSameAs(cache.digest(nested));
+  }
+
+  @Test
+  public void testSmallSetIsNotCached() {
+    NestedSet<String> set = set(Order.STABLE_ORDER, "a", "b", "c");
+    assertThat(cache.digest(set)).isNotSameAs(cache.digest(set));
+    assertThat(cache.digest(set)).isEqualTo(cache.digest(set));
+  }
+}
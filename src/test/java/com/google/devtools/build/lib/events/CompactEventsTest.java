@@ -0,0 +1,172 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.events;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.testutil.FoundationTestCase;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for {@link CompactEvents}.
+ */
+@RunWith(JUnit4.class)
+public class CompactEventsTest extends FoundationTestCase {
+
+  private static final Location LOCATION =
+      Location.fromFileAndOffsets(new PathFragment("/foo/BUILD"), 10, 20);
+
+  @After
+  public final void resetSpillDirectory() throws Exception {
+    CompactEvents.setSpillDirectory(null);
+  }
+
+  /** Returns a list of warnings with the given amount of message text, and some other events. */
+  private static List<Event> events(int textLength) {
+    Random random = new Random(textLength);
+    List<Event> events = new ArrayList<>();
+    events.add(Event.error(LOCATION, "first"));
+    events.add(Event.of(EventKind.STDERR, null, "stderr é".getBytes(ISO_8859_1)));
+    events.add(Event.info("tagged €").withTag("//foo:bar"));
+    int length = 0;
+    while (length < textLength) {
+      String message = "unused variable " + Long.toHexString(random.nextLong());
+      events.add(Event.warn(LOCATION, message));
+      length += message.length();
+    }
+    return events;
+  }
+
+  private static void assertSameEvents(List<Event> expected, List<Event> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      Event expectedEvent = expected.get(i);
+      Event actualEvent = actual.get(i);
+      assertEquals(expectedEvent.getKind(), actualEvent.getKind());
+      assertSame(expectedEvent.getLocation(), actualEvent.getLocation());
+      assertEquals(expectedEvent.getTag(), actualEvent.getTag());
+      assertEquals(expectedEvent.getMessage(), actualEvent.getMessage());
+      assertArrayEquals(expectedEvent.getMessageBytes(), actualEvent.getMessageBytes());
+    }
+  }
+
+  @Test
+  public void testSmallListsKeepInternedEvents() throws Exception {
+    assertSame(CompactEvents.EMPTY, CompactEvents.create(ImmutableList.<Event>of()));
+    List<Event> events = events(100);
+    CompactEvents first = CompactEvents.create(events);
+    assertEquals(events, first.getEvents());
+    assertSame(first.getEvents(), first.getEvents());
+
+    // The same warning, reported for another target, is only kept once.
+    CompactEvents second = CompactEvents.create(events(100));
+    assertSame(first.getEvents().get(0), second.getEvents().get(0));
+    assertEquals(first, second);
+    assertEquals(first.hashCode(), second.hashCode());
+  }
+
+  @Test
+  public void testLargeListsAreCompressed() throws Exception {
+    List<Event> events = events(100000);
+    CompactEvents compact = CompactEvents.create(events);
+    assertEquals(events.size(), compact.size());
+    assertSameEvents(events, compact.getEvents());
+
+    assertEquals(compact, CompactEvents.create(events(100000)));
+    assertEquals(compact.hashCode(), CompactEvents.create(events(100000)).hashCode());
+    assertNotEquals(compact, CompactEvents.create(events(100001)));
+    assertNotEquals(compact, CompactEvents.create(events(100)));
+  }
+
+  @Test
+  public void testLargeTextIsSpilled() throws Exception {
+    Path directory = scratch.dir("/output_base/stored_events");
+    scratch.file("/output_base/stored_events/stale", "from the previous server");
+    CompactEvents.setSpillDirectory(directory);
+    assertThat(directory.getDirectoryEntries()).isEmpty();
+
+    List<Event> events = events(100000);
+    CompactEvents compact = CompactEvents.create(events);
+    assertThat(directory.getDirectoryEntries()).hasSize(1);
+    assertSameEvents(events, compact.getEvents());
+
+    // Identical output is only written once.
+    CompactEvents other = CompactEvents.create(events(100000));
+    assertThat(directory.getDirectoryEntries()).hasSize(1);
+    assertEquals(compact, other);
+
+    // Less text is kept in memory.
+    CompactEvents.create(events(10000));
+    assertThat(directory.getDirectoryEntries()).hasSize(1);
+
+    // Serialization writes the text itself.
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(compact);
+    }
+    Path file = directory.getDirectoryEntries().iterator().next();
+    file.delete();
+    CompactEvents deserialized;
+    try (ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      deserialized = (CompactEvents) in.readObject();
+    }
+    assertEquals(events.size(), deserialized.size());
+    assertEquals(events.get(0).getMessage(), deserialized.getEvents().get(0).getMessage());
+
+    // Without the file, the events are still there, but their messages are not.
+    List<Event> unavailable = compact.getEvents();
+    assertEquals(events.size(), unavailable.size());
+    assertEquals(EventKind.ERROR, unavailable.get(0).getKind());
+    assertEquals("//foo:bar", unavailable.get(2).getTag());
+    assertEquals(CompactEvents.UNAVAILABLE_MESSAGE, unavailable.get(0).getMessage());
+  }
+
+  @Test
+  public void testDeleteSpillFiles() throws Exception {
+    Path directory = scratch.dir("/output_base/stored_events");
+    CompactEvents.setSpillDirectory(directory);
+    CompactEvents.create(events(100000));
+    assertThat(directory.getDirectoryEntries()).hasSize(1);
+
+    CompactEvents.deleteSpillFiles();
+    assertThat(directory.getDirectoryEntries()).isEmpty();
+
+    // The same text is spilled again after its file was deleted.
+    List<Event> events = events(100000);
+    CompactEvents compact = CompactEvents.create(events);
+    assertThat(directory.getDirectoryEntries()).hasSize(1);
+    assertSameEvents(events, compact.getEvents());
+  }
+}
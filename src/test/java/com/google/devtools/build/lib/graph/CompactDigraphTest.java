@@ -0,0 +1,174 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.graph;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Ordering;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests for {@link CompactDigraph}, mostly by comparing it with {@link Digraph}.
+ */
+@RunWith(JUnit4.class)
+public class CompactDigraphTest {
+
+  private static Digraph<Integer> randomGraph(Random random, int nodes, int edges) {
+    Digraph<Integer> graph = new Digraph<>();
+    for (int i = 0; i < nodes; i++) {
+      graph.createNode(i);
+    }
+    for (int i = 0; i < edges; i++) {
+      graph.addEdge(random.nextInt(nodes), random.nextInt(nodes));
+    }
+    return graph;
+  }
+
+  private static <T> Set<List<T>> getEdges(Digraph<T> graph) {
+    Set<List<T>> edges = new HashSet<>();
+    for (Node<T> from : graph.getNodes()) {
+      for (Node<T> to : from.getSuccessors()) {
+        edges.add(ImmutableList.of(from.getLabel(), to.getLabel()));
+      }
+    }
+    return edges;
+  }
+
+  private static <T> Set<List<T>> getEdges(CompactDigraph<T> graph) {
+    Set<List<T>> edges = new HashSet<>();
+    for (int from = 0; from < graph.size(); from++) {
+      for (int to : graph.getSuccessors(from)) {
+        edges.add(ImmutableList.of(graph.getLabel(from), graph.getLabel(to)));
+      }
+      for (int to : graph.getPredecessors(from)) {
+        assertTrue(graph.containsEdge(to, from));
+      }
+    }
+    return edges;
+  }
+
+  private static <T> List<T> getLabels(List<Node<T>> nodes) {
+    List<T> labels = new ArrayList<>();
+    for (Node<T> node : nodes) {
+      labels.add(node.getLabel());
+    }
+    return labels;
+  }
+
+  @Test
+  public void testBuilderIgnoresDuplicates() {
+    CompactDigraph.Builder<String> builder = new CompactDigraph.Builder<>();
+    assertEquals(0, builder.addNode("a"));
+    builder.addEdge("a", "b").addEdge("b", "b").addEdge("a", "b").addEdge("a", "c");
+    assertEquals(1, builder.addNode("b"));
+    CompactDigraph<String> graph = builder.build();
+
+    assertEquals(3, graph.size());
+    assertEquals(3, graph.getEdgeCount());
+    assertThat(graph.getLabels()).containsExactly("a", "b", "c").inOrder();
+    assertEquals(2, graph.getId("c"));
+    assertEquals(-1, graph.getId("d"));
+    assertThat(graph.getLabels(graph.getSuccessors(0))).containsExactly("b", "c").inOrder();
+    assertThat(graph.getLabels(graph.getPredecessors(1))).containsExactly("a", "b");
+    assertThat(graph.getLabels(graph.getRoots())).containsExactly("a");
+    assertThat(graph.getLabels(graph.getLeaves())).containsExactly("c");
+    assertTrue(graph.isCyclic());
+    assertEquals(3, graph.getFwdReachable(0).cardinality());
+    BitSet reachable = graph.getBackReachable(1);
+    assertEquals(2, reachable.cardinality());
+    assertTrue(reachable.get(0) && reachable.get(1));
+  }
+
+  @Test
+  public void testSameAsDigraph() {
+    Random random = new Random(1234);
+    for (int i = 0; i < 200; i++) {
+      int size = 1 + random.nextInt(30);
+      Digraph<Integer> graph = randomGraph(random, size, random.nextInt(size * 2));
+      CompactDigraph<Integer> compact = CompactDigraph.copyOf(graph);
+
+      assertEquals(getEdges(graph), getEdges(compact));
+      assertEquals(graph.isCyclic(), compact.isCyclic());
+      assertEquals(getLabels(graph.getTopologicalOrder(Ordering.natural())),
+          compact.getLabels(compact.getTopologicalOrder(Ordering.<Integer>natural())));
+
+      Set<Set<Integer>> components = new HashSet<>();
+      for (Set<Node<Integer>> component : graph.getStronglyConnectedComponents()) {
+        components.add(ImmutableSet.copyOf(getLabels(new ArrayList<>(component))));
+      }
+      Set<Set<Integer>> compactComponents = new HashSet<>();
+      for (int[] component : compact.getStronglyConnectedComponents()) {
+        compactComponents.add(ImmutableSet.copyOf(compact.getLabels(component)));
+      }
+      assertEquals(components, compactComponents);
+
+      // Edges of the strong component graph go from lower ids to higher ones.
+      CompactDigraph<ImmutableList<Integer>> componentGraph = compact.getStrongComponentGraph();
+      assertEquals(components.size(), componentGraph.size());
+      assertFalse(componentGraph.isCyclic());
+      for (int from = 0; from < componentGraph.size(); from++) {
+        for (int to : componentGraph.getSuccessors(from)) {
+          assertThat(to).isGreaterThan(from);
+        }
+      }
+
+      Set<Integer> keep = new LinkedHashSet<>();
+      for (int node = 0; node < size; node++) {
+        if (random.nextBoolean()) {
+          keep.add(node);
+        }
+      }
+      CompactDigraph<Integer> subgraph = CompactDigraph.extractSubgraph(graph, keep);
+      assertThat(subgraph.getLabels()).containsExactlyElementsIn(keep).inOrder();
+      assertEquals(getEdges(graph.extractSubgraph(keep)), getEdges(subgraph));
+    }
+  }
+
+  @Test
+  public void testLongPaths() {
+    // Neither the subgraph extraction nor the algorithms recurse along paths.
+    int length = 200000;
+    Digraph<Integer> graph = new Digraph<>();
+    for (int i = 0; i < length; i++) {
+      graph.addEdge(i, i + 1);
+    }
+    graph.addEdge(length, 0);
+    CompactDigraph<Integer> subgraph =
+        CompactDigraph.extractSubgraph(graph, ImmutableSet.of(0, length / 2));
+    assertThat(getEdges(subgraph)).containsExactly(
+        ImmutableList.of(0, length / 2), ImmutableList.of(length / 2, 0));
+
+    CompactDigraph<Integer> compact = CompactDigraph.copyOf(graph);
+    assertTrue(compact.isCyclic());
+    assertEquals(1, compact.getStronglyConnectedComponents().size());
+    assertEquals(length + 1, compact.getTopologicalOrder().length);
+    assertEquals(length + 1, compact.getBackReachable(0).cardinality());
+  }
+}
@@ -0,0 +1,101 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.lib.packages.RuleFactory.BuildLangTypedAttributeValuesMap;
+import com.google.devtools.build.lib.testutil.TestRuleClassProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the retained heap of a synthetic universe of rules with the default
+ * {@link AttributeContainer} and with {@link CompactAttributeContainer}.
+ *
+ * <p>Usage: {@code AttributeContainerHeapBenchmark [numRules]} (default 1,000,000). Run with a
+ * heap large enough to hold the whole universe, e.g. {@code -Xmx8g}.
+ */
+public final class AttributeContainerHeapBenchmark {
+
+  private static final int RULES_PER_PACKAGE = 1000;
+
+  private AttributeContainerHeapBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    int numRules = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    RuleClass ruleClass =
+        TestRuleClassProvider.getRuleClassProvider().getRuleClassMap().get("testing_dummy_rule");
+
+    // Warm up interners and class loading so that they are not attributed to the first run.
+    loadUniverse(ruleClass, AttributeContainer.ATTRIBUTE_CONTAINER_FACTORY, RULES_PER_PACKAGE);
+    loadUniverse(
+        ruleClass, CompactAttributeContainer.COMPACT_ATTRIBUTE_CONTAINER_FACTORY,
+        RULES_PER_PACKAGE);
+
+    report("AttributeContainer", ruleClass, AttributeContainer.ATTRIBUTE_CONTAINER_FACTORY,
+        numRules);
+    report("CompactAttributeContainer", ruleClass,
+        CompactAttributeContainer.COMPACT_ATTRIBUTE_CONTAINER_FACTORY, numRules);
+  }
+
+  private static void report(String name, RuleClass ruleClass,
+      Function<RuleClass, AttributeContainer> factory, int numRules) throws Exception {
+    long before = usedHeap();
+    long start = System.nanoTime();
+    List<Rule> universe = loadUniverse(ruleClass, factory, numRules);
+    long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+    long retained = usedHeap() - before;
+    System.out.printf("%-26s %,d rules: %,d bytes retained (%,d bytes/rule), %,d ms%n",
+        name, universe.size(), retained, retained / universe.size(), elapsedMillis);
+  }
+
+  private static List<Rule> loadUniverse(RuleClass ruleClass,
+      Function<RuleClass, AttributeContainer> factory, int numRules) throws Exception {
+    List<Rule> rules = new ArrayList<>(numRules);
+    Package.LegacyBuilder pkgBuilder = null;
+    for (int i = 0; i < numRules; i++) {
+      if (i % RULES_PER_PACKAGE == 0) {
+        pkgBuilder = new Package.LegacyBuilder(
+            PackageIdentifier.createInMainRepo("pkg" + i / RULES_PER_PACKAGE), "workspace");
+      }
+      // Real universes repeat a few list values (common deps, copts, tags) very often.
+      BuildLangTypedAttributeValuesMap attributeValues = new BuildLangTypedAttributeValuesMap(
+          ImmutableMap.<String, Object>of(
+              "name", "rule" + i,
+              "srcs", ImmutableList.of("rule" + i + ".cc", "rule" + i + ".h"),
+              "deps", ImmutableList.of("//base", "//util:strings"),
+              "dummystrings", ImmutableList.of("-O2", "-Wall"),
+              "dummyinteger", i % 3));
+      rules.add(RuleFactory.createRule(pkgBuilder, ruleClass, attributeValues,
+          NullEventHandler.INSTANCE, /*ast=*/null, Location.BUILTIN, /*env=*/null,
+          factory.apply(ruleClass)));
+    }
+    return rules;
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
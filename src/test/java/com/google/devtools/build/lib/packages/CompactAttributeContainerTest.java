@@ -0,0 +1,143 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.events.Location.LineAndColumn;
+import com.google.devtools.build.lib.syntax.GlobList;
+import com.google.devtools.build.lib.testutil.TestRuleClassProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link CompactAttributeContainer}.
+ */
+@RunWith(JUnit4.class)
+public class CompactAttributeContainerTest {
+
+  private RuleClass ruleClass;
+  private AttributeContainer container;
+  private Attribute srcs;
+  private Attribute dummyStrings;
+  private Attribute dummyInteger;
+
+  @Before
+  public final void createAttributeContainer() throws Exception  {
+    ruleClass =
+        TestRuleClassProvider.getRuleClassProvider().getRuleClassMap().get("testing_dummy_rule");
+    srcs = ruleClass.getAttributeByName("srcs");
+    dummyStrings = ruleClass.getAttributeByName("dummystrings");
+    dummyInteger = ruleClass.getAttributeByName("dummyinteger");
+    container = new CompactAttributeContainer(ruleClass);
+  }
+
+  @Test
+  public void testUnsetAttributesAreNull() throws Exception {
+    assertNull(container.getAttr(srcs));
+    assertNull(container.getAttr("nomatch"));
+    assertFalse(container.isAttributeValueExplicitlySpecified(srcs));
+  }
+
+  @Test
+  public void testAttributeSettingAndRetrieval() throws Exception {
+    Object someValue = new Object();
+    container.setAttributeValue(srcs, someValue, true);
+    container.setAttributeValueByName(dummyInteger.getName(), 42);
+    assertSame(someValue, container.getAttr(srcs));
+    assertEquals(42, container.getAttr(dummyInteger.getName()));
+    assertTrue(container.isAttributeValueExplicitlySpecified(srcs));
+    assertTrue(container.isAttributeValueExplicitlySpecified(dummyInteger));
+
+    container.setAttributeValue(srcs, null, false);
+    assertNull(container.getAttr(srcs));
+    assertFalse(container.isAttributeValueExplicitlySpecified(srcs));
+  }
+
+  @Test
+  public void testDefaultValuesFallBackToRuleClass() throws Exception {
+    Object defaultValue = dummyInteger.getDefaultValue(null);
+    container.setAttributeValue(dummyInteger, defaultValue, false);
+    assertSame(defaultValue, container.getAttr(dummyInteger));
+    assertFalse(container.isAttributeValueExplicitlySpecified(dummyInteger));
+
+    container.setAttributeValue(dummyInteger, 7, false);
+    assertEquals(7, container.getAttr(dummyInteger));
+    container.setAttributeValue(dummyInteger, defaultValue, false);
+    assertSame(defaultValue, container.getAttr(dummyInteger));
+  }
+
+  @Test
+  public void testBooleanValues() throws Exception {
+    Attribute testonly = ruleClass.getAttributeByName("testonly");
+    container.setAttributeValue(testonly, true, true);
+    assertEquals(Boolean.TRUE, container.getAttr(testonly));
+    container.setAttributeValue(testonly, false, false);
+    assertEquals(Boolean.FALSE, container.getAttr(testonly));
+    assertFalse(container.isAttributeValueExplicitlySpecified(testonly));
+  }
+
+  @Test
+  public void testListsAreInterned() throws Exception {
+    List<String> list1 = Lists.newArrayList("a", "b");
+    List<String> list2 = Lists.newArrayList("a", "b");
+    AttributeContainer other = new CompactAttributeContainer(ruleClass);
+    container.setAttributeValue(dummyStrings, list1, true);
+    other.setAttributeValue(dummyStrings, list2, true);
+    assertEquals(list1, container.getAttr(dummyStrings));
+    assertSame(container.getAttr(dummyStrings), other.getAttr(dummyStrings));
+  }
+
+  @Test
+  public void testInterningKeepsListClasses() throws Exception {
+    AttributeContainer other = new CompactAttributeContainer(ruleClass);
+    container.setAttributeValue(dummyStrings, Lists.newArrayList("a", "b"), true);
+    other.setAttributeValue(dummyStrings, ImmutableList.of("a", "b"), true);
+    assertEquals(ArrayList.class, container.getAttr(dummyStrings).getClass());
+    assertTrue(other.getAttr(dummyStrings) instanceof ImmutableList);
+  }
+
+  @Test
+  public void testGlobListsAreKept() throws Exception {
+    GlobList<String> globList = GlobList.captureResults(
+        ImmutableList.of("*.cc"), ImmutableList.<String>of(), ImmutableList.of("a.cc"));
+    container.setAttributeValue(dummyStrings, globList, true);
+    assertSame(globList, container.getAttr(dummyStrings));
+  }
+
+  @Test
+  public void testAttributeLocation() throws Exception {
+    Location location1 = Location.fromPathAndStartColumn(null, 0, 0, new LineAndColumn(0, 0));
+    Location location2 = Location.fromPathAndStartColumn(null, 0, 0, new LineAndColumn(1, 0));
+    container.setAttributeLocation(dummyInteger, location2);
+    container.setAttributeLocation(srcs, location1);
+    assertSame(location1, container.getAttributeLocation(srcs.getName()));
+    assertSame(location2, container.getAttributeLocation(dummyInteger.getName()));
+    assertNull(container.getAttributeLocation(dummyStrings.getName()));
+    assertNull(container.getAttributeLocation("nomatch"));
+  }
+}
@@ -23,6 +23,7 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -31,7 +32,9 @@ import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
 import com.google.devtools.build.lib.packages.util.PackageFactoryTestBase;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
 import com.google.devtools.build.lib.syntax.GlobList;
+import com.google.devtools.build.lib.syntax.ParserInputSource;
 import com.google.devtools.build.lib.syntax.Type;
 import com.google.devtools.build.lib.testutil.TestUtils;
 import com.google.devtools.build.lib.vfs.Path;
@@ -165,6 +168,109 @@ public class PackageFactoryTest extends PackageFactoryTestBase {
     assertTrue(pkg.containsErrors());
   }
 
+  @Test
+  public void testParallelRuleCreation() throws Exception {
+    packages.factory().setParallelRuleCreationThreshold(2);
+    Path buildFile =
+        scratch.file(
+            "/parallel/BUILD",
+            "package(default_visibility = ['//visibility:public'])",
+            "cc_library(name = 'a', srcs = glob(['*.cc']))",
+            "cc_library(name = 'b', deps = [':a'])",
+            "cc_library(name = 'c', deps = select({'//conditions:default': [':b']}))");
+    Package pkg = packages.createPackage("parallel", buildFile);
+
+    assertFalse(pkg.containsErrors());
+    List<String> names = new ArrayList<>();
+    for (Rule rule : pkg.getTargets(Rule.class)) {
+      names.add(rule.getName());
+    }
+    assertThat(names).containsExactly("a", "b", "c").inOrder();
+    assertEquals(ConstantRuleVisibility.PUBLIC, pkg.getRule("c").getVisibility());
+  }
+
+  @Test
+  public void testParallelRuleCreationReportsConflicts() throws Exception {
+    events.setFailFast(false);
+    packages.factory().setParallelRuleCreationThreshold(2);
+    Path buildFile =
+        scratch.file(
+            "/parallelconflict/BUILD",
+            "cc_library(name = 'spell_proto')",
+            "cc_library(name = 'lib', srcs = 3)",
+            "proto_library(name = 'spell_proto')");
+    Package pkg = packages.createPackage("parallelconflict", buildFile);
+
+    events.assertContainsError(
+        "proto_library rule 'spell_proto' in package "
+            + "'parallelconflict' conflicts with existing cc_library rule");
+    events.assertContainsError("expected value of type 'list(label)' for attribute 'srcs'");
+    assertTrue(pkg.containsErrors());
+  }
+
+  @Test
+  public void testCompactAttributeContainers() throws Exception {
+    packages.factory().setCompactAttributeContainers(true);
+    Path buildFile =
+        scratch.file(
+            "/compact/BUILD",
+            "cc_library(name = 'a', srcs = ['a.cc'], linkstatic = 1)",
+            "cc_library(name = 'b', deps = [':a'], testonly = 1)");
+    Package pkg = packages.createPackage("compact", buildFile);
+
+    assertFalse(pkg.containsErrors());
+    Rule b = pkg.getRule("b");
+    assertThat(b.getAttributeContainer()).isInstanceOf(CompactAttributeContainer.class);
+    RawAttributeMapper attributes = RawAttributeMapper.of(b);
+    assertThat(attributes.get("deps", BuildType.LABEL_LIST))
+        .containsExactly(Label.parseAbsolute("//compact:a"));
+    assertTrue(attributes.get("testonly", Type.BOOLEAN));
+    assertTrue(attributes.isAttributeValueExplicitlySpecified("testonly"));
+    assertFalse(attributes.isAttributeValueExplicitlySpecified("linkstatic"));
+    assertTrue(RawAttributeMapper.of(pkg.getRule("a")).get("linkstatic", Type.BOOLEAN));
+  }
+
+  @Test
+  public void testPrefetchLiteralGlobs() throws Exception {
+    BuildFileAST ast = BuildFileAST.parseBuildFile(
+        ParserInputSource.create(Joiner.on('\n').join(
+            "cc_library(name = 'a', srcs = glob(['*.cc'], exclude = ['*_test.cc']))",
+            "cc_library(name = 'b', srcs = glob(include = ['*.h'], exclude_directories = 0))",
+            "cc_library(name = 'c', srcs = glob([name + '.cc']))",
+            "cc_library(name = 'd', srcs = glob(['?.cc']))"),
+            new PathFragment("/prefetch/BUILD")),
+        events.reporter(), /*parsePython=*/false);
+    final List<String> started = new ArrayList<>();
+    Globber globber = new Globber() {
+      @Override
+      public Token runAsync(List<String> includes, List<String> excludes, boolean excludeDirs)
+          throws BadGlobException {
+        if (includes.contains("?.cc")) {
+          throw new BadGlobException("bad pattern");
+        }
+        started.add(includes + " - " + excludes + " " + excludeDirs);
+        return null;
+      }
+
+      @Override
+      public List<String> fetch(Token token) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void onInterrupt() {}
+
+      @Override
+      public void onCompletion() {}
+    };
+
+    PackageFactory.prefetchLiteralGlobs(ast, globber);
+
+    assertThat(started)
+        .containsExactly("[*.cc] - [*_test.cc] true", "[*.h] - [] false")
+        .inOrder();
+  }
+
   @Test
   public void testDuplicatedDependencies() throws Exception {
     events.setFailFast(false);
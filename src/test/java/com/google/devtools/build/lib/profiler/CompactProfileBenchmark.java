@@ -0,0 +1,132 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import com.google.devtools.build.lib.profiler.CompactProfileReader.TaskRecord;
+import com.google.devtools.build.lib.profiler.CompactProfileReader.TaskVisitor;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.IOException;
+
+/**
+ * Measures writing and reading a large synthetic profile in the compact format of
+ * {@link CompactProfileWriter}.
+ *
+ * <p>Usage: {@code CompactProfileBenchmark <file> [numTasks] [threads]} (defaults 10,000,000 and
+ * 64). Every fifth task is an action with a description of its own, the others are VFS
+ * operations within an action on 10,000 recurring paths. The profile is written to
+ * {@code file}, then read as a whole, for a single thread and for a single rare task type.
+ */
+public final class CompactProfileBenchmark {
+
+  private static final int PATHS = 10000;
+
+  private CompactProfileBenchmark() {}
+
+  /** Counts the visited tasks and sums their durations, so that nothing is optimized away. */
+  private static class Counter implements TaskVisitor {
+    long tasks;
+    long duration;
+
+    @Override
+    public void visit(TaskRecord task) {
+      tasks++;
+      duration += task.getDurationNanos();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: CompactProfileBenchmark <file> [numTasks] [threads]");
+      System.exit(2);
+    }
+    int numTasks = args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000;
+    int threads = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+    Path file = new JavaIoFileSystem().getPath(args[0]);
+
+    long start = System.nanoTime();
+    write(file, numTasks, threads);
+    report("write", start, numTasks);
+    System.out.printf("file size: %,d bytes (%.1f bytes/task)%n",
+        file.getFileSize(), (double) file.getFileSize() / numTasks);
+
+    start = System.nanoTime();
+    try (CompactProfileReader reader = CompactProfileReader.open(file)) {
+      report("open and read index", start, 0);
+
+      start = System.nanoTime();
+      Counter all = new Counter();
+      reader.readTasks(all);
+      report("stream all tasks", start, all.tasks);
+
+      start = System.nanoTime();
+      final long[] descriptionLength = new long[1];
+      reader.readTasksOfType(ProfilerTask.ACTION, new TaskVisitor() {
+        @Override
+        public void visit(TaskRecord task) throws IOException {
+          descriptionLength[0] += task.getDescription().length();
+        }
+      });
+      report("stream actions with descriptions", start,
+          reader.getTaskCount(ProfilerTask.ACTION));
+
+      start = System.nanoTime();
+      Counter thread = new Counter();
+      reader.readTasksOfThread(reader.getThreadIds().iterator().next(), thread);
+      report("stream one thread", start, thread.tasks);
+
+      start = System.nanoTime();
+      Counter rare = new Counter();
+      reader.readTasksOfType(ProfilerTask.ACTION_CHECK, rare);
+      report("seek to one rare type", start, rare.tasks);
+    }
+  }
+
+  private static void write(Path file, int numTasks, int threads) throws IOException {
+    CompactProfileWriter writer = new CompactProfileWriter(file.getOutputStream(), "benchmark");
+    for (int i = 0; i < PATHS; i++) {
+      writer.writeDescription("/workspace/some/package/directory/file" + i + ".cc");
+    }
+    int[] counts = new int[ProfilerTask.TASK_COUNT];
+    long[] durations = new long[ProfilerTask.TASK_COUNT];
+    counts[ProfilerTask.VFS_STAT.ordinal()] = 4;
+    durations[ProfilerTask.VFS_STAT.ordinal()] = 4000;
+    long time = 0;
+    for (int id = 1; id <= numTasks; id++) {
+      time += 1000;
+      // Each action and the four VFS operations preceding it run on the same thread.
+      int parentId = ((id - 1) / 5 + 1) * 5;
+      long threadId = (parentId / 5) % threads;
+      if (id % 5 == 0) {
+        int descIndex =
+            writer.writeDescription("Executing genrule //some/package:target_" + id);
+        writer.writeTask(threadId, id, 0, time - 5000, 5000, descIndex, ProfilerTask.ACTION,
+            counts, durations);
+      } else {
+        // A tiny share of rare tasks, to measure reading only the blocks that contain them.
+        ProfilerTask type = id % 100_001 == 0 ? ProfilerTask.ACTION_CHECK : ProfilerTask.VFS_STAT;
+        writer.writeTask(threadId, id, parentId, time, 1000, (id * 31) % PATHS, type, null,
+            null);
+      }
+    }
+    writer.close();
+  }
+
+  private static void report(String name, long startNanos, long tasks) {
+    long elapsedMillis = Math.max(1, (System.nanoTime() - startNanos) / 1_000_000);
+    System.out.printf("%-36s %,8d ms  %,12d tasks  %,12d tasks/s%n",
+        name, elapsedMillis, tasks, tasks * 1000 / elapsedMillis);
+  }
+}
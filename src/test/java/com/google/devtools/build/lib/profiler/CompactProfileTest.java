@@ -0,0 +1,213 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.devtools.build.lib.profiler.CompactProfileReader.TaskRecord;
+import com.google.devtools.build.lib.profiler.CompactProfileReader.TaskVisitor;
+import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
+import com.google.devtools.build.lib.testutil.FoundationTestCase;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the compact profile format of {@link CompactProfileWriter} and
+ * {@link CompactProfileReader}.
+ */
+@RunWith(JUnit4.class)
+public class CompactProfileTest extends FoundationTestCase {
+
+  private static final int THREADS = 4;
+  // Enough tasks to fill several blocks.
+  private static final int TASKS = 100000;
+
+  private Path profileFile;
+
+  @Before
+  public final void createProfileFile() throws Exception {
+    profileFile = scratch.dir("/tmp").getRelative("profile.dat");
+  }
+
+  /** Collects the ids of visited tasks. */
+  private static class IdCollector implements TaskVisitor {
+    final List<Integer> ids = new ArrayList<>();
+
+    @Override
+    public void visit(TaskRecord task) throws IOException {
+      ids.add(task.getId());
+    }
+  }
+
+  /**
+   * Writes TASKS tasks, distributed round robin over THREADS threads. Every tenth task is a VFS
+   * stat with one of 100 descriptions, all others are actions with a description of their own.
+   */
+  private void writeProfile() throws IOException {
+    CompactProfileWriter writer =
+        new CompactProfileWriter(profileFile.getOutputStream(), "test profile");
+    int[] counts = new int[ProfilerTask.TASK_COUNT];
+    long[] durations = new long[ProfilerTask.TASK_COUNT];
+    counts[ProfilerTask.VFS_OPEN.ordinal()] = 3;
+    durations[ProfilerTask.VFS_OPEN.ordinal()] = 42;
+    for (int i = 0; i < 100; i++) {
+      writer.writeDescription("stat " + i);
+    }
+    for (int id = 1; id <= TASKS; id++) {
+      if (id % 10 == 0) {
+        writer.writeTask(id % THREADS, id, 0, id * 10L, 5, id % 100, ProfilerTask.VFS_STAT,
+            null, null);
+      } else {
+        int descIndex = writer.writeDescription("action " + id);
+        writer.writeTask(id % THREADS, id, 0, id * 10L, 7, descIndex, ProfilerTask.ACTION,
+            counts, durations);
+      }
+    }
+    writer.close();
+  }
+
+  @Test
+  public void testIndex() throws Exception {
+    writeProfile();
+    try (CompactProfileReader reader = CompactProfileReader.open(profileFile)) {
+      assertEquals("test profile", reader.getComment());
+      assertFalse(reader.isCorruptedOrIncomplete());
+      assertEquals(TASKS, reader.getTaskCount());
+      assertThat(reader.getThreadIds()).containsExactly(1L, 2L, 3L, 0L).inOrder();
+      assertEquals(TASKS / THREADS, reader.getTaskCount(2L));
+      assertEquals(TASKS / 10, reader.getTaskCount(ProfilerTask.VFS_STAT));
+      assertEquals(TASKS / 10 * 5, reader.getTotalDuration(ProfilerTask.VFS_STAT));
+      assertEquals(0, reader.getTaskCount(ProfilerTask.VFS_OPEN));
+      assertEquals(100 + TASKS - TASKS / 10, reader.getDescriptionCount());
+    }
+  }
+
+  @Test
+  public void testReadTasks() throws Exception {
+    writeProfile();
+    try (CompactProfileReader reader = CompactProfileReader.open(profileFile)) {
+      final List<String> descriptions = new ArrayList<>();
+      reader.readTasks(new TaskVisitor() {
+        @Override
+        public void visit(TaskRecord task) throws IOException {
+          assertEquals(descriptions.size() + 1, task.getId());
+          assertEquals(task.getId() * 10L, task.getStartTime());
+          if (task.getType() == ProfilerTask.ACTION) {
+            assertTrue(task.hasStats());
+            assertEquals(3, task.getStatAttrArray()[ProfilerTask.VFS_OPEN.ordinal()].count);
+          } else {
+            assertFalse(task.hasStats());
+          }
+          descriptions.add(task.getDescription());
+        }
+      });
+      assertEquals(TASKS, descriptions.size());
+      assertEquals("action 1", descriptions.get(0));
+      assertEquals("stat 10", descriptions.get(9));
+      assertEquals("action " + (TASKS - 1), descriptions.get(TASKS - 2));
+    }
+  }
+
+  @Test
+  public void testReadTasksOfThreadAndType() throws Exception {
+    writeProfile();
+    try (CompactProfileReader reader = CompactProfileReader.open(profileFile)) {
+      IdCollector thread = new IdCollector();
+      reader.readTasksOfThread(3L, thread);
+      assertEquals(TASKS / THREADS, thread.ids.size());
+      for (int id : thread.ids) {
+        assertEquals(3, id % THREADS);
+      }
+
+      IdCollector type = new IdCollector();
+      reader.readTasksOfType(ProfilerTask.VFS_STAT, type);
+      assertEquals(TASKS / 10, type.ids.size());
+      for (int id : type.ids) {
+        assertEquals(0, id % 10);
+      }
+
+      IdCollector none = new IdCollector();
+      reader.readTasksOfType(ProfilerTask.VFS_OPEN, none);
+      reader.readTasksOfThread(THREADS, none);
+      assertThat(none.ids).isEmpty();
+    }
+  }
+
+  @Test
+  public void testTruncatedProfile() throws Exception {
+    writeProfile();
+    byte[] content = FileSystemUtils.readContent(profileFile);
+    FileSystemUtils.writeContent(profileFile, Arrays.copyOf(content, content.length / 2));
+    try (CompactProfileReader reader = CompactProfileReader.open(profileFile)) {
+      assertTrue(reader.isCorruptedOrIncomplete());
+      assertThat(reader.getTaskCount()).isGreaterThan(0L);
+      assertThat(reader.getTaskCount()).isLessThan((long) TASKS);
+      final List<String> descriptions = new ArrayList<>();
+      reader.readTasks(new TaskVisitor() {
+        @Override
+        public void visit(TaskRecord task) throws IOException {
+          // Descriptions are written before the tasks that use them.
+          descriptions.add(task.getDescription());
+        }
+      });
+      assertEquals(reader.getTaskCount(), descriptions.size());
+      IdCollector stats = new IdCollector();
+      reader.readTasksOfType(ProfilerTask.VFS_STAT, stats);
+      assertEquals(reader.getTaskCount(ProfilerTask.VFS_STAT), stats.ids.size());
+    }
+  }
+
+  @Test
+  public void testProfilerWritesCompactProfile() throws Exception {
+    Profiler profiler = Profiler.instance();
+    profiler.start(ProfiledTaskKinds.ALL, profileFile.getOutputStream(),
+        Profiler.Format.COMPACT, "compact test", false, BlazeClock.instance(),
+        BlazeClock.instance().nanoTime());
+    profiler.startTask(ProfilerTask.ACTION, "action task");
+    profiler.logEvent(ProfilerTask.TEST, "event");
+    profiler.completeTask(ProfilerTask.ACTION);
+    profiler.stop();
+
+    assertTrue(CompactProfileReader.isCompactProfile(profileFile));
+    ProfileInfo info = ProfileInfo.loadProfile(profileFile);
+    info.calculateStats();
+    assertFalse(info.isCorruptedOrIncomplete());
+    assertEquals("compact test", info.comment);
+
+    ProfileInfo.Task task = info.allTasksById.get(0);
+    assertEquals(1, task.id);
+    assertEquals(ProfilerTask.ACTION, task.type);
+    assertEquals("action task", task.getDescription());
+    assertEquals(1, task.getStatAttrArray()[ProfilerTask.TEST.ordinal()].count);
+
+    task = info.allTasksById.get(1);
+    assertEquals(2, task.id);
+    assertEquals(ProfilerTask.TEST, task.type);
+    assertEquals("event", task.getDescription());
+  }
+}
@@ -0,0 +1,102 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
+import com.google.devtools.build.lib.util.BlazeClock;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the per-task overhead of the {@link Profiler} with many threads recording tasks
+ * concurrently.
+ *
+ * <p>Usage: {@code ProfilerBenchmark <file> [threads] [tasksPerThread]} (defaults 200 and
+ * 200,000). Each thread runs actions that each contain nine VFS operations, like an action
+ * execution does, once with profiling disabled, once collecting only the slowest tasks and once
+ * writing a full profile to {@code file}. Every configuration is run a few times so that the JIT
+ * has warmed up for the last one.
+ */
+public final class ProfilerBenchmark {
+
+  private static final int ROUNDS = 3;
+
+  private ProfilerBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: ProfilerBenchmark <file> [threads] [tasksPerThread]");
+      System.exit(2);
+    }
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    int tasksPerThread = args.length > 2 ? Integer.parseInt(args[2]) : 200_000;
+    for (int round = 1; round <= ROUNDS; round++) {
+      System.out.println("round " + round);
+      run("disabled", null, null, threads, tasksPerThread);
+      run("slowest tasks only", ProfiledTaskKinds.SLOWEST, null, threads, tasksPerThread);
+      run("full profile", ProfiledTaskKinds.ALL, args[0], threads, tasksPerThread);
+    }
+  }
+
+  private static void run(String name, ProfiledTaskKinds kinds, String file, int threads,
+      final int tasksPerThread) throws Exception {
+    Profiler profiler = Profiler.instance();
+    if (kinds != null) {
+      OutputStream out =
+          file == null ? null : new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+      profiler.start(kinds, out, name, false, BlazeClock.instance(),
+          BlazeClock.instance().nanoTime());
+    }
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final String action = "action " + t;
+      workers[t] = new Thread() {
+        @Override
+        public void run() {
+          Profiler profiler = Profiler.instance();
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < tasksPerThread; i += 10) {
+            profiler.startTask(ProfilerTask.ACTION_EXECUTE, action);
+            for (int j = 0; j < 9; j++) {
+              profiler.logSimpleTask(Profiler.nanoTimeMaybe(), ProfilerTask.VFS_STAT, action);
+            }
+            profiler.completeTask(ProfilerTask.ACTION_EXECUTE);
+          }
+        }
+      };
+      workers[t].start();
+    }
+    long startNanos = System.nanoTime();
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+    profiler.stop();
+    long tasks = (long) threads * tasksPerThread;
+    // The threads keep all processors busy, so this approximates the CPU time per task.
+    int cpus = Math.min(threads, Runtime.getRuntime().availableProcessors());
+    System.out.printf("  %-20s %,8d ms  %,14d tasks/s  %,8.1f ns/task%n",
+        name, elapsedNanos / 1_000_000, tasks * 1_000_000_000 / elapsedNanos,
+        (double) elapsedNanos * cpus / tasks);
+  }
+}
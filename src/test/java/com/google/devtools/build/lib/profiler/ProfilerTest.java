@@ -21,6 +21,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
+import com.google.devtools.build.lib.profiler.Profiler.SlowTask;
 import com.google.devtools.build.lib.testutil.FoundationTestCase;
 import com.google.devtools.build.lib.testutil.Suite;
 import com.google.devtools.build.lib.testutil.TestSpec;
@@ -36,7 +37,11 @@ import org.junit.runners.JUnit4;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
@@ -213,6 +218,63 @@ public class ProfilerTest extends FoundationTestCase {
     assertThat(info.allTasksById).isEmpty();
   }
 
+  @Test
+  public void testSlowestTasksWithoutProfileFile() throws Exception {
+    profiler.start(ProfiledTaskKinds.SLOWEST, null, "test", false,
+        BlazeClock.instance(), BlazeClock.instance().nanoTime());
+    // More tasks per thread than fit into a task buffer.
+    final int tasksPerThread = 5000;
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      final int offset = t * tasksPerThread;
+      Thread thread = new Thread() {
+        @Override public void run() {
+          for (int i = 1; i <= tasksPerThread; i++) {
+            long durationMillis = 10 + offset + i;
+            profiler.logSimpleTaskDuration(1, TimeUnit.MILLISECONDS.toNanos(durationMillis),
+                ProfilerTask.VFS_STAT, "stat " + durationMillis);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    List<Long> durations = new ArrayList<>();
+    for (SlowTask task : profiler.getSlowestTasks()) {
+      assertEquals(ProfilerTask.VFS_STAT, task.getType());
+      durations.add(TimeUnit.NANOSECONDS.toMillis(task.getDurationNanos()));
+    }
+    profiler.stop();
+
+    int slowest = ProfilerTask.VFS_STAT.slowestInstancesCount;
+    assertThat(durations).hasSize(slowest);
+    assertThat(Collections.min(durations)).isEqualTo(10L + 4 * tasksPerThread - slowest + 1);
+  }
+
+  @Test
+  public void testTaskBuffersOfDeadThreadsAreDropped() throws Exception {
+    profiler.start(ProfiledTaskKinds.SLOWEST, null, "test", false,
+        BlazeClock.instance(), BlazeClock.instance().nanoTime());
+    Thread thread = new Thread() {
+      @Override public void run() {
+        profiler.logSimpleTaskDuration(1, TimeUnit.MILLISECONDS.toNanos(100),
+            ProfilerTask.VFS_STAT, "stat");
+      }
+    };
+    thread.start();
+    thread.join();
+    assertEquals(1, profiler.getTaskBufferCount());
+
+    // The tasks of the dead thread are saved before its buffer is dropped.
+    assertThat(profiler.getSlowestTasks()).hasSize(1);
+    assertEquals(0, profiler.getTaskBufferCount());
+    profiler.stop();
+  }
+
   @Test
   public void testInconsistentCompleteTask() throws Exception {
     Path cacheFile = cacheDir.getRelative("profile2.dat");
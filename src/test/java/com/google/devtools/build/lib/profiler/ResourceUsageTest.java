@@ -0,0 +1,117 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
+import com.google.devtools.build.lib.profiler.statistics.ResourceUsageStatistics;
+import com.google.devtools.build.lib.profiler.statistics.ResourceUsageStatistics.Entry;
+import com.google.devtools.build.lib.testutil.FoundationTestCase;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.Path;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+
+/**
+ * Tests for {@link ResourceUsage} and {@link ResourceUsageStatistics}.
+ */
+@RunWith(JUnit4.class)
+public class ResourceUsageTest extends FoundationTestCase {
+
+  @Test
+  public void testParse() throws Exception {
+    // As written by process-wrapper.
+    ResourceUsage usage = ResourceUsage.parse(
+        "user_usec=1200\nsystem_usec=300\nmax_rss_kb=5120\nread_bytes=4096\nwrite_bytes=7\n");
+    assertEquals(new ResourceUsage(1200, 300, 5120, 4096, 7), usage);
+    assertEquals(1500, usage.getCpuTimeMicros());
+    assertEquals(usage, ResourceUsage.parse(usage.toString()));
+
+    // Unknown keys and other words are ignored, missing keys are 0.
+    assertEquals(new ResourceUsage(0, 0, 10, 0, 0),
+        ResourceUsage.parse("Genrule max_rss_kb=10 minor_faults=3"));
+    assertEquals(ResourceUsage.NONE, ResourceUsage.parse(""));
+    try {
+      ResourceUsage.parse("user_usec=lots");
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testPlus() throws Exception {
+    ResourceUsage a = new ResourceUsage(1, 2, 300, 4, 5);
+    ResourceUsage b = new ResourceUsage(10, 20, 30, 40, 50);
+    assertEquals(new ResourceUsage(11, 22, 300, 44, 55), a.plus(b));
+    assertSame(a, a.plus(ResourceUsage.NONE));
+    assertSame(a, ResourceUsage.NONE.plus(a));
+  }
+
+  @Test
+  public void testStatistics() throws Exception {
+    Path profileFile = scratch.dir("/tmp").getRelative("profile.dat");
+    Profiler profiler = Profiler.instance();
+    profiler.start(ProfiledTaskKinds.ALL, profileFile.getOutputStream(), "resource usage",
+        false, BlazeClock.instance(), BlazeClock.instance().nanoTime());
+    runAction(profiler, "Compiling a.cc", "CppCompile", new ResourceUsage(1000, 0, 100, 0, 0));
+    runAction(profiler, "Compiling b.cc", "CppCompile", new ResourceUsage(3000, 500, 50, 0, 0));
+    runAction(profiler, "Executing genrule //:g", "Genrule",
+        new ResourceUsage(500, 0, 900, 10, 20), new ResourceUsage(100, 0, 200, 1, 2));
+    profiler.startTask(ProfilerTask.ACTION, "Symlinking");
+    profiler.completeTask(ProfilerTask.ACTION);
+    profiler.stop();
+
+    ProfileInfo info = ProfileInfo.loadProfile(profileFile);
+    info.calculateStats();
+    ResourceUsageStatistics stats = new ResourceUsageStatistics(info);
+    assertEquals(3, stats.getActionCount());
+    assertEquals(4, stats.getTotal().getProcessCount());
+    assertEquals(new ResourceUsage(4600, 500, 900, 11, 22), stats.getTotal().getUsage());
+
+    List<Entry> byCpu = stats.getTopActions(ResourceUsageStatistics.BY_CPU_TIME, 2);
+    assertThat(byCpu).hasSize(2);
+    assertEquals("Compiling b.cc", byCpu.get(0).description);
+    assertEquals("Compiling a.cc", byCpu.get(1).description);
+
+    Entry genrule = stats.getTopActions(ResourceUsageStatistics.BY_MAX_RSS, 1).get(0);
+    assertEquals("Genrule", genrule.mnemonic);
+    assertEquals(2, genrule.getProcessCount());
+    assertEquals(new ResourceUsage(600, 0, 900, 11, 22), genrule.getUsage());
+
+    List<Entry> mnemonics = stats.getMnemonics(ResourceUsageStatistics.BY_CPU_TIME);
+    assertThat(mnemonics).hasSize(2);
+    assertEquals("CppCompile", mnemonics.get(0).mnemonic);
+    assertEquals(4500, mnemonics.get(0).getUsage().getCpuTimeMicros());
+  }
+
+  private static void runAction(Profiler profiler, String description, String mnemonic,
+      ResourceUsage... processes) {
+    profiler.startTask(ProfilerTask.ACTION, description);
+    profiler.startTask(ProfilerTask.ACTION_EXECUTE, description);
+    for (ResourceUsage usage : processes) {
+      profiler.logEvent(ProfilerTask.SPAWN_RESOURCES, mnemonic + " " + usage);
+    }
+    profiler.completeTask(ProfilerTask.ACTION_EXECUTE);
+    profiler.completeTask(ProfilerTask.ACTION);
+  }
+}
@@ -0,0 +1,129 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests for {@link SamplingProfiler}.
+ */
+@RunWith(JUnit4.class)
+public class SamplingProfilerTest {
+
+  private final SamplingProfiler sampler = SamplingProfiler.instance();
+  private final Profiler profiler = Profiler.instance();
+
+  @After
+  public final void stopSampler() {
+    sampler.stop();
+  }
+
+  /**
+   * Starts a thread that runs an ACTION task with a nested SKYFUNCTION task, and blocks within
+   * them until {@code release} is counted down.
+   */
+  private Thread startTasks(final CountDownLatch started, final CountDownLatch release) {
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        profiler.startTask(ProfilerTask.ACTION, "action");
+        profiler.startTask(ProfilerTask.SKYFUNCTION, "function");
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        } finally {
+          profiler.completeTask(ProfilerTask.SKYFUNCTION);
+          profiler.completeTask(ProfilerTask.ACTION);
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  @Test
+  public void testSamplesActiveTasksPerPhase() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    sampler.start(out, 1);
+    profiler.markPhase(ProfilePhase.LOAD);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread thread = startTasks(started, release);
+    started.await();
+    Thread.sleep(100);
+    release.countDown();
+    thread.join();
+    sampler.stop();
+
+    String summary = new String(out.toByteArray(), UTF_8);
+    assertThat(summary).containsMatch("(?m)^loading;ACTION;SKYFUNCTION;WAITING \\d+$");
+    // The thread is not sampled once its tasks are complete.
+    assertThat(summary).doesNotContain(";RUNNABLE");
+  }
+
+  @Test
+  public void testTasksStartedBeforeSamplingAreIgnored() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread thread = startTasks(started, release);
+    started.await();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    sampler.start(out, 1);
+    Thread.sleep(20);
+    release.countDown();
+    thread.join();
+    sampler.stop();
+    assertFalse(sampler.isActive());
+    assertThat(new String(out.toByteArray(), UTF_8)).isEmpty();
+  }
+
+  @Test
+  public void testStacksAreResetBetweenSessions() throws Exception {
+    // A task that is still running when sampling stops must not show up in the next session.
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    sampler.start(new ByteArrayOutputStream(), 1);
+    Thread thread = startTasks(started, release);
+    started.await();
+    sampler.stop();
+    release.countDown();
+    thread.join();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    sampler.start(out, 1);
+    started = new CountDownLatch(1);
+    release = new CountDownLatch(1);
+    thread = startTasks(started, release);
+    started.await();
+    Thread.sleep(50);
+    release.countDown();
+    thread.join();
+    sampler.stop();
+    assertThat(new String(out.toByteArray(), UTF_8))
+        .containsMatch("(?m)^init;ACTION;SKYFUNCTION;WAITING \\d+$");
+  }
+}
@@ -0,0 +1,211 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.analysis.RuleDefinition;
+import com.google.devtools.build.lib.analysis.util.TestAspects;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.graph.CompactDigraph;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.engine.Callback;
+import com.google.devtools.build.lib.query2.engine.DigraphQueryEvalResult;
+import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.build.lib.query2.output.OutputFormatter.TargetOrdering;
+import com.google.devtools.build.lib.skyframe.ReverseDepsIndex;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for the rdeps() of {@link BlazeQueryEnvironment} with
+ * {@code --experimental_reverse_deps_index}, which compare its results with those of the same
+ * queries evaluated without the index.
+ */
+@RunWith(JUnit4.class)
+public class BlazeQueryEnvironmentTest extends QueryEnvironmentTestCase {
+
+  private static final int SIZE = 40;
+
+  private ReverseDepsIndex index;
+
+  @Override
+  protected List<RuleDefinition> getExtraRules() {
+    return ImmutableList.<RuleDefinition>of(
+        new TestAspects.BaseRule(),
+        new TestAspects.SimpleRule(),
+        new TestAspects.HonestRule(),
+        new TestAspects.ExtraAttributeAspectRule());
+  }
+
+  @Before
+  public final void enableIndex() throws Exception {
+    writeRandomGraph(/*seed=*/ 7, SIZE);
+    skyframeExecutor.setReverseDepsIndexEnabled(true);
+    index = skyframeExecutor.getReverseDepsIndex();
+  }
+
+  /** Asserts that {@code query} returns the same with the index as without it. */
+  private void assertSameResult(String query) throws Exception {
+    Set<Label> expected = eval(newBlazeQueryEnvironment(null), query);
+    assertFalse(query, expected.isEmpty());
+    assertEquals(query, expected, eval(newBlazeQueryEnvironment(index), query));
+  }
+
+  /**
+   * Evaluates {@code query} and returns the labels of the result in the order of
+   * {@code --order_output=full}, which depends on the paths between the targets of the result.
+   */
+  private static List<Label> evalOrdered(AbstractBlazeQueryEnvironment<Target> env, String query)
+      throws Exception {
+    final Set<Target> targets = new HashSet<>();
+    DigraphQueryEvalResult<Target> result = ((BlazeQueryEnvironment) env).evaluateQuery(
+        QueryExpression.parse(query, env), new Callback<Target>() {
+          @Override
+          public void process(Iterable<Target> partialResult) {
+            Iterables.addAll(targets, partialResult);
+          }
+        });
+    CompactDigraph<Target> graph = result.getCompactSubgraph(targets);
+    List<Label> labels = new ArrayList<>();
+    for (Target target : graph.getLabels(graph.getTopologicalOrder(new TargetOrdering()))) {
+      labels.add(target.getLabel());
+    }
+    return labels;
+  }
+
+  /** Asserts that {@code query} returns the same, in the same order, with the index as without. */
+  private void assertSameOrderedResult(String query) throws Exception {
+    assertEquals(query, evalOrdered(newBlazeQueryEnvironment(null), query),
+        evalOrdered(newBlazeQueryEnvironment(index), query));
+  }
+
+  /** Checks the rdeps of the last filegroups of the graph that are in the closure of universe. */
+  private void assertSameRdeps(String universe) throws Exception {
+    Set<Label> closure = eval(newBlazeQueryEnvironment(null), "deps(" + universe + ")");
+    int checked = 0;
+    for (int i = SIZE - 20; i < SIZE; i++) {
+      if (!closure.contains(Label.parseAbsolute(label(i)))) {
+        continue;
+      }
+      checked++;
+      assertSameResult("rdeps(" + universe + ", " + label(i) + ")");
+      for (int depth = 0; depth < 4; depth++) {
+        assertSameResult("rdeps(" + universe + ", " + label(i) + ", " + depth + ")");
+      }
+    }
+    assertThat(checked).isGreaterThan(0);
+  }
+
+  @Test
+  public void testIndexIsOnlyKeptWhenEnabled() throws Exception {
+    assertNotNull(index);
+    skyframeExecutor.setReverseDepsIndexEnabled(false);
+    assertNull(skyframeExecutor.getReverseDepsIndex());
+  }
+
+  @Test
+  public void testRdeps() throws Exception {
+    assertSameRdeps("//...");
+    assertSameRdeps("//a:t0 + //b:t1");
+    assertTrue(index.contains(PackageIdentifier.createInMainRepo("a")));
+    assertTrue(index.contains(PackageIdentifier.createInMainRepo("b")));
+    // The closure of the last universe is kept for the next query over it.
+    assertNotNull(index.getCachedClosure(
+        ImmutableSet.of(Label.parseAbsolute("//a:t0"), Label.parseAbsolute("//b:t1"))));
+  }
+
+  @Test
+  public void testRdepsAfterPackageChanges() throws Exception {
+    assertSameRdeps("//...");
+    assertSameRdeps("//a:t0");
+    String query = "rdeps(//..., " + label(SIZE - 1) + ")";
+    Set<Label> before = eval(newBlazeQueryEnvironment(index), query);
+
+    // Skyframe drops the changed packages from the index when it next evaluates, which the
+    // evaluation of the universe does before the index is read.
+    writeRandomGraph(/*seed=*/ 8, SIZE);
+    invalidatePackages();
+    assertSameRdeps("//...");
+    assertSameRdeps("//a:t0");
+    assertThat(eval(newBlazeQueryEnvironment(index), query)).isNotEqualTo(before);
+    assertTrue(index.contains(PackageIdentifier.createInMainRepo("a")));
+  }
+
+  @Test
+  public void testRdepsThroughAspects() throws Exception {
+    scratch.file("extra/BUILD", "simple(name = 'extra')");
+    scratch.file("x/BUILD",
+        "rule_with_extra_deps_aspect(name = 'a', foo = [':b'])",
+        "honest(name = 'b', foo = ['//a:t0'])",
+        "simple(name = 'c', foo = [':a'])");
+    invalidatePackages();
+
+    // The aspect on the foo attribute of //x:a applies to //x:b, which advertises a provider, and
+    // adds a dependency of //x:a on //extra:extra.
+    Set<Label> rdeps = eval(newBlazeQueryEnvironment(index), "rdeps(//x:c, //extra:extra)");
+    assertThat(rdeps).containsExactly(Label.parseAbsolute("//extra:extra"),
+        Label.parseAbsolute("//x:a"), Label.parseAbsolute("//x:c"));
+    assertSameResult("rdeps(//x:c, //extra:extra)");
+    assertSameResult("rdeps(//x:c, //extra:extra, 1)");
+    assertSameResult("rdeps(//x:all, " + label(SIZE - 1) + ")");
+    assertSameResult("rdeps(//x:all, " + label(SIZE - 1) + ", 2)");
+  }
+
+  @Test
+  public void testOrderOfRdepsWithDepthBound() throws Exception {
+    // The top of each chain depends on its bottom only through its middle, which is beyond the
+    // depth bound, so only paths through targets outside the result order the two. In one of the
+    // packages that order is not the order of the labels. The universes are single targets,
+    // because target patterns add the edges between the targets they match to the graph.
+    scratch.file("o/BUILD",
+        "filegroup(name = 'a', srcs = [':m'])",
+        "filegroup(name = 'm', srcs = [':z'])",
+        "filegroup(name = 'z', srcs = ['z.txt'])",
+        "filegroup(name = 'y', srcs = [':a'])");
+    scratch.file("p/BUILD",
+        "filegroup(name = 'z', srcs = [':m'])",
+        "filegroup(name = 'm', srcs = [':a'])",
+        "filegroup(name = 'a', srcs = ['a.txt'])",
+        "filegroup(name = 'b', srcs = [':z'])");
+    invalidatePackages();
+    assertSameOrderedResult("rdeps(//o:y, //o:a + //o:z, 0)");
+    assertSameOrderedResult("rdeps(//o:y, //o:y + //o:z, 1)");
+    assertSameOrderedResult("rdeps(//p:b, //p:a + //p:z, 0)");
+    assertSameOrderedResult("rdeps(//p:b, //p:a + //p:b, 1)");
+    for (int i = SIZE - 10; i < SIZE; i++) {
+      for (int depth = 0; depth < 4; depth++) {
+        assertSameOrderedResult("rdeps(//a:t0 + //b:t1, " + label(i) + " + " + label(i - 10)
+            + ", " + depth + ")");
+      }
+    }
+  }
+}
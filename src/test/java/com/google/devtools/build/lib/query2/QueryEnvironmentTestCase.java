@@ -0,0 +1,138 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.packages.Rule;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageLoadingTestCase;
+import com.google.devtools.build.lib.query2.engine.Callback;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.query2.engine.QueryException;
+import com.google.devtools.build.lib.skyframe.ReverseDepsIndex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.Nullable;
+
+/**
+ * Base class for tests that evaluate queries against packages loaded by Skyframe.
+ */
+public abstract class QueryEnvironmentTestCase extends PackageLoadingTestCase {
+
+  /** Several threads, so that the parallel traversals of sky query are exercised. */
+  protected static final int THREADS = 4;
+
+  /** Creates an environment that evaluates queries against the packages in {@code universe}. */
+  protected AbstractBlazeQueryEnvironment<Target> newSkyQueryEnvironment(String universe) {
+    return newSkyQueryEnvironment(universe, THREADS);
+  }
+
+  protected AbstractBlazeQueryEnvironment<Target> newSkyQueryEnvironment(String universe,
+      int threads) {
+    return new QueryEnvironmentFactory().create(
+        skyframeExecutor.pkgLoader(),
+        skyframeExecutor,
+        getPackageManager(),
+        getPackageManager().newTargetPatternEvaluator(),
+        /*keepGoing=*/ false,
+        /*strictScope=*/ true,
+        /*orderedResults=*/ false,
+        ImmutableList.of(universe),
+        threads,
+        Rule.ALL_LABELS,
+        reporter,
+        EnumSet.noneOf(Setting.class),
+        ImmutableList.<QueryFunction>of(),
+        getPackageManager().getPackagePath(),
+        /*reverseDepsIndex=*/ null);
+  }
+
+  /**
+   * Creates an environment that loads the packages it needs while it evaluates a query, and
+   * answers rdeps() from {@code reverseDepsIndex} if it is not null.
+   */
+  protected AbstractBlazeQueryEnvironment<Target> newBlazeQueryEnvironment(
+      @Nullable ReverseDepsIndex reverseDepsIndex) {
+    return new QueryEnvironmentFactory().create(
+        skyframeExecutor.pkgLoader(),
+        skyframeExecutor,
+        getPackageManager(),
+        getPackageManager().newTargetPatternEvaluator(),
+        /*keepGoing=*/ false,
+        /*strictScope=*/ true,
+        /*orderedResults=*/ false,
+        ImmutableList.<String>of(),
+        THREADS,
+        Rule.ALL_LABELS,
+        reporter,
+        EnumSet.noneOf(Setting.class),
+        ImmutableList.<QueryFunction>of(),
+        getPackageManager().getPackagePath(),
+        reverseDepsIndex);
+  }
+
+  /** Evaluates {@code query} and returns the labels of the result. */
+  protected static Set<Label> eval(AbstractBlazeQueryEnvironment<Target> env, String query)
+      throws QueryException, InterruptedException {
+    final Set<Label> result = Collections.synchronizedSet(new HashSet<Label>());
+    env.evaluateQuery(query, new Callback<Target>() {
+      @Override
+      public void process(Iterable<Target> partialResult) {
+        for (Target target : partialResult) {
+          result.add(target.getLabel());
+        }
+      }
+    });
+    return new HashSet<>(result);
+  }
+
+  /**
+   * Writes filegroups {@code //a:t0} to {@code //b:t<size - 1>}, alternating between packages
+   * {@code a} and {@code b}, each of which depends on a few random filegroups with higher
+   * numbers and on a source file.
+   */
+  protected void writeRandomGraph(long seed, int size) throws Exception {
+    Random random = new Random(seed);
+    List<String> a = new ArrayList<>();
+    List<String> b = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      Set<Integer> deps = new TreeSet<>();
+      for (int d = random.nextInt(4); d > 0 && i + 1 < size; d--) {
+        deps.add(i + 1 + random.nextInt(size - i - 1));
+      }
+      StringBuilder srcs = new StringBuilder("'f" + i + ".txt'");
+      for (int dep : deps) {
+        srcs.append(", '").append(label(dep)).append("'");
+      }
+      (i % 2 == 0 ? a : b).add("filegroup(name = 't" + i + "', srcs = [" + srcs + "])");
+    }
+    scratch.overwriteFile("a/BUILD", a.toArray(new String[0]));
+    scratch.overwriteFile("b/BUILD", b.toArray(new String[0]));
+  }
+
+  /** Returns the label of the filegroup with the given number in {@link #writeRandomGraph}. */
+  protected static String label(int i) {
+    return (i % 2 == 0 ? "//a:t" : "//b:t") + i;
+  }
+}
@@ -0,0 +1,168 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.Sets;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.engine.QueryException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Set;
+
+/**
+ * Tests for the parallel traversals of {@link SkyQueryEnvironment}, which compare their results
+ * with those of the sequential traversals of {@link BlazeQueryEnvironment}. The universe of sky
+ * query is {@code //...}, so {@code allrdeps(x)} is compared with {@code rdeps(//..., x)}.
+ */
+@RunWith(JUnit4.class)
+public class SkyQueryEnvironmentTest extends QueryEnvironmentTestCase {
+
+  private static final int SIZE = 60;
+
+  @Before
+  public final void writeGraph() throws Exception {
+    writeRandomGraph(/*seed=*/ 42, SIZE);
+  }
+
+  /** Asserts that sky query returns the same as the sequential query {@code expected}. */
+  private void assertSameResult(String query, String expected) throws Exception {
+    Set<Label> sequential = eval(newBlazeQueryEnvironment(null), expected);
+    assertFalse(expected, sequential.isEmpty());
+    assertEquals(query, sequential, eval(newSkyQueryEnvironment("//..."), query));
+  }
+
+  private void assertSameResult(String query) throws Exception {
+    assertSameResult(query, query);
+  }
+
+  @Test
+  public void testAllRdeps() throws Exception {
+    for (int i = SIZE - 10; i < SIZE; i++) {
+      assertSameResult("allrdeps(" + label(i) + ")", "rdeps(//..., " + label(i) + ")");
+      for (int depth = 0; depth < 4; depth++) {
+        assertSameResult("allrdeps(" + label(i) + ", " + depth + ")",
+            "rdeps(//..., " + label(i) + ", " + depth + ")");
+      }
+    }
+  }
+
+  @Test
+  public void testRdeps() throws Exception {
+    Set<Label> universe = eval(newBlazeQueryEnvironment(null), "deps(//a:t0 + //b:t1)");
+    int checked = 0;
+    for (int i = SIZE - 20; i < SIZE; i++) {
+      if (!universe.contains(Label.parseAbsolute(label(i)))) {
+        continue;
+      }
+      checked++;
+      assertSameResult("rdeps(//a:t0 + //b:t1, " + label(i) + ")");
+      for (int depth = 0; depth < 4; depth++) {
+        assertSameResult("rdeps(//a:t0 + //b:t1, " + label(i) + ", " + depth + ")");
+      }
+    }
+    assertThat(checked).isGreaterThan(0);
+  }
+
+  @Test
+  public void testDeps() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      assertSameResult("deps(" + label(i) + ")");
+      for (int depth = 0; depth < 4; depth++) {
+        assertSameResult("deps(" + label(i) + ", " + depth + ")");
+      }
+    }
+  }
+
+  @Test
+  public void testSomePath() throws Exception {
+    for (int to = SIZE - 10; to < SIZE; to++) {
+      String query = "somepath(//a:t0, " + label(to) + ")";
+      Set<Label> path = eval(newSkyQueryEnvironment("//..."), query);
+      if (eval(newBlazeQueryEnvironment(null), query).isEmpty()) {
+        assertThat(path).isEmpty();
+        continue;
+      }
+      // Any path will do, so check that every target on it is between the two ends.
+      Set<Label> between = eval(newBlazeQueryEnvironment(null),
+          "deps(//a:t0) ^ rdeps(//..., " + label(to) + ")");
+      assertThat(path)
+          .containsAllOf(Label.parseAbsolute("//a:t0"), Label.parseAbsolute(label(to)));
+      assertThat(between).containsAllIn(path);
+    }
+    String reversed = "somepath(" + label(SIZE - 1) + ", //a:t0)";
+    assertThat(eval(newSkyQueryEnvironment("//..."), reversed))
+        .isEmpty();
+  }
+
+  @Test
+  public void testSome() throws Exception {
+    AbstractBlazeQueryEnvironment<Target> env = newSkyQueryEnvironment("//...");
+    for (int i = SIZE - 10; i < SIZE; i++) {
+      Set<Label> some = eval(env, "some(allrdeps(" + label(i) + "))");
+      assertThat(some).hasSize(1);
+      assertThat(eval(newBlazeQueryEnvironment(null), "rdeps(//..., " + label(i) + ")"))
+          .containsAllIn(some);
+    }
+    assertThat(eval(env, "some(some(deps(//a:t0)) + //b:t1)")).hasSize(1);
+    try {
+      eval(env, "some(allrdeps(//a:t0) - allrdeps(//a:t0))");
+      fail();
+    } catch (QueryException e) {
+      assertThat(e.getMessage()).contains("argument set is empty");
+    }
+  }
+
+  @Test
+  public void testNestedExpressions() throws Exception {
+    // Each traversal passes its targets to the enclosing one while it is still running.
+    assertSameResult("allrdeps(allrdeps(" + label(SIZE - 1) + ", 1))",
+        "rdeps(//..., rdeps(//..., " + label(SIZE - 1) + ", 1))");
+    assertSameResult("deps(allrdeps(" + label(SIZE - 5) + ", 2), 1)",
+        "deps(rdeps(//..., " + label(SIZE - 5) + ", 2), 1)");
+    assertSameResult("allrdeps(deps(//a:t0, 2) - //a:t0, 1)",
+        "rdeps(//..., deps(//a:t0, 2) - //a:t0, 1)");
+    assertSameResult("deps(deps(deps(//b:t1, 1), 1))");
+    assertSameResult("rdeps(//a:t0, allrdeps(" + label(SIZE - 3) + ", 1), 2)",
+        "rdeps(//a:t0, rdeps(//..., " + label(SIZE - 3) + ", 1), 2)");
+
+    Set<Label> path = eval(newSkyQueryEnvironment("//..."),
+        "somepath(allrdeps(" + label(SIZE - 1) + ", 1), deps(//b:t1))");
+    Set<Label> expected = eval(newBlazeQueryEnvironment(null),
+        "somepath(rdeps(//..., " + label(SIZE - 1) + ", 1), deps(//b:t1))");
+    assertEquals(expected.isEmpty(), path.isEmpty());
+    if (!path.isEmpty()) {
+      Set<Label> from =
+          eval(newBlazeQueryEnvironment(null), "rdeps(//..., " + label(SIZE - 1) + ", 1)");
+      assertFalse(Sets.intersection(path, from).isEmpty());
+    }
+  }
+
+  @Test
+  public void testNestedExpressionsWithOneThread() throws Exception {
+    // The outer traversal must not wait for its own tasks on the only thread of the inner one.
+    String query = "deps(allrdeps(" + label(SIZE - 1) + ", 2), 1)";
+    assertEquals(eval(newSkyQueryEnvironment("//..."), query),
+        eval(newSkyQueryEnvironment("//...", /*threads=*/ 1), query));
+  }
+}
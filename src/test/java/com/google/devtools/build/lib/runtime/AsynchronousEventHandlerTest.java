@@ -0,0 +1,180 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.EventCollector;
+import com.google.devtools.build.lib.events.EventKind;
+import com.google.devtools.build.lib.util.io.OutErr;
+import com.google.devtools.common.options.Options;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link AsynchronousEventHandler}.
+ */
+@RunWith(JUnit4.class)
+public class AsynchronousEventHandlerTest {
+
+  /** A terminal that accepts no output until it is released. */
+  private static final class BlockedOutputStream extends OutputStream {
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    @Override
+    public void write(int b) throws IOException {
+      awaitRelease();
+      synchronized (this) {
+        written.write(b);
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      awaitRelease();
+      synchronized (this) {
+        written.write(b, off, len);
+      }
+    }
+
+    private void awaitRelease() throws IOException {
+      try {
+        released.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+    }
+
+    void release() {
+      released.countDown();
+    }
+
+    synchronized String getWritten() {
+      return new String(written.toByteArray(), ISO_8859_1);
+    }
+  }
+
+  @Test
+  public void testEventsArePassedOnInOrder() throws Exception {
+    EventCollector collector = new EventCollector();
+    AsynchronousEventHandler handler = new AsynchronousEventHandler(collector, 10, true);
+    byte[] output = "hello".getBytes(ISO_8859_1);
+    handler.handle(Event.info("first"));
+    handler.handle(Event.of(EventKind.STDOUT, null, output));
+    // The reporter may reuse its buffer.
+    output[0] = 'j';
+    handler.handle(Event.error("second"));
+    handler.close();
+
+    List<String> messages = new ArrayList<>();
+    for (Event event : collector) {
+      messages.add(event.getKind() + " " + event.getMessage());
+    }
+    assertThat(messages).containsExactly("INFO first", "STDOUT hello", "ERROR second").inOrder();
+
+    // After closing, events are passed on right away.
+    handler.handle(Event.warn("late"));
+    assertEquals("late", Iterables.getLast(collector).getMessage());
+  }
+
+  @Test
+  public void testProgressIsCoalesced() throws Exception {
+    EventCollector collector = new EventCollector();
+    AsynchronousEventHandler handler = new AsynchronousEventHandler(collector, 1000, true);
+    for (int i = 0; i < 1000; i++) {
+      handler.handle(Event.progress("progress " + i));
+    }
+    handler.close();
+    assertEquals(1, collector.count());
+    assertEquals("progress 999", Iterables.getOnlyElement(collector).getMessage());
+
+    // Without rate limiting, all progress events are passed on.
+    collector = new EventCollector();
+    handler = AsynchronousEventHandler.create(collector, -1);
+    for (int i = 0; i < 1000; i++) {
+      handler.handle(Event.progress("progress " + i));
+    }
+    handler.close();
+    assertEquals(1000, collector.count());
+  }
+
+  @Test
+  public void testBlockedTerminalDoesNotBlockReporters() throws Exception {
+    final BlockedOutputStream terminal = new BlockedOutputStream();
+    BlazeCommandEventHandler.Options options =
+        Options.getDefaults(BlazeCommandEventHandler.Options.class);
+    final AsynchronousEventHandler handler = new AsynchronousEventHandler(
+        new BlazeCommandEventHandler(OutErr.create(terminal, terminal), options), 1, true);
+
+    // 100k events from 4 threads, one in 100 of which must make it to the terminal, while the
+    // terminal accepts nothing.
+    final int threads = 4;
+    final int eventsPerThread = 25000;
+    List<Thread> reporters = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      reporters.add(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < eventsPerThread; i++) {
+            if (i % 100 == 0) {
+              handler.handle(Event.info("thread " + thread + " event " + i));
+            } else {
+              handler.handle(Event.progress("thread " + thread + " progress " + i));
+            }
+          }
+        }
+      }));
+    }
+    long startNanos = System.nanoTime();
+    for (Thread reporter : reporters) {
+      reporter.start();
+    }
+    for (Thread reporter : reporters) {
+      reporter.join();
+    }
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    // All events were reported while the terminal accepted no output. This takes well under a
+    // second, the bound leaves a lot of slack for slow machines.
+    assertThat(terminal.getWritten()).isEmpty();
+    assertThat(elapsedMillis).isLessThan(10000L);
+
+    terminal.release();
+    handler.close();
+    String written = terminal.getWritten();
+    for (int t = 0; t < threads; t++) {
+      int previous = -1;
+      for (int i = 0; i < eventsPerThread; i += 100) {
+        int index = written.indexOf("thread " + t + " event " + i + "\n");
+        assertThat(index).isGreaterThan(previous);
+        previous = index;
+      }
+    }
+  }
+}
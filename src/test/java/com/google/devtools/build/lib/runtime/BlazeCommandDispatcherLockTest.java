@@ -0,0 +1,330 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.analysis.BlazeDirectories;
+import com.google.devtools.build.lib.analysis.ConfigurationCollectionFactory;
+import com.google.devtools.build.lib.analysis.ConfiguredRuleClassProvider;
+import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
+import com.google.devtools.build.lib.analysis.config.ConfigurationFactory;
+import com.google.devtools.build.lib.pkgcache.PackageCacheOptions;
+import com.google.devtools.build.lib.runtime.BlazeCommandDispatcher.LockingMode;
+import com.google.devtools.build.lib.runtime.BlazeCommandDispatcherRcoptionsTest.MockFragmentOptions;
+import com.google.devtools.build.lib.runtime.proto.InvocationPolicyOuterClass;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.testutil.TestConstants;
+import com.google.devtools.build.lib.util.AbruptExitException;
+import com.google.devtools.build.lib.util.ExitCode;
+import com.google.devtools.build.lib.util.io.RecordingOutErr;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+import com.google.devtools.common.options.OptionsParser;
+import com.google.devtools.common.options.OptionsProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Tests the command lock of {@link BlazeCommandDispatcher}.
+ */
+@RunWith(JUnit4.class)
+public class BlazeCommandDispatcherLockTest {
+
+  /** Options to name the commands of the tests. */
+  public static class NameOptions extends OptionsBase {
+    @Option(name = "name", defaultValue = "")
+    public String name;
+  }
+
+  /** Records its name, and blocks until the test releases it. */
+  @Command(
+    name = "record",
+    options = {NameOptions.class},
+    shortDescription = "",
+    help = ""
+  )
+  private static class RecordCommand implements BlazeCommand {
+    private final List<String> names = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    @Override
+    public ExitCode exec(CommandEnvironment env, OptionsProvider options) {
+      names.add(options.getOptions(NameOptions.class).name);
+      started.countDown();
+      try {
+        released.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return ExitCode.SUCCESS;
+    }
+
+    @Override
+    public void editOptions(CommandEnvironment env, OptionsParser optionsParser) {}
+  }
+
+  /**
+   * Sets up the package cache, records its name in the list of {@link RecordCommand}, and blocks
+   * until the test releases all commands of this kind.
+   */
+  @Command(
+    name = "share",
+    options = {NameOptions.class, PackageCacheOptions.class},
+    shareable = true,
+    shortDescription = "",
+    help = ""
+  )
+  private static class ShareCommand implements BlazeCommand {
+    private final List<String> names;
+    private final Semaphore started = new Semaphore(0);
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    private ShareCommand(List<String> names) {
+      this.names = names;
+    }
+
+    @Override
+    public ExitCode exec(CommandEnvironment env, OptionsProvider options) {
+      try {
+        env.setupPackageCache(options.getOptions(PackageCacheOptions.class),
+            env.getRuntime().getDefaultsPackageContent());
+        names.add(options.getOptions(NameOptions.class).name);
+        started.release();
+        released.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return ExitCode.INTERRUPTED;
+      } catch (AbruptExitException e) {
+        return e.getExitCode();
+      }
+      return ExitCode.SUCCESS;
+    }
+
+    @Override
+    public void editOptions(CommandEnvironment env, OptionsParser optionsParser) {}
+  }
+
+  private final Scratch scratch = new Scratch();
+  private final RecordCommand record = new RecordCommand();
+  private final ShareCommand share = new ShareCommand(record.names);
+  private BlazeCommandDispatcher dispatch;
+
+  @Before
+  public final void initializeDispatcher() throws Exception {
+    BlazeDirectories directories =
+        new BlazeDirectories(
+            scratch.dir("install_base"), scratch.dir("output_base"), scratch.dir("pkg"));
+    BlazeRuntime runtime =
+        new BlazeRuntime.Builder()
+            .setDirectories(directories)
+            .setStartupOptionsProvider(
+                OptionsParser.newOptionsParser(BlazeServerStartupOptions.class))
+            .setConfigurationFactory(
+                new ConfigurationFactory(Mockito.mock(ConfigurationCollectionFactory.class)))
+            .addBlazeModule(
+                new BlazeModule() {
+                  @Override
+                  public void initializeRuleClasses(ConfiguredRuleClassProvider.Builder builder) {
+                    builder.addConfigurationOptions(BuildConfiguration.Options.class);
+                    builder.addConfigurationOptions(MockFragmentOptions.class);
+                    builder.setToolsRepository(TestConstants.TOOLS_REPOSITORY);
+                  }
+                })
+            .setInvocationPolicy(InvocationPolicyOuterClass.InvocationPolicy.getDefaultInstance())
+            .build();
+    dispatch = new BlazeCommandDispatcher(runtime, record, share);
+  }
+
+  /** Starts a record command in a new thread, and returns the thread. */
+  private Thread startCommand(String name, RecordingOutErr outErr) {
+    return startCommand("record", name, LockingMode.WAIT, outErr);
+  }
+
+  /** Starts a command in a new thread, and returns the thread. */
+  private Thread startCommand(final String command, final String name,
+      final LockingMode lockingMode, final RecordingOutErr outErr, final String... options) {
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          dispatch.exec(
+              ImmutableList.<String>builder().add(command, "--name=" + name).add(options).build(),
+              lockingMode, name, outErr);
+        } catch (InterruptedException e) {
+          // The test gave up on this command while it was waiting for the lock.
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  private static void awaitQueued(RecordingOutErr outErr) throws InterruptedException {
+    while (!outErr.errAsLatin1().contains("Waiting for")) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testWaitingCommandsRunInArrivalOrder() throws Exception {
+    Thread first = startCommand("first", new RecordingOutErr());
+    record.started.await();
+
+    List<Thread> waiting = new ArrayList<>();
+    List<String> expected = new ArrayList<>();
+    expected.add("first");
+    for (int i = 0; i < 5; i++) {
+      RecordingOutErr outErr = new RecordingOutErr();
+      waiting.add(startCommand("waiting" + i, outErr));
+      awaitQueued(outErr);
+      expected.add("waiting" + i);
+    }
+
+    RecordingOutErr lastOutErr = new RecordingOutErr();
+    waiting.add(startCommand("last", lastOutErr));
+    awaitQueued(lastOutErr);
+    expected.add("last");
+    assertThat(lastOutErr.errAsLatin1())
+        .contains("Another command (first) is running. 5 more command(s) are queued");
+
+    record.released.countDown();
+    first.join();
+    for (Thread thread : waiting) {
+      thread.join();
+    }
+    assertThat(record.names).containsExactlyElementsIn(expected).inOrder();
+  }
+
+  @Test
+  public void testErrorOutWhileCommandsAreQueued() throws Exception {
+    Thread first = startCommand("first", new RecordingOutErr());
+    record.started.await();
+    RecordingOutErr waitingOutErr = new RecordingOutErr();
+    Thread waiting = startCommand("waiting", waitingOutErr);
+    awaitQueued(waitingOutErr);
+
+    RecordingOutErr outErr = new RecordingOutErr();
+    int exitCode = dispatch.exec(
+        ImmutableList.of("record", "--name=impatient"), LockingMode.ERROR_OUT, "impatient",
+        outErr);
+    assertEquals(ExitCode.COMMAND_LINE_ERROR.getNumericExitCode(), exitCode);
+    assertThat(outErr.errAsLatin1())
+        .contains("Another command (first) is running. Exiting immediately.");
+
+    record.released.countDown();
+    first.join();
+    waiting.join();
+    assertThat(record.names).containsExactly("first", "waiting").inOrder();
+  }
+
+  @Test
+  public void testInterruptedWaiterGivesUpItsTurn() throws Exception {
+    Thread first = startCommand("first", new RecordingOutErr());
+    record.started.await();
+    RecordingOutErr interruptedOutErr = new RecordingOutErr();
+    Thread interrupted = startCommand("interrupted", interruptedOutErr);
+    awaitQueued(interruptedOutErr);
+    RecordingOutErr nextOutErr = new RecordingOutErr();
+    Thread next = startCommand("next", nextOutErr);
+    awaitQueued(nextOutErr);
+
+    interrupted.interrupt();
+    interrupted.join();
+    record.released.countDown();
+    first.join();
+    next.join();
+    assertThat(record.names).containsExactly("first", "next").inOrder();
+  }
+
+  @Test
+  public void testShareableCommandsRunAlongsideEachOther() throws Exception {
+    Thread host = startCommand("share", "host", LockingMode.WAIT, new RecordingOutErr());
+    share.started.acquire();
+    RecordingOutErr guestOutErr = new RecordingOutErr();
+    Thread guest = startCommand("share", "guest", LockingMode.WAIT, guestOutErr);
+    share.started.acquire();
+    RecordingOutErr impatientOutErr = new RecordingOutErr();
+    Thread impatient = startCommand("share", "impatient", LockingMode.ERROR_OUT, impatientOutErr);
+    share.started.acquire();
+
+    share.released.countDown();
+    host.join();
+    guest.join();
+    impatient.join();
+    assertThat(guestOutErr.errAsLatin1()).doesNotContain("Waiting for");
+    assertThat(impatientOutErr.errAsLatin1()).doesNotContain("Exiting immediately");
+    assertThat(record.names).containsExactly("host", "guest", "impatient").inOrder();
+  }
+
+  @Test
+  public void testShareableCommandsWithDifferentOptionsDoNotShare() throws Exception {
+    Thread host = startCommand("share", "host", LockingMode.WAIT, new RecordingOutErr());
+    share.started.acquire();
+
+    RecordingOutErr outErr = new RecordingOutErr();
+    int exitCode = dispatch.exec(
+        ImmutableList.of("share", "--name=other", "--package_path=other"), LockingMode.ERROR_OUT,
+        "other", outErr);
+    assertEquals(ExitCode.COMMAND_LINE_ERROR.getNumericExitCode(), exitCode);
+    assertThat(outErr.errAsLatin1())
+        .contains("Another command (host) is running. Exiting immediately.");
+    exitCode = dispatch.exec(
+        ImmutableList.of("share", "--name=profiled", "--profile=profile"), LockingMode.ERROR_OUT,
+        "profiled", outErr);
+    assertEquals(ExitCode.COMMAND_LINE_ERROR.getNumericExitCode(), exitCode);
+
+    share.released.countDown();
+    host.join();
+    assertThat(record.names).containsExactly("host");
+  }
+
+  @Test
+  public void testShareableCommandsDoNotOvertakeQueuedCommands() throws Exception {
+    Thread host = startCommand("share", "host", LockingMode.WAIT, new RecordingOutErr());
+    share.started.acquire();
+    RecordingOutErr exclusiveOutErr = new RecordingOutErr();
+    Thread exclusive = startCommand("exclusive", exclusiveOutErr);
+    awaitQueued(exclusiveOutErr);
+    RecordingOutErr lateOutErr = new RecordingOutErr();
+    Thread late = startCommand("share", "late", LockingMode.WAIT, lateOutErr);
+    awaitQueued(lateOutErr);
+    assertThat(lateOutErr.errAsLatin1())
+        .contains("Another command (host) is running. 1 more command(s) are queued");
+
+    share.released.countDown();
+    host.join();
+    record.started.await();
+    assertThat(record.names).containsExactly("host", "exclusive").inOrder();
+    record.released.countDown();
+    exclusive.join();
+    late.join();
+    assertThat(record.names).containsExactly("host", "exclusive", "late").inOrder();
+  }
+}
@@ -0,0 +1,111 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.testutil.FoundationTestCase;
+import com.google.devtools.build.lib.vfs.Path;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+
+/**
+ * Tests for {@link BuildTimings}.
+ */
+@RunWith(JUnit4.class)
+public class BuildTimingsTest extends FoundationTestCase {
+
+  private static BuildTimings yesterday() {
+    return new BuildTimings.Builder()
+        .setPhaseTimes(1000, 2000, 10000)
+        .setStrategyTimes(ImmutableMap.of("standalone", 8000L, "cached", 2000L))
+        .addCriticalPathTarget("//a:lib")
+        .addPackageTime("a", 300)
+        .addPackageTime("b", 200)
+        .addAnalysisTime("//a:lib", 50)
+        .addExecutionTime("//a:lib", 8000)
+        .addExecutionTime("//b:bin", 2000)
+        .build();
+  }
+
+  private static BuildTimings today() {
+    return new BuildTimings.Builder()
+        .setPhaseTimes(1000, 2500, 12000)
+        .setStrategyTimes(ImmutableMap.of("standalone", 9000L, "worker", 3000L))
+        .addCriticalPathTarget("//a:lib")
+        .addCriticalPathTarget("//c:gen")
+        .addPackageTime("a", 300)
+        .addPackageTime("b", 700)
+        .addAnalysisTime("//a:lib", 50)
+        .addExecutionTime("//a:lib", 9000)
+        .addExecutionTime("//b:bin", 1000)
+        .addExecutionTime("//c:gen", 3000)
+        .build();
+  }
+
+  @Test
+  public void testWriteAndRead() throws Exception {
+    Path file = scratch.resolve("/history/timings");
+    BuildTimings timings = yesterday();
+    timings.writeTo(file);
+
+    BuildTimings read = BuildTimings.readFrom(file);
+    assertEquals(13000, read.getCriticalPathTime());
+    assertEquals(2000, read.getAnalysisTime());
+    assertEquals(timings.getStrategyTimes(), read.getStrategyTimes());
+    assertEquals(timings.getCriticalPath(), read.getCriticalPath());
+    assertEquals(timings.getPackageTimes(), read.getPackageTimes());
+    assertEquals(timings.getAnalysisTimes(), read.getAnalysisTimes());
+    assertEquals(timings.getExecutionTimes(), read.getExecutionTimes());
+  }
+
+  @Test
+  public void testReadInvalidFile() throws Exception {
+    Path file = scratch.file("/history/timings", "phase\tloading\tslow");
+    try {
+      BuildTimings.readFrom(file);
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("phase\tloading\tslow");
+    }
+  }
+
+  @Test
+  public void testDescribeFirstBuild() throws Exception {
+    assertEquals("Critical path 13.00s: loading 1.00s, analysis 2.00s, execution 10.00s\n"
+        + "  Execution critical path by strategy: standalone 8.00s, cached 2.00s",
+        yesterday().describe(null, 5));
+  }
+
+  @Test
+  public void testDescribeRegression() throws Exception {
+    assertEquals("Critical path 15.50s, +2.50s vs. last build: loading 1.00s (+0.00s), "
+        + "analysis 2.50s (+0.50s), execution 12.00s (+2.00s)\n"
+        + "  Execution critical path by strategy: standalone 9.00s (+1.00s), "
+        + "worker 3.00s (+3.00s)\n"
+        + "  Slower targets: //c:gen +3.00s (new) (critical path), "
+        + "//a:lib +1.00s (critical path)\n"
+        + "  Slower packages: b +0.50s",
+        today().describe(yesterday(), 5));
+    assertThat(today().describe(yesterday(), 1)).contains("Slower targets: //c:gen +3.00s");
+    assertThat(today().describe(yesterday(), 1)).doesNotContain("//a:lib");
+  }
+}
@@ -0,0 +1,189 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.ActionAnalysisMetadata;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.ArtifactPrefixConflictException;
+import com.google.devtools.build.lib.actions.Root;
+import com.google.devtools.build.lib.actions.util.TestAction;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link ActionGraphIndex}.
+ */
+@RunWith(JUnit4.class)
+public class ActionGraphIndexTest {
+
+  private final ActionGraphIndex index = new ActionGraphIndex();
+  private Root root;
+  private Artifact source;
+
+  @Before
+  public final void createRoot() throws Exception {
+    Path execRoot = new InMemoryFileSystem(BlazeClock.instance()).getPath("/exec");
+    root = Root.asDerivedRoot(execRoot, execRoot.getRelative("out"));
+    source = new Artifact(execRoot.getRelative("src/in"), Root.asSourceRoot(execRoot));
+  }
+
+  private Artifact output(String name) {
+    return new Artifact(root.getPath().getRelative(name), root);
+  }
+
+  private static Action action(ImmutableSet<Artifact> inputs, Artifact... outputs) {
+    return new TestAction(TestAction.NO_EFFECT, inputs, ImmutableSet.copyOf(outputs));
+  }
+
+  private static ActionLookupValue value(ActionAnalysisMetadata... actions) {
+    return new ActionLookupValue(ImmutableList.copyOf(actions));
+  }
+
+  @Test
+  public void testGeneratingActions() throws Exception {
+    Artifact foo = output("foo");
+    Artifact bar = output("bar");
+    Action fooAction = action(ImmutableSet.<Artifact>of(), foo);
+    Action barAction = action(ImmutableSet.of(foo), bar);
+    index.update(ImmutableList.of(value(fooAction), value(barAction)));
+
+    assertThat(index.getGeneratingAction(output("foo"))).isSameAs(fooAction);
+    assertThat(index.getGeneratingAction(output("bar"))).isSameAs(barAction);
+    assertThat(index.getGeneratingAction(output("baz"))).isNull();
+    assertThat(index.getActionConflicts()).isEmpty();
+    index.updatePrefixConflicts(1);
+    assertThat(index.getPrefixConflicts()).isEmpty();
+  }
+
+  @Test
+  public void testOnlyChangedValuesAreReindexed() {
+    ActionLookupValue fooValue = value(action(ImmutableSet.<Artifact>of(), output("foo")));
+    ActionLookupValue barValue = value(action(ImmutableSet.<Artifact>of(), output("bar")));
+    index.update(ImmutableList.of(fooValue, barValue));
+    assertThat(index.size()).isEqualTo(2);
+
+    Action newBarAction = action(ImmutableSet.of(source), output("bar"));
+    index.update(ImmutableList.of(fooValue, value(newBarAction)));
+    assertThat(index.getGeneratingAction(output("bar"))).isSameAs(newBarAction);
+    assertThat(index.size()).isEqualTo(2);
+
+    index.update(ImmutableList.of(fooValue));
+    assertThat(index.getGeneratingAction(output("bar"))).isNull();
+    assertThat(index.size()).isEqualTo(1);
+
+    Action bazAction = action(ImmutableSet.<Artifact>of(), output("baz"));
+    index.update(ImmutableList.of(fooValue, value(bazAction)));
+    assertThat(index.getGeneratingAction(output("baz"))).isSameAs(bazAction);
+    assertThat(index.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void testSharedActionsDoNotConflict() {
+    Artifact foo = output("foo");
+    Action action = action(ImmutableSet.<Artifact>of(), foo);
+    Action sharedAction = action(ImmutableSet.<Artifact>of(), foo);
+    ActionLookupValue value = value(action);
+    index.update(ImmutableList.of(value, value(sharedAction)));
+    assertThat(index.getActionConflicts()).isEmpty();
+
+    index.update(ImmutableList.of(value));
+    assertThat(index.getGeneratingAction(foo)).isSameAs(action);
+  }
+
+  @Test
+  public void testConflictIsResolvedWhenValueIsRemoved() {
+    Artifact foo = output("foo");
+    Action action = action(ImmutableSet.<Artifact>of(), foo);
+    Action conflictingAction = action(ImmutableSet.of(source), foo);
+    ActionLookupValue value = value(action);
+    ActionLookupValue conflictingValue = value(conflictingAction);
+    index.update(ImmutableList.of(value, conflictingValue));
+    assertThat(index.getActionConflicts().keySet()).containsExactly(conflictingAction);
+    assertThat(index.getGeneratingAction(foo)).isSameAs(action);
+
+    index.update(ImmutableList.of(conflictingValue));
+    assertThat(index.getActionConflicts()).isEmpty();
+    assertThat(index.getGeneratingAction(foo)).isSameAs(conflictingAction);
+  }
+
+  @Test
+  public void testPrefixConflictsOfAddedPaths() throws Exception {
+    Action dirAction = action(ImmutableSet.<Artifact>of(), output("dir"));
+    ActionLookupValue dirValue = value(dirAction);
+    index.update(ImmutableList.of(dirValue));
+    index.updatePrefixConflicts(1);
+    assertThat(index.getPrefixConflicts()).isEmpty();
+
+    Action fileAction = action(ImmutableSet.<Artifact>of(), output("dir/file"));
+    ActionLookupValue fileValue = value(fileAction);
+    index.update(ImmutableList.of(dirValue, fileValue));
+    index.updatePrefixConflicts(1);
+    assertThat(index.getPrefixConflicts().keySet()).containsExactly(dirAction, fileAction);
+
+    index.update(ImmutableList.of(fileValue));
+    index.updatePrefixConflicts(1);
+    assertThat(index.getPrefixConflicts()).isEmpty();
+
+    // The conflict is also found when the prefix is the path that is added.
+    index.update(ImmutableList.of(fileValue, dirValue));
+    index.updatePrefixConflicts(1);
+    assertThat(index.getPrefixConflicts().keySet()).containsExactly(dirAction, fileAction);
+  }
+
+  @Test
+  public void testOnlyOutermostPrefixConflictsAreReported() throws Exception {
+    Action xAction = action(ImmutableSet.<Artifact>of(), output("x"));
+    Action yAction = action(ImmutableSet.<Artifact>of(), output("x/y"));
+    Action zAction = action(ImmutableSet.<Artifact>of(), output("x/y/z"));
+    Action siblingAction = action(ImmutableSet.<Artifact>of(), output("x-y"));
+    index.update(ImmutableList.of(value(zAction), value(yAction), value(xAction),
+        value(siblingAction)));
+    index.updatePrefixConflicts(1);
+
+    ImmutableMap<ActionAnalysisMetadata, ArtifactPrefixConflictException> conflicts =
+        index.getPrefixConflicts();
+    assertThat(conflicts.keySet()).containsExactly(xAction, yAction, zAction).inOrder();
+    assertThat(conflicts.get(yAction).getMessage()).contains("'out/x/y'");
+    assertThat(conflicts.get(zAction).getMessage()).contains("'out/x/y/z'");
+  }
+
+  @Test
+  public void testPrefixConflictsAreFoundInParallel() throws Exception {
+    List<ActionLookupValue> values = new ArrayList<>();
+    for (int i = 0; i < 20000; i++) {
+      values.add(value(action(ImmutableSet.<Artifact>of(), output("dir" + i + "/file"))));
+    }
+    Action dirAction = action(ImmutableSet.<Artifact>of(), output("dir12345"));
+    values.add(value(dirAction));
+    index.update(values);
+    index.updatePrefixConflicts(4);
+    assertThat(index.getPrefixConflicts()).hasSize(2);
+    assertThat(index.getPrefixConflicts()).containsKey(dirAction);
+  }
+}
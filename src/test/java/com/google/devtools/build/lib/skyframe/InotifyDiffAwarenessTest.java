@@ -0,0 +1,129 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.util.OS;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.ModifiedFileSet;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.UnixFileSystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+
+/**
+ * Tests for {@link InotifyDiffAwareness}.
+ */
+@RunWith(JUnit4.class)
+public class InotifyDiffAwarenessTest {
+  private Path root;
+  private DiffAwareness diffAwareness;
+  private DiffAwareness.View view;
+
+  @Before
+  public final void createDiffAwareness() throws Exception {
+    assumeTrue(OS.getCurrent() == OS.LINUX);
+    FileSystem fileSystem = new UnixFileSystem();
+    root = fileSystem.getPath(new File(TestUtils.tmpDir()).getCanonicalPath())
+        .getRelative("inotify");
+    FileSystemUtils.deleteTree(root);
+    FileSystemUtils.createDirectoryAndParents(root);
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("existing"), "old");
+    diffAwareness =
+        new InotifyDiffAwareness.Factory(ImmutableList.<String>of()).maybeCreate(root);
+    view = diffAwareness.getCurrentView();
+  }
+
+  @After
+  public final void closeDiffAwareness() throws Exception {
+    if (diffAwareness != null) {
+      diffAwareness.close();
+    }
+  }
+
+  private ModifiedFileSet nextDiff() throws Exception {
+    DiffAwareness.View newView = diffAwareness.getCurrentView();
+    ModifiedFileSet diff = diffAwareness.getDiff(view, newView);
+    view = newView;
+    return diff;
+  }
+
+  private static PathFragment[] fragments(String... paths) {
+    PathFragment[] result = new PathFragment[paths.length];
+    for (int i = 0; i < paths.length; i++) {
+      result[i] = new PathFragment(paths[i]);
+    }
+    return result;
+  }
+
+  @Test
+  public void testNoChanges() throws Exception {
+    assertThat(nextDiff().modifiedSourceFiles()).isEmpty();
+  }
+
+  @Test
+  public void testFileChanges() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("existing"), "new");
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("created"), "");
+    assertThat(nextDiff().modifiedSourceFiles())
+        .containsExactly((Object[]) fragments("existing", "created"));
+
+    root.getRelative("created").delete();
+    assertThat(nextDiff().modifiedSourceFiles()).containsExactly((Object[]) fragments("created"));
+  }
+
+  @Test
+  public void testNewDirectoriesAreWatched() throws Exception {
+    FileSystemUtils.createDirectoryAndParents(root.getRelative("a/b"));
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("a/b/file"), "");
+    assertThat(nextDiff().modifiedSourceFiles())
+        .containsExactly((Object[]) fragments("a", "a/b", "a/b/file"));
+
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("a/b/other"), "");
+    assertThat(nextDiff().modifiedSourceFiles()).containsExactly((Object[]) fragments("a/b/other"));
+  }
+
+  @Test
+  public void testMovedDirectoriesAreReportedUnderTheirNewPath() throws Exception {
+    FileSystemUtils.createDirectoryAndParents(root.getRelative("a/b"));
+    nextDiff();
+
+    root.getRelative("a").renameTo(root.getRelative("c"));
+    assertThat(nextDiff().modifiedSourceFiles())
+        .containsExactly((Object[]) fragments("a", "a/b", "c", "c/b"));
+
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("c/b/file"), "");
+    assertThat(nextDiff().modifiedSourceFiles()).containsExactly((Object[]) fragments("c/b/file"));
+  }
+
+  @Test
+  public void testViewsOutOfSequenceModifyEverything() throws Exception {
+    DiffAwareness.View oldView = view;
+    nextDiff();
+    assertThat(diffAwareness.getDiff(oldView, diffAwareness.getCurrentView()))
+        .isEqualTo(ModifiedFileSet.EVERYTHING_MODIFIED);
+  }
+}
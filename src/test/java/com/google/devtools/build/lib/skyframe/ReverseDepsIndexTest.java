@@ -0,0 +1,104 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.events.util.EventCollectionApparatus;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
+import com.google.devtools.build.lib.testutil.Scratch;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link ReverseDepsIndex}.
+ */
+@RunWith(JUnit4.class)
+public class ReverseDepsIndexTest {
+  private final Scratch scratch = new Scratch("/workspace");
+  private final EventCollectionApparatus events = new EventCollectionApparatus();
+  private final PackageFactoryApparatus packages = new PackageFactoryApparatus(events.reporter());
+  private final ReverseDepsIndex index = new ReverseDepsIndex();
+
+  private Package createPackage(String name, String... lines) throws Exception {
+    return packages.createPackage(name, scratch.overwriteFile(name + "/BUILD", lines));
+  }
+
+  private static Label label(String label) throws Exception {
+    return Label.parseAbsolute(label);
+  }
+
+  @Test
+  public void testReverseDepsFollowPackageChanges() throws Exception {
+    index.put(createPackage("a", "filegroup(name = 'a', srcs = ['a.txt', '//b:b'])"));
+    index.put(createPackage("b", "filegroup(name = 'b', srcs = ['b.txt'])"));
+
+    assertTrue(index.contains(PackageIdentifier.createInMainRepo("a")));
+    assertFalse(index.containsErrors(PackageIdentifier.createInMainRepo("a")));
+    assertThat(index.getDeps(label("//a:a"))).containsAllOf(label("//a:a.txt"), label("//b:b"));
+    assertNull(index.getDeps(label("//a:nonexistent")));
+    assertThat(index.getReverseDeps(label("//b:b"))).containsExactly(label("//a:a"));
+    assertThat(index.getReverseDeps(label("//b:b.txt"))).containsExactly(label("//b:b"));
+    assertEquals(label("//b:b"), index.getTarget(label("//b:b")).getLabel());
+
+    // Removing a package removes the edges from its targets, but not those to them.
+    index.remove(PackageIdentifier.createInMainRepo("b"));
+    assertFalse(index.contains(PackageIdentifier.createInMainRepo("b")));
+    assertThat(index.getReverseDeps(label("//b:b.txt"))).isEmpty();
+    assertThat(index.getReverseDeps(label("//b:b"))).containsExactly(label("//a:a"));
+
+    index.put(createPackage("a", "filegroup(name = 'a', srcs = ['a.txt'])"));
+    assertThat(index.getReverseDeps(label("//b:b"))).isEmpty();
+    assertThat(index.getReverseDeps(label("//a:a.txt"))).containsExactly(label("//a:a"));
+  }
+
+  @Test
+  public void testClosureIsCachedUntilAPackageChanges() throws Exception {
+    Package a = createPackage("a", "filegroup(name = 'a', srcs = ['a.txt'])");
+    index.put(a);
+    ImmutableSet<Label> roots = ImmutableSet.of(label("//a:a"));
+    ReverseDepsIndex.Closure closure = new ReverseDepsIndex.Closure(
+        ImmutableSet.of(label("//a:a"), label("//a:a.txt")),
+        ImmutableSetMultimap.<Label, Label>of());
+
+    long generation = index.getGeneration();
+    index.cacheClosure(roots, generation, closure);
+    assertSame(closure, index.getCachedClosure(roots));
+    assertNull(index.getCachedClosure(ImmutableSet.of(label("//a:a.txt"))));
+
+    // Neither adding another package nor adding the same one again changes the closure.
+    index.put(createPackage("b", "filegroup(name = 'b')"));
+    index.put(a);
+    assertSame(closure, index.getCachedClosure(roots));
+
+    index.remove(PackageIdentifier.createInMainRepo("b"));
+    assertNull(index.getCachedClosure(roots));
+
+    // A closure computed before the change is not kept.
+    index.cacheClosure(roots, generation, closure);
+    assertNull(index.getCachedClosure(roots));
+  }
+}
@@ -152,6 +152,39 @@ public class TreeArtifactBuildTest extends TimestampBuilderTestCase {
     assertFalse(buttonTwo.pressed); // not built
   }
 
+  /** TreeArtifacts with enough files to have their metadata collected in parallel. */
+  @Test
+  public void testCacheCheckingForLargeTreeArtifacts() throws Exception {
+    Artifact outOne = createTreeArtifact("outputOne");
+    Button buttonOne = new Button();
+
+    Artifact outTwo = createTreeArtifact("outputTwo");
+    Button buttonTwo = new Button();
+
+    String[] files = new String[100];
+    for (int i = 0; i < files.length; i++) {
+      files[i] = "file_" + i;
+    }
+    TouchingTestAction actionOne = new TouchingTestAction(buttonOne, outOne, files);
+    registerAction(actionOne);
+
+    CopyTreeAction actionTwo = new CopyTreeAction(buttonTwo, outOne, outTwo, files);
+    registerAction(actionTwo);
+
+    buttonOne.pressed = buttonTwo.pressed = false;
+    buildArtifact(outTwo);
+    assertTrue(buttonOne.pressed); // built
+    assertTrue(buttonTwo.pressed); // built
+    for (String file : files) {
+      assertTrue(outTwo.getPath().getRelative(file).exists());
+    }
+
+    buttonOne.pressed = buttonTwo.pressed = false;
+    buildArtifact(outTwo);
+    assertFalse(buttonOne.pressed); // not built
+    assertFalse(buttonTwo.pressed); // not built
+  }
+
   /**
    * Test rebuilding TreeArtifacts for inputs, outputs, and dependents.
    * Also a test for caching.
@@ -36,6 +36,7 @@ import com.google.devtools.build.lib.events.PrintingEventHandler;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.SingleBuildFileCache;
+import com.google.devtools.build.lib.profiler.ResourceUsage;
 import com.google.devtools.build.lib.rules.apple.AppleConfiguration;
 import com.google.devtools.build.lib.testutil.BlazeTestUtils;
 import com.google.devtools.build.lib.testutil.TestConstants;
@@ -43,6 +44,7 @@ import com.google.devtools.build.lib.testutil.TestFileOutErr;
 import com.google.devtools.build.lib.testutil.TestUtils;
 import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.util.OS;
+import com.google.devtools.build.lib.util.io.FileOutErr;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
@@ -199,6 +201,26 @@ public class StandaloneSpawnStrategyTest {
     assertThat(out()).isEmpty();
   }
 
+  @Test
+  public void testResourceUsageIsRecorded() throws Exception {
+    Path outputDir = executor.getExecRoot().getRelative("action_outs");
+    outputDir.createDirectory();
+    FileOutErr fileOutErr =
+        new FileOutErr(outputDir.getRelative("stdout"), outputDir.getRelative("stderr"));
+    ActionExecutionContext context = createContext().withFileOutErr(fileOutErr);
+    Spawn spawn = createSpawn("/bin/sh", "-c", "echo hello");
+    executor.getSpawnActionContext(spawn.getMnemonic()).exec(spawn, context);
+    executor.getSpawnActionContext(spawn.getMnemonic()).exec(spawn, context);
+
+    ResourceUsage usage = context.getResourceUsage();
+    assertThat(usage.getMaxRssKb()).isGreaterThan(0L);
+    if (OS.getCurrent() == OS.LINUX) {
+      assertThat(usage.getWriteBytes()).isAtLeast(12L);
+    }
+    // The statistics files are removed once read.
+    assertThat(outputDir.getRelative("stdout.stats").exists()).isFalse();
+  }
+
   // Test an action with environment variables set indicating an action running on a darwin host 
   // system. Such actions should fail given the fact that these tests run on a non darwin
   // architecture.
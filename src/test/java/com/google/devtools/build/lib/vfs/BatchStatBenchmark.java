@@ -0,0 +1,137 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures stat'ing a synthetic source tree one file at a time with
+ * {@link Path#statIfFound(Symlinks)} and in batches with
+ * {@link FileSystemUtils#statIfFound(List, Symlinks)}, both on one thread and on a thread pool
+ * shaped like the one of the FilesystemValueChecker.
+ *
+ * <p>Usage: {@code BatchStatBenchmark <directory> [numFiles] [batchSize] [threads]} (defaults
+ * 1,000,000, 256 and 200). The tree is created below {@code directory} if it does not exist yet,
+ * and is left in place so that subsequent runs measure the same tree. Every tenth path does not
+ * exist.
+ */
+public final class BatchStatBenchmark {
+
+  private static final int FILES_PER_DIRECTORY = 1000;
+
+  private BatchStatBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: BatchStatBenchmark <directory> [numFiles] [batchSize] [threads]");
+      System.exit(2);
+    }
+    int numFiles = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+    int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+    int threads = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+
+    FileSystem fileSystem = new UnixFileSystem();
+    Path root = fileSystem.getPath(args[0]);
+    List<Path> paths = createTree(root, numFiles);
+
+    // Warm up the JIT and the kernel's dentry and inode caches.
+    statEach(paths, 1, 1);
+    statBatched(paths, batchSize, 1);
+
+    report("one at a time, 1 thread", paths, 1, 1, false);
+    report("batched, 1 thread", paths, batchSize, 1, true);
+    report("one at a time, " + threads + " threads", paths, batchSize, threads, false);
+    report("batched, " + threads + " threads", paths, batchSize, threads, true);
+  }
+
+  private static List<Path> createTree(Path root, int numFiles) throws Exception {
+    List<Path> paths = new ArrayList<>(numFiles);
+    Path directory = null;
+    for (int i = 0; i < numFiles; i++) {
+      if (i % FILES_PER_DIRECTORY == 0) {
+        directory = root.getRelative("dir" + i / FILES_PER_DIRECTORY);
+        FileSystemUtils.createDirectoryAndParents(directory);
+      }
+      Path path = directory.getRelative("file" + i);
+      if (i % 10 != 0 && !path.exists(Symlinks.NOFOLLOW)) {
+        FileSystemUtils.createEmptyFile(path);
+      }
+      paths.add(path);
+    }
+    return paths;
+  }
+
+  private static void report(String name, List<Path> paths, int batchSize, int threads,
+      boolean batched) throws Exception {
+    long start = System.nanoTime();
+    int found = batched
+        ? statBatched(paths, batchSize, threads)
+        : statEach(paths, batchSize, threads);
+    long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+    System.out.printf("%-32s %,d files (%,d found): %,d ms%n",
+        name, paths.size(), found, elapsedMillis);
+  }
+
+  private static int statEach(List<Path> paths, int batchSize, int threads) throws Exception {
+    return run(paths, batchSize, threads, false);
+  }
+
+  private static int statBatched(List<Path> paths, int batchSize, int threads) throws Exception {
+    return run(paths, batchSize, threads, true);
+  }
+
+  /**
+   * Stats the paths in partitions of {@code batchSize}, each of which is a task on a pool of
+   * {@code threads} threads. Returns the number of paths that were found.
+   */
+  private static int run(List<Path> paths, int batchSize, int threads, final boolean batched)
+      throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Integer>> futures = new ArrayList<>();
+      for (final List<Path> partition : Lists.partition(paths, batchSize)) {
+        futures.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception {
+            int found = 0;
+            if (batched) {
+              for (FileStatus stat : FileSystemUtils.statIfFound(partition, Symlinks.NOFOLLOW)) {
+                found += stat != null ? 1 : 0;
+              }
+            } else {
+              for (Path path : partition) {
+                found += path.statIfFound(Symlinks.NOFOLLOW) != null ? 1 : 0;
+              }
+            }
+            return found;
+          }
+        }));
+      }
+      int found = 0;
+      for (Future<Integer> future : futures) {
+        found += future.get();
+      }
+      return found;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -21,6 +21,7 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.io.BaseEncoding;
 import com.google.devtools.build.lib.testutil.TestUtils;
 import com.google.devtools.build.lib.unix.NativePosixFiles;
@@ -36,6 +37,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -300,6 +302,16 @@ public abstract class FileSystemTest {
     assertNull(nonDir.getRelative("file").statIfFound());
   }
 
+  @Test
+  public void testStatIfFoundBatch() throws Exception {
+    List<FileStatus> stats = FileSystemUtils.statIfFound(
+        ImmutableList.of(xFile, xNothing, xEmptyDirectory), Symlinks.FOLLOW);
+    assertThat(stats).hasSize(3);
+    assertTrue(stats.get(0).isFile());
+    assertNull(stats.get(1));
+    assertTrue(stats.get(2).isDirectory());
+  }
+
   // The following tests check the handling of the current working directory.
   @Test
   public void testCreatePathRelativeToWorkingDirectory() {